@@ -63,6 +63,23 @@ CREATE TABLE IF NOT EXISTS verses (
     UNIQUE KEY unique_verse_in_poem (poem_id, verse_number)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
 
+CREATE TABLE IF NOT EXISTS term_dictionary (
+    term_id INT PRIMARY KEY,
+    term VARCHAR(255) CHARACTER SET utf8mb4 COLLATE utf8mb4_bin NOT NULL
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
+
+-- term_type: 1 = token, 2 = lemma, 3 = root
+CREATE TABLE IF NOT EXISTS poem_term_counts (
+    poem_id INT NOT NULL,
+    term_type TINYINT NOT NULL,
+    term_id INT NOT NULL,
+    term_count INT NOT NULL,
+    PRIMARY KEY (poem_id, term_type, term_id),
+    FOREIGN KEY (poem_id) REFERENCES poems(poem_id) ON DELETE CASCADE,
+    FOREIGN KEY (term_id) REFERENCES term_dictionary(term_id),
+    INDEX idx_type_term (term_type, term_id)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
+
 -- Default admin user (password: admin123)
 -- Password hash is SHA-256 of 'admin123'
 INSERT INTO users (username, password_hash, full_name)
@@ -76,6 +76,24 @@ CREATE TABLE verses (
     UNIQUE KEY unique_verse_in_poem (poem_id, verse_number)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
 
+-- Term Dictionary (terms of the materialized frequencies; ids are assigned by the analysis)
+CREATE TABLE term_dictionary (
+    term_id INT PRIMARY KEY,
+    term VARCHAR(255) CHARACTER SET utf8mb4 COLLATE utf8mb4_bin NOT NULL
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
+
+-- Poem Term Counts (term_type: 1 = token, 2 = lemma, 3 = root)
+CREATE TABLE poem_term_counts (
+    poem_id INT NOT NULL,
+    term_type TINYINT NOT NULL,
+    term_id INT NOT NULL,
+    term_count INT NOT NULL,
+    PRIMARY KEY (poem_id, term_type, term_id),
+    FOREIGN KEY (poem_id) REFERENCES poems(poem_id) ON DELETE CASCADE,
+    FOREIGN KEY (term_id) REFERENCES term_dictionary(term_id),
+    INDEX idx_type_term (term_type, term_id)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
+
 -- Insert default admin user (password: admin123)
 -- Password hash is SHA-256 of 'admin123'
 INSERT INTO users (username, password_hash, full_name) VALUES
@@ -152,6 +170,24 @@ CREATE TABLE verses (
     UNIQUE KEY unique_verse_in_poem (poem_id, verse_number)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
 
+-- Term Dictionary (terms of the materialized frequencies; ids are assigned by the analysis)
+CREATE TABLE term_dictionary (
+    term_id INT PRIMARY KEY,
+    term VARCHAR(255) CHARACTER SET utf8mb4 COLLATE utf8mb4_bin NOT NULL
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
+
+-- Poem Term Counts (term_type: 1 = token, 2 = lemma, 3 = root)
+CREATE TABLE poem_term_counts (
+    poem_id INT NOT NULL,
+    term_type TINYINT NOT NULL,
+    term_id INT NOT NULL,
+    term_count INT NOT NULL,
+    PRIMARY KEY (poem_id, term_type, term_id),
+    FOREIGN KEY (poem_id) REFERENCES poems(poem_id) ON DELETE CASCADE,
+    FOREIGN KEY (term_id) REFERENCES term_dictionary(term_id),
+    INDEX idx_type_term (term_type, term_id)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
+
 -- Insert default admin user (password: admin123)
 -- Password hash is SHA-256 of 'admin123'
 INSERT INTO users (username, password_hash, full_name) VALUES
@@ -0,0 +1,21 @@
+-- Arabic Poetry Management System - Term Count Upgrade
+-- Adds the stored term count tables to a database created before they
+-- existed. Run it against each database to upgrade; it changes nothing else
+-- and is safe to run multiple times.
+
+CREATE TABLE IF NOT EXISTS term_dictionary (
+    term_id INT PRIMARY KEY,
+    term VARCHAR(255) CHARACTER SET utf8mb4 COLLATE utf8mb4_bin NOT NULL
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
+
+-- term_type: 1 = token, 2 = lemma, 3 = root
+CREATE TABLE IF NOT EXISTS poem_term_counts (
+    poem_id INT NOT NULL,
+    term_type TINYINT NOT NULL,
+    term_id INT NOT NULL,
+    term_count INT NOT NULL,
+    PRIMARY KEY (poem_id, term_type, term_id),
+    FOREIGN KEY (poem_id) REFERENCES poems(poem_id) ON DELETE CASCADE,
+    FOREIGN KEY (term_id) REFERENCES term_dictionary(term_id),
+    INDEX idx_type_term (term_type, term_id)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
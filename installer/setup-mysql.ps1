@@ -320,7 +320,7 @@ function Write-AppConfig {
         [string]$DbPassword
     )
 
-    $jdbcParams = "useSSL=false&serverTimezone=UTC&characterEncoding=UTF-8&allowPublicKeyRetrieval=true"
+    $jdbcParams = "useSSL=false&serverTimezone=UTC&characterEncoding=UTF-8&allowPublicKeyRetrieval=true&rewriteBatchedStatements=true"
     $jdbcUrl = "jdbc:mysql://127.0.0.1:$Port/$DbName" + "?" + $jdbcParams
 
     $content = @"
@@ -0,0 +1,25 @@
+package com.arabicpoetry;
+
+import com.arabicpoetry.bll.service.NearDuplicateService;
+
+import java.nio.file.Path;
+
+/**
+ * Command-line entry point for the corpus-wide near-duplicate scan:
+ * {@code NearDuplicateJob <output.tsv> [threshold]}. Running the same
+ * command again after an interruption resumes from the last checkpoint.
+ */
+public class NearDuplicateJob {
+    private static final double DEFAULT_THRESHOLD = 0.8;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: NearDuplicateJob <output.tsv> [threshold]");
+            System.exit(2);
+        }
+        Path output = Path.of(args[0]);
+        double threshold = args.length > 1 ? Double.parseDouble(args[1]) : DEFAULT_THRESHOLD;
+        long pairs = NearDuplicateService.getInstance().findNearDuplicates(output, threshold);
+        System.out.println(pairs + " near-duplicate pairs written to " + output);
+    }
+}
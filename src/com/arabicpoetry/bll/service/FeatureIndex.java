@@ -0,0 +1,137 @@
+package com.arabicpoetry.bll.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.arabicpoetry.model.linguistics.FeatureSpace;
+import com.arabicpoetry.util.ArabicTextUtils;
+import com.arabicpoetry.util.NGramUtil;
+
+/**
+ * The verses of {@link VerseSimilarityService} in one {@link FeatureSpace}:
+ * an {@link NGramIndex} of their features and, once an approximate search
+ * needs them, {@link MinHashLsh} buckets over the same ordinals.
+ *
+ * <p>Character n-grams are packed by {@link NGramUtil}. Word and lemma
+ * n-grams are numbered in the order they are first indexed, so every space
+ * gives sorted {@code long} sets that the packed Jaccard similarity can
+ * merge. Query n-grams never indexed get negative numbers of their own;
+ * they count towards the query's size but match no verse. The class is not
+ * thread-safe.</p>
+ */
+final class FeatureIndex {
+    private static final Pattern ARABIC_TOKEN_PATTERN = Pattern.compile("[\\p{IsArabic}]+");
+
+    private final FeatureSpace space;
+    // Maps a token to its normalized lemma; only used by lemma spaces.
+    private final UnaryOperator<String> lemmatizer;
+    private final Map<String, Long> numbers = new HashMap<>();
+    private NGramIndex grams = new NGramIndex();
+    private MinHashLsh lsh;
+
+    FeatureIndex(FeatureSpace space, UnaryOperator<String> lemmatizer) {
+        if (space.getUnit() == FeatureSpace.Unit.CHARACTER && space.getN() > NGramUtil.MAX_PACKED_N) {
+            throw new IllegalArgumentException("Character n-grams longer than " + NGramUtil.MAX_PACKED_N
+                    + " are not supported: " + space.getN());
+        }
+        this.space = space;
+        this.lemmatizer = lemmatizer;
+    }
+
+    FeatureSpace space() {
+        return space;
+    }
+
+    NGramIndex grams() {
+        return grams;
+    }
+
+    /**
+     * Index {@code text} under the next ordinal and return it. A null text
+     * still takes an ordinal, with no features.
+     */
+    int add(String text) {
+        long[] features = features(text, true);
+        int ordinal = grams.add(features);
+        if (lsh != null) {
+            lsh.add(ordinal, features);
+        }
+        return ordinal;
+    }
+
+    void remove(int ordinal) {
+        grams.remove(ordinal);
+    }
+
+    /**
+     * Features of a query, without numbering its unseen n-grams.
+     */
+    long[] query(String text) {
+        return features(text, false);
+    }
+
+    /**
+     * LSH buckets kept in step with added verses, or {@code null} until
+     * set.
+     */
+    MinHashLsh lsh() {
+        return lsh;
+    }
+
+    void setLsh(MinHashLsh lsh) {
+        this.lsh = lsh;
+    }
+
+    /**
+     * Keep only the verses at {@code live}, ascending, renumbered from 0 in
+     * that order.
+     */
+    void compact(int[] live) {
+        NGramIndex compacted = new NGramIndex();
+        for (int ordinal : live) {
+            compacted.add(grams.grams(ordinal));
+        }
+        grams = compacted;
+        lsh = null;
+    }
+
+    private long[] features(String text, boolean numberNew) {
+        if (text == null) {
+            return new long[0];
+        }
+        if (space.getUnit() == FeatureSpace.Unit.CHARACTER) {
+            return NGramUtil.packedCharNGrams(text, space.getN());
+        }
+        List<String> units = new ArrayList<>();
+        Matcher matcher = ARABIC_TOKEN_PATTERN.matcher(text);
+        while (matcher.find()) {
+            String token = matcher.group();
+            String unit = space.getUnit() == FeatureSpace.Unit.LEMMA
+                    ? lemmatizer.apply(token)
+                    : ArabicTextUtils.normalizeToken(token);
+            if (!unit.isEmpty()) {
+                units.add(unit);
+            }
+        }
+        Set<String> distinct = new LinkedHashSet<>(NGramUtil.tokenNGrams(units, space.getN()));
+        long[] features = new long[distinct.size()];
+        int size = 0;
+        long unseen = -1;
+        for (String gram : distinct) {
+            Long number = numberNew
+                    ? numbers.computeIfAbsent(gram, key -> (long) numbers.size())
+                    : numbers.get(gram);
+            features[size++] = number != null ? number : unseen--;
+        }
+        Arrays.sort(features);
+        return features;
+    }
+}
@@ -0,0 +1,93 @@
+package com.arabicpoetry.bll.service;
+
+/**
+ * Text folded character by character for substring search: diacritics and
+ * tatweel are dropped and Alef/Hamza variants collapse to their bare letter.
+ * Unlike {@link com.arabicpoetry.util.ArabicTextUtils#normalizeToken(String)}
+ * spaces and punctuation are kept, so any substring of the raw text folds to
+ * a substring of the folded text. Each folded character remembers the raw
+ * index it came from, letting callers map hits back to the original text.
+ */
+final class FoldedText {
+    private final char[] chars;
+    private final int[] rawIndex;
+    private final int length;
+
+    private FoldedText(char[] chars, int[] rawIndex, int length) {
+        this.chars = chars;
+        this.rawIndex = rawIndex;
+        this.length = length;
+    }
+
+    static FoldedText of(String raw) {
+        if (raw == null) {
+            return new FoldedText(new char[0], new int[0], 0);
+        }
+        char[] chars = new char[2 * raw.length()];
+        int[] rawIndex = new int[chars.length];
+        int length = 0;
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c == 'ﻻ') {
+                // Lam-Alef ligature folds to two letters.
+                chars[length] = 'ل';
+                rawIndex[length++] = i;
+            }
+            char folded = fold(c);
+            if (folded != 0) {
+                chars[length] = folded;
+                rawIndex[length++] = i;
+            }
+        }
+        return new FoldedText(chars, rawIndex, length);
+    }
+
+    /**
+     * Folded form of a whole string, e.g. a search term.
+     */
+    static String fold(String raw) {
+        FoldedText folded = of(raw);
+        return new String(folded.chars, 0, folded.length);
+    }
+
+    int length() {
+        return length;
+    }
+
+    char charAt(int index) {
+        return chars[index];
+    }
+
+    /**
+     * Index in the raw text of the character folded to position {@code index}.
+     */
+    int rawIndex(int index) {
+        return rawIndex[index];
+    }
+
+    /**
+     * Folded form of one character, or {@code 0} if it is dropped.
+     */
+    private static char fold(char c) {
+        if ((c >= 'ً' && c <= 'ٟ') || c == 'ٰ' || (c >= 'ۖ' && c <= 'ۭ') || c == 'ـ') {
+            return 0;
+        }
+        switch (c) {
+            case 'أ':
+            case 'إ':
+            case 'آ':
+            case 'ٱ':
+            case 'ﻻ':
+                return 'ا';
+            case 'ؤ':
+                return 'و';
+            case 'ئ':
+            case 'ى':
+                return 'ي';
+            case 'ة':
+                return 'ه';
+            default:
+                return c;
+        }
+    }
+}
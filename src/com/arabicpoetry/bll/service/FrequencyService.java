@@ -7,9 +7,18 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import com.arabicpoetry.dal.DAOFactory;
+import com.arabicpoetry.dal.dao.TermCountDAO;
+import com.arabicpoetry.model.Book;
 import com.arabicpoetry.model.Poem;
 import com.arabicpoetry.model.linguistics.FrequencyEntry;
+import com.arabicpoetry.model.linguistics.FrequencyEstimate;
+import com.arabicpoetry.model.linguistics.FrequencyEstimates;
+import com.arabicpoetry.model.linguistics.FrequencyPage;
+import com.arabicpoetry.model.linguistics.FrequencyScope;
 import com.arabicpoetry.model.linguistics.IndexEntry;
+import com.arabicpoetry.model.linguistics.KeynessResult;
+import com.arabicpoetry.model.linguistics.LinguisticSearchMode;
 import com.arabicpoetry.model.linguistics.TokenAnalysis;
 import com.arabicpoetry.model.linguistics.VerseAnalysis;
 import com.arabicpoetry.util.ArabicTextUtils;
@@ -18,18 +27,38 @@ import org.apache.logging.log4j.Logger;
 
 /**
  * Service for calculating frequencies and generating indices at poem and book levels.
+ * Frequencies add up per-poem term counts kept with the linguistic index,
+ * so poem, book, poet and corpus lists cost a merge of sparse vectors, and
+ * two scopes are compared (keyness) on the same counts.
+ *
+ * <p>With {@code arabicpoetry.frequency.source=database}, token, lemma and
+ * root frequencies, pages, corpus top terms and keyness are instead added
+ * up by the database from the counts another node stored with
+ * {@code arabicpoetry.frequency.persist=true}, and the linguistic index is
+ * only loaded for the book indices, which need the analyses.</p>
  */
 public class FrequencyService {
+    private static final String SOURCE_PROPERTY = "arabicpoetry.frequency.source";
+    private static final String DATABASE_SOURCE = "database";
     private static FrequencyService instance;
 
+    // Loaded on first use when frequencies come from the database.
     private LinguisticAnalysisService linguisticService;
     private PoemService poemService;
+    private BookService bookService;
+    // Null unless frequencies come from the database.
+    private TermCountDAO termCountDAO;
     private static final Logger LOGGER = LogManager.getLogger(FrequencyService.class);
 
     private FrequencyService() throws SQLException {
-        this.linguisticService = LinguisticAnalysisService.getInstance();
+        if (DATABASE_SOURCE.equalsIgnoreCase(System.getProperty(SOURCE_PROPERTY, "").trim())) {
+            this.termCountDAO = DAOFactory.getInstance().getTermCountDAO();
+        } else {
+            this.linguisticService = LinguisticAnalysisService.getInstance();
+        }
         VerseService.getInstance();
         this.poemService = PoemService.getInstance();
+        this.bookService = BookService.getInstance();
     }
 
     public static synchronized FrequencyService getInstance() throws SQLException {
@@ -53,123 +82,179 @@ public class FrequencyService {
         this.poemService = poemService;
     }
 
+    void setBookService(BookService bookService) {
+        this.bookService = bookService;
+    }
+
+    // A DAO makes frequencies come from the database; null goes back to the index.
+    void setTermCountDAO(TermCountDAO termCountDAO) {
+        this.termCountDAO = termCountDAO;
+    }
+
     /**
      * Get token frequencies for a specific poem.
      */
     public List<FrequencyEntry> getTokenFrequenciesByPoem(int poemId) throws SQLException {
-        List<VerseAnalysis> analyses = linguisticService.getVerseAnalysesByPoem(poemId);
-        Map<String, Integer> freqMap = new HashMap<>();
-
-        for (VerseAnalysis analysis : analyses) {
-            for (TokenAnalysis token : analysis.getTokens()) {
-                String normalized = token.getNormalizedToken();
-                freqMap.put(normalized, freqMap.getOrDefault(normalized, 0) + 1);
-            }
-        }
-
-        return toFrequencyList(freqMap);
+        return frequencies(LinguisticSearchMode.TOKEN, FrequencyScope.poem(poemId));
     }
 
     /**
      * Get lemma frequencies for a specific poem.
      */
     public List<FrequencyEntry> getLemmaFrequenciesByPoem(int poemId) throws SQLException {
-        List<VerseAnalysis> analyses = linguisticService.getVerseAnalysesByPoem(poemId);
-        Map<String, Integer> freqMap = new HashMap<>();
-
-        for (VerseAnalysis analysis : analyses) {
-            for (TokenAnalysis token : analysis.getTokens()) {
-                for (String lemma : token.getLemmas()) {
-                    String normalized = ArabicTextUtils.normalizeToken(lemma);
-                    freqMap.put(normalized, freqMap.getOrDefault(normalized, 0) + 1);
-                }
-            }
-        }
-
-        return toFrequencyList(freqMap);
+        return frequencies(LinguisticSearchMode.LEMMA, FrequencyScope.poem(poemId));
     }
 
     /**
      * Get root frequencies for a specific poem.
      */
     public List<FrequencyEntry> getRootFrequenciesByPoem(int poemId) throws SQLException {
-        List<VerseAnalysis> analyses = linguisticService.getVerseAnalysesByPoem(poemId);
-        Map<String, Integer> freqMap = new HashMap<>();
-
-        for (VerseAnalysis analysis : analyses) {
-            for (TokenAnalysis token : analysis.getTokens()) {
-                for (String root : token.getRoots()) {
-                    String normalized = ArabicTextUtils.normalizeToken(root);
-                    freqMap.put(normalized, freqMap.getOrDefault(normalized, 0) + 1);
-                }
-            }
-        }
-
-        return toFrequencyList(freqMap);
+        return frequencies(LinguisticSearchMode.ROOT, FrequencyScope.poem(poemId));
     }
 
     /**
      * Get token frequencies for a specific book.
      */
     public List<FrequencyEntry> getTokenFrequenciesByBook(int bookId) throws SQLException {
-        List<Poem> poems = poemService.getPoemsByBook(bookId);
-        Map<String, Integer> freqMap = new HashMap<>();
-
-        for (Poem poem : poems) {
-            List<VerseAnalysis> analyses = linguisticService.getVerseAnalysesByPoem(poem.getPoemId());
-            for (VerseAnalysis analysis : analyses) {
-                for (TokenAnalysis token : analysis.getTokens()) {
-                    String normalized = token.getNormalizedToken();
-                    freqMap.put(normalized, freqMap.getOrDefault(normalized, 0) + 1);
-                }
-            }
-        }
-
-        return toFrequencyList(freqMap);
+        return frequencies(LinguisticSearchMode.TOKEN, FrequencyScope.book(bookId));
     }
 
     /**
      * Get lemma frequencies for a specific book.
      */
     public List<FrequencyEntry> getLemmaFrequenciesByBook(int bookId) throws SQLException {
-        List<Poem> poems = poemService.getPoemsByBook(bookId);
-        Map<String, Integer> freqMap = new HashMap<>();
+        return frequencies(LinguisticSearchMode.LEMMA, FrequencyScope.book(bookId));
+    }
 
-        for (Poem poem : poems) {
-            List<VerseAnalysis> analyses = linguisticService.getVerseAnalysesByPoem(poem.getPoemId());
-            for (VerseAnalysis analysis : analyses) {
-                for (TokenAnalysis token : analysis.getTokens()) {
-                    for (String lemma : token.getLemmas()) {
-                        String normalized = ArabicTextUtils.normalizeToken(lemma);
-                        freqMap.put(normalized, freqMap.getOrDefault(normalized, 0) + 1);
-                    }
-                }
+    /**
+     * Get root frequencies for a specific book.
+     */
+    public List<FrequencyEntry> getRootFrequenciesByBook(int bookId) throws SQLException {
+        return frequencies(LinguisticSearchMode.ROOT, FrequencyScope.book(bookId));
+    }
+
+    /**
+     * Get token, lemma or root frequencies over the poems of a poet.
+     */
+    public List<FrequencyEntry> getFrequenciesByPoet(LinguisticSearchMode mode, int poetId) throws SQLException {
+        return frequencies(mode, FrequencyScope.poet(poetId));
+    }
+
+    /**
+     * Get token, lemma or root frequencies over the whole corpus.
+     */
+    public List<FrequencyEntry> getCorpusFrequencies(LinguisticSearchMode mode) throws SQLException {
+        return frequencies(mode, FrequencyScope.corpus());
+    }
+
+    /**
+     * One page of the token, lemma or root frequencies of {@code scope}:
+     * the {@code n} most frequent terms after the first {@code offset},
+     * ordered like the full lists. Only the terms up to the end of the page
+     * are ranked, so showing the head of a large list stays cheap.
+     */
+    public FrequencyPage topFrequencies(FrequencyScope scope, LinguisticSearchMode type, int n, int offset)
+            throws SQLException {
+        if (termCountDAO != null) {
+            int from = Math.max(0, offset);
+            List<FrequencyEntry> entries = n > 0 ? termCountDAO.findFrequencies(type, scope, n, from)
+                    : Collections.emptyList();
+            return new FrequencyPage(entries, from, termCountDAO.countTerms(type, scope));
+        }
+        return linguisticService().getTopTermFrequencies(type, poemIds(scope), n, offset);
+    }
+
+    /**
+     * The {@code k} most frequent tokens, lemmas or roots of the whole
+     * corpus, estimated in fixed memory when frequency sketches are enabled
+     * (see {@link LinguisticAnalysisService#estimateTopTermFrequencies}) and
+     * exact otherwise. Per-poem and per-book lists are always exact, and so
+     * are stored counts.
+     */
+    public FrequencyEstimates estimateTopFrequencies(LinguisticSearchMode type, int k) throws SQLException {
+        if (termCountDAO != null) {
+            List<FrequencyEstimate> estimates = new ArrayList<>();
+            for (FrequencyEntry entry : termCountDAO.findFrequencies(type, FrequencyScope.corpus(), k, 0)) {
+                estimates.add(new FrequencyEstimate(entry.getTerm(), entry.getCount(), entry.getCount()));
             }
+            return new FrequencyEstimates(estimates, termCountDAO.countOccurrences(type, FrequencyScope.corpus()), 0);
         }
+        return linguisticService().estimateTopTermFrequencies(type, k);
+    }
 
-        return toFrequencyList(freqMap);
+    /**
+     * Compare the token, lemma or root use of {@code target} against
+     * {@code reference} (e.g. two poets, two books, or a book against the
+     * corpus): the {@code k} terms most overused and the {@code k} most
+     * underused in the target, ranked by log-likelihood keyness. Scopes may
+     * overlap; terms are compared on their relative frequencies in each.
+     */
+    public KeynessResult compareFrequencies(FrequencyScope target, FrequencyScope reference,
+                                            LinguisticSearchMode type, int k) throws SQLException {
+        KeynessResult result = termCountDAO != null ? storedKeyness(target, reference, type, k)
+                : linguisticService().getKeyness(type, poemIds(target), poemIds(reference), k);
+        LOGGER.debug("Compared {} terms of {} against {}", result.getComparedTerms(), target, reference);
+        return result;
     }
 
     /**
-     * Get root frequencies for a specific book.
+     * Keyness over the stored counts of both scopes, lined up on a
+     * dictionary of the terms occurring in either.
      */
-    public List<FrequencyEntry> getRootFrequenciesByBook(int bookId) throws SQLException {
-        List<Poem> poems = poemService.getPoemsByBook(bookId);
-        Map<String, Integer> freqMap = new HashMap<>();
+    private KeynessResult storedKeyness(FrequencyScope target, FrequencyScope reference, LinguisticSearchMode type,
+                                        int k) throws SQLException {
+        List<FrequencyEntry> targetEntries = termCountDAO.findFrequencies(type, target, Integer.MAX_VALUE, 0);
+        List<FrequencyEntry> referenceEntries = termCountDAO.findFrequencies(type, reference, Integer.MAX_VALUE, 0);
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> terms = new ArrayList<>();
+        for (List<FrequencyEntry> entries : List.of(targetEntries, referenceEntries)) {
+            for (FrequencyEntry entry : entries) {
+                if (ids.putIfAbsent(entry.getTerm(), terms.size()) == null) {
+                    terms.add(entry.getTerm());
+                }
+            }
+        }
+        int[] targetCounts = new int[terms.size()];
+        int[] referenceCounts = new int[terms.size()];
+        for (FrequencyEntry entry : targetEntries) {
+            targetCounts[ids.get(entry.getTerm())] = entry.getCount();
+        }
+        for (FrequencyEntry entry : referenceEntries) {
+            referenceCounts[ids.get(entry.getTerm())] = entry.getCount();
+        }
+        return Keyness.compare(targetCounts, referenceCounts, TermDictionary.of(terms), k, null);
+    }
 
-        for (Poem poem : poems) {
-            List<VerseAnalysis> analyses = linguisticService.getVerseAnalysesByPoem(poem.getPoemId());
-            for (VerseAnalysis analysis : analyses) {
-                for (TokenAnalysis token : analysis.getTokens()) {
-                    for (String root : token.getRoots()) {
-                        String normalized = ArabicTextUtils.normalizeToken(root);
-                        freqMap.put(normalized, freqMap.getOrDefault(normalized, 0) + 1);
+    /**
+     * Ids of the poems in {@code scope}, or {@code null} for the corpus.
+     */
+    private List<Integer> poemIds(FrequencyScope scope) throws SQLException {
+        switch (scope.getKind()) {
+            case POEM:
+                return List.of(scope.getId());
+            case BOOK:
+                return poemIds(poemService.getPoemsByBook(scope.getId()));
+            case POET:
+                return poemIds(poemService.getPoemsByPoet(scope.getId()));
+            case ERA:
+                List<Integer> poemIds = new ArrayList<>();
+                for (Book book : bookService.getAllBooks()) {
+                    if (book.getEra() != null && book.getEra().trim().equalsIgnoreCase(scope.getEra())) {
+                        poemIds.addAll(poemIds(poemService.getPoemsByBook(book.getBookId())));
                     }
                 }
-            }
+                return poemIds;
+            default:
+                return null;
         }
+    }
 
-        return toFrequencyList(freqMap);
+    private static List<Integer> poemIds(List<Poem> poems) {
+        List<Integer> poemIds = new ArrayList<>(poems.size());
+        for (Poem poem : poems) {
+            poemIds.add(poem.getPoemId());
+        }
+        return poemIds;
     }
 
     /**
@@ -180,7 +265,7 @@ public class FrequencyService {
         List<Poem> poems = poemService.getPoemsByBook(bookId);
 
         for (Poem poem : poems) {
-            List<VerseAnalysis> analyses = linguisticService.getVerseAnalysesByPoem(poem.getPoemId());
+            List<VerseAnalysis> analyses = linguisticService().getVerseAnalysesByPoem(poem.getPoemId());
             for (VerseAnalysis analysis : analyses) {
                 for (TokenAnalysis token : analysis.getTokens()) {
                     String normalized = token.getNormalizedToken();
@@ -204,7 +289,7 @@ public class FrequencyService {
         List<Poem> poems = poemService.getPoemsByBook(bookId);
 
         for (Poem poem : poems) {
-            List<VerseAnalysis> analyses = linguisticService.getVerseAnalysesByPoem(poem.getPoemId());
+            List<VerseAnalysis> analyses = linguisticService().getVerseAnalysesByPoem(poem.getPoemId());
             for (VerseAnalysis analysis : analyses) {
                 for (TokenAnalysis token : analysis.getTokens()) {
                     for (String lemma : token.getLemmas()) {
@@ -230,7 +315,7 @@ public class FrequencyService {
         List<Poem> poems = poemService.getPoemsByBook(bookId);
 
         for (Poem poem : poems) {
-            List<VerseAnalysis> analyses = linguisticService.getVerseAnalysesByPoem(poem.getPoemId());
+            List<VerseAnalysis> analyses = linguisticService().getVerseAnalysesByPoem(poem.getPoemId());
             for (VerseAnalysis analysis : analyses) {
                 for (TokenAnalysis token : analysis.getTokens()) {
                     for (String root : token.getRoots()) {
@@ -248,13 +333,22 @@ public class FrequencyService {
         return index;
     }
 
-    private List<FrequencyEntry> toFrequencyList(Map<String, Integer> freqMap) {
-        List<FrequencyEntry> entries = new ArrayList<>();
-        for (Map.Entry<String, Integer> entry : freqMap.entrySet()) {
-            entries.add(new FrequencyEntry(entry.getKey(), entry.getValue()));
-        }
-        Collections.sort(entries);
-        LOGGER.debug("Computed {} frequency entries", entries.size());
+    /**
+     * Add up the per-poem counts of the poems in {@code scope}, stored or
+     * kept with the index; no analyses are read.
+     */
+    private List<FrequencyEntry> frequencies(LinguisticSearchMode mode, FrequencyScope scope) throws SQLException {
+        List<FrequencyEntry> entries = termCountDAO != null
+                ? termCountDAO.findFrequencies(mode, scope, Integer.MAX_VALUE, 0)
+                : linguisticService().getTermFrequencies(mode, poemIds(scope));
+        LOGGER.debug("Computed {} frequency entries for {}", entries.size(), scope);
         return entries;
     }
+
+    private LinguisticAnalysisService linguisticService() throws SQLException {
+        if (linguisticService == null) {
+            linguisticService = LinguisticAnalysisService.getInstance();
+        }
+        return linguisticService;
+    }
 }
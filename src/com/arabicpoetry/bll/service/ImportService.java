@@ -63,6 +63,11 @@ public class ImportService {
      * @return Import summary message
      */
     public String importFromFile(String filePath) throws Exception {
+        // Indexes over the verses see the whole import as one batch of edits.
+        return verseService.runBatch(() -> importRecords(filePath));
+    }
+
+    private String importRecords(String filePath) throws Exception {
         int booksImported = 0;
         int poetsImported = 0;
         int poemsImported = 0;
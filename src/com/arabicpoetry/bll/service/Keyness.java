@@ -0,0 +1,259 @@
+package com.arabicpoetry.bll.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.arabicpoetry.model.linguistics.KeynessEntry;
+import com.arabicpoetry.model.linguistics.KeynessResult;
+
+/**
+ * Keyness of a target against a reference, computed on two dense count
+ * vectors indexed by the term ids of one {@link TermDictionary}. Every term
+ * occurring in either vector is scored by log-likelihood (Rayson and
+ * Garside's G2) and sorted into overused or underused by comparing its
+ * relative frequencies; terms with equal rates are neither.
+ *
+ * <p>Term ids are split into blocks of {@link #TERMS_PER_TASK} that are
+ * scored on a fork/join pool. Each block keeps only its {@code k} best terms
+ * per direction in a min-heap, and blocks are merged pairwise, so the
+ * ranking never holds more than {@code 2k} terms per block. Terms with
+ * equal scores are ordered by term, which makes the result independent of
+ * how the blocks were split.</p>
+ */
+final class Keyness {
+    static final int TERMS_PER_TASK = 4096;
+
+    private final int[] target;
+    private final int[] reference;
+    private final long targetTotal;
+    private final long referenceTotal;
+    private final TermDictionary terms;
+    private final int k;
+
+    private Keyness(int[] target, int[] reference, TermDictionary terms, int k) {
+        this.target = target;
+        this.reference = reference;
+        this.targetTotal = total(target);
+        this.referenceTotal = total(reference);
+        this.terms = terms;
+        this.k = Math.max(0, k);
+    }
+
+    /**
+     * Rank the {@code k} most overused and underused terms of
+     * {@code target} against {@code reference}; both vectors are as long as
+     * {@code terms}. Blocks are scored on {@code pool}, or all on the
+     * calling thread if it is {@code null}.
+     */
+    static KeynessResult compare(int[] target, int[] reference, TermDictionary terms, int k, ForkJoinPool pool) {
+        Keyness keyness = new Keyness(target, reference, terms, k);
+        Ranking ranking = pool != null && target.length > TERMS_PER_TASK
+                ? pool.invoke(keyness.new RankTask(0, target.length))
+                : keyness.rank(0, target.length);
+        return new KeynessResult(keyness.entries(ranking.overused, true), keyness.entries(ranking.underused, false),
+                keyness.targetTotal, keyness.referenceTotal, ranking.compared);
+    }
+
+    /**
+     * G2 of a term counted {@code a} times in a target of {@code c}
+     * occurrences and {@code b} times in a reference of {@code d}.
+     */
+    static double logLikelihood(long a, long b, long c, long d) {
+        double expectedA = (double) c * (a + b) / (c + d);
+        double expectedB = (double) d * (a + b) / (c + d);
+        return 2 * (observedLog(a, expectedA) + observedLog(b, expectedB));
+    }
+
+    /**
+     * Pearson's chi-square of the same 2x2 table as {@link #logLikelihood},
+     * without continuity correction.
+     */
+    static double chiSquare(long a, long b, long c, long d) {
+        double n = c + d;
+        double difference = (double) a * (d - b) - (double) b * (c - a);
+        double margins = (double) (a + b) * (n - a - b) * c * d;
+        return margins == 0 ? 0 : n * difference * difference / margins;
+    }
+
+    private static double observedLog(long observed, double expected) {
+        return observed == 0 ? 0 : observed * Math.log(observed / expected);
+    }
+
+    private static long total(int[] counts) {
+        long total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    private Ranking rank(int from, int to) {
+        Ranking ranking = new Ranking();
+        for (int term = from; term < to; term++) {
+            long a = target[term];
+            long b = reference[term];
+            if (a + b == 0) {
+                continue;
+            }
+            ranking.compared++;
+            long targetRate = a * referenceTotal;
+            long referenceRate = b * targetTotal;
+            if (targetRate != referenceRate) {
+                double score = logLikelihood(a, b, targetTotal, referenceTotal);
+                (targetRate > referenceRate ? ranking.overused : ranking.underused).offer(term, score);
+            }
+        }
+        return ranking;
+    }
+
+    private List<KeynessEntry> entries(Heap heap, boolean overused) {
+        int[] ranked = heap.drain();
+        List<KeynessEntry> entries = new ArrayList<>(ranked.length);
+        for (int term : ranked) {
+            long a = target[term];
+            long b = reference[term];
+            entries.add(new KeynessEntry(terms.term(term), target[term], reference[term],
+                    logLikelihood(a, b, targetTotal, referenceTotal), chiSquare(a, b, targetTotal, referenceTotal),
+                    overused));
+        }
+        return entries;
+    }
+
+    /**
+     * Best terms of a block in both directions.
+     */
+    private final class Ranking {
+        final Heap overused = new Heap();
+        final Heap underused = new Heap();
+        int compared;
+
+        Ranking merge(Ranking other) {
+            overused.offerAll(other.overused);
+            underused.offerAll(other.underused);
+            compared += other.compared;
+            return this;
+        }
+    }
+
+    /**
+     * The {@code k} highest scored terms offered, with the lowest ranked at
+     * the root.
+     */
+    private final class Heap {
+        final int[] heapTerms = new int[k];
+        final double[] scores = new double[k];
+        int size;
+
+        void offer(int term, double score) {
+            if (size < k) {
+                heapTerms[size] = term;
+                scores[size] = score;
+                siftUp(size++);
+            } else if (size > 0 && ranksBefore(term, score, heapTerms[0], scores[0])) {
+                heapTerms[0] = term;
+                scores[0] = score;
+                siftDown(size);
+            }
+        }
+
+        void offerAll(Heap other) {
+            for (int i = 0; i < other.size; i++) {
+                offer(other.heapTerms[i], other.scores[i]);
+            }
+        }
+
+        /**
+         * Kept terms, highest ranked first; empties the heap.
+         */
+        int[] drain() {
+            int[] ranked = new int[size];
+            while (size > 0) {
+                ranked[size - 1] = heapTerms[0];
+                size--;
+                heapTerms[0] = heapTerms[size];
+                scores[0] = scores[size];
+                siftDown(size);
+            }
+            return ranked;
+        }
+
+        private boolean ranksBefore(int termA, double scoreA, int termB, double scoreB) {
+            if (scoreA != scoreB) {
+                return scoreA > scoreB;
+            }
+            return terms.term(termA).compareTo(terms.term(termB)) < 0;
+        }
+
+        private boolean ranksBefore(int a, int b) {
+            return ranksBefore(heapTerms[a], scores[a], heapTerms[b], scores[b]);
+        }
+
+        private void siftUp(int node) {
+            while (node > 0) {
+                int parent = (node - 1) >>> 1;
+                if (!ranksBefore(parent, node)) {
+                    return;
+                }
+                swap(parent, node);
+                node = parent;
+            }
+        }
+
+        private void siftDown(int size) {
+            int node = 0;
+            while (true) {
+                int lowest = node;
+                int left = 2 * node + 1;
+                if (left < size && ranksBefore(lowest, left)) {
+                    lowest = left;
+                }
+                if (left + 1 < size && ranksBefore(lowest, left + 1)) {
+                    lowest = left + 1;
+                }
+                if (lowest == node) {
+                    return;
+                }
+                swap(node, lowest);
+                node = lowest;
+            }
+        }
+
+        private void swap(int a, int b) {
+            int term = heapTerms[a];
+            double score = scores[a];
+            heapTerms[a] = heapTerms[b];
+            scores[a] = scores[b];
+            heapTerms[b] = term;
+            scores[b] = score;
+        }
+    }
+
+    /**
+     * Scores a range of term ids, halving it until it fits one block.
+     */
+    private final class RankTask extends RecursiveTask<Ranking> {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        RankTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Ranking compute() {
+            if (to - from <= TERMS_PER_TASK) {
+                return rank(from, to);
+            }
+            int middle = (from + to) >>> 1;
+            RankTask left = new RankTask(from, middle);
+            left.fork();
+            Ranking right = new RankTask(middle, to).compute();
+            return left.join().merge(right);
+        }
+    }
+}
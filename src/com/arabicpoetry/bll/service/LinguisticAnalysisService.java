@@ -1,19 +1,31 @@
 package com.arabicpoetry.bll.service;
 
 import java.sql.SQLException;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedHashSet;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import com.arabicpoetry.dal.DAOFactory;
+import com.arabicpoetry.model.Poem;
 import com.arabicpoetry.model.Verse;
+import com.arabicpoetry.model.linguistics.FrequencyEntry;
+import com.arabicpoetry.model.linguistics.FrequencyEstimates;
+import com.arabicpoetry.model.linguistics.FrequencyPage;
+import com.arabicpoetry.model.linguistics.KeynessResult;
 import com.arabicpoetry.model.linguistics.LinguisticMatch;
 import com.arabicpoetry.model.linguistics.LinguisticSearchMode;
+import com.arabicpoetry.model.linguistics.MorphologicalAnalysis;
 import com.arabicpoetry.model.linguistics.TokenAnalysis;
 import com.arabicpoetry.model.linguistics.VerseAnalysis;
 import com.arabicpoetry.util.ArabicTextUtils;
@@ -21,34 +33,62 @@ import com.arabicpoetry.util.WordAnalyzer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import net.oujda_nlp_team.entity.Result;
-import net.oujda_nlp_team.entity.ResultList;
-
 /**
  * Provides tokenization, lemmatization, root extraction, segmentation, and the
  * supporting query APIs for iteration 2 of the project.
  */
 public class LinguisticAnalysisService {
-    private static final Pattern ARABIC_TOKEN_PATTERN = Pattern.compile("[\\p{IsArabic}]+");
     private static final int SNIPPET_PADDING = 12;
+    private static final Pattern TERM_SEPARATORS = Pattern.compile("[\\s,;\u060C\u061B]+");
+    private static final String PARALLELISM_PROPERTY = "arabicpoetry.analysis.parallelism";
+    private static final String SKETCH_PROPERTY = "arabicpoetry.frequency.sketch";
+    private static final String SKETCH_WIDTH_PROPERTY = "arabicpoetry.frequency.sketch.width";
+    private static final String SKETCH_CAPACITY_PROPERTY = "arabicpoetry.frequency.sketch.capacity";
+    private static final String PERSIST_PROPERTY = "arabicpoetry.frequency.persist";
+    private static final int DEFAULT_SKETCH_WIDTH = 1 << 14;
+    private static final int SKETCH_DEPTH = 4;
+    private static final int DEFAULT_SKETCH_CAPACITY = 2048;
+    private static final int VERSES_PER_TASK = 256;
     private static final Logger LOGGER = LogManager.getLogger(LinguisticAnalysisService.class);
 
     private static LinguisticAnalysisService instance;
 
     private VerseService verseService;
+    private PoemService poemService;
     private WordAnalyzer wordAnalyzer;
 
-    private final Map<String, List<TokenAnalysis>> tokensByForm = new HashMap<>();
-    private final Map<String, List<TokenAnalysis>> tokensByLemma = new HashMap<>();
-    private final Map<String, List<TokenAnalysis>> tokensByRoot = new HashMap<>();
-    private final Map<String, List<TokenAnalysis>> tokensBySegment = new HashMap<>();
-    private final List<VerseAnalysis> verseAnalyses = new ArrayList<>();
+    // Published snapshot; replaced wholesale, never modified in place.
+    private volatile LinguisticIndex index;
+    // Set when a delta could not be applied; the next query rebuilds.
+    private volatile boolean stale;
+    private int parallelism = resolveParallelism();
+    // Scores keyness blocks; created on first use and replaced when the
+    // parallelism changes. A replaced pool is shut down, which still lets
+    // it finish the calls already using it.
+    private ForkJoinPool keynessPool;
+    // Null unless frequency sketches are enabled.
+    private TermSketches.Settings sketchSettings = resolveSketchSettings();
+    // Null unless term counts are stored in the database.
+    private TermCountWriter termCountWriter = resolveTermCountWriter();
+    private final ReentrantLock indexLock = new ReentrantLock();
+    private final Queue<VerseChangeEvent> pendingChanges = new ConcurrentLinkedQueue<>();
+    private final VerseChangeListener verseChangeListener = new VerseChangeListener() {
+        @Override
+        public void verseChanged(VerseChangeEvent event) {
+            onVersesChanged(List.of(event));
+        }
 
-    private boolean initialized;
+        @Override
+        public void versesChanged(List<VerseChangeEvent> events) {
+            onVersesChanged(events);
+        }
+    };
 
     private LinguisticAnalysisService() throws SQLException {
         this.verseService = VerseService.getInstance();
+        this.poemService = PoemService.getInstance();
         this.wordAnalyzer = WordAnalyzer.getInstance();
+        this.verseService.addVerseChangeListener(verseChangeListener);
     }
 
     public static synchronized LinguisticAnalysisService getInstance() throws SQLException {
@@ -60,56 +100,165 @@ public class LinguisticAnalysisService {
 
     // For tests
     public static synchronized void resetInstance() {
+        if (instance != null) {
+            instance.shutdownKeynessPool();
+        }
         instance = null;
     }
 
     // Package-private setters for tests
     void setVerseService(VerseService verseService) {
+        if (this.verseService != null) {
+            this.verseService.removeVerseChangeListener(verseChangeListener);
+        }
         this.verseService = verseService;
+        if (verseService != null) {
+            verseService.addVerseChangeListener(verseChangeListener);
+        }
+    }
+
+    void setPoemService(PoemService poemService) {
+        this.poemService = poemService;
     }
 
     void setWordAnalyzer(WordAnalyzer wordAnalyzer) {
         this.wordAnalyzer = wordAnalyzer;
     }
 
+    void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    // Takes effect on the next full rebuild; null disables the sketches.
+    void setSketchSettings(TermSketches.Settings sketchSettings) {
+        this.sketchSettings = sketchSettings;
+    }
+
+    // Receives every snapshot published from now on; null stops storing counts.
+    void setTermCountWriter(TermCountWriter termCountWriter) {
+        this.termCountWriter = termCountWriter;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
     public List<String> getAllTokens() throws SQLException {
-        ensureAnalyzed();
-        return sortedKeys(tokensByForm);
+        return ensureAnalyzed().getTerms(LinguisticSearchMode.TOKEN);
     }
 
     public List<String> getAllLemmas() throws SQLException {
-        ensureAnalyzed();
-        return sortedKeys(tokensByLemma);
+        return ensureAnalyzed().getTerms(LinguisticSearchMode.LEMMA);
     }
 
     public List<String> getAllRoots() throws SQLException {
-        ensureAnalyzed();
-        return sortedKeys(tokensByRoot);
+        return ensureAnalyzed().getTerms(LinguisticSearchMode.ROOT);
     }
 
     public List<String> getAllSegments() throws SQLException {
-        ensureAnalyzed();
-        return sortedKeys(tokensBySegment);
+        return ensureAnalyzed().getTerms(LinguisticSearchMode.SEGMENT);
+    }
+
+    /**
+     * One page of the sorted terms of the token, lemma, root or segment index
+     * that match {@code pattern}: {@code *} matches any run of letters and
+     * {@code ?} one letter, so {@code كتب*} is a prefix and {@code *ون} a
+     * suffix lookup. A blank pattern pages through every term. Terms are kept
+     * sorted per snapshot, so paging never re-sorts.
+     */
+    public List<String> findTerms(LinguisticSearchMode mode, String pattern, int offset, int limit)
+            throws SQLException {
+        List<String> terms = matchingTerms(ensureAnalyzed(), mode, pattern);
+        int from = Math.min(Math.max(0, offset), terms.size());
+        int to = Math.min(terms.size(), from + Math.max(0, limit));
+        return new ArrayList<>(terms.subList(from, to));
+    }
+
+    /**
+     * Number of terms {@link #findTerms} pages through for {@code pattern}.
+     */
+    public int countTerms(LinguisticSearchMode mode, String pattern) throws SQLException {
+        return matchingTerms(ensureAnalyzed(), mode, pattern).size();
+    }
+
+    /**
+     * Frequencies of the token, lemma, root or segment terms in the given
+     * poems, or in the whole corpus if {@code poemIds} is {@code null}, most
+     * frequent first. Each token counts once under its form and once per
+     * lemma, root or segment candidate, repeated and empty ones included.
+     * The counts are kept per poem with the index, so this only adds them
+     * up.
+     */
+    public List<FrequencyEntry> getTermFrequencies(LinguisticSearchMode mode, Collection<Integer> poemIds)
+            throws SQLException {
+        return ensureAnalyzed().frequencies(mode, poemIds);
+    }
+
+    /**
+     * One page of {@link #getTermFrequencies}: the {@code n} terms ranked
+     * after the first {@code offset}, selected without sorting the rest.
+     */
+    public FrequencyPage getTopTermFrequencies(LinguisticSearchMode mode, Collection<Integer> poemIds, int n,
+                                               int offset) throws SQLException {
+        return ensureAnalyzed().topFrequencies(mode, poemIds, n, offset);
+    }
+
+    /**
+     * The {@code k} most frequent token, lemma, root or segment terms of the
+     * whole corpus. With {@code arabicpoetry.frequency.sketch=true} they come
+     * from fixed-size sketches kept with the index: counts are upper bounds
+     * within the result's error bound, at most total / capacity until verse
+     * edits remove terms, and at most
+     * {@code arabicpoetry.frequency.sketch.capacity} terms are returned.
+     * Otherwise the exact per-poem counts are added up.
+     */
+    public FrequencyEstimates estimateTopTermFrequencies(LinguisticSearchMode mode, int k) throws SQLException {
+        return ensureAnalyzed().estimateTopFrequencies(mode, k);
+    }
+
+    /**
+     * Keyness of the token, lemma, root or segment terms of the target
+     * poems against the reference poems ({@code null} for the whole
+     * corpus): the {@code k} terms most overused and most underused in the
+     * target by log-likelihood. Terms are scored in blocks on a pool of
+     * {@link #getParallelism()} threads shared by all calls.
+     */
+    public KeynessResult getKeyness(LinguisticSearchMode mode, Collection<Integer> targetPoemIds,
+                                    Collection<Integer> referencePoemIds, int k) throws SQLException {
+        LinguisticIndex snapshot = ensureAnalyzed();
+        return snapshot.keyness(mode, targetPoemIds, referencePoemIds, k, keynessPool());
+    }
+
+    /**
+     * Whether {@link #estimateTopTermFrequencies} answers from sketches.
+     */
+    public boolean isFrequencySketchEnabled() throws SQLException {
+        return ensureAnalyzed().hasSketches();
     }
 
     public List<LinguisticMatch> search(String query, LinguisticSearchMode mode) throws SQLException {
-        ensureAnalyzed();
+        LinguisticIndex snapshot = ensureAnalyzed();
         if (mode == null) {
             return Collections.emptyList();
         }
         switch (mode) {
             case TOKEN:
-                return wrapTokenMatches(lookup(tokensByForm, ArabicTextUtils.normalizeToken(query)), mode);
             case LEMMA:
-                return wrapTokenMatches(lookup(tokensByLemma, ArabicTextUtils.normalizeToken(query)), mode);
             case ROOT:
-                return wrapTokenMatches(lookup(tokensByRoot, ArabicTextUtils.normalizeToken(query)), mode);
             case SEGMENT:
-                return wrapTokenMatches(lookup(tokensBySegment, ArabicTextUtils.normalizeToken(query)), mode);
+                if (query != null && SortedTerms.hasWildcard(query)) {
+                    int[] tokens = snapshot.tokenIdsMatching(mode, normalizePattern(query));
+                    return wrapTokenMatches(snapshot.analyzeTokens(tokens), mode);
+                }
+                return wrapTokenMatches(snapshot.lookup(mode, ArabicTextUtils.normalizeToken(query)), mode);
             case STRING:
-                return literalMatches(query);
+                return literalMatches(snapshot, query);
             case REGEX:
-                return regexMatches(query);
+                return regexMatches(snapshot, query);
+            case TERM_LIST:
+                return termListMatches(snapshot, query);
+            case QUERY:
+                return positionalMatches(snapshot, query);
             default:
                 return Collections.emptyList();
         }
@@ -117,39 +266,43 @@ public class LinguisticAnalysisService {
 
     /**
      * Re-run the full corpus analysis. Useful after importing new poems or
-     * editing verses without restarting the application.
+     * editing verses without restarting the application. Queries keep being
+     * answered from the previous snapshot until the new one is published.
      */
     public void refresh() throws SQLException {
-        synchronized (this) {
-            initialized = false;
-        }
         LOGGER.info("Refreshing linguistic analyses cache");
-        ensureAnalyzed();
+        indexLock.lock();
+        try {
+            publish(rebuildIndices());
+        } finally {
+            indexLock.unlock();
+        }
+        drainPendingChanges();
     }
 
     /**
      * Get analysis for a specific verse.
      */
     public VerseAnalysis getVerseAnalysis(int verseId) throws SQLException {
-        ensureAnalyzed();
-        for (VerseAnalysis analysis : verseAnalyses) {
-            if (analysis.getVerse().getVerseId() == verseId) {
-                return analysis;
-            }
-        }
-        return null;
+        return ensureAnalyzed().getVerseAnalysis(verseId);
     }
 
     /**
      * Get all verse analyses for a specific poem.
      */
     public List<VerseAnalysis> getVerseAnalysesByPoem(int poemId) throws SQLException {
-        ensureAnalyzed();
+        return new ArrayList<>(ensureAnalyzed().getVerseAnalysesByPoem(poemId));
+    }
+
+    /**
+     * Get all verse analyses for the poems of a book, poem by poem in the
+     * order {@link PoemService#getPoemsByBook(int)} lists them.
+     */
+    public List<VerseAnalysis> getVerseAnalysesByBook(int bookId) throws SQLException {
+        LinguisticIndex snapshot = ensureAnalyzed();
         List<VerseAnalysis> result = new ArrayList<>();
-        for (VerseAnalysis analysis : verseAnalyses) {
-            if (analysis.getVerse().getPoemId() == poemId) {
-                result.add(analysis);
-            }
+        for (Poem poem : poemService.getPoemsByBook(bookId)) {
+            result.addAll(snapshot.getVerseAnalysesByPoem(poem.getPoemId()));
         }
         return result;
     }
@@ -158,29 +311,37 @@ public class LinguisticAnalysisService {
      * Get all verse analyses.
      */
     public List<VerseAnalysis> getAllVerseAnalyses() throws SQLException {
-        ensureAnalyzed();
-        return new ArrayList<>(verseAnalyses);
+        return new ArrayList<>(ensureAnalyzed().getVerseAnalyses());
     }
 
+    /**
+     * View the postings as matches; each match is built when it is read.
+     */
     private List<LinguisticMatch> wrapTokenMatches(List<TokenAnalysis> analyses, LinguisticSearchMode mode) {
         if (analyses.isEmpty()) {
             return Collections.emptyList();
         }
-        List<LinguisticMatch> matches = new ArrayList<>();
-        for (TokenAnalysis analysis : analyses) {
-            matches.add(new LinguisticMatch(analysis.getVerse(), analysis, mode, analysis.getToken()));
-        }
-        return matches;
+        return new AbstractList<>() {
+            @Override
+            public LinguisticMatch get(int index) {
+                TokenAnalysis analysis = analyses.get(index);
+                return new LinguisticMatch(analysis.getVerse(), analysis, mode, analysis.getToken());
+            }
+
+            @Override
+            public int size() {
+                return analyses.size();
+            }
+        };
     }
 
-    private List<LinguisticMatch> literalMatches(String text) {
+    private List<LinguisticMatch> literalMatches(LinguisticIndex snapshot, String text) {
         if (text == null || text.trim().isEmpty()) {
             return Collections.emptyList();
         }
         String trimmed = text.trim();
         List<LinguisticMatch> matches = new ArrayList<>();
-        for (VerseAnalysis analysis : verseAnalyses) {
-            Verse verse = analysis.getVerse();
+        for (Verse verse : snapshot.getVersesContaining(Collections.singletonList(trimmed))) {
             if (verse.getText() == null) {
                 continue;
             }
@@ -196,7 +357,7 @@ public class LinguisticAnalysisService {
         return matches;
     }
 
-    private List<LinguisticMatch> regexMatches(String regex) {
+    private List<LinguisticMatch> regexMatches(LinguisticIndex snapshot, String regex) {
         if (regex == null || regex.trim().isEmpty()) {
             return Collections.emptyList();
         }
@@ -208,8 +369,7 @@ public class LinguisticAnalysisService {
         }
 
         List<LinguisticMatch> matches = new ArrayList<>();
-        for (VerseAnalysis analysis : verseAnalyses) {
-            Verse verse = analysis.getVerse();
+        for (Verse verse : snapshot.getVersesContaining(TrigramIndex.requiredLiterals(regex))) {
             if (verse.getText() == null) {
                 continue;
             }
@@ -225,6 +385,61 @@ public class LinguisticAnalysisService {
         return matches;
     }
 
+    /**
+     * Tokens matching a phrase/proximity/boolean query; see
+     * {@link PositionalQuery} for the syntax.
+     */
+    private List<LinguisticMatch> positionalMatches(LinguisticIndex snapshot, String query) {
+        if (query == null || query.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        int[] tokens = PositionalQuery.parse(query).evaluate(snapshot);
+        return wrapTokenMatches(snapshot.analyzeTokens(tokens), LinguisticSearchMode.QUERY);
+    }
+
+    /**
+     * Every occurrence of any term in a whitespace/comma separated list, found
+     * with one Aho-Corasick pass per candidate verse over its folded text.
+     */
+    private List<LinguisticMatch> termListMatches(LinguisticIndex snapshot, String query) {
+        if (query == null || query.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        Set<String> seen = new HashSet<>();
+        List<String> folded = new ArrayList<>();
+        List<String> entered = new ArrayList<>();
+        for (String term : TERM_SEPARATORS.split(query.trim())) {
+            String key = FoldedText.fold(term);
+            if (!key.isEmpty() && seen.add(key)) {
+                folded.add(key);
+                entered.add(term);
+            }
+        }
+        if (folded.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        TermAutomaton automaton = TermAutomaton.of(folded);
+        List<LinguisticMatch> matches = new ArrayList<>();
+        for (Verse verse : snapshot.getVersesContainingAny(folded)) {
+            if (verse.getText() == null) {
+                continue;
+            }
+            FoldedText text = FoldedText.of(verse.getText());
+            automaton.scan(text, (term, start, end) -> {
+                int rawStart = text.rawIndex(start);
+                int rawEnd = text.rawIndex(end - 1) + 1;
+                matches.add(new LinguisticMatch(
+                        verse,
+                        null,
+                        LinguisticSearchMode.TERM_LIST,
+                        buildSnippet(verse.getText(), rawStart, rawEnd - rawStart),
+                        entered.get(term)));
+            });
+        }
+        return matches;
+    }
+
     private String buildSnippet(String verseText, int start, int length) {
         int left = Math.max(0, start - SNIPPET_PADDING);
         int right = Math.min(verseText.length(), start + length + SNIPPET_PADDING);
@@ -233,164 +448,294 @@ public class LinguisticAnalysisService {
         return prefix + verseText.substring(left, right) + suffix;
     }
 
-    private List<TokenAnalysis> lookup(Map<String, List<TokenAnalysis>> index, String key) {
-        if (key == null || key.isEmpty()) {
-            return Collections.emptyList();
+    private List<String> matchingTerms(LinguisticIndex snapshot, LinguisticSearchMode mode, String pattern) {
+        if (pattern == null || pattern.isBlank()) {
+            return snapshot.getTerms(mode);
         }
-        return index.getOrDefault(key, Collections.emptyList());
+        return snapshot.findTerms(mode, normalizePattern(pattern));
     }
 
-    private List<String> sortedKeys(Map<String, ?> source) {
-        List<String> keys = new ArrayList<>(source.keySet());
-        keys.sort((a, b) -> a.compareToIgnoreCase(b));
-        return keys;
+    /**
+     * Normalize the literal parts of a wildcard pattern, keeping the
+     * wildcards the normalizer would otherwise strip.
+     */
+    private String normalizePattern(String pattern) {
+        StringBuilder normalized = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : pattern.trim().toCharArray()) {
+            if (c == SortedTerms.ANY_RUN || c == SortedTerms.ANY_CHAR) {
+                normalized.append(ArabicTextUtils.normalizeToken(literal.toString())).append(c);
+                literal.setLength(0);
+            } else {
+                literal.append(c);
+            }
+        }
+        return normalized.append(ArabicTextUtils.normalizeToken(literal.toString())).toString();
     }
 
-    private void ensureAnalyzed() throws SQLException {
-        if (initialized) {
-            return;
+    /**
+     * Return the current snapshot, building it first if there is none yet or
+     * the last delta failed. While a stale snapshot is being rebuilt by another
+     * thread, callers keep reading the stale one instead of waiting.
+     */
+    private LinguisticIndex ensureAnalyzed() throws SQLException {
+        LinguisticIndex current = index;
+        if (current != null && !stale) {
+            return current;
+        }
+        if (current == null) {
+            indexLock.lock();
+        } else if (!indexLock.tryLock()) {
+            return current;
         }
-        synchronized (this) {
-            if (initialized) {
-                return;
+        try {
+            current = index;
+            if (current == null || stale) {
+                current = rebuildIndices();
+                publish(current);
+                LOGGER.info("Initialized linguistic analyses for {} verses", current.size());
             }
-            rebuildIndices();
-            initialized = true;
-            LOGGER.info("Initialized linguistic analyses for {} verses", verseAnalyses.size());
+        } finally {
+            indexLock.unlock();
+        }
+        drainPendingChanges();
+        return current;
+    }
+
+    /**
+     * Make {@code snapshot} the one every subsequent query sees, and queue
+     * its term counts to replace the stored ones if they are persisted.
+     * Callers must hold {@link #indexLock}.
+     */
+    private void publish(LinguisticIndex snapshot) {
+        stale = false;
+        index = snapshot;
+        if (termCountWriter != null) {
+            termCountWriter.replaceAll(snapshot);
         }
     }
 
-    private void rebuildIndices() throws SQLException {
-        tokensByForm.clear();
-        tokensByLemma.clear();
-        tokensByRoot.clear();
-        tokensBySegment.clear();
-        verseAnalyses.clear();
+    /**
+     * Queue verse edits and apply them right away unless a rebuild currently
+     * holds the index; in that case the rebuild drains the queue when done, so
+     * the editing thread never waits for a full analysis.
+     */
+    private void onVersesChanged(List<VerseChangeEvent> events) {
+        pendingChanges.addAll(events);
+        drainPendingChanges();
+    }
 
-        List<Verse> verses = verseService.getAllVerses();
-        for (Verse verse : verses) {
-            List<TokenAnalysis> analyses = analyzeVerse(verse);
-            verseAnalyses.add(new VerseAnalysis(verse, analyses));
-            for (TokenAnalysis analysis : analyses) {
-                indexToken(analysis);
+    private void drainPendingChanges() {
+        while (!pendingChanges.isEmpty() && indexLock.tryLock()) {
+            try {
+                List<VerseChangeEvent> events = new ArrayList<>();
+                VerseChangeEvent event;
+                while ((event = pendingChanges.poll()) != null) {
+                    events.add(event);
+                }
+                applyVerseChanges(events);
+            } finally {
+                indexLock.unlock();
             }
         }
     }
 
-    private void indexToken(TokenAnalysis analysis) {
-        addToIndex(tokensByForm, analysis.getNormalizedToken(), analysis);
-        for (String lemma : analysis.getLemmas()) {
-            addToIndex(tokensByLemma, ArabicTextUtils.normalizeToken(lemma), analysis);
-        }
-        for (String root : analysis.getRoots()) {
-            addToIndex(tokensByRoot, ArabicTextUtils.normalizeToken(root), analysis);
+    /**
+     * Apply queued verse edits by deriving one new snapshot without the old
+     * versions of their verses and with the new ones, then publishing it. An
+     * edit that removes a verse added earlier in the same queue goes into a
+     * further snapshot derived from that one. Ignored until the first full
+     * build; if a delta cannot be applied the next query rebuilds. Callers
+     * must hold {@link #indexLock}.
+     */
+    private void applyVerseChanges(List<VerseChangeEvent> events) {
+        LinguisticIndex current = index;
+        if (current == null || stale) {
+            return;
         }
-        for (String segment : analysis.getSegments()) {
-            addToIndex(tokensBySegment, ArabicTextUtils.normalizeToken(segment), analysis);
+        try {
+            LinguisticIndex.Editor editor = current.edit();
+            int deltas = 1;
+            for (VerseChangeEvent event : events) {
+                boolean removesAdded = event.getType() == VerseChangeEvent.Type.POEM_DELETED
+                        ? editor.addedToPoem(event.getPoemId()) : editor.addedVerse(event.getVerseId());
+                if (removesAdded) {
+                    editor = publishEdit(editor).edit();
+                    deltas++;
+                }
+                applyVerseChange(editor, event);
+            }
+            publishEdit(editor);
+            LOGGER.debug("Applied {} verse changes in {} deltas", events.size(), deltas);
+        } catch (SQLException | RuntimeException ex) {
+            LOGGER.warn("Unable to apply {} verse changes; index will be rebuilt on next use", events.size(), ex);
+            stale = true;
         }
     }
 
-    private void addToIndex(Map<String, List<TokenAnalysis>> index, String key, TokenAnalysis analysis) {
-        if (key == null || key.isEmpty()) {
-            return;
+    private void applyVerseChange(LinguisticIndex.Editor editor, VerseChangeEvent event) throws SQLException {
+        switch (event.getType()) {
+            case CREATED:
+            case UPDATED:
+                editor.removeVerse(event.getVerseId());
+                Verse stored = verseService.getVerseById(event.getVerseId());
+                Verse verse = stored != null ? stored : event.getVerse();
+                if (verse != null) {
+                    editor.addVerse(verse, this::analyzeMorphology);
+                }
+                break;
+            case DELETED:
+                editor.removeVerse(event.getVerseId());
+                break;
+            case POEM_DELETED:
+                editor.removePoem(event.getPoemId());
+                break;
+            default:
+                break;
         }
-        index.computeIfAbsent(key, k -> new ArrayList<>()).add(analysis);
     }
 
-    private List<TokenAnalysis> analyzeVerse(Verse verse) {
-        if (verse.getText() == null) {
-            return Collections.emptyList();
+    // Build and publish an edited snapshot. Callers must hold indexLock.
+    private LinguisticIndex publishEdit(LinguisticIndex.Editor editor) {
+        LinguisticIndex edited = editor.build();
+        index = edited;
+        if (termCountWriter != null) {
+            termCountWriter.replacePoems(edited, editor.editedPoems());
         }
-        Matcher matcher = ARABIC_TOKEN_PATTERN.matcher(verse.getText());
-        List<TokenAnalysis> analyses = new ArrayList<>();
-        int position = 0;
-        while (matcher.find()) {
-            String token = matcher.group();
-            position++;
-            TokenAnalysis analysis = analyzeToken(verse, token, position);
-            if (analysis != null) {
-                analyses.add(analysis);
-            }
+        return edited;
+    }
+
+    /**
+     * Analyze the whole corpus into a fresh snapshot without touching the
+     * published one.
+     */
+    private LinguisticIndex rebuildIndices() throws SQLException {
+        List<Verse> verses = verseService.getAllVerses();
+        long started = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        LinguisticIndex.Builder merged;
+        try {
+            merged = pool.invoke(new AnalyzeChunkTask(verses, 0, verses.size()));
+        } finally {
+            pool.shutdown();
         }
-        return analyses;
+        LinguisticIndex built = merged.build(sketchSettings);
+
+        long elapsedMillis = Math.max(1, (System.nanoTime() - started) / 1_000_000);
+        LOGGER.info("Analyzed {} verses in {} ms on {} threads ({} verses/sec)",
+                verses.size(), elapsedMillis, parallelism, verses.size() * 1000L / elapsedMillis);
+        LOGGER.info("Morphology cache: {}", wordAnalyzer.getCacheStats());
+        wordAnalyzer.saveStore();
+        return built;
     }
 
-    private TokenAnalysis analyzeToken(Verse verse, String token, int position) {
-        String normalized = ArabicTextUtils.normalizeToken(token);
-        if (normalized.isEmpty()) {
+    // Null when keyness is scored on the calling thread.
+    private synchronized ForkJoinPool keynessPool() {
+        if (parallelism <= 1) {
             return null;
         }
+        if (keynessPool == null || keynessPool.getParallelism() != parallelism) {
+            shutdownKeynessPool();
+            keynessPool = new ForkJoinPool(parallelism);
+        }
+        return keynessPool;
+    }
 
-        ResultList resultList = wordAnalyzer.analyzeToken(token);
-        Set<String> lemmaSet = new LinkedHashSet<>();
-        Set<String> rootSet = new LinkedHashSet<>();
-        Set<String> segments = new LinkedHashSet<>();
-        String partOfSpeech = null;
-        String stem = null;
-        String proclitic = null;
-        String enclitic = null;
-
-        if (resultList != null && resultList.getAllResults() != null) {
-            for (Result result : resultList.getAllResults()) {
-                addIfNotBlank(lemmaSet, result.getLemma());
-                addIfNotBlank(rootSet, result.getRoot());
+    private synchronized void shutdownKeynessPool() {
+        if (keynessPool != null) {
+            keynessPool.shutdown();
+            keynessPool = null;
+        }
+    }
 
-                String cleanedStem = clean(result.getStem());
-                stem = pickFirstNonEmpty(stem, cleanedStem);
+    private static int resolveParallelism() {
+        String configured = System.getProperty(PARALLELISM_PROPERTY);
+        if (configured != null && !configured.trim().isEmpty()) {
+            try {
+                return Math.max(1, Integer.parseInt(configured.trim()));
+            } catch (NumberFormatException ex) {
+                LOGGER.warn("Ignoring invalid {} value '{}'", PARALLELISM_PROPERTY, configured);
+            }
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
 
-                String posCandidate = clean(result.getPartOfSpeech());
-                partOfSpeech = pickFirstNonEmpty(partOfSpeech, posCandidate);
+    private static TermSketches.Settings resolveSketchSettings() {
+        if (!Boolean.parseBoolean(System.getProperty(SKETCH_PROPERTY))) {
+            return null;
+        }
+        return new TermSketches.Settings(resolvePositive(SKETCH_WIDTH_PROPERTY, DEFAULT_SKETCH_WIDTH), SKETCH_DEPTH,
+                resolvePositive(SKETCH_CAPACITY_PROPERTY, DEFAULT_SKETCH_CAPACITY));
+    }
 
-                proclitic = pickFirstNonEmpty(proclitic, clean(result.getProclitic()));
-                enclitic = pickFirstNonEmpty(enclitic, clean(result.getEnclitic()));
+    /**
+     * With {@code arabicpoetry.frequency.persist=true}, the per-poem token,
+     * lemma and root counts of every published snapshot are written to the
+     * database in the background, so that a reporting node can run
+     * {@link FrequencyService} against them without an index.
+     */
+    private static TermCountWriter resolveTermCountWriter() {
+        if (!Boolean.parseBoolean(System.getProperty(PERSIST_PROPERTY))) {
+            return null;
+        }
+        return TermCountWriter.inBackground(() -> DAOFactory.getInstance().openTermCountDAO());
+    }
 
-                if (proclitic != null && !proclitic.isEmpty()) {
-                    segments.add(proclitic);
-                }
-                if (enclitic != null && !enclitic.isEmpty()) {
-                    segments.add(enclitic);
-                }
-                if (cleanedStem != null && !cleanedStem.isEmpty()) {
-                    segments.add(cleanedStem);
+    private static int resolvePositive(String property, int defaultValue) {
+        String configured = System.getProperty(property);
+        if (configured != null && !configured.trim().isEmpty()) {
+            try {
+                int value = Integer.parseInt(configured.trim());
+                if (value > 0) {
+                    return value;
                 }
+            } catch (NumberFormatException ex) {
+                // Warned below.
             }
+            LOGGER.warn("Ignoring invalid {} value '{}'", property, configured);
         }
-
-        return new TokenAnalysis(
-                verse,
-                token,
-                normalized,
-                position,
-                new ArrayList<>(lemmaSet),
-                new ArrayList<>(rootSet),
-                new ArrayList<>(segments),
-                partOfSpeech,
-                stem,
-                proclitic,
-                enclitic);
+        return defaultValue;
     }
 
-    private String pickFirstNonEmpty(String current, String candidate) {
-        if (current != null && !current.isEmpty()) {
-            return current;
-        }
-        if (candidate == null || candidate.isEmpty()) {
-            return current;
+    /**
+     * Analyzes a contiguous slice of the corpus, splitting it in half until the
+     * slice is small enough to process directly. Results are merged left to
+     * right so posting lists keep the same verse order as a sequential build.
+     */
+    private final class AnalyzeChunkTask extends RecursiveTask<LinguisticIndex.Builder> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient List<Verse> verses;
+        private final int from;
+        private final int to;
+
+        AnalyzeChunkTask(List<Verse> verses, int from, int to) {
+            this.verses = verses;
+            this.from = from;
+            this.to = to;
         }
-        return candidate;
-    }
 
-    private String clean(String value) {
-        if (value == null) {
-            return "";
+        @Override
+        protected LinguisticIndex.Builder compute() {
+            if (to - from <= VERSES_PER_TASK) {
+                LinguisticIndex.Builder chunk = new LinguisticIndex.Builder();
+                for (int i = from; i < to; i++) {
+                    chunk.add(verses.get(i), LinguisticAnalysisService.this::analyzeMorphology);
+                }
+                return chunk;
+            }
+            int middle = (from + to) >>> 1;
+            AnalyzeChunkTask left = new AnalyzeChunkTask(verses, from, middle);
+            AnalyzeChunkTask right = new AnalyzeChunkTask(verses, middle, to);
+            right.fork();
+            LinguisticIndex.Builder merged = left.compute();
+            merged.append(right.join());
+            return merged;
         }
-        return value.trim();
     }
 
-    private void addIfNotBlank(Set<String> target, String value) {
-        String cleaned = clean(value);
-        if (!cleaned.isEmpty()) {
-            target.add(cleaned);
-        }
+    private MorphologicalAnalysis analyzeMorphology(String token, String normalized) {
+        MorphologicalAnalysis morphology = wordAnalyzer.analyze(token);
+        return morphology != null ? morphology : MorphologicalAnalysis.EMPTY;
     }
 }
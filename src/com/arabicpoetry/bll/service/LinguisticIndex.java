@@ -0,0 +1,1356 @@
+package com.arabicpoetry.bll.service;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.arabicpoetry.model.Verse;
+import com.arabicpoetry.model.linguistics.FrequencyEntry;
+import com.arabicpoetry.model.linguistics.FrequencyEstimate;
+import com.arabicpoetry.model.linguistics.FrequencyEstimates;
+import com.arabicpoetry.model.linguistics.FrequencyPage;
+import com.arabicpoetry.model.linguistics.KeynessResult;
+import com.arabicpoetry.model.linguistics.LinguisticSearchMode;
+import com.arabicpoetry.model.linguistics.MorphologicalAnalysis;
+import com.arabicpoetry.model.linguistics.PoemTermCount;
+import com.arabicpoetry.model.linguistics.TokenAnalysis;
+import com.arabicpoetry.model.linguistics.VerseAnalysis;
+import com.arabicpoetry.util.ArabicTextUtils;
+import com.arabicpoetry.util.IntIntHashMap;
+
+/**
+ * Immutable snapshot of the form/lemma/root/segment indices over the analyzed
+ * corpus. A snapshot is never modified once built, so any number of readers
+ * can query it without locking while a newer snapshot is prepared; edits
+ * produce a new snapshot through an {@link Editor}.
+ *
+ * <p>Storage is column oriented. Every indexed verse gets a slot and every
+ * indexed token an int id; per-token columns hold the token's slot and
+ * position. Each index maps a term id from the shared {@link TermDictionary}
+ * to its ascending token ids, delta and variable-byte encoded (most gaps fit
+ * in one byte). Token ids follow verse order after a full build; once edits
+ * insert verses out of order, lookups sort their hits by verse rank. The index
+ * keeps its own copy of every verse and hands out copies, so callers cannot
+ * change what it tokenizes. {@link TokenAnalysis} and {@link VerseAnalysis}
+ * objects are only created when a caller reads them, by re-tokenizing the
+ * verse and reusing the morphology recorded per form.
+ * A {@link TrigramIndex} over the verse texts narrows literal and regex
+ * searches, and {@link PoemTermCounts} hold every poem's term counts for
+ * frequency lists. Optional {@link TermSketches} estimate the corpus-wide
+ * top terms in fixed memory.</p>
+ */
+final class LinguisticIndex {
+    private static final Pattern ARABIC_TOKEN_PATTERN = Pattern.compile("[\\p{IsArabic}]+");
+    private static final int FORM = 0;
+    private static final int LEMMA = 1;
+    private static final int ROOT = 2;
+    private static final int SEGMENT = 3;
+    private static final int INDEX_COUNT = 4;
+
+    static final LinguisticIndex EMPTY = new Builder().build();
+
+    /**
+     * Supplies the morphology of one token; {@code normalized} is the token
+     * after {@link ArabicTextUtils#normalizeToken(String)}.
+     */
+    @FunctionalInterface
+    interface MorphologySource {
+        MorphologicalAnalysis analyze(String token, String normalized);
+    }
+
+    private final Columns columns;
+    private final int slotCount;
+    private final int tokenCount;
+    // Live slots in (poem, verse number) order; removed slots are simply absent.
+    private final int[] order;
+    private final TermDictionary terms;
+    // Morphology recorded for each form term id (null for non-form terms).
+    private final MorphologicalAnalysis[] morphology;
+    // [index][term id] -> encoded token ids; arrays may be shorter than the dictionary.
+    private final byte[][][] postings;
+    // [index] -> terms with postings in that index, sorted for range lookups.
+    private final SortedTerms[] sortedTerms;
+    // True while ascending slots and token ids are also (poem, verse number, position) order.
+    private final boolean idsInVerseOrder;
+    private final IntIntHashMap slotsByVerseId;
+    private final IntIntHashMap poemStarts;
+    private final IntIntHashMap poemEnds;
+    // Rank of each slot in order, -1 for removed slots.
+    private final int[] slotRanks;
+    private final TrigramIndex trigrams;
+    private final PoemTermCounts termCounts;
+    // Null unless the builder was given sketch settings.
+    private final TermSketches sketches;
+
+    private LinguisticIndex(Columns columns, int slotCount, int tokenCount, int[] order, Ranks ranks,
+                            TermDictionary terms, MorphologicalAnalysis[] morphology, byte[][][] postings,
+                            SortedTerms[] sortedTerms, TrigramIndex trigrams, PoemTermCounts termCounts,
+                            TermSketches sketches) {
+        this.columns = columns;
+        this.slotCount = slotCount;
+        this.tokenCount = tokenCount;
+        this.order = order;
+        this.terms = terms;
+        this.morphology = morphology;
+        this.postings = postings;
+        this.sortedTerms = sortedTerms;
+        this.trigrams = trigrams;
+        this.termCounts = termCounts;
+        this.sketches = sketches;
+        this.slotsByVerseId = ranks.slotsByVerseId;
+        this.poemStarts = ranks.poemStarts;
+        this.poemEnds = ranks.poemEnds;
+        this.slotRanks = ranks.slotRanks;
+        this.idsInVerseOrder = ranks.idsInVerseOrder;
+    }
+
+    /**
+     * Tokenize a verse and attach the morphology of every token. Tokens that
+     * normalize to nothing are skipped but still advance the position.
+     */
+    static List<TokenAnalysis> analyzeVerse(Verse verse, MorphologySource source) {
+        if (verse.getText() == null) {
+            return Collections.emptyList();
+        }
+        Matcher matcher = ARABIC_TOKEN_PATTERN.matcher(verse.getText());
+        List<TokenAnalysis> analyses = new ArrayList<>();
+        int position = 0;
+        while (matcher.find()) {
+            position++;
+            TokenAnalysis analysis = analyzeToken(verse, matcher.group(), position, source);
+            if (analysis != null) {
+                analyses.add(analysis);
+            }
+        }
+        return analyses;
+    }
+
+    private static TokenAnalysis analyzeToken(Verse verse, String token, int position, MorphologySource source) {
+        String normalized = ArabicTextUtils.normalizeToken(token);
+        if (normalized.isEmpty()) {
+            return null;
+        }
+        MorphologicalAnalysis analysis = source.analyze(token, normalized);
+        if (analysis == null) {
+            analysis = MorphologicalAnalysis.EMPTY;
+        }
+        return new TokenAnalysis(
+                verse,
+                token,
+                normalized,
+                position,
+                analysis.getLemmas(),
+                analysis.getRoots(),
+                analysis.getSegments(),
+                analysis.getPartOfSpeech(),
+                analysis.getStem(),
+                analysis.getProclitic(),
+                analysis.getEnclitic());
+    }
+
+    int size() {
+        return order.length;
+    }
+
+    /**
+     * Indexed verses in (poem, verse number) order.
+     */
+    List<Verse> getVerses() {
+        return new AbstractList<>() {
+            @Override
+            public Verse get(int index) {
+                return verseAt(order[index]);
+            }
+
+            @Override
+            public int size() {
+                return order.length;
+            }
+        };
+    }
+
+    /**
+     * Indexed verses, in (poem, verse number) order, that may contain every
+     * one of {@code literals}; callers still have to match the text. Falls
+     * back to all verses when the literals are too short to narrow the
+     * search.
+     */
+    List<Verse> getVersesContaining(List<String> literals) {
+        return versesInOrder(trigrams.candidates(literals));
+    }
+
+    /**
+     * Indexed verses, in (poem, verse number) order, that may contain at
+     * least one of {@code terms}; all verses if some term is too short to
+     * narrow the search.
+     */
+    List<Verse> getVersesContainingAny(List<String> terms) {
+        return versesInOrder(trigrams.candidatesForAny(terms));
+    }
+
+    private List<Verse> versesInOrder(int[] slots) {
+        if (slots == null) {
+            return getVerses();
+        }
+        int[] ordered = idsInVerseOrder ? slots : slotsInVerseOrder(slots);
+        return new AbstractList<>() {
+            @Override
+            public Verse get(int index) {
+                return verseAt(ordered[index]);
+            }
+
+            @Override
+            public int size() {
+                return ordered.length;
+            }
+        };
+    }
+
+    /**
+     * Verse analyses in (poem, verse number) order, materialized on access.
+     */
+    List<VerseAnalysis> getVerseAnalyses() {
+        return analysesInOrder(0, order.length);
+    }
+
+    /**
+     * Analysis of the given verse, or {@code null} if it is not indexed.
+     */
+    VerseAnalysis getVerseAnalysis(int verseId) {
+        int slot = slotsByVerseId.get(verseId);
+        return slot < 0 ? null : analyzeSlot(slot);
+    }
+
+    /**
+     * Analyses of one poem's verses in verse order; empty if none are indexed.
+     */
+    List<VerseAnalysis> getVerseAnalysesByPoem(int poemId) {
+        int start = poemStarts.get(poemId);
+        if (start < 0) {
+            return Collections.emptyList();
+        }
+        return analysesInOrder(start, poemEnds.get(poemId));
+    }
+
+    /**
+     * Terms that have at least one posting in the index searched by
+     * {@code mode} (TOKEN, LEMMA, ROOT or SEGMENT), as a sorted read-only
+     * view.
+     */
+    List<String> getTerms(LinguisticSearchMode mode) {
+        int index = indexFor(mode);
+        return index < 0 ? Collections.emptyList() : sortedTerms[index].asList();
+    }
+
+    /**
+     * Sorted terms of the index searched by {@code mode} matching a
+     * normalized pattern with {@code *} and {@code ?} wildcards.
+     */
+    List<String> findTerms(LinguisticSearchMode mode, String pattern) {
+        int index = indexFor(mode);
+        if (index < 0 || pattern == null || pattern.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return sortedTerms[index].find(pattern);
+    }
+
+    /**
+     * Occurrences of a normalized term in the index searched by {@code mode},
+     * in (poem, verse number, position) order. Token analyses are built when
+     * the list elements are read.
+     */
+    List<TokenAnalysis> lookup(LinguisticSearchMode mode, String key) {
+        return analyzeTokens(tokenIds(mode, key));
+    }
+
+    /**
+     * Ids of the tokens posted under a normalized term, in (poem, verse
+     * number, position) order; see {@link #positionKey(int)}.
+     */
+    int[] tokenIds(LinguisticSearchMode mode, String key) {
+        int index = indexFor(mode);
+        if (index < 0 || key == null || key.isEmpty()) {
+            return new int[0];
+        }
+        int id = terms.id(key);
+        if (id < 0 || id >= postings[index].length || postings[index][id] == null) {
+            return new int[0];
+        }
+        int[] decoded = decode(postings[index][id]);
+        return idsInVerseOrder ? decoded : tokensInVerseOrder(decoded);
+    }
+
+    /**
+     * Ids of the tokens posted under any term matching a wildcard pattern
+     * (see {@link #findTerms}), in (poem, verse number, position) order.
+     */
+    int[] tokenIdsMatching(LinguisticSearchMode mode, String pattern) {
+        int index = indexFor(mode);
+        int[] tokens = new int[0];
+        for (String term : findTerms(mode, pattern)) {
+            int[] decoded = decode(postings[index][terms.id(term)]);
+            int offset = tokens.length;
+            tokens = Arrays.copyOf(tokens, offset + decoded.length);
+            System.arraycopy(decoded, 0, tokens, offset, decoded.length);
+        }
+        // A token can be posted under several matching lemmas, roots or segments.
+        Arrays.sort(tokens);
+        int distinct = 0;
+        for (int i = 0; i < tokens.length; i++) {
+            if (distinct == 0 || tokens[distinct - 1] != tokens[i]) {
+                tokens[distinct++] = tokens[i];
+            }
+        }
+        tokens = Arrays.copyOf(tokens, distinct);
+        return idsInVerseOrder ? tokens : tokensInVerseOrder(tokens);
+    }
+
+    /**
+     * Sort key of a token: the rank of its verse in (poem, verse number)
+     * order in the high 32 bits and its position in the low 32 bits. Tokens
+     * of the same verse share the high half, and adjacent words differ by one.
+     */
+    long positionKey(int token) {
+        return ((long) slotRanks[columns.tokenSlots[token]] << 32) | columns.tokenPositions[token];
+    }
+
+    /**
+     * Token analyses of the given token ids, built when the list elements are
+     * read.
+     */
+    List<TokenAnalysis> analyzeTokens(int[] tokens) {
+        if (tokens.length == 0) {
+            return Collections.emptyList();
+        }
+        return new AbstractList<>() {
+            @Override
+            public TokenAnalysis get(int i) {
+                return analyzeToken(tokens[i]);
+            }
+
+            @Override
+            public int size() {
+                return tokens.length;
+            }
+        };
+    }
+
+    /**
+     * Occurrences of every term of the index searched by {@code mode}
+     * (TOKEN, LEMMA, ROOT or SEGMENT) in the given poems, or in every poem
+     * if {@code poemIds} is {@code null}, most frequent first. A token
+     * counts once under its form and once per lemma, root or segment
+     * candidate, repeated and empty candidates included.
+     */
+    List<FrequencyEntry> frequencies(LinguisticSearchMode mode, Collection<Integer> poemIds) {
+        return topFrequencies(mode, poemIds, Integer.MAX_VALUE, 0).getEntries();
+    }
+
+    /**
+     * The {@code n} terms ranked after the first {@code offset} of
+     * {@link #frequencies}. Only the counts up to the end of the page are
+     * ranked; the rest are never sorted or turned into entries.
+     */
+    FrequencyPage topFrequencies(LinguisticSearchMode mode, Collection<Integer> poemIds, int n, int offset) {
+        int index = indexFor(mode);
+        int from = Math.max(0, offset);
+        if (index < 0) {
+            return new FrequencyPage(Collections.emptyList(), from, 0);
+        }
+        PoemTermCounts.Sum sum = termCounts.sum(index, poemIds, terms.size());
+        int to = (int) Math.min(sum.terms.length, (long) from + Math.max(0, n));
+        if (from >= to) {
+            return new FrequencyPage(Collections.emptyList(), from, sum.terms.length);
+        }
+        int[] ranked = sum.top(to, (a, b) -> terms.term(a).compareTo(terms.term(b)));
+        List<FrequencyEntry> entries = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            entries.add(new FrequencyEntry(terms.term(sum.terms[ranked[i]]), sum.counts[ranked[i]]));
+        }
+        return new FrequencyPage(entries, from, sum.terms.length);
+    }
+
+    /**
+     * The {@code k} most frequent terms of the index searched by
+     * {@code mode} across the corpus, from the frequency sketches if this
+     * snapshot has them and from the exact counts otherwise.
+     */
+    FrequencyEstimates estimateTopFrequencies(LinguisticSearchMode mode, int k) {
+        int index = indexFor(mode);
+        if (index < 0) {
+            return new FrequencyEstimates(Collections.emptyList(), 0, 0);
+        }
+        if (sketches != null) {
+            return new FrequencyEstimates(sketches.top(index, k), sketches.total(index), sketches.errorBound(index));
+        }
+        PoemTermCounts.Sum sum = termCounts.sum(index, null, terms.size());
+        long total = 0;
+        for (int count : sum.counts) {
+            total += count;
+        }
+        int[] ranked = sum.top(k, (a, b) -> terms.term(a).compareTo(terms.term(b)));
+        List<FrequencyEstimate> estimates = new ArrayList<>(ranked.length);
+        for (int position : ranked) {
+            int count = sum.counts[position];
+            estimates.add(new FrequencyEstimate(terms.term(sum.terms[position]), count, count));
+        }
+        return new FrequencyEstimates(estimates, total, 0);
+    }
+
+    /**
+     * Keyness of the terms of the index searched by {@code mode} in the
+     * target poems against the reference poems ({@code null} for every
+     * poem): the {@code k} most overused and underused terms. Both scopes
+     * are summed into dense vectors over this snapshot's term ids and
+     * scored in blocks on {@code pool}, or on the calling thread if it is
+     * {@code null}.
+     */
+    KeynessResult keyness(LinguisticSearchMode mode, Collection<Integer> targetPoemIds,
+                          Collection<Integer> referencePoemIds, int k, ForkJoinPool pool) {
+        int index = indexFor(mode);
+        if (index < 0) {
+            return new KeynessResult(Collections.emptyList(), Collections.emptyList(), 0, 0, 0);
+        }
+        return Keyness.compare(termCounts.counts(index, targetPoemIds, terms.size()),
+                termCounts.counts(index, referencePoemIds, terms.size()), terms, k, pool);
+    }
+
+    /**
+     * Terms of this snapshot's dictionary, each at the position of its id.
+     * Ids survive edits, so the list of an edited snapshot extends the list
+     * of its base.
+     */
+    List<String> dictionaryTerms() {
+        return terms.asList();
+    }
+
+    /**
+     * Token, lemma and root counts of {@code poemIds} (all poems if
+     * {@code null}) against the ids of {@link #dictionaryTerms()}, made
+     * while iterating.
+     */
+    Iterable<PoemTermCount> poemTermCounts(Collection<Integer> poemIds) {
+        return termCounts.rows(poemIds, new int[] {FORM, LEMMA, ROOT},
+                new LinguisticSearchMode[] {LinguisticSearchMode.TOKEN, LinguisticSearchMode.LEMMA,
+                        LinguisticSearchMode.ROOT});
+    }
+
+    boolean hasSketches() {
+        return sketches != null;
+    }
+
+    /**
+     * Start deriving a new snapshot from this one. Only one editor per
+     * snapshot may be built; the service derives every edit from the newest
+     * snapshot while holding its index lock.
+     */
+    Editor edit() {
+        return new Editor(this);
+    }
+
+    /**
+     * Which of the form/lemma/root/segment indices {@code mode} searches, or
+     * {@code -1} for modes that do not use them.
+     */
+    private static int indexFor(LinguisticSearchMode mode) {
+        if (mode == null) {
+            return -1;
+        }
+        switch (mode) {
+            case TOKEN:
+                return FORM;
+            case LEMMA:
+                return LEMMA;
+            case ROOT:
+                return ROOT;
+            case SEGMENT:
+                return SEGMENT;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Sort live slots, in place, into (poem, verse number) order: each is
+     * keyed by its rank in the high 32 bits.
+     */
+    private int[] slotsInVerseOrder(int[] slots) {
+        long[] keys = new long[slots.length];
+        for (int i = 0; i < slots.length; i++) {
+            keys[i] = ((long) slotRanks[slots[i]] << 32) | slots[i];
+        }
+        Arrays.sort(keys);
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = (int) keys[i];
+        }
+        return slots;
+    }
+
+    /**
+     * Sort live token ids, in place, into (poem, verse number, position)
+     * order: each is keyed by its verse's rank in the high 32 bits. A verse's
+     * tokens get consecutive ids in position order, so the id breaks ties.
+     */
+    private int[] tokensInVerseOrder(int[] tokens) {
+        long[] keys = new long[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            keys[i] = ((long) slotRanks[columns.tokenSlots[tokens[i]]] << 32) | tokens[i];
+        }
+        Arrays.sort(keys);
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = (int) keys[i];
+        }
+        return tokens;
+    }
+
+    /**
+     * Encode ascending ids as a count followed by the gaps between them, each
+     * as a variable-length quantity (7 bits per byte, high bit = more).
+     */
+    static byte[] encode(int[] ids, int count) {
+        byte[] buffer = new byte[5 * (count + 1)];
+        int length = writeVarInt(buffer, 0, count);
+        int previous = 0;
+        for (int i = 0; i < count; i++) {
+            length = writeVarInt(buffer, length, ids[i] - previous);
+            previous = ids[i];
+        }
+        return Arrays.copyOf(buffer, length);
+    }
+
+    static int[] decode(byte[] encoded) {
+        int[] cursor = {0};
+        int[] ids = new int[readVarInt(encoded, cursor)];
+        int previous = 0;
+        for (int i = 0; i < ids.length; i++) {
+            previous += readVarInt(encoded, cursor);
+            ids[i] = previous;
+        }
+        return ids;
+    }
+
+    private static int writeVarInt(byte[] buffer, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+
+    private static int readVarInt(byte[] buffer, int[] cursor) {
+        int value = 0;
+        int shift = 0;
+        byte current;
+        do {
+            current = buffer[cursor[0]++];
+            value |= (current & 0x7F) << shift;
+            shift += 7;
+        } while (current < 0);
+        return value;
+    }
+
+    private List<VerseAnalysis> analysesInOrder(int from, int to) {
+        return new AbstractList<>() {
+            @Override
+            public VerseAnalysis get(int index) {
+                return analyzeSlot(order[from + index]);
+            }
+
+            @Override
+            public int size() {
+                return to - from;
+            }
+        };
+    }
+
+    // A copy of the verse in a slot, for handing to callers.
+    private Verse verseAt(int slot) {
+        return VerseChangeEvent.copyOf(columns.verses[slot]);
+    }
+
+    private VerseAnalysis analyzeSlot(int slot) {
+        Verse verse = verseAt(slot);
+        return new VerseAnalysis(verse, analyzeVerse(verse, this::recordedMorphology));
+    }
+
+    private TokenAnalysis analyzeToken(int token) {
+        int position = columns.tokenPositions[token];
+        Verse verse = columns.verses[columns.tokenSlots[token]];
+        if (verse.getText() != null) {
+            Matcher matcher = ARABIC_TOKEN_PATTERN.matcher(verse.getText());
+            for (int current = 1; matcher.find(); current++) {
+                if (current == position) {
+                    TokenAnalysis analysis = analyzeToken(VerseChangeEvent.copyOf(verse), matcher.group(), position,
+                            this::recordedMorphology);
+                    if (analysis != null) {
+                        return analysis;
+                    }
+                    break;
+                }
+            }
+        }
+        throw new IllegalStateException("Verse " + verse.getVerseId() + " changed after it was indexed");
+    }
+
+    private MorphologicalAnalysis recordedMorphology(String token, String normalized) {
+        return recordedMorphology(terms, morphology, normalized);
+    }
+
+    private static MorphologicalAnalysis recordedMorphology(TermDictionary terms, MorphologicalAnalysis[] morphology,
+                                                           String normalized) {
+        int id = terms.id(normalized);
+        if (id < 0 || id >= morphology.length || morphology[id] == null) {
+            return MorphologicalAnalysis.EMPTY;
+        }
+        return morphology[id];
+    }
+
+    /**
+     * Call {@code consumer} for every term a token counts under in the
+     * frequency lists: its form plus every normalized lemma, root and
+     * segment, repeated and empty ones included. The token is posted once
+     * under each distinct key, except empty lemmas, roots and segments.
+     */
+    private static void forEachCountedKey(TokenAnalysis analysis, KeyConsumer consumer) {
+        consumer.accept(FORM, analysis.getNormalizedToken());
+        forEachCountedKey(LEMMA, analysis.getLemmas(), consumer);
+        forEachCountedKey(ROOT, analysis.getRoots(), consumer);
+        forEachCountedKey(SEGMENT, analysis.getSegments(), consumer);
+    }
+
+    private static void forEachCountedKey(int index, List<String> values, KeyConsumer consumer) {
+        for (String value : values) {
+            consumer.accept(index, ArabicTextUtils.normalizeToken(value));
+        }
+    }
+
+    // Empty lemmas, roots and segments are counted but not posted.
+    private static boolean isIndexed(int index, String key) {
+        return index == FORM || !key.isEmpty();
+    }
+
+    /**
+     * Count the terms of {@code verse} into {@code counting} as
+     * {@link #forEachCountedKey} lists them.
+     */
+    private static void countTerms(Verse verse, MorphologySource source, TermDictionary terms,
+                                   PoemTermCounts.Builder counting) {
+        for (TokenAnalysis analysis : analyzeVerse(verse, source)) {
+            forEachCountedKey(analysis, (index, key) -> {
+                int id = terms.id(key);
+                if (id >= 0) {
+                    counting.add(index, verse.getPoemId(), id);
+                }
+            });
+        }
+    }
+
+    /**
+     * Feed the corpus-wide count of every term of {@code index} to
+     * {@code sketches} once.
+     */
+    private static void countSketches(TermSketches sketches, int index, PoemTermCounts termCounts,
+                                      TermDictionary dictionary) {
+        PoemTermCounts.Sum sum = termCounts.sum(index, null, dictionary.size());
+        for (int i = 0; i < sum.terms.length; i++) {
+            sketches.add(index, dictionary.term(sum.terms[i]), sum.counts[i]);
+        }
+    }
+
+    @FunctionalInterface
+    private interface KeyConsumer {
+        void accept(int index, String key);
+    }
+
+    /**
+     * Per-slot and per-token columns. Successive snapshots share one instance
+     * and append past each other's ends: entries below a snapshot's slot and
+     * token counts are never rewritten, so older snapshots stay valid. The
+     * arrays are only replaced (by a new instance) when they need to grow.
+     */
+    private static final class Columns {
+        final Verse[] verses;
+        final int[] tokenSlots;
+        final int[] tokenPositions;
+        // High-water marks of the newest snapshot writing to these arrays.
+        int slotsWritten;
+        int tokensWritten;
+
+        Columns(Verse[] verses, int[] tokenSlots, int[] tokenPositions, int slotsWritten, int tokensWritten) {
+            this.verses = verses;
+            this.tokenSlots = tokenSlots;
+            this.tokenPositions = tokenPositions;
+            this.slotsWritten = slotsWritten;
+            this.tokensWritten = tokensWritten;
+        }
+
+        /**
+         * Columns that a snapshot with the given counts can append to: this
+         * instance if that snapshot wrote last and there is room, otherwise a
+         * copy of its prefix with headroom.
+         */
+        Columns forAppend(int slotCount, int tokenCount, int extraSlots, int extraTokens) {
+            boolean head = slotsWritten == slotCount && tokensWritten == tokenCount;
+            if (head && verses.length >= slotCount + extraSlots && tokenSlots.length >= tokenCount + extraTokens) {
+                return this;
+            }
+            int slotCapacity = Math.max(slotCount + extraSlots, slotCount + (slotCount >> 3) + 16);
+            int tokenCapacity = Math.max(tokenCount + extraTokens, tokenCount + (tokenCount >> 3) + 64);
+            return new Columns(
+                    Arrays.copyOf(verses, slotCapacity),
+                    Arrays.copyOf(tokenSlots, tokenCapacity),
+                    Arrays.copyOf(tokenPositions, tokenCapacity),
+                    slotCount,
+                    tokenCount);
+        }
+
+        int compareSlots(int left, int right) {
+            Verse a = verses[left];
+            Verse b = verses[right];
+            int cmp = Integer.compare(a.getPoemId(), b.getPoemId());
+            if (cmp == 0) {
+                cmp = Integer.compare(a.getVerseNumber(), b.getVerseNumber());
+            }
+            return cmp != 0 ? cmp : Integer.compare(left, right);
+        }
+    }
+
+    /**
+     * Where the verses and poems of a snapshot sit in its order: the slot of
+     * each verse id, the rank range of each poem and the rank of each slot.
+     * A full build fills the tables in; an edit patches copies of its base's
+     * tables over the ranks it changed, plus every later rank if the number
+     * of verses changed.
+     */
+    private static final class Ranks {
+        final IntIntHashMap slotsByVerseId;
+        final IntIntHashMap poemStarts;
+        final IntIntHashMap poemEnds;
+        final int[] slotRanks;
+        boolean idsInVerseOrder;
+
+        private Ranks(IntIntHashMap slotsByVerseId, IntIntHashMap poemStarts, IntIntHashMap poemEnds,
+                      int[] slotRanks, boolean idsInVerseOrder) {
+            this.slotsByVerseId = slotsByVerseId;
+            this.poemStarts = poemStarts;
+            this.poemEnds = poemEnds;
+            this.slotRanks = slotRanks;
+            this.idsInVerseOrder = idsInVerseOrder;
+        }
+
+        static Ranks of(Verse[] verses, int[] order, int slotCount) {
+            int[] slotRanks = new int[slotCount];
+            Arrays.fill(slotRanks, -1);
+            Ranks ranks = new Ranks(new IntIntHashMap(order.length, -1), new IntIntHashMap(64, -1),
+                    new IntIntHashMap(64, -1), slotRanks, true);
+            for (int slot : order) {
+                ranks.slotsByVerseId.put(verses[slot].getVerseId(), slot);
+            }
+            ranks.place(verses, order, 0, order.length);
+            return ranks;
+        }
+
+        /**
+         * Tables for {@code order}, which is the base order with
+         * {@code removed} slots dropped and {@code added} ones merged in at
+         * ranks {@code from} to {@code to}, exclusive.
+         */
+        static Ranks derive(LinguisticIndex base, Verse[] verses, int[] order, int slotCount, BitSet removed,
+                            IntList added, int from, int to) {
+            Ranks ranks = new Ranks(base.slotsByVerseId.copy(), base.poemStarts.copy(), base.poemEnds.copy(),
+                    Arrays.copyOf(base.slotRanks, slotCount), base.idsInVerseOrder);
+            Set<Integer> shrunkPoems = new HashSet<>();
+            for (int slot = removed.nextSetBit(0); slot >= 0; slot = removed.nextSetBit(slot + 1)) {
+                ranks.slotRanks[slot] = -1;
+                if (ranks.slotsByVerseId.get(verses[slot].getVerseId()) == slot) {
+                    ranks.slotsByVerseId.remove(verses[slot].getVerseId());
+                }
+                shrunkPoems.add(verses[slot].getPoemId());
+            }
+            for (int i = 0; i < added.size(); i++) {
+                ranks.slotsByVerseId.put(verses[added.get(i)].getVerseId(), added.get(i));
+            }
+            // Ranks past the edited ones only move if the verse count changed.
+            boolean shifted = order.length != base.order.length;
+            ranks.place(verses, order, Math.max(0, from - 1), shifted ? order.length : Math.min(order.length, to + 1));
+            for (int poemId : shrunkPoems) {
+                int start = ranks.poemStarts.get(poemId);
+                if (start >= order.length || verses[order[start]].getPoemId() != poemId) {
+                    ranks.poemStarts.remove(poemId);
+                    ranks.poemEnds.remove(poemId);
+                }
+            }
+            return ranks;
+        }
+
+        /**
+         * Record the ranks {@code from} to {@code to}, exclusive, and the
+         * poem boundaries among them.
+         */
+        private void place(Verse[] verses, int[] order, int from, int to) {
+            for (int i = from; i < to; i++) {
+                int slot = order[i];
+                int poemId = verses[slot].getPoemId();
+                slotRanks[slot] = i;
+                if (i == 0 || verses[order[i - 1]].getPoemId() != poemId) {
+                    poemStarts.put(poemId, i);
+                }
+                if (i + 1 == order.length || verses[order[i + 1]].getPoemId() != poemId) {
+                    poemEnds.put(poemId, i + 1);
+                }
+                idsInVerseOrder &= i == from || order[i - 1] < slot;
+            }
+        }
+    }
+
+    /**
+     * Growable int array used while staging postings and columns.
+     */
+    static final class IntList {
+        private int[] data = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size << 1);
+            }
+            data[size++] = value;
+        }
+
+        /**
+         * Add {@code value} unless it was the last one added; returns
+         * whether it was added.
+         */
+        boolean addDistinct(int value) {
+            if (size == 0 || data[size - 1] != value) {
+                add(value);
+                return true;
+            }
+            return false;
+        }
+
+        void addShifted(IntList other, int offset) {
+            if (size + other.size > data.length) {
+                data = Arrays.copyOf(data, Math.max(size + other.size, size << 1));
+            }
+            for (int i = 0; i < other.size; i++) {
+                data[size++] = other.data[i] + offset;
+            }
+        }
+
+        int get(int index) {
+            return data[index];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+
+        byte[] encode() {
+            return LinguisticIndex.encode(data, size);
+        }
+    }
+
+    /**
+     * Mutable, single-threaded staging area for a full build. Builders for
+     * consecutive slices of the corpus can be {@linkplain #append appended} in
+     * order, which keeps posting lists sorted without re-sorting.
+     */
+    static final class Builder {
+        private final List<Verse> verses = new ArrayList<>();
+        private final IntList tokenSlots = new IntList();
+        private final IntList tokenPositions = new IntList();
+        private final Map<String, MorphologicalAnalysis> forms = new HashMap<>();
+        private final List<Map<String, IntList>> postings = new ArrayList<>(INDEX_COUNT);
+        // Poem ids of counted keys the postings miss: a token's repeated
+        // candidates and its empty ones.
+        private final List<Map<String, IntList>> unposted = new ArrayList<>(INDEX_COUNT);
+        private final TrigramIndex.Builder trigrams = new TrigramIndex.Builder();
+        private boolean built;
+
+        Builder() {
+            for (int i = 0; i < INDEX_COUNT; i++) {
+                postings.add(new HashMap<>());
+                unposted.add(new HashMap<>());
+            }
+        }
+
+        /**
+         * Analyze and add a copy of a verse that sorts after everything added
+         * so far.
+         */
+        void add(Verse added, MorphologySource source) {
+            Verse verse = VerseChangeEvent.copyOf(added);
+            int slot = verses.size();
+            verses.add(verse);
+            trigrams.add(slot, verse.getText());
+            MorphologySource recording = (token, normalized) -> {
+                MorphologicalAnalysis analysis = source.analyze(token, normalized);
+                forms.putIfAbsent(normalized, analysis != null ? analysis : MorphologicalAnalysis.EMPTY);
+                return analysis;
+            };
+            for (TokenAnalysis analysis : analyzeVerse(verse, recording)) {
+                int token = tokenSlots.size();
+                tokenSlots.add(slot);
+                tokenPositions.add(analysis.getPosition());
+                forEachCountedKey(analysis, (index, key) -> {
+                    if (!isIndexed(index, key)
+                            || !postings.get(index).computeIfAbsent(key, k -> new IntList()).addDistinct(token)) {
+                        unposted.get(index).computeIfAbsent(key, k -> new IntList()).add(verse.getPoemId());
+                    }
+                });
+            }
+        }
+
+        /**
+         * Append a builder covering the verses that follow this one's.
+         */
+        void append(Builder other) {
+            int slotOffset = verses.size();
+            int tokenOffset = tokenSlots.size();
+            verses.addAll(other.verses);
+            tokenSlots.addShifted(other.tokenSlots, slotOffset);
+            tokenPositions.addShifted(other.tokenPositions, 0);
+            trigrams.append(other.trigrams, slotOffset);
+            for (Map.Entry<String, MorphologicalAnalysis> entry : other.forms.entrySet()) {
+                forms.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+            for (int index = 0; index < INDEX_COUNT; index++) {
+                Map<String, IntList> target = postings.get(index);
+                for (Map.Entry<String, IntList> entry : other.postings.get(index).entrySet()) {
+                    target.computeIfAbsent(entry.getKey(), k -> new IntList()).addShifted(entry.getValue(), tokenOffset);
+                }
+                Map<String, IntList> poems = unposted.get(index);
+                for (Map.Entry<String, IntList> entry : other.unposted.get(index).entrySet()) {
+                    poems.computeIfAbsent(entry.getKey(), k -> new IntList()).addShifted(entry.getValue(), 0);
+                }
+            }
+        }
+
+        LinguisticIndex build() {
+            return build(null);
+        }
+
+        /**
+         * @param sketchSettings sizes of the frequency sketches to keep, or
+         *        {@code null} for none
+         */
+        LinguisticIndex build(TermSketches.Settings sketchSettings) {
+            if (built) {
+                throw new IllegalStateException("Builder already used");
+            }
+            built = true;
+            List<String> termList = new ArrayList<>();
+            Map<String, Integer> ids = new HashMap<>();
+            for (List<Map<String, IntList>> keyed : List.of(postings, unposted)) {
+                for (Map<String, IntList> index : keyed) {
+                    for (String key : index.keySet()) {
+                        if (ids.putIfAbsent(key, termList.size()) == null) {
+                            termList.add(key);
+                        }
+                    }
+                }
+            }
+
+            byte[][][] arrays = new byte[INDEX_COUNT][][];
+            PoemTermCounts.Builder counting = new PoemTermCounts.Builder(INDEX_COUNT);
+            for (int index = 0; index < INDEX_COUNT; index++) {
+                arrays[index] = new byte[termList.size()][];
+                for (Map.Entry<String, IntList> entry : postings.get(index).entrySet()) {
+                    int id = ids.get(entry.getKey());
+                    IntList tokens = entry.getValue();
+                    arrays[index][id] = tokens.encode();
+                    for (int i = 0; i < tokens.size(); i++) {
+                        counting.add(index, verses.get(tokenSlots.get(tokens.get(i))).getPoemId(), id);
+                    }
+                }
+                for (Map.Entry<String, IntList> entry : unposted.get(index).entrySet()) {
+                    int id = ids.get(entry.getKey());
+                    IntList poemIds = entry.getValue();
+                    for (int i = 0; i < poemIds.size(); i++) {
+                        counting.add(index, poemIds.get(i), id);
+                    }
+                }
+            }
+            PoemTermCounts termCounts = counting.build();
+            MorphologicalAnalysis[] recorded = new MorphologicalAnalysis[termList.size()];
+            for (Map.Entry<String, MorphologicalAnalysis> entry : forms.entrySet()) {
+                Integer id = ids.get(entry.getKey());
+                if (id != null) {
+                    recorded[id] = entry.getValue();
+                }
+            }
+
+            int slots = verses.size();
+            int tokens = tokenSlots.size();
+            int[] order = new int[slots];
+            for (int i = 0; i < slots; i++) {
+                order[i] = i;
+            }
+            Columns columns = new Columns(
+                    verses.toArray(new Verse[0]), tokenSlots.toArray(), tokenPositions.toArray(), slots, tokens);
+            Ranks ranks = Ranks.of(columns.verses, order, slots);
+            TermDictionary dictionary = TermDictionary.of(termList);
+            SortedTerms[] sorted = new SortedTerms[INDEX_COUNT];
+            TermSketches sketches = sketchSettings != null ? new TermSketches(sketchSettings, INDEX_COUNT) : null;
+            for (int index = 0; index < INDEX_COUNT; index++) {
+                sorted[index] = SortedTerms.of(dictionary, arrays[index]);
+                if (sketches != null) {
+                    countSketches(sketches, index, termCounts, dictionary);
+                }
+            }
+            return new LinguisticIndex(columns, slots, tokens, order, ranks, dictionary, recorded, arrays, sorted,
+                    trigrams.build(), termCounts, sketches);
+        }
+    }
+
+    /**
+     * Derives a snapshot from a base snapshot by removing and adding verses.
+     * Only the posting arrays of affected terms are rewritten, the verse and
+     * poem tables are patched from the first rank that changed, and only the
+     * edited poems are counted again; everything else is shared with the
+     * base, which stays valid for readers that still hold it. Removals refer
+     * to verses of the base snapshot. Edits are cheapest in batches: one
+     * editor takes any number of verses.
+     */
+    static final class Editor {
+        private final LinguisticIndex base;
+        private final BitSet removedSlots = new BitSet();
+        private final IntList addedSlots = new IntList();
+        private final List<String> addedTerms = new ArrayList<>();
+        private final Map<String, Integer> addedIds = new HashMap<>();
+        private final Map<Integer, MorphologicalAnalysis> addedForms = new HashMap<>();
+        private final List<BitSet> touched = new ArrayList<>(INDEX_COUNT);
+        private final List<Map<Integer, IntList>> additions = new ArrayList<>(INDEX_COUNT);
+        private final TrigramIndex.Editor trigrams;
+        // Poems whose term counts change.
+        private final Set<Integer> editedPoems = new HashSet<>();
+        private final Set<Integer> addedVerseIds = new HashSet<>();
+        private final Set<Integer> addedPoemIds = new HashSet<>();
+        // A copy of the base sketches, or null.
+        private final TermSketches sketches;
+        private Columns columns;
+        private int slotCount;
+        private int tokenCount;
+
+        private Editor(LinguisticIndex base) {
+            this.base = base;
+            this.columns = base.columns;
+            this.slotCount = base.slotCount;
+            this.tokenCount = base.tokenCount;
+            this.trigrams = base.trigrams.edit();
+            this.sketches = base.sketches != null ? base.sketches.copy() : null;
+            for (int i = 0; i < INDEX_COUNT; i++) {
+                touched.add(new BitSet());
+                additions.add(new HashMap<>());
+            }
+        }
+
+        void removeVerse(int verseId) {
+            int slot = base.slotsByVerseId.get(verseId);
+            if (slot >= 0) {
+                removeSlot(slot);
+            }
+        }
+
+        void removePoem(int poemId) {
+            int start = base.poemStarts.get(poemId);
+            if (start < 0) {
+                return;
+            }
+            for (int i = start; i < base.poemEnds.get(poemId); i++) {
+                removeSlot(base.order[i]);
+            }
+        }
+
+        /**
+         * Analyze and add a copy of a verse; it is placed in (poem, verse
+         * number) order.
+         */
+        void addVerse(Verse added, MorphologySource source) {
+            Verse verse = VerseChangeEvent.copyOf(added);
+            List<TokenAnalysis> analyses = analyzeVerse(verse, (token, normalized) -> {
+                MorphologicalAnalysis analysis = source.analyze(token, normalized);
+                int id = intern(normalized);
+                if (id >= base.morphology.length || base.morphology[id] == null) {
+                    addedForms.putIfAbsent(id, analysis != null ? analysis : MorphologicalAnalysis.EMPTY);
+                }
+                return analysis;
+            });
+            columns = columns.forAppend(slotCount, tokenCount, 1, analyses.size());
+            editedPoems.add(verse.getPoemId());
+            addedVerseIds.add(verse.getVerseId());
+            addedPoemIds.add(verse.getPoemId());
+            int slot = slotCount++;
+            columns.verses[slot] = verse;
+            addedSlots.add(slot);
+            trigrams.add(slot, verse.getText());
+            for (TokenAnalysis analysis : analyses) {
+                int token = tokenCount++;
+                columns.tokenSlots[token] = slot;
+                columns.tokenPositions[token] = analysis.getPosition();
+                forEachCountedKey(analysis, (index, key) -> {
+                    // Counted keys need ids for the recount, even if not posted.
+                    int id = intern(key);
+                    if (sketches != null) {
+                        sketches.add(index, key, 1);
+                    }
+                    if (isIndexed(index, key)) {
+                        touched.get(index).set(id);
+                        additions.get(index).computeIfAbsent(id, k -> new IntList()).addDistinct(token);
+                    }
+                });
+            }
+            columns.slotsWritten = slotCount;
+            columns.tokensWritten = tokenCount;
+        }
+
+        /**
+         * Whether this editor added a verse with {@code verseId}. Removals
+         * only reach the base snapshot's verses, so removing or replacing
+         * such a verse needs an editor of the built snapshot.
+         */
+        boolean addedVerse(int verseId) {
+            return addedVerseIds.contains(verseId);
+        }
+
+        /**
+         * Whether this editor added a verse to {@code poemId}; see
+         * {@link #addedVerse}.
+         */
+        boolean addedToPoem(int poemId) {
+            return addedPoemIds.contains(poemId);
+        }
+
+        /**
+         * Poems whose term counts the built snapshot changes.
+         */
+        Set<Integer> editedPoems() {
+            return Collections.unmodifiableSet(editedPoems);
+        }
+
+        LinguisticIndex build() {
+            TermDictionary dictionary = base.terms.plus(addedTerms);
+
+            MorphologicalAnalysis[] recorded = base.morphology;
+            if (!addedForms.isEmpty()) {
+                recorded = Arrays.copyOf(base.morphology, dictionary.size());
+                for (Map.Entry<Integer, MorphologicalAnalysis> entry : addedForms.entrySet()) {
+                    recorded[entry.getKey()] = entry.getValue();
+                }
+            }
+
+            byte[][][] arrays = new byte[INDEX_COUNT][][];
+            SortedTerms[] sorted = new SortedTerms[INDEX_COUNT];
+            for (int index = 0; index < INDEX_COUNT; index++) {
+                BitSet affected = touched.get(index);
+                if (affected.isEmpty()) {
+                    arrays[index] = base.postings[index];
+                    sorted[index] = base.sortedTerms[index];
+                    continue;
+                }
+                byte[][] rewritten = Arrays.copyOf(base.postings[index],
+                        Math.max(base.postings[index].length, affected.length()));
+                for (int id = affected.nextSetBit(0); id >= 0; id = affected.nextSetBit(id + 1)) {
+                    rewritten[id] = rewrite(rewritten[id], additions.get(index).get(id));
+                }
+                arrays[index] = rewritten;
+                sorted[index] = base.sortedTerms[index].edit(dictionary, base.postings[index], rewritten, affected);
+            }
+
+            int[] added = addedInVerseOrder();
+            int from = firstChangedRank(added);
+            int to = lastChangedRank(added);
+            int[] order = mergedOrder(added, from, to);
+            int changedTo = to - removedSlots.cardinality() + added.length;
+            Ranks ranks = Ranks.derive(base, columns.verses, order, slotCount, removedSlots, addedSlots, from, changedTo);
+            PoemTermCounts termCounts = recount(order, ranks, dictionary, recorded);
+            if (sketches != null) {
+                // Indexes that saw many removals are counted again, as a full build would.
+                for (int index = 0; index < INDEX_COUNT; index++) {
+                    if (sketches.needsRecount(index)) {
+                        sketches.clear(index);
+                        countSketches(sketches, index, termCounts, dictionary);
+                    }
+                }
+            }
+            return new LinguisticIndex(columns, slotCount, tokenCount, order, ranks, dictionary, recorded, arrays,
+                    sorted, trigrams.build(), termCounts, sketches);
+        }
+
+        /**
+         * The base term counts with the edited poems counted again from
+         * their verses, found through their rank ranges in {@code order}.
+         */
+        private PoemTermCounts recount(int[] order, Ranks ranks, TermDictionary dictionary,
+                                       MorphologicalAnalysis[] recorded) {
+            if (editedPoems.isEmpty()) {
+                return base.termCounts;
+            }
+            PoemTermCounts.Builder counting = new PoemTermCounts.Builder(INDEX_COUNT);
+            MorphologySource source = (token, normalized) -> recordedMorphology(dictionary, recorded, normalized);
+            for (int poemId : editedPoems) {
+                int start = ranks.poemStarts.get(poemId);
+                if (start < 0) {
+                    continue;
+                }
+                for (int i = start; i < ranks.poemEnds.get(poemId); i++) {
+                    countTerms(columns.verses[order[i]], source, dictionary, counting);
+                }
+            }
+            return base.termCounts.replace(editedPoems, counting.build());
+        }
+
+        private void removeSlot(int slot) {
+            if (removedSlots.get(slot)) {
+                return;
+            }
+            removedSlots.set(slot);
+            editedPoems.add(base.columns.verses[slot].getPoemId());
+            trigrams.remove(slot, base.columns.verses[slot].getText());
+            for (TokenAnalysis analysis : base.analyzeSlot(slot).getTokens()) {
+                forEachCountedKey(analysis, (index, key) -> {
+                    int id = base.terms.id(key);
+                    if (id < 0) {
+                        return;
+                    }
+                    if (isIndexed(index, key)) {
+                        touched.get(index).set(id);
+                    }
+                    if (sketches != null) {
+                        sketches.remove(index, key, 1);
+                    }
+                });
+            }
+        }
+
+        private int intern(String term) {
+            int id = base.terms.id(term);
+            if (id >= 0) {
+                return id;
+            }
+            Integer added = addedIds.get(term);
+            if (added != null) {
+                return added;
+            }
+            int next = base.terms.size() + addedTerms.size();
+            addedTerms.add(term);
+            addedIds.put(term, next);
+            return next;
+        }
+
+        /**
+         * Drop the tokens of removed verses and append the added ones; added
+         * token ids are newer, hence larger, than every existing id.
+         */
+        private byte[] rewrite(byte[] encoded, IntList added) {
+            int[] existing = encoded == null ? new int[0] : decode(encoded);
+            int addedCount = added == null ? 0 : added.size();
+            int[] merged = new int[existing.length + addedCount];
+            int size = 0;
+            for (int token : existing) {
+                if (!removedSlots.get(columns.tokenSlots[token])) {
+                    merged[size++] = token;
+                }
+            }
+            for (int i = 0; i < addedCount; i++) {
+                merged[size++] = added.get(i);
+            }
+            return size == 0 ? null : encode(merged, size);
+        }
+
+        private int[] addedInVerseOrder() {
+            Integer[] boxed = new Integer[addedSlots.size()];
+            for (int i = 0; i < boxed.length; i++) {
+                boxed[i] = addedSlots.get(i);
+            }
+            Arrays.sort(boxed, columns::compareSlots);
+            int[] added = new int[boxed.length];
+            for (int i = 0; i < added.length; i++) {
+                added[i] = boxed[i];
+            }
+            return added;
+        }
+
+        // Base rank of the first removed slot or of the first added slot's place.
+        private int firstChangedRank(int[] added) {
+            int first = base.order.length;
+            int removed = removedSlots.nextSetBit(0);
+            for (; removed >= 0; removed = removedSlots.nextSetBit(removed + 1)) {
+                first = Math.min(first, base.slotRanks[removed]);
+            }
+            return added.length == 0 ? first : Math.min(first, insertionRank(added[0]));
+        }
+
+        // Base rank just past the last removed slot and the last added slot's place.
+        private int lastChangedRank(int[] added) {
+            int last = 0;
+            int removed = removedSlots.nextSetBit(0);
+            for (; removed >= 0; removed = removedSlots.nextSetBit(removed + 1)) {
+                last = Math.max(last, base.slotRanks[removed] + 1);
+            }
+            return added.length == 0 ? last : Math.max(last, insertionRank(added[added.length - 1]));
+        }
+
+        // Number of base slots that sort before an added slot.
+        private int insertionRank(int slot) {
+            int low = 0;
+            int high = base.order.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (columns.compareSlots(base.order[mid], slot) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * The base order without the removed slots and with {@code added}
+         * merged in; only base ranks {@code from} to {@code to} are looked
+         * at, the rest is copied.
+         */
+        private int[] mergedOrder(int[] added, int from, int to) {
+            if (from >= to && added.length == 0) {
+                return base.order;
+            }
+            int tail = base.order.length - to;
+            int[] result = new int[base.order.length - removedSlots.cardinality() + added.length];
+            System.arraycopy(base.order, 0, result, 0, from);
+            int size = from;
+            int next = 0;
+            for (int rank = from; rank < to; rank++) {
+                int slot = base.order[rank];
+                while (next < added.length && columns.compareSlots(added[next], slot) < 0) {
+                    result[size++] = added[next++];
+                }
+                if (!removedSlots.get(slot)) {
+                    result[size++] = slot;
+                }
+            }
+            while (next < added.length) {
+                result[size++] = added[next++];
+            }
+            System.arraycopy(base.order, base.order.length - tail, result, size, tail);
+            return result;
+        }
+    }
+}
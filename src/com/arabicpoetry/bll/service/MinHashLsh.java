@@ -0,0 +1,152 @@
+package com.arabicpoetry.bll.service;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * MinHash signatures of packed n-gram sets, bucketed by LSH bands, so the
+ * verses likely to be similar to a query can be found without looking at
+ * the rest of the corpus.
+ *
+ * <p>Each verse gets {@code bands * rows} MinHash values; two sets agree on
+ * one value with probability equal to their Jaccard similarity, so they
+ * share at least one band bucket with probability
+ * {@code 1 - (1 - s^rows)^bands}. Only bucket keys are kept: entry
+ * {@code ordinal * bands + band} holds its band key and the next entry in
+ * its hash chain. Ordinals are those of the owning {@link NGramIndex};
+ * removed verses stay in their buckets until the owner rebuilds, and
+ * callers skip them. The class is not thread-safe.</p>
+ */
+final class MinHashLsh {
+    private static final long SEED = 0x5DEECE66DL;
+
+    private final int bands;
+    private final int rows;
+    // One multiply-shift hash per signature value, applied to the mixed gram.
+    private final long[] multipliers;
+    // Chain heads per slot and chain links per entry, both as entry + 1.
+    private int[] heads = new int[16];
+    private int[] next = new int[0];
+    private int[] keys = new int[0];
+    private final BitSet added = new BitSet();
+    private int linked;
+
+    MinHashLsh(int bands, int rows) {
+        if (bands <= 0 || rows <= 0) {
+            throw new IllegalArgumentException("Bands and rows must be positive: " + bands + "x" + rows);
+        }
+        this.bands = bands;
+        this.rows = rows;
+        this.multipliers = new Random(SEED).longs(bands * rows).map(value -> value | 1).toArray();
+    }
+
+    /**
+     * Bucket the verse at {@code ordinal}. Verses without n-grams cannot be
+     * similar to anything and are left out.
+     */
+    void add(int ordinal, long[] grams) {
+        if (grams.length == 0) {
+            return;
+        }
+        int[] bandKeys = bandKeys(grams);
+        int first = ordinal * bands;
+        if (first + bands > keys.length) {
+            int capacity = Math.max(first + bands, keys.length << 1);
+            keys = Arrays.copyOf(keys, capacity);
+            next = Arrays.copyOf(next, capacity);
+        }
+        if (2 * (linked + bands) > heads.length) {
+            rehash(Integer.highestOneBit(linked + bands) << 2);
+        }
+        for (int band = 0; band < bands; band++) {
+            keys[first + band] = bandKeys[band];
+            link(first + band);
+        }
+        added.set(ordinal);
+        linked += bands;
+    }
+
+    /**
+     * Ascending, distinct ordinals sharing at least one band bucket with
+     * {@code grams}; may include verses removed since they were added.
+     */
+    int[] candidates(long[] grams) {
+        if (grams.length == 0) {
+            return new int[0];
+        }
+        int[] bandKeys = bandKeys(grams);
+        LinguisticIndex.IntList found = new LinguisticIndex.IntList();
+        int mask = heads.length - 1;
+        for (int band = 0; band < bands; band++) {
+            for (int entry = heads[slot(band, bandKeys[band]) & mask] - 1; entry >= 0; entry = next[entry] - 1) {
+                if (entry % bands == band && keys[entry] == bandKeys[band]) {
+                    found.add(entry / bands);
+                }
+            }
+        }
+        int[] ordinals = found.toArray();
+        Arrays.sort(ordinals);
+        int distinct = 0;
+        for (int i = 0; i < ordinals.length; i++) {
+            if (distinct == 0 || ordinals[distinct - 1] != ordinals[i]) {
+                ordinals[distinct++] = ordinals[i];
+            }
+        }
+        return Arrays.copyOf(ordinals, distinct);
+    }
+
+    private int[] bandKeys(long[] grams) {
+        int[] signature = new int[multipliers.length];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        for (long gram : grams) {
+            long hash = mix64(gram);
+            for (int i = 0; i < signature.length; i++) {
+                int value = (int) ((hash * multipliers[i]) >>> 33);
+                if (value < signature[i]) {
+                    signature[i] = value;
+                }
+            }
+        }
+        int[] bandKeys = new int[bands];
+        for (int band = 0; band < bands; band++) {
+            int key = band;
+            for (int row = 0; row < rows; row++) {
+                key = 31 * key + signature[band * rows + row];
+            }
+            bandKeys[band] = mix32(key);
+        }
+        return bandKeys;
+    }
+
+    private void link(int entry) {
+        int at = slot(entry % bands, keys[entry]) & (heads.length - 1);
+        next[entry] = heads[at];
+        heads[at] = entry + 1;
+    }
+
+    private void rehash(int capacity) {
+        heads = new int[capacity];
+        for (int ordinal = added.nextSetBit(0); ordinal >= 0; ordinal = added.nextSetBit(ordinal + 1)) {
+            for (int band = 0; band < bands; band++) {
+                link(ordinal * bands + band);
+            }
+        }
+    }
+
+    private static int slot(int band, int key) {
+        return mix32(key + band * 0x9E3779B9);
+    }
+
+    private static long mix64(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+    private static int mix32(int value) {
+        value = (value ^ (value >>> 16)) * 0x85EBCA6B;
+        value = (value ^ (value >>> 13)) * 0xC2B2AE35;
+        return value ^ (value >>> 16);
+    }
+}
@@ -0,0 +1,140 @@
+package com.arabicpoetry.bll.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inverted index from n-grams, packed into longs by {@link FeatureIndex}, to
+ * the ordinals of the verses containing them, used by
+ * {@link VerseSimilarityService} to score only the verses that can reach a
+ * Jaccard threshold.
+ *
+ * <p>Ordinals are handed out in insertion order and never reused. Removing a
+ * verse only drops its n-grams; the stale postings are skipped on lookup
+ * until the owner rebuilds the index. The class is not thread-safe.</p>
+ */
+final class NGramIndex {
+    // Slack for floating-point rounding in the overlap bounds; it can only
+    // keep an extra candidate, never drop a match.
+    private static final double TOLERANCE = 1e-9;
+
+    private final Map<Long, LinguisticIndex.IntList> postings = new HashMap<>();
+    // Sorted distinct n-grams per ordinal; null once the verse is removed.
+    private final List<long[]> grams = new ArrayList<>();
+    // N-gram count per ordinal, -1 once removed; dense for the filters.
+    private int[] sizes = new int[16];
+    // Per-ordinal overlap counters, all zero between queries.
+    private int[] counts = new int[16];
+    private int removed;
+
+    /**
+     * Index a verse's sorted, distinct n-grams and return its ordinal.
+     */
+    int add(long[] verseGrams) {
+        int ordinal = grams.size();
+        grams.add(verseGrams);
+        if (ordinal == sizes.length) {
+            sizes = Arrays.copyOf(sizes, ordinal << 1);
+            counts = Arrays.copyOf(counts, ordinal << 1);
+        }
+        sizes[ordinal] = verseGrams.length;
+        for (long gram : verseGrams) {
+            postings.computeIfAbsent(gram, key -> new LinguisticIndex.IntList()).add(ordinal);
+        }
+        return ordinal;
+    }
+
+    void remove(int ordinal) {
+        if (grams.set(ordinal, null) != null) {
+            sizes[ordinal] = -1;
+            removed++;
+        }
+    }
+
+    /**
+     * N-grams of the verse at {@code ordinal}, or {@code null} if it was
+     * removed.
+     */
+    long[] grams(int ordinal) {
+        return grams.get(ordinal);
+    }
+
+    /**
+     * Number of ordinals handed out, including removed ones.
+     */
+    int size() {
+        return grams.size();
+    }
+
+    int removedCount() {
+        return removed;
+    }
+
+    /**
+     * Ascending ordinals of the live verses that share enough n-grams with
+     * {@code query} to possibly reach Jaccard {@code threshold} (which must
+     * be positive).
+     *
+     * <p>A verse at or above the threshold shares at least
+     * {@code ceil(threshold * |query|)} n-grams with the query, so it must
+     * contain one of the query's {@code |query| - minOverlap + 1} rarest
+     * n-grams; only those postings are read. Overlaps are counted along
+     * the way, and a verse is kept only if its count plus every n-gram
+     * left unread could still reach the overlap its own size requires,
+     * {@code threshold / (1 + threshold) * (|query| + |verse|)}.</p>
+     */
+    int[] candidates(long[] query, double threshold) {
+        return candidates(query, threshold, grams.size(), counts);
+    }
+
+    /**
+     * Like {@link #candidates(long[], double)}, restricted to ordinals below
+     * {@code limit} and counting in {@code scratch}, which must be all zero
+     * and at least {@link #size()} long; it is left all zero again. With
+     * separate scratch arrays several threads may query at once, as long as
+     * nobody adds or removes verses meanwhile.
+     */
+    int[] candidates(long[] query, double threshold, int limit, int[] scratch) {
+        int minOverlap = Math.max(1, (int) Math.ceil(threshold * query.length - TOLERANCE));
+        int prefix = query.length - minOverlap + 1;
+        if (prefix <= 0) {
+            return new int[0];
+        }
+        LinguisticIndex.IntList[] lists = new LinguisticIndex.IntList[query.length];
+        for (int i = 0; i < query.length; i++) {
+            lists[i] = postings.get(query[i]);
+        }
+        Arrays.sort(lists, (a, b) -> Integer.compare(a == null ? 0 : a.size(), b == null ? 0 : b.size()));
+
+        LinguisticIndex.IntList touched = new LinguisticIndex.IntList();
+        for (int i = 0; i < prefix; i++) {
+            LinguisticIndex.IntList list = lists[i];
+            // Postings ascend, so the rest of the list is past the limit.
+            for (int j = 0; list != null && j < list.size() && list.get(j) < limit; j++) {
+                int ordinal = list.get(j);
+                if (sizes[ordinal] >= 0 && scratch[ordinal]++ == 0) {
+                    touched.add(ordinal);
+                }
+            }
+        }
+
+        int unread = query.length - prefix;
+        double share = threshold / (1 + threshold);
+        int[] kept = new int[touched.size()];
+        int size = 0;
+        for (int i = 0; i < touched.size(); i++) {
+            int ordinal = touched.get(i);
+            int required = (int) Math.ceil(share * (query.length + sizes[ordinal]) - TOLERANCE);
+            if (scratch[ordinal] + unread >= required && required <= Math.min(query.length, sizes[ordinal])) {
+                kept[size++] = ordinal;
+            }
+            scratch[ordinal] = 0;
+        }
+        kept = Arrays.copyOf(kept, size);
+        Arrays.sort(kept);
+        return kept;
+    }
+}
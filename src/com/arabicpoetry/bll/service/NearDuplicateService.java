@@ -0,0 +1,354 @@
+package com.arabicpoetry.bll.service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+
+import com.arabicpoetry.model.Verse;
+import com.arabicpoetry.util.NGramUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Batch job that finds every pair of verses whose character n-gram sets have
+ * a Jaccard similarity at or above a threshold, such as the duplicates left
+ * by overlapping anthologies.
+ *
+ * <p>All verses go into one {@link NGramIndex}; each verse then probes it
+ * for the earlier verses that pass the prefix filter, so every pair is
+ * considered once and only candidates are scored. Probes run in chunks on
+ * a thread pool, but chunks are written in order: each finished chunk
+ * appends its pairs to the output file and records the file length in a
+ * checkpoint next to it. A run over the same corpus and settings that finds
+ * the checkpoint truncates the file to that length and resumes with the
+ * next chunk.</p>
+ */
+public class NearDuplicateService {
+    private static final Logger LOGGER = LogManager.getLogger(NearDuplicateService.class);
+    private static final String PARALLELISM_PROPERTY = "arabicpoetry.neardup.parallelism";
+    private static final String HEADER = "verse_id_a\tverse_id_b\tscore";
+    private static final int DEFAULT_N = 3;
+    private static final int DEFAULT_CHUNK_SIZE = 1024;
+
+    private static NearDuplicateService instance;
+
+    private VerseService verseService;
+    private int parallelism = resolveParallelism();
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private IntConsumer chunkListener = chunk -> { };
+
+    private NearDuplicateService() throws SQLException {
+        this.verseService = VerseService.getInstance();
+    }
+
+    public static synchronized NearDuplicateService getInstance() throws SQLException {
+        if (instance == null) {
+            instance = new NearDuplicateService();
+        }
+        return instance;
+    }
+
+    // For tests
+    public static synchronized void resetInstance() {
+        instance = null;
+    }
+
+    // Package-private setters for tests
+    void setVerseService(VerseService verseService) {
+        this.verseService = verseService;
+    }
+
+    void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    void setChunkSize(int chunkSize) {
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    // Called with each chunk number once it is written and checkpointed
+    void setChunkListener(IntConsumer chunkListener) {
+        this.chunkListener = chunkListener;
+    }
+
+    /**
+     * Write every near-duplicate pair to {@code output} with the default
+     * n-gram size of the similarity search.
+     *
+     * @see #findNearDuplicates(Path, double, int)
+     */
+    public long findNearDuplicates(Path output, double threshold)
+            throws SQLException, IOException, InterruptedException {
+        return findNearDuplicates(output, threshold, DEFAULT_N);
+    }
+
+    /**
+     * Write every pair of verses with n-gram Jaccard similarity at or above
+     * {@code threshold} to {@code output} as tab-separated
+     * {@code verse_id_a, verse_id_b, score} lines, where verse a comes
+     * before verse b in corpus order. Resumes from the checkpoint left by an
+     * interrupted run with the same corpus and settings.
+     *
+     * @return the number of pairs in the finished file
+     * @throws InterruptedException if the calling thread is interrupted; the
+     *         checkpoint then covers every chunk already written
+     */
+    public long findNearDuplicates(Path output, double threshold, int n)
+            throws SQLException, IOException, InterruptedException {
+        if (!(threshold > 0 && threshold <= 1)) {
+            throw new IllegalArgumentException("Threshold must be in (0, 1]: " + threshold);
+        }
+        long started = System.nanoTime();
+        List<Verse> verses = verseService.getAllVerses();
+        NGramIndex index = new NGramIndex();
+        long fingerprint = 17;
+        for (Verse verse : verses) {
+            String text = verse.getText() != null ? verse.getText() : "";
+            index.add(NGramUtil.packedCharNGrams(text, n));
+            fingerprint = 31 * (31 * fingerprint + verse.getVerseId()) + text.hashCode();
+        }
+
+        Checkpoint expected = new Checkpoint(fingerprint, verses.size(), threshold, n, chunkSize);
+        Path checkpointFile = checkpointFile(output);
+        Checkpoint checkpoint = Checkpoint.read(checkpointFile);
+        if (checkpoint == null || !checkpoint.sameRun(expected) || !Files.exists(output)
+                || Files.size(output) < checkpoint.outputLength) {
+            checkpoint = expected;
+            Files.writeString(output, HEADER + "\n", StandardCharsets.UTF_8);
+            checkpoint.outputLength = Files.size(output);
+            checkpoint.write(checkpointFile);
+        } else {
+            LOGGER.info("Resuming near-duplicate run at chunk {} with {} pairs written",
+                    checkpoint.nextChunk, checkpoint.pairs);
+        }
+
+        int chunks = (verses.size() + chunkSize - 1) / chunkSize;
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "near-duplicates");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (FileChannel channel = FileChannel.open(output, StandardOpenOption.WRITE)) {
+            channel.truncate(checkpoint.outputLength);
+            channel.position(checkpoint.outputLength);
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                    nonClosing(Channels.newOutputStream(channel)), StandardCharsets.UTF_8));
+
+            // Keep a bounded window of chunks in flight and write them in order.
+            Deque<Future<String>> inFlight = new ArrayDeque<>();
+            int submitted = checkpoint.nextChunk;
+            for (int chunk = checkpoint.nextChunk; chunk < chunks; chunk++) {
+                while (submitted < chunks && inFlight.size() < 2 * parallelism) {
+                    int from = submitted * chunkSize;
+                    int to = Math.min(verses.size(), from + chunkSize);
+                    inFlight.add(pool.submit(() -> scoreChunk(index, verses, from, to, threshold)));
+                    submitted++;
+                }
+                String pairs = awaitChunk(inFlight.poll());
+                writer.write(pairs);
+                writer.flush();
+                channel.force(false);
+                checkpoint.nextChunk = chunk + 1;
+                checkpoint.outputLength = channel.position();
+                checkpoint.pairs += countLines(pairs);
+                checkpoint.write(checkpointFile);
+                chunkListener.accept(chunk);
+                if (chunk % 100 == 99) {
+                    LOGGER.info("Near-duplicate scan: {} of {} chunks, {} pairs", chunk + 1, chunks, checkpoint.pairs);
+                }
+            }
+        } catch (ClosedByInterruptException ex) {
+            // Interrupted inside a channel call; the checkpoint still matches
+            // the file up to the last completed chunk.
+            Thread.interrupted();
+            InterruptedException interrupted = new InterruptedException("Near-duplicate scan interrupted");
+            interrupted.initCause(ex);
+            throw interrupted;
+        } finally {
+            pool.shutdownNow();
+        }
+
+        Files.deleteIfExists(checkpointFile);
+        LOGGER.info("Found {} near-duplicate pairs (threshold {}) among {} verses in {} ms",
+                checkpoint.pairs, threshold, verses.size(), (System.nanoTime() - started) / 1_000_000);
+        return checkpoint.pairs;
+    }
+
+    static Path checkpointFile(Path output) {
+        return output.resolveSibling(output.getFileName() + ".checkpoint");
+    }
+
+    /**
+     * Pairs between verses {@code from..to-1} and every earlier verse, as
+     * output lines in probe order, then in order of the earlier verse.
+     */
+    private static String scoreChunk(NGramIndex index, List<Verse> verses, int from, int to, double threshold) {
+        int[] scratch = new int[index.size()];
+        StringBuilder lines = new StringBuilder();
+        for (int probe = from; probe < to; probe++) {
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            long[] grams = index.grams(probe);
+            for (int other : index.candidates(grams, threshold, probe, scratch)) {
+                double score = NGramUtil.jaccardSimilarity(index.grams(other), grams);
+                if (score >= threshold) {
+                    lines.append(verses.get(other).getVerseId()).append('\t')
+                            .append(verses.get(probe).getVerseId()).append('\t')
+                            .append(score).append('\n');
+                }
+            }
+        }
+        return lines.toString();
+    }
+
+    private static String awaitChunk(Future<String> chunk) throws InterruptedException, IOException {
+        try {
+            return chunk.get();
+        } catch (ExecutionException ex) {
+            throw new IOException("Near-duplicate chunk failed", ex.getCause());
+        }
+    }
+
+    private static long countLines(String text) {
+        long lines = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * The channel outlives the writer on top of it, so closing is left to
+     * the channel's own try-with-resources.
+     */
+    private static OutputStream nonClosing(OutputStream out) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+        };
+    }
+
+    private static int resolveParallelism() {
+        String configured = System.getProperty(PARALLELISM_PROPERTY);
+        if (configured != null && !configured.trim().isEmpty()) {
+            try {
+                return Math.max(1, Integer.parseInt(configured.trim()));
+            } catch (NumberFormatException ex) {
+                LOGGER.warn("Ignoring invalid {} value '{}'", PARALLELISM_PROPERTY, configured);
+            }
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Progress of a run: which corpus and settings it is for, how many
+     * chunks are in the output and how long the output is after them.
+     */
+    private static final class Checkpoint {
+        private final long corpus;
+        private final int verses;
+        private final double threshold;
+        private final int n;
+        private final int chunkSize;
+        private int nextChunk;
+        private long outputLength;
+        private long pairs;
+
+        Checkpoint(long corpus, int verses, double threshold, int n, int chunkSize) {
+            this.corpus = corpus;
+            this.verses = verses;
+            this.threshold = threshold;
+            this.n = n;
+            this.chunkSize = chunkSize;
+        }
+
+        boolean sameRun(Checkpoint other) {
+            return corpus == other.corpus && verses == other.verses && threshold == other.threshold
+                    && n == other.n && chunkSize == other.chunkSize;
+        }
+
+        static Checkpoint read(Path file) {
+            if (!Files.exists(file)) {
+                return null;
+            }
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(file)) {
+                properties.load(in);
+                Checkpoint checkpoint = new Checkpoint(
+                        Long.parseLong(properties.getProperty("corpus")),
+                        Integer.parseInt(properties.getProperty("verses")),
+                        Double.parseDouble(properties.getProperty("threshold")),
+                        Integer.parseInt(properties.getProperty("n")),
+                        Integer.parseInt(properties.getProperty("chunkSize")));
+                checkpoint.nextChunk = Integer.parseInt(properties.getProperty("nextChunk"));
+                checkpoint.outputLength = Long.parseLong(properties.getProperty("outputLength"));
+                checkpoint.pairs = Long.parseLong(properties.getProperty("pairs"));
+                return checkpoint;
+            } catch (IOException | RuntimeException ex) {
+                LOGGER.warn("Ignoring unreadable checkpoint {}", file, ex);
+                return null;
+            }
+        }
+
+        /**
+         * Written next to the old checkpoint and moved into place, so a crash
+         * never leaves a half-written one behind.
+         */
+        void write(Path file) throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty("corpus", Long.toString(corpus));
+            properties.setProperty("verses", Integer.toString(verses));
+            properties.setProperty("threshold", Double.toString(threshold));
+            properties.setProperty("n", Integer.toString(n));
+            properties.setProperty("chunkSize", Integer.toString(chunkSize));
+            properties.setProperty("nextChunk", Integer.toString(nextChunk));
+            properties.setProperty("outputLength", Long.toString(outputLength));
+            properties.setProperty("pairs", Long.toString(pairs));
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                properties.store(out, "Near-duplicate scan checkpoint");
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+}
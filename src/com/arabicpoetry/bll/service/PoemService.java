@@ -91,6 +91,8 @@ public class PoemService {
     public void deletePoem(int id) throws SQLException {
         poemDAO.delete(id);
         LOGGER.info("Deleted poem id={}", id);
+        // verses go with the poem via ON DELETE CASCADE; let verse indices drop them too
+        VerseService.getInstance().publishPoemDeleted(id);
     }
 
     /**
@@ -0,0 +1,327 @@
+package com.arabicpoetry.bll.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.arabicpoetry.model.linguistics.LinguisticSearchMode;
+import com.arabicpoetry.model.linguistics.PoemTermCount;
+
+/**
+ * Per-poem term counts of one {@link LinguisticIndex} snapshot: for every
+ * poem and index, a sparse vector of ascending term ids from the snapshot's
+ * {@link TermDictionary} with the number of times the poem's tokens count
+ * under each: once per form and once per lemma, root or segment candidate,
+ * repeated and empty candidates included. Book, poet and corpus frequencies are sums of these vectors, so
+ * they never re-read the analyses.
+ *
+ * <p>Vectors are immutable and shared between snapshots: term ids survive
+ * edits, so an edit only recounts the poems it touches.</p>
+ */
+final class PoemTermCounts {
+    static final PoemTermCounts EMPTY = new PoemTermCounts(new HashMap<>());
+
+    // Poem id -> one vector per index.
+    private final Map<Integer, Vector[]> vectors;
+
+    private PoemTermCounts(Map<Integer, Vector[]> vectors) {
+        this.vectors = vectors;
+    }
+
+    /**
+     * Add up the vectors of {@code poemIds} in {@code index} (all poems if
+     * {@code null}); poems without indexed tokens are skipped. Returns the
+     * term ids that occur, ascending, and their counts.
+     *
+     * @param termCount size of the term dictionary the vectors refer to
+     */
+    Sum sum(int index, Collection<Integer> poemIds, int termCount) {
+        int[] totals = new int[termCount];
+        LinguisticIndex.IntList occurring = new LinguisticIndex.IntList();
+        accumulate(index, poemIds, totals, occurring);
+        int[] terms = occurring.toArray();
+        Arrays.sort(terms);
+        int[] counts = new int[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            counts[i] = totals[terms[i]];
+        }
+        return new Sum(terms, counts);
+    }
+
+    /**
+     * Add up the vectors of {@code poemIds} in {@code index} (all poems if
+     * {@code null}) into one dense vector indexed by term id, so that two
+     * sums over the same snapshot line up term by term.
+     */
+    int[] counts(int index, Collection<Integer> poemIds, int termCount) {
+        int[] totals = new int[termCount];
+        accumulate(index, poemIds, totals, null);
+        return totals;
+    }
+
+    // Adds into totals; occurring, if given, collects each term on its first count.
+    private void accumulate(int index, Collection<Integer> poemIds, int[] totals, LinguisticIndex.IntList occurring) {
+        for (Vector[] poem : poemIds == null ? vectors.values() : poemVectors(poemIds)) {
+            Vector vector = poem[index];
+            for (int i = 0; i < vector.terms.length; i++) {
+                int term = vector.terms[i];
+                if (occurring != null && totals[term] == 0) {
+                    occurring.add(term);
+                }
+                totals[term] += vector.counts[i];
+            }
+        }
+    }
+
+    private Collection<Vector[]> poemVectors(Collection<Integer> poemIds) {
+        Collection<Vector[]> found = new ArrayList<>(poemIds.size());
+        for (Integer poemId : poemIds) {
+            Vector[] poem = vectors.get(poemId);
+            if (poem != null) {
+                found.add(poem);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * The counts of {@code poemIds} (all poems if {@code null}) as rows,
+     * poem by poem, with the counts of {@code indices[i]} tagged
+     * {@code modes[i]}. Rows are made while iterating, so a whole corpus can
+     * be written out without holding its rows.
+     */
+    Iterable<PoemTermCount> rows(Collection<Integer> poemIds, int[] indices, LinguisticSearchMode[] modes) {
+        Collection<Integer> selected = poemIds == null ? vectors.keySet() : poemIds;
+        return () -> new Iterator<PoemTermCount>() {
+            private final Iterator<Integer> poems = selected.iterator();
+            private int poemId;
+            private Vector[] poem;
+            private int slot;
+            private int entry;
+
+            @Override
+            public boolean hasNext() {
+                while (true) {
+                    if (poem != null) {
+                        while (slot < indices.length && entry == poem[indices[slot]].terms.length) {
+                            slot++;
+                            entry = 0;
+                        }
+                        if (slot < indices.length) {
+                            return true;
+                        }
+                    }
+                    if (!poems.hasNext()) {
+                        return false;
+                    }
+                    poemId = poems.next();
+                    poem = vectors.get(poemId);
+                    slot = 0;
+                    entry = 0;
+                }
+            }
+
+            @Override
+            public PoemTermCount next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Vector vector = poem[indices[slot]];
+                PoemTermCount row = new PoemTermCount(poemId, modes[slot], vector.terms[entry], vector.counts[entry]);
+                entry++;
+                return row;
+            }
+        };
+    }
+
+    /**
+     * These counts with the poems in {@code poemIds} replaced by their
+     * counts in {@code recounted}, or dropped if it has none.
+     */
+    PoemTermCounts replace(Collection<Integer> poemIds, PoemTermCounts recounted) {
+        Map<Integer, Vector[]> replaced = new HashMap<>(vectors);
+        for (Integer poemId : poemIds) {
+            Vector[] poem = recounted.vectors.get(poemId);
+            if (poem != null) {
+                replaced.put(poemId, poem);
+            } else {
+                replaced.remove(poemId);
+            }
+        }
+        return new PoemTermCounts(replaced);
+    }
+
+    /**
+     * Term ids occurring in some of the summed poems, ascending, with their
+     * total counts.
+     */
+    static final class Sum {
+        final int[] terms;
+        final int[] counts;
+
+        private Sum(int[] terms, int[] counts) {
+            this.terms = terms;
+            this.counts = counts;
+        }
+
+        /**
+         * Positions of the {@code k} highest counts, highest first, with
+         * equal counts in {@code ties} order of their terms. Only a k-sized
+         * min-heap is kept, so terms are compared only when their counts
+         * tie with the lowest count kept.
+         */
+        int[] top(int k, TermOrder ties) {
+            int[] heap = new int[Math.max(0, Math.min(k, terms.length))];
+            int size = 0;
+            for (int i = 0; i < terms.length; i++) {
+                if (size < heap.length) {
+                    heap[size] = i;
+                    siftUp(heap, size++, ties);
+                } else if (size > 0 && ranksBefore(i, heap[0], ties)) {
+                    heap[0] = i;
+                    siftDown(heap, size, ties);
+                }
+            }
+            int[] ranked = new int[size];
+            while (size > 0) {
+                ranked[size - 1] = heap[0];
+                heap[0] = heap[--size];
+                siftDown(heap, size, ties);
+            }
+            return ranked;
+        }
+
+        private boolean ranksBefore(int a, int b, TermOrder ties) {
+            if (counts[a] != counts[b]) {
+                return counts[a] > counts[b];
+            }
+            return ties.compare(terms[a], terms[b]) < 0;
+        }
+
+        // The heap root is the lowest ranked position kept.
+        private void siftUp(int[] heap, int node, TermOrder ties) {
+            while (node > 0) {
+                int parent = (node - 1) >>> 1;
+                if (!ranksBefore(heap[parent], heap[node], ties)) {
+                    return;
+                }
+                swap(heap, parent, node);
+                node = parent;
+            }
+        }
+
+        private void siftDown(int[] heap, int size, TermOrder ties) {
+            int node = 0;
+            while (true) {
+                int lowest = node;
+                int left = 2 * node + 1;
+                if (left < size && ranksBefore(heap[lowest], heap[left], ties)) {
+                    lowest = left;
+                }
+                if (left + 1 < size && ranksBefore(heap[lowest], heap[left + 1], ties)) {
+                    lowest = left + 1;
+                }
+                if (lowest == node) {
+                    return;
+                }
+                swap(heap, node, lowest);
+                node = lowest;
+            }
+        }
+
+        private static void swap(int[] heap, int a, int b) {
+            int tmp = heap[a];
+            heap[a] = heap[b];
+            heap[b] = tmp;
+        }
+    }
+
+    /**
+     * Order of two term ids with equal counts.
+     */
+    @FunctionalInterface
+    interface TermOrder {
+        int compare(int termA, int termB);
+    }
+
+    private static final class Vector {
+        static final Vector EMPTY = new Vector(new int[0], new int[0]);
+
+        final int[] terms;
+        final int[] counts;
+
+        Vector(int[] terms, int[] counts) {
+            this.terms = terms;
+            this.counts = counts;
+        }
+    }
+
+    /**
+     * Collects (poem, term) pairs, one per counted occurrence, and counts
+     * them by sorting.
+     */
+    static final class Builder {
+        private final long[][] pairs;
+        private final int[] sizes;
+
+        Builder(int indexCount) {
+            pairs = new long[indexCount][16];
+            sizes = new int[indexCount];
+        }
+
+        void add(int index, int poemId, int termId) {
+            if (sizes[index] == pairs[index].length) {
+                pairs[index] = Arrays.copyOf(pairs[index], sizes[index] << 1);
+            }
+            pairs[index][sizes[index]++] = ((long) poemId << 32) | termId;
+        }
+
+        PoemTermCounts build() {
+            Map<Integer, Vector[]> vectors = new HashMap<>();
+            for (int index = 0; index < pairs.length; index++) {
+                long[] sorted = Arrays.copyOf(pairs[index], sizes[index]);
+                Arrays.sort(sorted);
+                int start = 0;
+                while (start < sorted.length) {
+                    int poemId = (int) (sorted[start] >> 32);
+                    int end = start;
+                    while (end < sorted.length && (int) (sorted[end] >> 32) == poemId) {
+                        end++;
+                    }
+                    vectors.computeIfAbsent(poemId, key -> emptyVectors(pairs.length))[index] = count(sorted, start, end);
+                    start = end;
+                }
+            }
+            return new PoemTermCounts(vectors);
+        }
+
+        private static Vector[] emptyVectors(int indexCount) {
+            Vector[] empty = new Vector[indexCount];
+            Arrays.fill(empty, Vector.EMPTY);
+            return empty;
+        }
+
+        /**
+         * Count the runs of equal pairs in {@code sorted[start..end)}, which
+         * all belong to one poem.
+         */
+        private static Vector count(long[] sorted, int start, int end) {
+            int[] terms = new int[end - start];
+            int[] counts = new int[end - start];
+            int size = 0;
+            for (int i = start; i < end; i++) {
+                if (size > 0 && sorted[i] == sorted[i - 1]) {
+                    counts[size - 1]++;
+                } else {
+                    terms[size] = (int) sorted[i];
+                    counts[size++] = 1;
+                }
+            }
+            return new Vector(Arrays.copyOf(terms, size), Arrays.copyOf(counts, size));
+        }
+    }
+}
@@ -0,0 +1,454 @@
+package com.arabicpoetry.bll.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import com.arabicpoetry.model.linguistics.LinguisticSearchMode;
+import com.arabicpoetry.util.ArabicTextUtils;
+
+/**
+ * Parsed phrase/proximity/boolean query over the token, lemma, root and
+ * segment postings of a {@link LinguisticIndex}.
+ *
+ * <p>Syntax:</p>
+ * <ul>
+ *   <li>{@code lemma:X}, {@code root:X}, {@code segment:X}, {@code token:X}
+ *       or a bare {@code X} (token) - tokens with that key;</li>
+ *   <li>{@code "A B C"} - phrase: A immediately followed by B, then C; the
+ *       first token of each occurrence is returned;</li>
+ *   <li>{@code A NEAR/k B} - tokens of A and B at most {@code k} words apart
+ *       in the same verse, in either order ({@code NEAR} alone means 5);</li>
+ *   <li>{@code A AND B} (or just {@code A B}), {@code A OR B},
+ *       {@code A AND NOT B} / {@code A NOT B} - verse-level boolean
+ *       combinations; parentheses group.</li>
+ * </ul>
+ *
+ * <p>Every operator is evaluated by merging postings sorted by
+ * {@link LinguisticIndex#positionKey(int)}; no verse text is scanned.</p>
+ */
+final class PositionalQuery {
+    private static final int DEFAULT_NEAR_DISTANCE = 5;
+
+    private final Node root;
+
+    private PositionalQuery(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the query is malformed
+     */
+    static PositionalQuery parse(String query) {
+        Parser parser = new Parser(tokenize(query));
+        Node root = parser.parseOr();
+        if (parser.hasMore()) {
+            throw new IllegalArgumentException("Unexpected '" + parser.peek() + "' in query");
+        }
+        if (root instanceof Not) {
+            throw new IllegalArgumentException("NOT must follow a term it excludes from");
+        }
+        return new PositionalQuery(root);
+    }
+
+    /**
+     * Ids of the matching tokens in (poem, verse number, position) order.
+     */
+    int[] evaluate(LinguisticIndex index) {
+        Hits hits = root.evaluate(index);
+        return Arrays.copyOf(hits.tokens, hits.size);
+    }
+
+    private interface Node {
+        Hits evaluate(LinguisticIndex index);
+    }
+
+    private static final class Term implements Node {
+        private final LinguisticSearchMode mode;
+        private final String key;
+
+        Term(LinguisticSearchMode mode, String key) {
+            this.mode = mode;
+            this.key = key;
+        }
+
+        @Override
+        public Hits evaluate(LinguisticIndex index) {
+            int[] tokens = index.tokenIds(mode, key);
+            long[] keys = new long[tokens.length];
+            for (int i = 0; i < tokens.length; i++) {
+                keys[i] = index.positionKey(tokens[i]);
+            }
+            return new Hits(tokens, keys, tokens.length);
+        }
+    }
+
+    private static final class Phrase implements Node {
+        private final List<Node> parts;
+
+        Phrase(List<Node> parts) {
+            this.parts = parts;
+        }
+
+        @Override
+        public Hits evaluate(LinguisticIndex index) {
+            Hits anchors = parts.get(0).evaluate(index);
+            for (int gap = 1; gap < parts.size() && anchors.size > 0; gap++) {
+                anchors = followedBy(anchors, parts.get(gap).evaluate(index), gap);
+            }
+            return anchors;
+        }
+    }
+
+    private static final class Near implements Node {
+        private final Node left;
+        private final Node right;
+        private final int distance;
+
+        Near(Node left, Node right, int distance) {
+            this.left = left;
+            this.right = right;
+            this.distance = distance;
+        }
+
+        @Override
+        public Hits evaluate(LinguisticIndex index) {
+            Hits a = left.evaluate(index);
+            Hits b = right.evaluate(index);
+            return union(within(a, b, distance), within(b, a, distance));
+        }
+    }
+
+    private static final class And implements Node {
+        private final Node left;
+        private final Node right;
+
+        And(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public Hits evaluate(LinguisticIndex index) {
+            Hits a = left.evaluate(index);
+            if (right instanceof Not) {
+                return sameVerse(a, ((Not) right).operand.evaluate(index), false);
+            }
+            Hits b = right.evaluate(index);
+            return union(sameVerse(a, b, true), sameVerse(b, a, true));
+        }
+    }
+
+    private static final class Or implements Node {
+        private final Node left;
+        private final Node right;
+
+        Or(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public Hits evaluate(LinguisticIndex index) {
+            return union(left.evaluate(index), right.evaluate(index));
+        }
+    }
+
+    /**
+     * Only valid as the right operand of {@link And}.
+     */
+    private static final class Not implements Node {
+        private final Node operand;
+
+        Not(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        public Hits evaluate(LinguisticIndex index) {
+            throw new IllegalArgumentException("NOT must follow a term it excludes from");
+        }
+    }
+
+    /**
+     * Tokens sorted by position key, with the keys alongside.
+     */
+    private static final class Hits {
+        final int[] tokens;
+        final long[] keys;
+        final int size;
+
+        Hits(int[] tokens, long[] keys, int size) {
+            this.tokens = tokens;
+            this.keys = keys;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Hits of {@code anchors} with a hit of {@code next} exactly {@code gap}
+     * words later in the same verse.
+     */
+    private static Hits followedBy(Hits anchors, Hits next, int gap) {
+        int[] tokens = new int[anchors.size];
+        long[] keys = new long[anchors.size];
+        int size = 0;
+        int j = 0;
+        for (int i = 0; i < anchors.size; i++) {
+            long wanted = anchors.keys[i] + gap;
+            while (j < next.size && next.keys[j] < wanted) {
+                j++;
+            }
+            if (j < next.size && next.keys[j] == wanted) {
+                tokens[size] = anchors.tokens[i];
+                keys[size++] = anchors.keys[i];
+            }
+        }
+        return new Hits(tokens, keys, size);
+    }
+
+    /**
+     * Hits of {@code hits} with a different hit of {@code other} at most
+     * {@code distance} words away in the same verse.
+     */
+    private static Hits within(Hits hits, Hits other, int distance) {
+        int[] tokens = new int[hits.size];
+        long[] keys = new long[hits.size];
+        int size = 0;
+        int low = 0;
+        for (int i = 0; i < hits.size; i++) {
+            long key = hits.keys[i];
+            while (low < other.size && other.keys[low] < key - distance) {
+                low++;
+            }
+            for (int j = low; j < other.size && other.keys[j] <= key + distance; j++) {
+                if (other.keys[j] != key && (other.keys[j] >>> 32) == (key >>> 32)) {
+                    tokens[size] = hits.tokens[i];
+                    keys[size++] = key;
+                    break;
+                }
+            }
+        }
+        return new Hits(tokens, keys, size);
+    }
+
+    /**
+     * Hits of {@code hits} whose verse has ({@code keep}) or lacks a hit of
+     * {@code other}.
+     */
+    private static Hits sameVerse(Hits hits, Hits other, boolean keep) {
+        int[] tokens = new int[hits.size];
+        long[] keys = new long[hits.size];
+        int size = 0;
+        int j = 0;
+        for (int i = 0; i < hits.size; i++) {
+            long verse = hits.keys[i] >>> 32;
+            while (j < other.size && (other.keys[j] >>> 32) < verse) {
+                j++;
+            }
+            boolean present = j < other.size && (other.keys[j] >>> 32) == verse;
+            if (present == keep) {
+                tokens[size] = hits.tokens[i];
+                keys[size++] = hits.keys[i];
+            }
+        }
+        return new Hits(tokens, keys, size);
+    }
+
+    private static Hits union(Hits a, Hits b) {
+        int[] tokens = new int[a.size + b.size];
+        long[] keys = new long[a.size + b.size];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.size || j < b.size) {
+            long key;
+            int token;
+            if (j == b.size || (i < a.size && a.keys[i] <= b.keys[j])) {
+                key = a.keys[i];
+                token = a.tokens[i++];
+            } else {
+                key = b.keys[j];
+                token = b.tokens[j++];
+            }
+            if (size == 0 || keys[size - 1] != key) {
+                tokens[size] = token;
+                keys[size++] = key;
+            }
+        }
+        return new Hits(tokens, keys, size);
+    }
+
+    private static List<String> tokenize(String query) {
+        List<String> tokens = new ArrayList<>();
+        if (query == null) {
+            return tokens;
+        }
+        int i = 0;
+        while (i < query.length()) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(' || c == ')') {
+                tokens.add(String.valueOf(c));
+                i++;
+            } else if (c == '"') {
+                int close = query.indexOf('"', i + 1);
+                if (close < 0) {
+                    throw new IllegalArgumentException("Unterminated phrase in query");
+                }
+                tokens.add(query.substring(i, close + 1));
+                i = close + 1;
+            } else {
+                int start = i;
+                while (i < query.length() && !Character.isWhitespace(query.charAt(i))
+                        && "()\"".indexOf(query.charAt(i)) < 0) {
+                    i++;
+                }
+                tokens.add(query.substring(start, i));
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Recursive-descent parser; precedence from loosest to tightest is OR,
+     * AND/NOT, NEAR.
+     */
+    private static final class Parser {
+        private final List<String> tokens;
+        private int next;
+
+        Parser(List<String> tokens) {
+            this.tokens = tokens;
+        }
+
+        boolean hasMore() {
+            return next < tokens.size();
+        }
+
+        String peek() {
+            return tokens.get(next);
+        }
+
+        Node parseOr() {
+            Node node = parseAnd();
+            while (hasMore() && peek().equals("OR")) {
+                next++;
+                node = new Or(node, parseAnd());
+            }
+            return node;
+        }
+
+        private Node parseAnd() {
+            Node node = parseNot();
+            while (hasMore() && !peek().equals("OR") && !peek().equals(")")) {
+                if (peek().equals("AND")) {
+                    next++;
+                }
+                Node right = parseNot();
+                if (node instanceof Not) {
+                    throw new IllegalArgumentException("NOT must follow a term it excludes from");
+                }
+                node = new And(node, right);
+            }
+            return node;
+        }
+
+        private Node parseNot() {
+            if (hasMore() && peek().equals("NOT")) {
+                next++;
+                return new Not(parseNear());
+            }
+            return parseNear();
+        }
+
+        private Node parseNear() {
+            Node node = parsePrimary();
+            while (hasMore() && (peek().equals("NEAR") || peek().startsWith("NEAR/"))) {
+                int distance = nearDistance(tokens.get(next++));
+                node = new Near(node, parsePrimary(), distance);
+            }
+            return node;
+        }
+
+        private Node parsePrimary() {
+            if (!hasMore()) {
+                throw new IllegalArgumentException("Query ends where a term was expected");
+            }
+            String token = tokens.get(next++);
+            if (token.equals("(")) {
+                Node inner = parseOr();
+                if (!hasMore() || !peek().equals(")")) {
+                    throw new IllegalArgumentException("Missing ')' in query");
+                }
+                next++;
+                return inner;
+            }
+            if (token.startsWith("\"")) {
+                List<Node> parts = new ArrayList<>();
+                for (String word : token.substring(1, token.length() - 1).trim().split("\\s+")) {
+                    if (!word.isEmpty()) {
+                        parts.add(term(word));
+                    }
+                }
+                if (parts.isEmpty()) {
+                    throw new IllegalArgumentException("Empty phrase in query");
+                }
+                return parts.size() == 1 ? parts.get(0) : new Phrase(parts);
+            }
+            if (token.equals(")") || token.equals("AND") || token.equals("OR") || token.equals("NOT")
+                    || token.startsWith("NEAR")) {
+                throw new IllegalArgumentException("Unexpected '" + token + "' in query");
+            }
+            return term(token);
+        }
+
+        private static int nearDistance(String operator) {
+            if (operator.equals("NEAR")) {
+                return DEFAULT_NEAR_DISTANCE;
+            }
+            try {
+                int distance = Integer.parseInt(operator.substring("NEAR/".length()));
+                if (distance > 0) {
+                    return distance;
+                }
+            } catch (NumberFormatException ignored) {
+                // reported below
+            }
+            throw new IllegalArgumentException("Invalid proximity operator: " + operator);
+        }
+
+        private static Term term(String word) {
+            LinguisticSearchMode mode = LinguisticSearchMode.TOKEN;
+            String value = word;
+            int colon = word.indexOf(':');
+            if (colon > 0) {
+                mode = field(word.substring(0, colon));
+                value = word.substring(colon + 1);
+            }
+            String key = ArabicTextUtils.normalizeToken(value);
+            if (key.isEmpty()) {
+                throw new IllegalArgumentException("Empty term in query: " + word);
+            }
+            return new Term(mode, key);
+        }
+
+        private static LinguisticSearchMode field(String name) {
+            switch (name.toLowerCase(Locale.ROOT)) {
+                case "token":
+                case "form":
+                    return LinguisticSearchMode.TOKEN;
+                case "lemma":
+                    return LinguisticSearchMode.LEMMA;
+                case "root":
+                    return LinguisticSearchMode.ROOT;
+                case "segment":
+                    return LinguisticSearchMode.SEGMENT;
+                default:
+                    throw new IllegalArgumentException("Unknown field in query: " + name);
+            }
+        }
+    }
+}
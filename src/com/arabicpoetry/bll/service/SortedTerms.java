@@ -0,0 +1,305 @@
+package com.arabicpoetry.bll.service;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable sorted view of the terms one index has postings for. Term ids
+ * are kept twice: in term order, so prefix patterns map to a contiguous
+ * range, and in reversed-term order, so suffix patterns do too. Other
+ * wildcard patterns scan the narrowest range their literal head or tail
+ * allows. Terms are ordered by {@link String#compareTo(String)}; index keys
+ * are normalized Arabic letters and digits, which have no case, so this is
+ * also the case-insensitive order the browse lists always used.
+ */
+final class SortedTerms {
+    static final char ANY_RUN = '*';
+    static final char ANY_CHAR = '?';
+
+    private final TermDictionary terms;
+    private final int[] byTerm;
+    private final int[] bySuffix;
+
+    private SortedTerms(TermDictionary terms, int[] byTerm, int[] bySuffix) {
+        this.terms = terms;
+        this.byTerm = byTerm;
+        this.bySuffix = bySuffix;
+    }
+
+    /**
+     * Sorted terms of the ids that have postings in {@code postings}.
+     */
+    static SortedTerms of(TermDictionary terms, byte[][] postings) {
+        String[] forward = new String[postings.length];
+        int count = 0;
+        for (int id = 0; id < postings.length; id++) {
+            if (postings[id] != null) {
+                forward[count++] = terms.term(id);
+            }
+        }
+        // Sorting the strings themselves is much cheaper than sorting boxed
+        // ids through the dictionary; ids are looked up again afterwards.
+        String[] backward = new String[count];
+        for (int i = 0; i < count; i++) {
+            backward[i] = reverse(forward[i]);
+        }
+        Arrays.sort(forward, 0, count);
+        Arrays.sort(backward);
+        int[] byTerm = new int[count];
+        int[] bySuffix = new int[count];
+        for (int i = 0; i < count; i++) {
+            byTerm[i] = terms.id(forward[i]);
+            bySuffix[i] = terms.id(reverse(backward[i]));
+        }
+        return new SortedTerms(terms, byTerm, bySuffix);
+    }
+
+    /**
+     * Sorted terms after an edit that changed the postings of the
+     * {@code touched} ids: ids whose postings appeared are merged in and ids
+     * whose postings disappeared are dropped, without re-sorting the rest.
+     */
+    SortedTerms edit(TermDictionary editedTerms, byte[][] basePostings, byte[][] editedPostings, BitSet touched) {
+        BitSet dropped = new BitSet();
+        int[] appeared = new int[touched.cardinality()];
+        int count = 0;
+        for (int id = touched.nextSetBit(0); id >= 0; id = touched.nextSetBit(id + 1)) {
+            boolean before = id < basePostings.length && basePostings[id] != null;
+            boolean after = id < editedPostings.length && editedPostings[id] != null;
+            if (before && !after) {
+                dropped.set(id);
+            } else if (!before && after) {
+                appeared[count++] = id;
+            }
+        }
+        if (dropped.isEmpty() && count == 0) {
+            return editedTerms == terms ? this : new SortedTerms(editedTerms, byTerm, bySuffix);
+        }
+        appeared = Arrays.copyOf(appeared, count);
+        Comparator<Integer> termOrder = byTerm(editedTerms);
+        Comparator<Integer> suffixOrder = bySuffix(editedTerms);
+        return new SortedTerms(editedTerms,
+                merge(byTerm, dropped, sort(appeared.clone(), termOrder), termOrder),
+                merge(bySuffix, dropped, sort(appeared, suffixOrder), suffixOrder));
+    }
+
+    int size() {
+        return byTerm.length;
+    }
+
+    /**
+     * All terms in order, as a read-only view.
+     */
+    List<String> asList() {
+        return view(byTerm, 0, byTerm.length);
+    }
+
+    /**
+     * Terms matching {@code pattern}, in term order. {@code *} stands for any
+     * run of characters and {@code ?} for one character; a pattern without
+     * wildcards matches itself only.
+     */
+    List<String> find(String pattern) {
+        int firstWildcard = firstWildcard(pattern);
+        if (firstWildcard < 0) {
+            int at = lowerBound(byTerm, pattern, false);
+            boolean found = at < byTerm.length && terms.term(byTerm[at]).equals(pattern);
+            return found ? view(byTerm, at, at + 1) : Collections.emptyList();
+        }
+        String head = pattern.substring(0, firstWildcard);
+        int lastWildcard = lastWildcard(pattern);
+        String tail = pattern.substring(lastWildcard + 1);
+        boolean onlyHead = lastWildcard == firstWildcard && pattern.charAt(firstWildcard) == ANY_RUN
+                && tail.isEmpty();
+        boolean onlyTail = lastWildcard == firstWildcard && pattern.charAt(firstWildcard) == ANY_RUN
+                && head.isEmpty();
+
+        if (onlyHead || head.length() >= tail.length()) {
+            int from = lowerBound(byTerm, head, false);
+            int to = lowerBound(byTerm, head + Character.MAX_VALUE, false);
+            if (onlyHead) {
+                return view(byTerm, from, to);
+            }
+            return filter(byTerm, from, to, pattern, false);
+        }
+        String reversedTail = reverse(tail);
+        int from = lowerBound(bySuffix, reversedTail, true);
+        int to = lowerBound(bySuffix, reversedTail + Character.MAX_VALUE, true);
+        return filter(bySuffix, from, to, onlyTail ? null : pattern, true);
+    }
+
+    static boolean hasWildcard(String pattern) {
+        return firstWildcard(pattern) >= 0;
+    }
+
+    /**
+     * Glob match with {@code *} and {@code ?}, backtracking only to the most
+     * recent {@code *}.
+     */
+    static boolean matches(String pattern, String text) {
+        int p = 0;
+        int t = 0;
+        int star = -1;
+        int resume = 0;
+        while (t < text.length()) {
+            if (p < pattern.length() && (pattern.charAt(p) == ANY_CHAR || pattern.charAt(p) == text.charAt(t))) {
+                p++;
+                t++;
+            } else if (p < pattern.length() && pattern.charAt(p) == ANY_RUN) {
+                star = p++;
+                resume = t;
+            } else if (star >= 0) {
+                p = star + 1;
+                t = ++resume;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == ANY_RUN) {
+            p++;
+        }
+        return p == pattern.length();
+    }
+
+    private List<String> filter(int[] ids, int from, int to, String pattern, boolean resort) {
+        int[] kept = new int[to - from];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (pattern == null || matches(pattern, terms.term(ids[i]))) {
+                kept[count++] = ids[i];
+            }
+        }
+        kept = Arrays.copyOf(kept, count);
+        if (resort) {
+            kept = sort(kept, byTerm(terms));
+        }
+        return view(kept, 0, count);
+    }
+
+    /**
+     * First index in {@code ids} whose term (or reversed term) is not less
+     * than {@code key}.
+     */
+    private int lowerBound(int[] ids, String key, boolean reversed) {
+        int low = 0;
+        int high = ids.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            String term = terms.term(ids[mid]);
+            int cmp = reversed ? compareReversed(term, key) : term.compareTo(key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private List<String> view(int[] ids, int from, int to) {
+        return new AbstractList<>() {
+            @Override
+            public String get(int index) {
+                return terms.term(ids[from + index]);
+            }
+
+            @Override
+            public int size() {
+                return to - from;
+            }
+        };
+    }
+
+    private static int[] merge(int[] base, BitSet dropped, int[] added, Comparator<Integer> order) {
+        int[] merged = new int[base.length + added.length];
+        int size = 0;
+        int j = 0;
+        for (int id : base) {
+            if (dropped.get(id)) {
+                continue;
+            }
+            while (j < added.length && order.compare(added[j], id) < 0) {
+                merged[size++] = added[j++];
+            }
+            merged[size++] = id;
+        }
+        while (j < added.length) {
+            merged[size++] = added[j++];
+        }
+        return Arrays.copyOf(merged, size);
+    }
+
+    private static int[] sort(int[] ids, Comparator<Integer> order) {
+        Integer[] boxed = new Integer[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            boxed[i] = ids[i];
+        }
+        Arrays.sort(boxed, order);
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = boxed[i];
+        }
+        return ids;
+    }
+
+    private static Comparator<Integer> byTerm(TermDictionary terms) {
+        return (a, b) -> terms.term(a).compareTo(terms.term(b));
+    }
+
+    private static Comparator<Integer> bySuffix(TermDictionary terms) {
+        return (a, b) -> compareBackwards(terms.term(a), terms.term(b));
+    }
+
+    private static int compareBackwards(String left, String right) {
+        int length = Math.min(left.length(), right.length());
+        for (int i = 1; i <= length; i++) {
+            char l = left.charAt(left.length() - i);
+            char r = right.charAt(right.length() - i);
+            if (l != r) {
+                return l - r;
+            }
+        }
+        return left.length() - right.length();
+    }
+
+    /**
+     * Compare {@code term} read backwards with {@code reversedKey} read
+     * forwards, without building the reversed term.
+     */
+    private static int compareReversed(String term, String reversedKey) {
+        int length = Math.min(term.length(), reversedKey.length());
+        for (int i = 0; i < length; i++) {
+            char c = term.charAt(term.length() - 1 - i);
+            char k = reversedKey.charAt(i);
+            if (c != k) {
+                return c - k;
+            }
+        }
+        return term.length() - reversedKey.length();
+    }
+
+    private static String reverse(String text) {
+        return new StringBuilder(text).reverse().toString();
+    }
+
+    private static int firstWildcard(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if (pattern.charAt(i) == ANY_RUN || pattern.charAt(i) == ANY_CHAR) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastWildcard(String pattern) {
+        for (int i = pattern.length() - 1; i >= 0; i--) {
+            if (pattern.charAt(i) == ANY_RUN || pattern.charAt(i) == ANY_CHAR) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
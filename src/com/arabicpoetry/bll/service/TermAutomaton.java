@@ -0,0 +1,143 @@
+package com.arabicpoetry.bll.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aho-Corasick automaton over a list of folded terms. One left-to-right pass
+ * over a {@link FoldedText} reports every occurrence of every term, including
+ * overlapping ones, in time linear in the text length plus the number of
+ * hits.
+ */
+final class TermAutomaton {
+    private static final int[] NO_OUTPUTS = new int[0];
+
+    // Per state: sorted edge labels and their target states.
+    private final char[][] labels;
+    private final int[][] targets;
+    private final int[] failure;
+    // Per state: indices of the terms ending here, including via failure links.
+    private final int[][] outputs;
+    private final int[] termLengths;
+
+    /**
+     * Receives one hit: the term index and its [start, end) range in folded
+     * coordinates.
+     */
+    @FunctionalInterface
+    interface HitConsumer {
+        void accept(int term, int start, int end);
+    }
+
+    private TermAutomaton(char[][] labels, int[][] targets, int[] failure, int[][] outputs, int[] termLengths) {
+        this.labels = labels;
+        this.targets = targets;
+        this.failure = failure;
+        this.outputs = outputs;
+        this.termLengths = termLengths;
+    }
+
+    /**
+     * Automaton over non-empty, already folded terms; hits report positions
+     * in {@code terms}.
+     */
+    static TermAutomaton of(List<String> terms) {
+        List<TreeMap<Character, Integer>> edges = new ArrayList<>();
+        List<List<Integer>> ends = new ArrayList<>();
+        edges.add(new TreeMap<>());
+        ends.add(new ArrayList<>());
+        int[] termLengths = new int[terms.size()];
+        for (int term = 0; term < terms.size(); term++) {
+            String text = terms.get(term);
+            termLengths[term] = text.length();
+            int state = 0;
+            for (int i = 0; i < text.length(); i++) {
+                Integer next = edges.get(state).get(text.charAt(i));
+                if (next == null) {
+                    next = edges.size();
+                    edges.get(state).put(text.charAt(i), next);
+                    edges.add(new TreeMap<>());
+                    ends.add(new ArrayList<>());
+                }
+                state = next;
+            }
+            ends.get(state).add(term);
+        }
+
+        int states = edges.size();
+        char[][] labels = new char[states][];
+        int[][] targets = new int[states][];
+        for (int state = 0; state < states; state++) {
+            labels[state] = new char[edges.get(state).size()];
+            targets[state] = new int[labels[state].length];
+            int i = 0;
+            for (Map.Entry<Character, Integer> edge : edges.get(state).entrySet()) {
+                labels[state][i] = edge.getKey();
+                targets[state][i++] = edge.getValue();
+            }
+        }
+
+        // Breadth-first, so a state's failure target is finished before it.
+        int[] failure = new int[states];
+        int[][] outputs = new int[states][];
+        outputs[0] = NO_OUTPUTS;
+        Deque<Integer> queue = new ArrayDeque<>();
+        queue.add(0);
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (int i = 0; i < labels[state].length; i++) {
+                int child = targets[state][i];
+                int fallback = 0;
+                if (state != 0) {
+                    fallback = failure[state];
+                    int next;
+                    while ((next = step(labels, targets, fallback, labels[state][i])) < 0 && fallback != 0) {
+                        fallback = failure[fallback];
+                    }
+                    fallback = Math.max(next, 0);
+                }
+                failure[child] = fallback;
+                outputs[child] = merge(ends.get(child), outputs[fallback]);
+                queue.add(child);
+            }
+        }
+        return new TermAutomaton(labels, targets, failure, outputs, termLengths);
+    }
+
+    void scan(FoldedText text, HitConsumer consumer) {
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            int next;
+            while ((next = step(labels, targets, state, c)) < 0 && state != 0) {
+                state = failure[state];
+            }
+            state = Math.max(next, 0);
+            for (int term : outputs[state]) {
+                consumer.accept(term, i + 1 - termLengths[term], i + 1);
+            }
+        }
+    }
+
+    private static int step(char[][] labels, int[][] targets, int state, char c) {
+        int at = Arrays.binarySearch(labels[state], c);
+        return at < 0 ? -1 : targets[state][at];
+    }
+
+    private static int[] merge(List<Integer> own, int[] inherited) {
+        if (own.isEmpty()) {
+            return inherited;
+        }
+        int[] merged = new int[own.size() + inherited.length];
+        for (int i = 0; i < own.size(); i++) {
+            merged[i] = own.get(i);
+        }
+        System.arraycopy(inherited, 0, merged, own.size(), inherited.length);
+        return merged;
+    }
+}
@@ -0,0 +1,108 @@
+package com.arabicpoetry.bll.service;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.arabicpoetry.dal.dao.TermCountDAO;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Stores the term counts of published {@link LinguisticIndex} snapshots in
+ * the database, where {@link FrequencyService} can add them up without an
+ * index. A rebuilt snapshot replaces everything stored; an edited one adds
+ * the terms its dictionary gained and replaces the counts of the poems it
+ * edited. Writes run one at a time in the order they were submitted, so the
+ * tables follow the published snapshots; after a failed write the next one
+ * replaces everything.
+ */
+final class TermCountWriter {
+    private static final Logger LOGGER = LogManager.getLogger(TermCountWriter.class);
+
+    private final DaoSource daoSource;
+    private final Executor executor;
+    // Confined to the executor, like storedTerms.
+    private TermCountDAO dao;
+    // Dictionary terms stored so far, or -1 until a full write succeeds.
+    private int storedTerms = -1;
+
+    TermCountWriter(DaoSource daoSource, Executor executor) {
+        this.daoSource = daoSource;
+        this.executor = executor;
+    }
+
+    /**
+     * A writer on a daemon thread of its own, opening its DAO on first use.
+     */
+    static TermCountWriter inBackground(DaoSource daoSource) {
+        ExecutorService executor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "term-count-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        return new TermCountWriter(daoSource, executor);
+    }
+
+    /**
+     * Replace every stored count with those of {@code snapshot}.
+     */
+    void replaceAll(LinguisticIndex snapshot) {
+        executor.execute(() -> write(snapshot, null));
+    }
+
+    /**
+     * Store the counts of {@code poemIds} in {@code snapshot}, which was
+     * edited from the last snapshot submitted.
+     */
+    void replacePoems(LinguisticIndex snapshot, Collection<Integer> poemIds) {
+        List<Integer> edited = new ArrayList<>(poemIds);
+        executor.execute(() -> write(snapshot, edited));
+    }
+
+    private void write(LinguisticIndex snapshot, List<Integer> poemIds) {
+        try {
+            if (dao == null) {
+                dao = daoSource.open();
+            }
+            List<String> terms = snapshot.dictionaryTerms();
+            if (poemIds == null || storedTerms < 0) {
+                storedTerms = -1;
+                dao.replaceAll(terms, snapshot.poemTermCounts(null));
+            } else {
+                dao.insertTerms(terms, storedTerms);
+                dao.replacePoems(poemIds, snapshot.poemTermCounts(poemIds));
+            }
+            storedTerms = terms.size();
+        } catch (SQLException | RuntimeException ex) {
+            LOGGER.warn("Unable to store term counts; the next write replaces them all", ex);
+            storedTerms = -1;
+            close();
+        }
+    }
+
+    // Drops the DAO after a failure, so the next write starts on a new connection.
+    private void close() {
+        if (dao == null) {
+            return;
+        }
+        try {
+            dao.close();
+        } catch (SQLException ex) {
+            LOGGER.debug("Unable to close term count connection", ex);
+        }
+        dao = null;
+    }
+
+    /**
+     * Opens the DAO the writer stores counts through.
+     */
+    @FunctionalInterface
+    interface DaoSource {
+        TermCountDAO open() throws SQLException;
+    }
+}
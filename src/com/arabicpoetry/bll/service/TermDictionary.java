@@ -0,0 +1,72 @@
+package com.arabicpoetry.bll.service;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable mapping between normalized index terms and dense int ids, shared
+ * by the form/lemma/root/segment postings of one {@link LinguisticIndex}
+ * snapshot. Each distinct term string is held once no matter how many
+ * indices or postings refer to it.
+ */
+final class TermDictionary {
+    static final TermDictionary EMPTY = new TermDictionary(new HashMap<>(), new String[0]);
+
+    private final Map<String, Integer> ids;
+    private final String[] terms;
+
+    private TermDictionary(Map<String, Integer> ids, String[] terms) {
+        this.ids = ids;
+        this.terms = terms;
+    }
+
+    /**
+     * Dictionary over {@code terms}, assigning ids in list order.
+     */
+    static TermDictionary of(List<String> terms) {
+        return EMPTY.plus(terms);
+    }
+
+    /**
+     * Id of the term, or {@code -1} if it is not in the dictionary.
+     */
+    int id(String term) {
+        Integer id = ids.get(term);
+        return id == null ? -1 : id;
+    }
+
+    String term(int id) {
+        return terms[id];
+    }
+
+    int size() {
+        return terms.length;
+    }
+
+    /**
+     * Read-only view of the terms, each at the position of its id.
+     */
+    List<String> asList() {
+        return Collections.unmodifiableList(Arrays.asList(terms));
+    }
+
+    /**
+     * New dictionary with {@code added} appended after the existing terms;
+     * existing ids are unchanged. Callers must not pass terms already present.
+     */
+    TermDictionary plus(List<String> added) {
+        if (added.isEmpty()) {
+            return this;
+        }
+        Map<String, Integer> extendedIds = new HashMap<>(ids);
+        String[] extended = Arrays.copyOf(terms, terms.length + added.size());
+        for (int i = 0; i < added.size(); i++) {
+            extended[terms.length + i] = added.get(i);
+            extendedIds.put(added.get(i), terms.length + i);
+        }
+        return new TermDictionary(extendedIds, extended);
+    }
+}
@@ -0,0 +1,124 @@
+package com.arabicpoetry.bll.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.arabicpoetry.model.linguistics.FrequencyEstimate;
+import com.arabicpoetry.util.CountMinSketch;
+import com.arabicpoetry.util.SpaceSaving;
+
+/**
+ * Corpus-wide term counts of one {@link LinguisticIndex} snapshot in fixed
+ * memory: a {@link CountMinSketch} and a {@link SpaceSaving} summary per
+ * index. They count what the frequency lists count.
+ *
+ * <p>A full build feeds each term's corpus-wide count once. An edit copies
+ * the sketches of the base snapshot and adds or removes the changed verses'
+ * terms one token at a time, so a published snapshot's sketches never
+ * change. Removals loosen the heavy-hitter bound, so once they exceed a
+ * tenth of an index's occurrences the edit recounts that index from its
+ * term counts.</p>
+ */
+final class TermSketches {
+    /**
+     * Count-Min width and depth and the number of heavy hitters kept per
+     * index.
+     */
+    record Settings(int width, int depth, int capacity) {
+    }
+
+    // An index is recounted once more than total / RECOUNT_SHARE
+    // occurrences were removed from it.
+    private static final int RECOUNT_SHARE = 10;
+
+    private final Settings settings;
+    private final CountMinSketch[] sketches;
+    private final SpaceSaving[] heavyHitters;
+
+    TermSketches(Settings settings, int indexCount) {
+        this.settings = settings;
+        sketches = new CountMinSketch[indexCount];
+        heavyHitters = new SpaceSaving[indexCount];
+        for (int index = 0; index < indexCount; index++) {
+            clear(index);
+        }
+    }
+
+    private TermSketches(TermSketches other) {
+        settings = other.settings;
+        sketches = new CountMinSketch[other.sketches.length];
+        heavyHitters = new SpaceSaving[other.heavyHitters.length];
+        for (int index = 0; index < sketches.length; index++) {
+            sketches[index] = other.sketches[index].copy();
+            heavyHitters[index] = other.heavyHitters[index].copy();
+        }
+    }
+
+    void add(int index, String term, int count) {
+        sketches[index].add(term, count);
+        heavyHitters[index].add(term, count);
+    }
+
+    void remove(int index, String term, int count) {
+        sketches[index].add(term, -count);
+        heavyHitters[index].remove(term, count);
+    }
+
+    TermSketches copy() {
+        return new TermSketches(this);
+    }
+
+    /**
+     * Whether so many occurrences were removed from {@code index} that it
+     * should be cleared and counted again.
+     */
+    boolean needsRecount(int index) {
+        SpaceSaving summary = heavyHitters[index];
+        return summary.getRemoved() > summary.getTotal() / RECOUNT_SHARE;
+    }
+
+    /**
+     * Forget every count of {@code index}.
+     */
+    void clear(int index) {
+        sketches[index] = new CountMinSketch(settings.width(), settings.depth());
+        heavyHitters[index] = new SpaceSaving(settings.capacity());
+    }
+
+    /**
+     * The {@code k} monitored terms of {@code index} with the highest
+     * estimates, at most the heavy-hitter capacity. A term's estimate is the
+     * lower of its Count-Min and Space-Saving counts, both upper bounds; its
+     * lower bound is the Space-Saving count less that counter's error.
+     */
+    List<FrequencyEstimate> top(int index, int k) {
+        CountMinSketch sketch = sketches[index];
+        SpaceSaving summary = heavyHitters[index];
+        List<FrequencyEstimate> estimates = new ArrayList<>();
+        for (String term : summary.items()) {
+            long count = summary.count(term);
+            estimates.add(new FrequencyEstimate(term, Math.min(count, sketch.estimate(term)),
+                    Math.max(0, count - summary.error(term))));
+        }
+        estimates.sort(null);
+        return new ArrayList<>(estimates.subList(0, Math.min(Math.max(0, k), estimates.size())));
+    }
+
+    /**
+     * Occurrences counted in {@code index}.
+     */
+    long total(int index) {
+        return sketches[index].getTotal();
+    }
+
+    /**
+     * Most any estimate of {@code index} overcounts by, and most
+     * occurrences an unlisted term can have: the Space-Saving bound, at most
+     * {@code total / capacity} until terms are removed. The Count-Min
+     * estimate only tightens single counts; its own bound holds per term
+     * with a probability, not for all listed terms.
+     */
+    long errorBound(int index) {
+        return heavyHitters[index].errorBound();
+    }
+}
@@ -0,0 +1,425 @@
+package com.arabicpoetry.bll.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable character-trigram index over verse texts, used to narrow STRING
+ * and REGEX searches down to the verses that can possibly match before the
+ * real matcher runs.
+ *
+ * <p>Trigrams are taken from the {@link FoldedText folded} verse text.
+ * Because any substring of a verse folds to a substring of the folded verse,
+ * the index never rules out a verse the matcher would accept. Each trigram
+ * maps to the ascending slots of the verses containing it, encoded like the
+ * token postings of {@link LinguisticIndex}.</p>
+ */
+final class TrigramIndex {
+    static final TrigramIndex EMPTY = new TrigramIndex(new long[0], new byte[0][]);
+
+    // Sorted trigram keys, three UTF-16 units packed into the low 48 bits.
+    private final long[] grams;
+    // Encoded slots per gram; null once every verse containing it is removed.
+    private final byte[][] postings;
+
+    private TrigramIndex(long[] grams, byte[][] postings) {
+        this.grams = grams;
+        this.postings = postings;
+    }
+
+    /**
+     * Ascending slots of the verses whose text contains every trigram of every
+     * literal, or {@code null} if the literals are too short to yield any
+     * trigram and the caller has to scan all verses.
+     */
+    int[] candidates(List<String> literals) {
+        long[] required = new long[0];
+        for (String literal : literals) {
+            long[] literalGrams = distinctTrigrams(literal);
+            int offset = required.length;
+            required = Arrays.copyOf(required, offset + literalGrams.length);
+            System.arraycopy(literalGrams, 0, required, offset, literalGrams.length);
+        }
+        if (required.length == 0) {
+            return null;
+        }
+        byte[][] lists = new byte[required.length][];
+        for (int i = 0; i < required.length; i++) {
+            int at = Arrays.binarySearch(grams, required[i]);
+            if (at < 0 || postings[at] == null) {
+                return new int[0];
+            }
+            lists[i] = postings[at];
+        }
+        // Shortest encodings first keeps the running intersection small.
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.length, b.length));
+        int[] result = LinguisticIndex.decode(lists[0]);
+        for (int i = 1; i < lists.length && result.length > 0; i++) {
+            result = intersect(result, LinguisticIndex.decode(lists[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Ascending slots of the verses that may contain at least one of
+     * {@code terms}, or {@code null} if some term is too short to yield a
+     * trigram and the caller has to scan all verses.
+     */
+    int[] candidatesForAny(List<String> terms) {
+        BitSet union = new BitSet();
+        for (String term : terms) {
+            int[] slots = candidates(Collections.singletonList(term));
+            if (slots == null) {
+                return null;
+            }
+            for (int slot : slots) {
+                union.set(slot);
+            }
+        }
+        return union.stream().toArray();
+    }
+
+    Editor edit() {
+        return new Editor(this);
+    }
+
+    /**
+     * Literals that every match of {@code regex} must contain, for use with
+     * {@link #candidates(List)}. Only plain character runs outside groups,
+     * classes and optional quantifiers are collected; an empty list means no
+     * requirement could be derived (top-level alternation, inline flags, or
+     * no literal at all) and every verse has to be scanned.
+     */
+    static List<String> requiredLiterals(String regex) {
+        if (regex == null) {
+            return Collections.emptyList();
+        }
+        List<String> literals = new ArrayList<>();
+        StringBuilder run = new StringBuilder();
+        int i = 0;
+        int length = regex.length();
+        while (i < length) {
+            char c = regex.charAt(i);
+            switch (c) {
+                case '\\': {
+                    if (i + 1 >= length) {
+                        return Collections.emptyList();
+                    }
+                    char escaped = regex.charAt(i + 1);
+                    if (escaped == 'Q') {
+                        int end = regex.indexOf("\\E", i + 2);
+                        run.append(regex, i + 2, end < 0 ? length : end);
+                        i = end < 0 ? length : end + 2;
+                    } else if (!Character.isLetterOrDigit(escaped)) {
+                        run.append(escaped);
+                        i += 2;
+                    } else {
+                        flush(run, literals);
+                        i = skipEscape(regex, i + 1);
+                    }
+                    break;
+                }
+                case '[':
+                    flush(run, literals);
+                    i = skipClass(regex, i);
+                    break;
+                case '(':
+                    if (regex.startsWith("(?", i) && i + 2 < length && ":=!<>".indexOf(regex.charAt(i + 2)) < 0) {
+                        // Inline flags such as (?i) or (?x) change how literals match.
+                        return Collections.emptyList();
+                    }
+                    flush(run, literals);
+                    i = skipGroup(regex, i);
+                    break;
+                case '|':
+                    return Collections.emptyList();
+                case '?':
+                case '*':
+                    dropLast(run);
+                    flush(run, literals);
+                    i++;
+                    break;
+                case '{':
+                    dropLast(run);
+                    flush(run, literals);
+                    int close = regex.indexOf('}', i);
+                    i = close < 0 ? length : close + 1;
+                    break;
+                case '+':
+                case '.':
+                case '^':
+                case '$':
+                    flush(run, literals);
+                    i++;
+                    break;
+                default:
+                    run.append(c);
+                    i++;
+                    break;
+            }
+        }
+        flush(run, literals);
+        return literals;
+    }
+
+    /**
+     * Distinct trigrams of the {@linkplain FoldedText folded} text, sorted.
+     */
+    static long[] distinctTrigrams(String text) {
+        FoldedText folded = FoldedText.of(text);
+        if (folded.length() < 3) {
+            return new long[0];
+        }
+        long[] found = new long[folded.length() - 2];
+        long window = ((long) folded.charAt(0) << 16) | folded.charAt(1);
+        for (int i = 2; i < folded.length(); i++) {
+            window = ((window << 16) | folded.charAt(i)) & 0xFFFFFFFFFFFFL;
+            found[i - 2] = window;
+        }
+        Arrays.sort(found);
+        int distinct = 0;
+        for (int i = 0; i < found.length; i++) {
+            if (distinct == 0 || found[distinct - 1] != found[i]) {
+                found[distinct++] = found[i];
+            }
+        }
+        return Arrays.copyOf(found, distinct);
+    }
+
+    private static int[] intersect(int[] left, int[] right) {
+        int[] result = new int[Math.min(left.length, right.length)];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < left.length && j < right.length) {
+            if (left[i] < right[j]) {
+                i++;
+            } else if (left[i] > right[j]) {
+                j++;
+            } else {
+                result[size++] = left[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    private static void flush(StringBuilder run, List<String> literals) {
+        if (run.length() > 0) {
+            literals.add(run.toString());
+            run.setLength(0);
+        }
+    }
+
+    private static void dropLast(StringBuilder run) {
+        if (run.length() > 0) {
+            run.setLength(run.length() - 1);
+        }
+    }
+
+    /**
+     * Index just past an escape whose letter or digit is at {@code at}.
+     */
+    private static int skipEscape(String regex, int at) {
+        char kind = regex.charAt(at);
+        int next = at + 1;
+        switch (kind) {
+            case 'x':
+                return next < regex.length() && regex.charAt(next) == '{' ? next : Math.min(regex.length(), next + 2);
+            case 'u':
+                return Math.min(regex.length(), next + 4);
+            case 'c':
+                return Math.min(regex.length(), next + 1);
+            case 'k': {
+                int close = regex.indexOf('>', next);
+                return close < 0 ? regex.length() : close + 1;
+            }
+            default:
+                if (Character.isDigit(kind)) {
+                    while (next < regex.length() && Character.isDigit(regex.charAt(next))) {
+                        next++;
+                    }
+                }
+                // \p{..}, \N{..} and \x{..} leave their braces to the '{' branch.
+                return next;
+        }
+    }
+
+    private static int skipClass(String regex, int open) {
+        int depth = 0;
+        int i = open;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i += 2;
+                continue;
+            }
+            if (c == '[') {
+                depth++;
+                i++;
+                if (i < regex.length() && regex.charAt(i) == '^') {
+                    i++;
+                }
+                if (i < regex.length() && regex.charAt(i) == ']') {
+                    i++;
+                }
+                continue;
+            }
+            if (c == ']' && --depth == 0) {
+                return i + 1;
+            }
+            i++;
+        }
+        return regex.length();
+    }
+
+    private static int skipGroup(String regex, int open) {
+        int depth = 0;
+        int i = open;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (regex.startsWith("Q", i + 1)) {
+                    int end = regex.indexOf("\\E", i + 2);
+                    i = end < 0 ? regex.length() : end + 2;
+                } else {
+                    i += 2;
+                }
+                continue;
+            }
+            if (c == '[') {
+                i = skipClass(regex, i);
+                continue;
+            }
+            if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth == 0) {
+                return i + 1;
+            }
+            i++;
+        }
+        return regex.length();
+    }
+
+    /**
+     * Staging area for a full build; mirrors {@link LinguisticIndex.Builder}
+     * so per-chunk builders can be appended in slot order.
+     */
+    static final class Builder {
+        private final Map<Long, LinguisticIndex.IntList> postings = new HashMap<>();
+
+        void add(int slot, String text) {
+            for (long gram : distinctTrigrams(text)) {
+                postings.computeIfAbsent(gram, k -> new LinguisticIndex.IntList()).add(slot);
+            }
+        }
+
+        void append(Builder other, int slotOffset) {
+            for (Map.Entry<Long, LinguisticIndex.IntList> entry : other.postings.entrySet()) {
+                postings.computeIfAbsent(entry.getKey(), k -> new LinguisticIndex.IntList())
+                        .addShifted(entry.getValue(), slotOffset);
+            }
+        }
+
+        TrigramIndex build() {
+            long[] keys = new long[postings.size()];
+            int count = 0;
+            for (Long gram : postings.keySet()) {
+                keys[count++] = gram;
+            }
+            Arrays.sort(keys);
+            byte[][] encoded = new byte[keys.length][];
+            for (int i = 0; i < keys.length; i++) {
+                encoded[i] = postings.get(keys[i]).encode();
+            }
+            return new TrigramIndex(keys, encoded);
+        }
+    }
+
+    /**
+     * Derives a trigram index with some slots removed and new (higher) slots
+     * added, rewriting only the postings of affected trigrams.
+     */
+    static final class Editor {
+        private final TrigramIndex base;
+        private final BitSet removedSlots = new BitSet();
+        private final Map<Long, LinguisticIndex.IntList> touched = new HashMap<>();
+
+        private Editor(TrigramIndex base) {
+            this.base = base;
+        }
+
+        void remove(int slot, String text) {
+            removedSlots.set(slot);
+            for (long gram : distinctTrigrams(text)) {
+                touched.putIfAbsent(gram, null);
+            }
+        }
+
+        void add(int slot, String text) {
+            for (long gram : distinctTrigrams(text)) {
+                LinguisticIndex.IntList slots = touched.get(gram);
+                if (slots == null) {
+                    slots = new LinguisticIndex.IntList();
+                    touched.put(gram, slots);
+                }
+                slots.add(slot);
+            }
+        }
+
+        TrigramIndex build() {
+            if (touched.isEmpty()) {
+                return base;
+            }
+            long[] changed = new long[touched.size()];
+            int count = 0;
+            for (Long gram : touched.keySet()) {
+                changed[count++] = gram;
+            }
+            Arrays.sort(changed);
+
+            long[] keys = new long[base.grams.length + changed.length];
+            byte[][] encoded = new byte[keys.length][];
+            int size = 0;
+            int i = 0;
+            int j = 0;
+            while (i < base.grams.length || j < changed.length) {
+                if (j == changed.length || (i < base.grams.length && base.grams[i] < changed[j])) {
+                    keys[size] = base.grams[i];
+                    encoded[size++] = base.postings[i++];
+                } else {
+                    boolean existing = i < base.grams.length && base.grams[i] == changed[j];
+                    keys[size] = changed[j];
+                    encoded[size++] = rewrite(existing ? base.postings[i] : null, touched.get(changed[j]));
+                    if (existing) {
+                        i++;
+                    }
+                    j++;
+                }
+            }
+            return new TrigramIndex(Arrays.copyOf(keys, size), Arrays.copyOf(encoded, size));
+        }
+
+        private byte[] rewrite(byte[] encoded, LinguisticIndex.IntList added) {
+            int[] existing = encoded == null ? new int[0] : LinguisticIndex.decode(encoded);
+            int addedCount = added == null ? 0 : added.size();
+            int[] merged = new int[existing.length + addedCount];
+            int size = 0;
+            for (int slot : existing) {
+                if (!removedSlots.get(slot)) {
+                    merged[size++] = slot;
+                }
+            }
+            for (int k = 0; k < addedCount; k++) {
+                merged[size++] = added.get(k);
+            }
+            return size == 0 ? null : LinguisticIndex.encode(merged, size);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.arabicpoetry.bll.service;
+
+import com.arabicpoetry.model.Verse;
+
+/**
+ * Describes a committed change to the verses table, published by
+ * {@link VerseService} after the DAO call succeeds.
+ */
+public final class VerseChangeEvent {
+    public enum Type {
+        CREATED,
+        UPDATED,
+        DELETED,
+        POEM_DELETED
+    }
+
+    private final Type type;
+    private final Verse verse;
+    private final int verseId;
+    private final int poemId;
+
+    private VerseChangeEvent(Type type, Verse verse, int verseId, int poemId) {
+        this.type = type;
+        this.verse = verse;
+        this.verseId = verseId;
+        this.poemId = poemId;
+    }
+
+    static VerseChangeEvent created(Verse verse) {
+        return new VerseChangeEvent(Type.CREATED, copyOf(verse), verse.getVerseId(), verse.getPoemId());
+    }
+
+    static VerseChangeEvent updated(Verse verse) {
+        return new VerseChangeEvent(Type.UPDATED, copyOf(verse), verse.getVerseId(), verse.getPoemId());
+    }
+
+    static VerseChangeEvent deleted(int verseId) {
+        return new VerseChangeEvent(Type.DELETED, null, verseId, 0);
+    }
+
+    static VerseChangeEvent poemDeleted(int poemId) {
+        return new VerseChangeEvent(Type.POEM_DELETED, null, 0, poemId);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Snapshot of the verse as written (CREATED/UPDATED only, otherwise null).
+     */
+    public Verse getVerse() {
+        return verse;
+    }
+
+    public int getVerseId() {
+        return verseId;
+    }
+
+    public int getPoemId() {
+        return poemId;
+    }
+
+    /**
+     * A copy of {@code verse} that later changes to it do not reach.
+     */
+    static Verse copyOf(Verse verse) {
+        Verse copy = new Verse(verse.getVerseId(), verse.getPoemId(), verse.getVerseNumber(), verse.getText());
+        copy.setPoemTitle(verse.getPoemTitle());
+        copy.setCreatedAt(verse.getCreatedAt());
+        copy.setUpdatedAt(verse.getUpdatedAt());
+        return copy;
+    }
+}
@@ -0,0 +1,23 @@
+package com.arabicpoetry.bll.service;
+
+import java.util.List;
+
+/**
+ * Callback for services that keep derived structures over the verse table and
+ * want to apply per-verse deltas instead of rebuilding from scratch.
+ */
+@FunctionalInterface
+public interface VerseChangeListener {
+    void verseChanged(VerseChangeEvent event);
+
+    /**
+     * Receive the changes of one {@linkplain VerseService#runBatch batch}, in
+     * the order they were committed. Listeners that can apply them as one
+     * delta override this; by default they are applied one at a time.
+     */
+    default void versesChanged(List<VerseChangeEvent> events) {
+        for (VerseChangeEvent event : events) {
+            verseChanged(event);
+        }
+    }
+}
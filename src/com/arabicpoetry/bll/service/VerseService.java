@@ -7,7 +7,10 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Service class for Verse operations
@@ -16,6 +19,9 @@ import java.util.List;
 public class VerseService {
     private static VerseService instance;
     private VerseDAO verseDAO;
+    private final List<VerseChangeListener> listeners = new CopyOnWriteArrayList<>();
+    // Events held back while the current thread runs a batch.
+    private final ThreadLocal<List<VerseChangeEvent>> batch = new ThreadLocal<>();
     private static final Logger LOGGER = LogManager.getLogger(VerseService.class);
 
     // Private constructor for Singleton pattern
@@ -67,6 +73,7 @@ public class VerseService {
         validateVerse(verse);
         verseDAO.create(verse);
         LOGGER.info("Created verse {}", verse.getVerseNumber());
+        publish(VerseChangeEvent.created(verse));
     }
 
     /**
@@ -76,6 +83,7 @@ public class VerseService {
         validateVerse(verse);
         verseDAO.update(verse);
         LOGGER.info("Updated verse {}", verse.getVerseNumber());
+        publish(VerseChangeEvent.updated(verse));
     }
 
     /**
@@ -84,6 +92,7 @@ public class VerseService {
     public void deleteVerse(int id) throws SQLException {
         verseDAO.delete(id);
         LOGGER.info("Deleted verse id={}", id);
+        publish(VerseChangeEvent.deleted(id));
     }
 
     /**
@@ -92,6 +101,7 @@ public class VerseService {
     public void deleteVersesByPoem(int poemId) throws SQLException {
         verseDAO.deleteByPoem(poemId);
         LOGGER.info("Deleted verses for poem id={}", poemId);
+        publish(VerseChangeEvent.poemDeleted(poemId));
     }
 
     /**
@@ -101,6 +111,80 @@ public class VerseService {
         return verseDAO.search(keyword);
     }
 
+    /**
+     * Register a listener notified after every successful create/update/delete.
+     */
+    public void addVerseChangeListener(VerseChangeListener listener) {
+        if (listener != null && !listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    public void removeVerseChangeListener(VerseChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Run {@code edits} with the change events of this thread held back, then
+     * hand them to every listener at once, so a bulk import costs listeners
+     * one delta rather than one per verse. The events of edits committed
+     * before a failure are still delivered. Nested batches join the
+     * outermost one.
+     */
+    public <T> T runBatch(Batch<T> edits) throws Exception {
+        if (batch.get() != null) {
+            return edits.run();
+        }
+        List<VerseChangeEvent> events = new ArrayList<>();
+        batch.set(events);
+        try {
+            return edits.run();
+        } finally {
+            batch.remove();
+            if (!events.isEmpty()) {
+                publish(events);
+            }
+        }
+    }
+
+    /**
+     * Announce that a poem's verses were removed by the database cascade when
+     * the poem itself was deleted.
+     */
+    void publishPoemDeleted(int poemId) {
+        publish(VerseChangeEvent.poemDeleted(poemId));
+    }
+
+    /**
+     * Notify listeners of a committed change. A failing listener is logged and
+     * never fails the edit itself.
+     */
+    private void publish(VerseChangeEvent event) {
+        List<VerseChangeEvent> held = batch.get();
+        if (held != null) {
+            held.add(event);
+            return;
+        }
+        for (VerseChangeListener listener : listeners) {
+            try {
+                listener.verseChanged(event);
+            } catch (RuntimeException ex) {
+                LOGGER.error("Verse change listener failed for {} event", event.getType(), ex);
+            }
+        }
+    }
+
+    private void publish(List<VerseChangeEvent> events) {
+        List<VerseChangeEvent> delivered = Collections.unmodifiableList(events);
+        for (VerseChangeListener listener : listeners) {
+            try {
+                listener.versesChanged(delivered);
+            } catch (RuntimeException ex) {
+                LOGGER.error("Verse change listener failed for a batch of {} events", events.size(), ex);
+            }
+        }
+    }
+
     /**
      * Validate verse data
      */
@@ -117,4 +201,12 @@ public class VerseService {
     void setVerseDAO(VerseDAO verseDAO) {
         this.verseDAO = verseDAO;
     }
+
+    /**
+     * Verse edits run by {@link #runBatch}.
+     */
+    @FunctionalInterface
+    public interface Batch<T> {
+        T run() throws Exception;
+    }
 }
@@ -2,58 +2,309 @@ package com.arabicpoetry.bll.service;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.stream.IntStream;
 
 import com.arabicpoetry.model.Verse;
+import com.arabicpoetry.model.linguistics.FeatureSpace;
+import com.arabicpoetry.model.linguistics.SimilarityBlend;
+import com.arabicpoetry.model.linguistics.SimilarityMode;
+import com.arabicpoetry.model.linguistics.SimilaritySearchResult;
 import com.arabicpoetry.model.linguistics.VerseSimilarity;
+import com.arabicpoetry.util.ArabicTextUtils;
 import com.arabicpoetry.util.NGramUtil;
+import com.arabicpoetry.util.WordAnalyzer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
  * Service for finding similar verses using n-gram based similarity.
+ *
+ * <p>Large candidate sets are scored in partitions on a shared pool of
+ * {@code arabicpoetry.similarity.parallelism} threads (default: one per
+ * core). Interrupting a thread that is searching cancels its search with a
+ * {@link CancellationException}.</p>
+ *
+ * <p>The index is built on a background thread, started by
+ * {@link #startInitialization()} or the first search, in batches so that
+ * {@link #searchTopK} can answer from the verses indexed so far. The other
+ * searches wait until the index is complete.</p>
+ *
+ * <p>Verses can be compared on several {@link FeatureSpace}s: character
+ * n-grams of any length up to {@link NGramUtil#MAX_PACKED_N}, and n-grams of
+ * normalized words or lemmas. The default space, character
+ * {@code arabicpoetry.similarity.ngram}-grams (default 3), is indexed from
+ * the database; any other space is indexed from the verses already in
+ * memory the first time a search uses it, and kept up to date from then on.
+ * A {@link SimilarityBlend} scores verses on a weighted mean of spaces.</p>
  */
 public class VerseSimilarityService {
     private static final int DEFAULT_N = 3;
+    private static final String NGRAM_SIZE_PROPERTY = "arabicpoetry.similarity.ngram";
     private static final double DEFAULT_THRESHOLD = 0.3;
+    // 32 bands of 3 rows put the LSH S-curve's midpoint near 0.3, the
+    // default threshold: about 58% recall at 0.3, 99% at 0.5.
+    private static final int DEFAULT_LSH_BANDS = 32;
+    private static final int DEFAULT_LSH_ROWS = 3;
+    // Orders matches from worst to best: by score, then verses later in
+    // poem and verse number order first, since a full scan over the table
+    // ranks those last among equal scores. Ties do not depend on ordinals,
+    // so an edited index ranks like a rebuilt one.
+    private static final Comparator<ScoredOrdinal> WORST_FIRST = Comparator
+            .comparingDouble((ScoredOrdinal scored) -> scored.score)
+            .thenComparing(Comparator.comparingInt((ScoredOrdinal scored) -> scored.poemId)
+                    .thenComparingInt(scored -> scored.verseNumber)
+                    .thenComparingInt(scored -> scored.ordinal)
+                    .reversed());
+    // Thresholds findTopK tries before the caller's own; see there.
+    private static final double FIRST_TOP_K_LEVEL = 0.8;
+    private static final double LAST_TOP_K_LEVEL = 0.1;
+    private static final String PARALLELISM_PROPERTY = "arabicpoetry.similarity.parallelism";
+    // Fewer candidates than this per thread are not worth handing off.
+    private static final int MIN_PARTITION_SIZE = 4096;
+    private static final int CANCELLATION_CHECK_INTERVAL = 1024;
+    // Verses indexed per hold of the lock while building in the background.
+    private static final int INITIALIZATION_BATCH_SIZE = 2048;
+    private static final Logger LOGGER = LogManager.getLogger(VerseSimilarityService.class);
 
     private static VerseSimilarityService instance;
 
     private final VerseService verseService;
+    // Indexed verses by ordinal, shared by every feature space; null once
+    // removed.
     private final List<Verse> allVerses;
-    private final List<Set<String>> precomputedNGrams;
-    private final int n;
+    private final FeatureSpace defaultSpace;
+    private final SimilarityBlend defaultBlend;
+    // Feature spaces indexed so far, the default one first. Each keeps LSH
+    // buckets for APPROXIMATE searches, built on first use and dropped
+    // whenever the ordinals are reassigned.
+    private final Map<FeatureSpace, FeatureIndex> indexes = new LinkedHashMap<>();
+    private UnaryOperator<String> lemmatizer = VerseSimilarityService::lemmaOf;
+    private int lshBands = DEFAULT_LSH_BANDS;
+    private int lshRows = DEFAULT_LSH_ROWS;
+    private int parallelism = resolveParallelism();
+    // Shared by all queries; created on first parallel search.
+    private ExecutorService scoringPool;
+    // Edits made while the index is being built, applied once it is
+    // complete; null from then on.
+    private List<VerseChangeEvent> pendingChanges = new ArrayList<>();
+    private boolean initializationStarted;
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private volatile int indexedVerses;
+    private volatile int totalVerses;
+    private volatile Exception initializationFailure;
 
     private VerseSimilarityService() throws SQLException {
-        this(DEFAULT_N);
+        this(resolveNGramSize());
     }
 
     private VerseSimilarityService(int n) throws SQLException {
-        this.verseService = VerseService.getInstance();
-        this.n = n;
+        this(VerseService.getInstance(), n);
+    }
+
+    // Visible for tests, which supply a stub VerseService.
+    VerseSimilarityService(VerseService verseService, int n) {
+        this.verseService = verseService;
+        this.defaultSpace = FeatureSpace.characters(n);
+        this.defaultBlend = SimilarityBlend.of(defaultSpace);
         this.allVerses = new ArrayList<>();
-        this.precomputedNGrams = new ArrayList<>();
-        initialize();
+        indexes.put(defaultSpace, new FeatureIndex(defaultSpace, lemmatizer));
+        verseService.addVerseChangeListener(new VerseChangeListener() {
+            @Override
+            public void verseChanged(VerseChangeEvent event) {
+                applyVerseChanges(List.of(event));
+            }
+
+            @Override
+            public void versesChanged(List<VerseChangeEvent> events) {
+                applyVerseChanges(events);
+            }
+        });
     }
 
+    /**
+     * The shared service. Building its index starts in the background; see
+     * {@link #isReady()}.
+     */
     public static synchronized VerseSimilarityService getInstance() throws SQLException {
         if (instance == null) {
             instance = new VerseSimilarityService();
+            instance.startInitialization();
         }
         return instance;
     }
 
-    private void initialize() throws SQLException {
-        List<Verse> verses = verseService.getAllVerses();
-        for (Verse verse : verses) {
-            if (verse.getText() != null && !verse.getText().trim().isEmpty()) {
-                allVerses.add(verse);
-                Set<String> nGrams = NGramUtil.toSet(NGramUtil.charNGrams(verse.getText(), n));
-                precomputedNGrams.add(nGrams);
+    /**
+     * Start building the index on a background thread, unless it is already
+     * being built.
+     */
+    public synchronized void startInitialization() {
+        if (initializationStarted) {
+            return;
+        }
+        initializationStarted = true;
+        Thread builder = new Thread(this::initialize, "verse-similarity-init");
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    /**
+     * Load every verse and index it in batches, releasing the lock between
+     * batches so searches can use the part built so far. Edits that arrive
+     * meanwhile are replayed at the end, after the verses they may change.
+     */
+    private void initialize() {
+        long start = System.nanoTime();
+        try {
+            List<Verse> verses = verseService.getAllVerses();
+            totalVerses = verses.size();
+            for (int from = 0; from < verses.size(); from += INITIALIZATION_BATCH_SIZE) {
+                int to = Math.min(verses.size(), from + INITIALIZATION_BATCH_SIZE);
+                synchronized (this) {
+                    for (Verse verse : verses.subList(from, to)) {
+                        addVerse(verse);
+                    }
+                    indexedVerses = to;
+                }
+            }
+            synchronized (this) {
+                applyChanges(pendingChanges);
+                pendingChanges = null;
             }
+            LOGGER.info("Indexed {} verses for similarity search in {} ms", totalVerses,
+                    (System.nanoTime() - start) / 1_000_000);
+        } catch (SQLException | RuntimeException ex) {
+            initializationFailure = ex;
+            LOGGER.error("Failed to build the verse similarity index", ex);
+        } finally {
+            ready.countDown();
         }
     }
 
+    /**
+     * Whether every verse has been indexed.
+     */
+    public boolean isReady() {
+        return ready.getCount() == 0 && initializationFailure == null;
+    }
+
+    /**
+     * Share of the verses indexed so far, from 0 to 1.
+     */
+    public double getInitializationProgress() {
+        if (isReady()) {
+            return 1.0;
+        }
+        int total = totalVerses;
+        return total == 0 ? 0.0 : (double) indexedVerses / total;
+    }
+
+    /**
+     * Start building the index if needed and wait up to {@code timeout} for
+     * it to complete.
+     *
+     * @return whether the index is complete
+     * @throws SQLException if the verses could not be loaded
+     */
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException, SQLException {
+        startInitialization();
+        boolean done = ready.await(timeout, unit);
+        Exception failure = initializationFailure;
+        if (failure != null) {
+            throw new SQLException("Verse similarity index could not be built", failure);
+        }
+        return done;
+    }
+
+    /**
+     * Wait for the complete index on behalf of a search; an interrupt
+     * cancels the search like one during scoring.
+     */
+    private void awaitIndex() {
+        try {
+            awaitReady(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Similarity search cancelled");
+        } catch (SQLException ex) {
+            throw new IllegalStateException(ex.getMessage(), ex.getCause());
+        }
+    }
+
+    private void addVerse(Verse verse) {
+        if (verse.getText() != null && !verse.getText().trim().isEmpty()) {
+            allVerses.add(verse);
+            for (FeatureIndex index : indexes.values()) {
+                index.add(verse.getText());
+            }
+        }
+    }
+
+    /**
+     * The index of {@code space}, built from the verses in memory if this
+     * is its first use. Removed verses keep their ordinals, without
+     * features.
+     */
+    private FeatureIndex featureIndex(FeatureSpace space) {
+        FeatureIndex index = indexes.get(space);
+        if (index == null) {
+            long start = System.nanoTime();
+            index = new FeatureIndex(space, lemmatizer);
+            for (int i = 0; i < allVerses.size(); i++) {
+                Verse verse = allVerses.get(i);
+                index.add(verse == null ? null : verse.getText());
+                if (verse == null) {
+                    index.remove(i);
+                }
+            }
+            indexes.put(space, index);
+            LOGGER.info("Indexed {} verses by {} in {} ms", allVerses.size(), space,
+                    (System.nanoTime() - start) / 1_000_000);
+        }
+        return index;
+    }
+
+    /**
+     * The query's features in each space of {@code blend}, with the weights
+     * scaled to add up to 1.
+     */
+    private BlendQuery blendQuery(String queryText, SimilarityBlend blend) {
+        Map<FeatureSpace, Double> weights = blend.getWeights();
+        double total = 0;
+        for (double weight : weights.values()) {
+            total += weight;
+        }
+        FeatureIndex[] spaces = new FeatureIndex[weights.size()];
+        long[][] grams = new long[weights.size()][];
+        double[] scaled = new double[weights.size()];
+        int s = 0;
+        for (Map.Entry<FeatureSpace, Double> entry : weights.entrySet()) {
+            spaces[s] = featureIndex(entry.getKey());
+            grams[s] = spaces[s].query(queryText);
+            scaled[s] = entry.getValue() / total;
+            s++;
+        }
+        return new BlendQuery(spaces, grams, scaled);
+    }
+
     /**
      * Find similar verses to the query verse using default threshold.
      */
@@ -68,34 +319,621 @@ public class VerseSimilarityService {
      * @return List of similar verses sorted by similarity score (highest first)
      */
     public List<VerseSimilarity> findSimilar(String queryText, double threshold) {
+        return findSimilar(queryText, threshold, SimilarityMode.EXACT);
+    }
+
+    /**
+     * Find similar verses in the given mode. EXACT returns every verse at or
+     * above the threshold. APPROXIMATE only scores the verses sharing an LSH
+     * bucket with the query, so its cost does not grow with the corpus; the
+     * scores are still exact, but a matching verse is found only with the
+     * probability given by {@link #expectedRecall(double)}. Waits for the
+     * index to be complete.
+     */
+    public List<VerseSimilarity> findSimilar(String queryText, double threshold, SimilarityMode mode) {
+        return findSimilar(queryText, defaultBlend, threshold, mode);
+    }
+
+    /**
+     * Like {@link #findSimilar(String, double, SimilarityMode)}, scoring
+     * verses on {@code blend}. A verse can only reach the threshold if it
+     * does in one of the blended spaces, so exact searches stay exact.
+     */
+    public List<VerseSimilarity> findSimilar(String queryText, SimilarityBlend blend, double threshold,
+                                             SimilarityMode mode) {
+        awaitIndex();
+        return findSimilarNow(queryText, blend, threshold, mode);
+    }
+
+    private synchronized List<VerseSimilarity> findSimilarNow(String queryText, SimilarityBlend blend,
+                                                              double threshold, SimilarityMode mode) {
         if (queryText == null || queryText.trim().isEmpty()) {
             return Collections.emptyList();
         }
 
-        Set<String> queryNGrams = NGramUtil.toSet(NGramUtil.charNGrams(queryText, n));
-        List<VerseSimilarity> results = new ArrayList<>();
+        BlendQuery queryNGrams = blendQuery(queryText, blend);
+        int[] ordinals = candidateOrdinals(queryNGrams, threshold, mode);
+        List<ScoredOrdinal> ranked = new ArrayList<>();
+        for (List<ScoredOrdinal> partition : scorePartitions(ordinals.length,
+                (from, to) -> matches(queryNGrams, ordinals, from, to, threshold))) {
+            ranked.addAll(partition);
+        }
 
-        for (int i = 0; i < allVerses.size(); i++) {
-            double score = NGramUtil.jaccardSimilarity(queryNGrams, precomputedNGrams.get(i));
+        ranked.sort(WORST_FIRST.reversed());
+        List<VerseSimilarity> results = new ArrayList<>(ranked.size());
+        for (ScoredOrdinal scored : ranked) {
+            results.add(new VerseSimilarity(allVerses.get(scored.ordinal), scored.score));
+        }
+        return results;
+    }
+
+    /**
+     * The {@code k} best matches of {@link #findSimilar(String, double, SimilarityMode)},
+     * in the same order, keeping only a k-sized min-heap of matches.
+     *
+     * <p>Exact searches first look only at the verses the n-gram index
+     * finds above a much higher threshold, halving it from
+     * {@value #FIRST_TOP_K_LEVEL} down to {@value #LAST_TOP_K_LEVEL} (but
+     * no closer than twice {@code threshold}) and then {@code threshold}.
+     * Every verse left out at a level scores below it, so once a level
+     * yields k matches no remaining verse can beat them and the search
+     * stops; short pages of a large result set never score the rest of the
+     * corpus. Each partition of the candidates keeps its own heap and the
+     * heaps are merged. Waits for the index to be complete.</p>
+     */
+    public List<VerseSimilarity> findTopK(String queryText, int k, double threshold, SimilarityMode mode) {
+        return findTopK(queryText, defaultBlend, k, threshold, mode);
+    }
+
+    /**
+     * Like {@link #findTopK(String, int, double, SimilarityMode)}, scoring
+     * verses on {@code blend}.
+     */
+    public List<VerseSimilarity> findTopK(String queryText, SimilarityBlend blend, int k, double threshold,
+                                          SimilarityMode mode) {
+        awaitIndex();
+        return findTopKNow(queryText, blend, k, threshold, mode);
+    }
+
+    public List<VerseSimilarity> findTopK(String queryText, int k, double threshold) {
+        return findTopK(queryText, k, threshold, SimilarityMode.EXACT);
+    }
+
+    /**
+     * Like {@link #findTopK(String, int, double, SimilarityMode)}, but waits
+     * at most {@code timeout} for the index; if it is still being built then,
+     * the search covers the verses indexed so far and the result is marked
+     * partial.
+     */
+    public SimilaritySearchResult searchTopK(String queryText, int k, double threshold, SimilarityMode mode,
+                                             long timeout, TimeUnit unit) {
+        return searchTopK(queryText, defaultBlend, k, threshold, mode, timeout, unit);
+    }
+
+    /**
+     * Like {@link #searchTopK(String, int, double, SimilarityMode, long, TimeUnit)},
+     * scoring verses on {@code blend}.
+     */
+    public SimilaritySearchResult searchTopK(String queryText, SimilarityBlend blend, int k, double threshold,
+                                             SimilarityMode mode, long timeout, TimeUnit unit) {
+        try {
+            awaitReady(timeout, unit);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Similarity search cancelled");
+        } catch (SQLException ex) {
+            throw new IllegalStateException(ex.getMessage(), ex.getCause());
+        }
+        synchronized (this) {
+            boolean partial = pendingChanges != null;
+            List<VerseSimilarity> matches = findTopKNow(queryText, blend, k, threshold, mode);
+            return new SimilaritySearchResult(matches, partial, partial ? indexedVerses : totalVerses, totalVerses);
+        }
+    }
+
+    private synchronized List<VerseSimilarity> findTopKNow(String queryText, SimilarityBlend blend, int k,
+                                                           double threshold, SimilarityMode mode) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive: " + k);
+        }
+        if (queryText == null || queryText.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        BlendQuery queryNGrams = blendQuery(queryText, blend);
+        // LSH candidates do not depend on the threshold, so there is
+        // nothing to gain from the higher levels.
+        double level = mode == SimilarityMode.APPROXIMATE ? threshold : nextTopKLevel(2 * FIRST_TOP_K_LEVEL, threshold);
+        PriorityQueue<ScoredOrdinal> best = topK(queryNGrams, k, level, mode);
+        while (best.size() < k && level > threshold) {
+            level = nextTopKLevel(level, threshold);
+            best = topK(queryNGrams, k, level, mode);
+        }
+
+        List<ScoredOrdinal> ranked = new ArrayList<>(best);
+        ranked.sort(WORST_FIRST.reversed());
+        List<VerseSimilarity> results = new ArrayList<>(ranked.size());
+        for (ScoredOrdinal scored : ranked) {
+            results.add(new VerseSimilarity(allVerses.get(scored.ordinal), scored.score));
+        }
+        return results;
+    }
+
+    /**
+     * Half of {@code level}, or {@code threshold} once that is too low for a
+     * separate pass to pay off: close to the threshold a level costs about
+     * as much as the threshold itself.
+     */
+    private static double nextTopKLevel(double level, double threshold) {
+        double next = level / 2;
+        return next < LAST_TOP_K_LEVEL || next <= 2 * threshold ? threshold : next;
+    }
+
+    /**
+     * The k best candidates scoring at least {@code threshold}, worst on top.
+     */
+    private PriorityQueue<ScoredOrdinal> topK(BlendQuery queryNGrams, int k, double threshold, SimilarityMode mode) {
+        int[] ordinals = candidateOrdinals(queryNGrams, threshold, mode);
+        List<PriorityQueue<ScoredOrdinal>> partitions = scorePartitions(ordinals.length, (from, to) -> {
+            PriorityQueue<ScoredOrdinal> best = new PriorityQueue<>(Math.min(k, 1024), WORST_FIRST);
+            for (ScoredOrdinal scored : matches(queryNGrams, ordinals, from, to, threshold)) {
+                offer(best, k, scored);
+            }
+            return best;
+        });
+        PriorityQueue<ScoredOrdinal> best = partitions.get(0);
+        for (int p = 1; p < partitions.size(); p++) {
+            for (ScoredOrdinal scored : partitions.get(p)) {
+                offer(best, k, scored);
+            }
+        }
+        return best;
+    }
+
+    private static void offer(PriorityQueue<ScoredOrdinal> best, int k, ScoredOrdinal scored) {
+        if (best.size() < k) {
+            best.add(scored);
+        } else if (WORST_FIRST.compare(scored, best.peek()) > 0) {
+            best.poll();
+            best.add(scored);
+        }
+    }
+
+    /**
+     * Matches among {@code ordinals[from..to)} scoring at least
+     * {@code threshold}, in ordinal order. A verse's score is the weighted
+     * mean of its Jaccard similarities in the query's spaces.
+     *
+     * @throws CancellationException if the scoring thread is interrupted
+     */
+    private List<ScoredOrdinal> matches(BlendQuery query, int[] ordinals, int from, int to, double threshold) {
+        List<ScoredOrdinal> found = new ArrayList<>();
+        for (int j = from; j < to; j++) {
+            if ((j - from) % CANCELLATION_CHECK_INTERVAL == 0 && Thread.currentThread().isInterrupted()) {
+                throw new CancellationException("Similarity search cancelled");
+            }
+            int i = ordinals[j];
+            Verse verse = allVerses.get(i);
+            if (verse == null) {
+                continue;
+            }
+            if (threshold > 0 && scoreBound(query, i) < threshold) {
+                continue;
+            }
+            double score = 0;
+            for (int s = 0; s < query.spaces.length; s++) {
+                long[] verseNGrams = query.spaces[s].grams().grams(i);
+                score += query.weights[s] * NGramUtil.jaccardSimilarity(query.grams[s], verseNGrams);
+            }
             if (score >= threshold) {
-                results.add(new VerseSimilarity(allVerses.get(i), score));
+                found.add(new ScoredOrdinal(i, score, verse.getPoemId(), verse.getVerseNumber()));
             }
         }
+        return found;
+    }
 
-        Collections.sort(results);
+    /**
+     * Split {@code count} candidates into contiguous partitions, score them
+     * on the worker pool and return the results in partition order. Small
+     * candidate sets are scored on the calling thread.
+     *
+     * <p>The n-gram sets are only read here, and edits wait on this
+     * service's lock, which the caller holds. Interrupting the caller
+     * cancels the partitions still running and throws
+     * {@link CancellationException}.</p>
+     */
+    private <T> List<T> scorePartitions(int count, PartitionScorer<T> scorer) {
+        int partitions = Math.min(parallelism, count / MIN_PARTITION_SIZE);
+        if (partitions <= 1) {
+            return List.of(scorer.score(0, count));
+        }
+        List<Callable<T>> tasks = new ArrayList<>(partitions);
+        for (int p = 0; p < partitions; p++) {
+            int from = (int) ((long) count * p / partitions);
+            int to = (int) ((long) count * (p + 1) / partitions);
+            tasks.add(() -> scorer.score(from, to));
+        }
+        List<T> results = new ArrayList<>(partitions);
+        try {
+            // invokeAll cancels whatever is left if it is interrupted.
+            for (Future<T> partition : scoringPool().invokeAll(tasks)) {
+                results.add(partition.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Similarity search cancelled");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException("Similarity scoring failed", ex.getCause());
+        }
         return results;
     }
 
+    private ExecutorService scoringPool() {
+        if (scoringPool == null) {
+            scoringPool = Executors.newFixedThreadPool(parallelism, runnable -> {
+                Thread thread = new Thread(runnable, "verse-similarity-scoring");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scoringPool;
+    }
+
+    /**
+     * Ordinals that may reach {@code threshold}, ascending so that ties keep
+     * the order of a full scan. Without a positive threshold every verse
+     * qualifies; otherwise only verses sharing enough n-grams (or an LSH
+     * bucket) with the query in at least one of its spaces.
+     */
+    private int[] candidateOrdinals(BlendQuery query, double threshold, SimilarityMode mode) {
+        if (threshold <= 0) {
+            return IntStream.range(0, allVerses.size()).toArray();
+        }
+        int[] candidates = null;
+        for (int s = 0; s < query.spaces.length; s++) {
+            int[] found = mode == SimilarityMode.APPROXIMATE
+                    ? ensureLsh(query.spaces[s]).candidates(query.grams[s])
+                    : query.spaces[s].grams().candidates(query.grams[s], threshold);
+            candidates = candidates == null ? found : union(candidates, found);
+        }
+        return candidates;
+    }
+
     /**
-     * Refresh the service after database changes.
+     * Distinct values of two ascending, distinct arrays, ascending.
+     */
+    private static int[] union(int[] a, int[] b) {
+        int[] merged = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int size = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                merged[size++] = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                merged[size++] = b[j++];
+            } else {
+                merged[size++] = a[i++];
+                j++;
+            }
+        }
+        return Arrays.copyOf(merged, size);
+    }
+
+    /**
+     * Highest score the verse at {@code ordinal} could reach, from its set
+     * sizes alone.
+     */
+    private static double scoreBound(BlendQuery query, int ordinal) {
+        double bound = 0;
+        for (int s = 0; s < query.spaces.length; s++) {
+            bound += query.weights[s] * scoreBound(query.grams[s].length, query.spaces[s].grams().grams(ordinal).length);
+        }
+        return bound;
+    }
+
+    /**
+     * Highest Jaccard score possible between sets of these sizes.
+     */
+    private static double scoreBound(int querySize, int verseSize) {
+        int smaller = Math.min(querySize, verseSize);
+        return smaller == 0 ? 0 : (double) smaller / Math.max(querySize, verseSize);
+    }
+
+    /**
+     * Set the LSH band and row counts used by APPROXIMATE searches. More
+     * bands raise recall and cost; more rows make buckets stricter. The
+     * buckets are rebuilt on the next approximate search.
+     */
+    public synchronized void setLshParameters(int bands, int rows) {
+        if (bands <= 0 || rows <= 0) {
+            throw new IllegalArgumentException("Bands and rows must be positive: " + bands + "x" + rows);
+        }
+        lshBands = bands;
+        lshRows = rows;
+        for (FeatureIndex index : indexes.values()) {
+            index.setLsh(null);
+        }
+    }
+
+    /**
+     * Set how many pool threads score a single query; 1 scores on the
+     * calling thread.
+     */
+    synchronized void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        if (scoringPool != null) {
+            scoringPool.shutdown();
+            scoringPool = null;
+        }
+    }
+
+    public synchronized int getParallelism() {
+        return parallelism;
+    }
+
+    public synchronized int getLshBands() {
+        return lshBands;
+    }
+
+    public synchronized int getLshRows() {
+        return lshRows;
+    }
+
+    /**
+     * Probability that an APPROXIMATE search finds a verse whose similarity
+     * to the query is {@code similarity}, i.e. the recall relative to the
+     * exact search for verses at that score.
+     */
+    public synchronized double expectedRecall(double similarity) {
+        return 1 - Math.pow(1 - Math.pow(similarity, lshRows), lshBands);
+    }
+
+    /**
+     * Measure APPROXIMATE recall against the exact search: the share of the
+     * exact matches of {@code queries} that the approximate search also
+     * returns, or 1.0 if the exact search finds nothing.
+     */
+    public double measureRecall(List<String> queries, double threshold) {
+        int exactHits = 0;
+        int foundHits = 0;
+        for (String query : queries) {
+            List<VerseSimilarity> exact = findSimilar(query, threshold, SimilarityMode.EXACT);
+            Set<Integer> approximate = new HashSet<>();
+            for (VerseSimilarity match : findSimilar(query, threshold, SimilarityMode.APPROXIMATE)) {
+                approximate.add(match.getVerse().getVerseId());
+            }
+            exactHits += exact.size();
+            for (VerseSimilarity match : exact) {
+                if (approximate.contains(match.getVerse().getVerseId())) {
+                    foundHits++;
+                }
+            }
+        }
+        double recall = exactHits == 0 ? 1.0 : (double) foundHits / exactHits;
+        LOGGER.info("LSH {}x{} recall at threshold {}: {} of {} exact matches ({})",
+                getLshBands(), getLshRows(), threshold, foundHits, exactHits, recall);
+        return recall;
+    }
+
+    private MinHashLsh ensureLsh(FeatureIndex index) {
+        if (index.lsh() == null) {
+            long start = System.nanoTime();
+            NGramIndex grams = index.grams();
+            MinHashLsh built = new MinHashLsh(lshBands, lshRows);
+            for (int i = 0; i < grams.size(); i++) {
+                long[] verseGrams = grams.grams(i);
+                if (verseGrams != null) {
+                    built.add(i, verseGrams);
+                }
+            }
+            index.setLsh(built);
+            LOGGER.info("Built {}x{} LSH buckets of {} for {} verses in {} ms", lshBands, lshRows, index.space(),
+                    grams.size() - grams.removedCount(), (System.nanoTime() - start) / 1_000_000);
+        }
+        return index.lsh();
+    }
+
+    /**
+     * Refresh the service after database changes. Waits for the index to be
+     * complete first, then rebuilds it, in every feature space used so far,
+     * on the calling thread.
      */
     public void refresh() throws SQLException {
+        awaitIndex();
+        List<Verse> verses = verseService.getAllVerses();
+        synchronized (this) {
+            allVerses.clear();
+            indexes.replaceAll((space, index) -> new FeatureIndex(space, lemmatizer));
+            for (Verse verse : verses) {
+                addVerse(verse);
+            }
+            totalVerses = verses.size();
+            indexedVerses = totalVerses;
+        }
+    }
+
+    /**
+     * Keep the precomputed n-gram sets in step with verse edits instead of
+     * re-reading the whole table.
+     */
+    private synchronized void applyVerseChanges(List<VerseChangeEvent> events) {
+        if (pendingChanges != null) {
+            pendingChanges.addAll(events);
+            return;
+        }
+        applyChanges(events);
+    }
+
+    /**
+     * Apply edits with one pass over the verses: the verses they replace or
+     * delete are dropped together, then the new versions are added. An edit
+     * that drops a verse added earlier in the list first applies the edits
+     * before it.
+     */
+    private void applyChanges(List<VerseChangeEvent> events) {
+        Set<Integer> droppedVerses = new HashSet<>();
+        Set<Integer> droppedPoems = new HashSet<>();
+        List<Verse> added = new ArrayList<>();
+        Set<Integer> addedVerses = new HashSet<>();
+        Set<Integer> addedPoems = new HashSet<>();
+        for (VerseChangeEvent event : events) {
+            boolean dropsAdded = event.getType() == VerseChangeEvent.Type.POEM_DELETED
+                    ? addedPoems.contains(event.getPoemId()) : addedVerses.contains(event.getVerseId());
+            if (dropsAdded) {
+                replaceVerses(droppedVerses, droppedPoems, added);
+                droppedVerses = new HashSet<>();
+                droppedPoems = new HashSet<>();
+                added = new ArrayList<>();
+                addedVerses.clear();
+                addedPoems.clear();
+            }
+            switch (event.getType()) {
+                case CREATED:
+                case UPDATED:
+                    droppedVerses.add(event.getVerseId());
+                    added.add(event.getVerse());
+                    addedVerses.add(event.getVerseId());
+                    addedPoems.add(event.getPoemId());
+                    break;
+                case DELETED:
+                    droppedVerses.add(event.getVerseId());
+                    break;
+                case POEM_DELETED:
+                    droppedPoems.add(event.getPoemId());
+                    break;
+                default:
+                    break;
+            }
+        }
+        replaceVerses(droppedVerses, droppedPoems, added);
+        compactIfSparse();
+        NGramIndex grams = indexes.get(defaultSpace).grams();
+        LOGGER.debug("Applied {} verse changes; {} verses indexed", events.size(), grams.size() - grams.removedCount());
+    }
+
+    private void replaceVerses(Set<Integer> verseIds, Set<Integer> poemIds, List<Verse> added) {
+        if (!verseIds.isEmpty() || !poemIds.isEmpty()) {
+            removeWhere(verse -> verseIds.contains(verse.getVerseId()) || poemIds.contains(verse.getPoemId()));
+        }
+        for (Verse verse : added) {
+            addVerse(verse);
+        }
+    }
+
+    private void removeWhere(Predicate<Verse> condition) {
+        for (int i = 0; i < allVerses.size(); i++) {
+            Verse verse = allVerses.get(i);
+            if (verse != null && condition.test(verse)) {
+                allVerses.set(i, null);
+                for (FeatureIndex index : indexes.values()) {
+                    index.remove(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Re-index the live verses once removed ones make up half the ordinals,
+     * so stale postings do not pile up under heavy editing.
+     */
+    private void compactIfSparse() {
+        NGramIndex grams = indexes.get(defaultSpace).grams();
+        if (grams.removedCount() * 2 <= grams.size()) {
+            return;
+        }
+        int[] liveOrdinals = IntStream.range(0, allVerses.size()).filter(i -> allVerses.get(i) != null).toArray();
+        for (FeatureIndex index : indexes.values()) {
+            index.compact(liveOrdinals);
+        }
+        List<Verse> live = new ArrayList<>(liveOrdinals.length);
+        for (int ordinal : liveOrdinals) {
+            live.add(allVerses.get(ordinal));
+        }
         allVerses.clear();
-        precomputedNGrams.clear();
-        initialize();
+        allVerses.addAll(live);
     }
 
+    /**
+     * Length of the character n-grams of the default feature space.
+     */
     public int getNGramSize() {
-        return n;
+        return defaultSpace.getN();
+    }
+
+    public FeatureSpace getDefaultFeatureSpace() {
+        return defaultSpace;
+    }
+
+    /**
+     * Feature spaces indexed so far, the default one first. Searching on any
+     * other space indexes it first.
+     */
+    public synchronized List<FeatureSpace> getIndexedFeatureSpaces() {
+        return new ArrayList<>(indexes.keySet());
+    }
+
+    /**
+     * Set how lemma n-grams find a token's lemma, which must come back
+     * normalized; lemma spaces indexed with the old one are dropped.
+     */
+    synchronized void setLemmatizer(UnaryOperator<String> lemmatizer) {
+        this.lemmatizer = lemmatizer;
+        indexes.keySet().removeIf(space -> space.getUnit() == FeatureSpace.Unit.LEMMA);
+    }
+
+    /**
+     * First lemma the morphological analyzer gives for {@code token},
+     * normalized, or the normalized token if it has none.
+     */
+    private static String lemmaOf(String token) {
+        for (String lemma : WordAnalyzer.getInstance().analyze(token).getLemmas()) {
+            String normalized = ArabicTextUtils.normalizeToken(lemma);
+            if (!normalized.isEmpty()) {
+                return normalized;
+            }
+        }
+        return ArabicTextUtils.normalizeToken(token);
+    }
+
+    private static int resolveNGramSize() {
+        String configured = System.getProperty(NGRAM_SIZE_PROPERTY);
+        if (configured != null && !configured.trim().isEmpty()) {
+            try {
+                int size = Integer.parseInt(configured.trim());
+                if (size > 0 && size <= NGramUtil.MAX_PACKED_N) {
+                    return size;
+                }
+            } catch (NumberFormatException ex) {
+                // Reported below.
+            }
+            LOGGER.warn("Ignoring invalid {} value '{}'", NGRAM_SIZE_PROPERTY, configured);
+        }
+        return DEFAULT_N;
+    }
+
+    private static int resolveParallelism() {
+        String configured = System.getProperty(PARALLELISM_PROPERTY);
+        if (configured != null && !configured.trim().isEmpty()) {
+            try {
+                return Math.max(1, Integer.parseInt(configured.trim()));
+            } catch (NumberFormatException ex) {
+                LOGGER.warn("Ignoring invalid {} value '{}'", PARALLELISM_PROPERTY, configured);
+            }
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    private record ScoredOrdinal(int ordinal, double score, int poemId, int verseNumber) {}
+
+    // A query's features per space, with the spaces' weights adding up to 1.
+    private record BlendQuery(FeatureIndex[] spaces, long[][] grams, double[] weights) {}
+
+    @FunctionalInterface
+    private interface PartitionScorer<T> {
+        T score(int from, int to);
     }
 }
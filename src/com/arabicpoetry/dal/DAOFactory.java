@@ -5,11 +5,13 @@ import java.sql.SQLException;
 import com.arabicpoetry.dal.dao.BookDAO;
 import com.arabicpoetry.dal.dao.PoemDAO;
 import com.arabicpoetry.dal.dao.PoetDAO;
+import com.arabicpoetry.dal.dao.TermCountDAO;
 import com.arabicpoetry.dal.dao.UserDAO;
 import com.arabicpoetry.dal.dao.VerseDAO;
 import com.arabicpoetry.dal.dao.impl.BookDAOImpl;
 import com.arabicpoetry.dal.dao.impl.PoemDAOImpl;
 import com.arabicpoetry.dal.dao.impl.PoetDAOImpl;
+import com.arabicpoetry.dal.dao.impl.TermCountDAOImpl;
 import com.arabicpoetry.dal.dao.impl.UserDAOImpl;
 import com.arabicpoetry.dal.dao.impl.VerseDAOImpl;
 import com.arabicpoetry.util.ConnectionProvider;
@@ -29,6 +31,7 @@ public class DAOFactory {
     private PoetDAO poetDAO;
     private PoemDAO poemDAO;
     private VerseDAO verseDAO;
+    private TermCountDAO termCountDAO;
 
     // Private constructor for Singleton pattern
     private DAOFactory() {
@@ -101,6 +104,26 @@ public class DAOFactory {
         return verseDAO;
     }
 
+    /**
+     * Get TermCountDAO instance
+     * @throws SQLException 
+     */
+    public TermCountDAO getTermCountDAO() throws SQLException {
+        if (termCountDAO == null) {
+            termCountDAO = new TermCountDAOImpl(connectionProvider.getConnection());
+        }
+        return termCountDAO;
+    }
+
+    /**
+     * A new TermCountDAO on a connection of its own, for a background writer
+     * whose transactions must not take in statements of other threads. Not
+     * cached; the caller closes it.
+     */
+    public TermCountDAO openTermCountDAO() throws SQLException {
+        return new TermCountDAOImpl(DatabaseConnection.getInstance().openConnection());
+    }
+
     // Package-private setters for tests to inject mocks/fakes without breaking API
     public void setUserDAO(UserDAO userDAO) {
         this.userDAO = userDAO;
@@ -122,6 +145,10 @@ public class DAOFactory {
         this.verseDAO = verseDAO;
     }
 
+    public void setTermCountDAO(TermCountDAO termCountDAO) {
+        this.termCountDAO = termCountDAO;
+    }
+
     /**
      * Replace the connection provider (e.g., inject a test DataSource) and drop cached DAOs.
      */
@@ -140,6 +167,7 @@ public class DAOFactory {
         poetDAO = null;
         poemDAO = null;
         verseDAO = null;
+        termCountDAO = null;
     }
 
     // Reset hook for tests
@@ -0,0 +1,52 @@
+package com.arabicpoetry.dal.dao;
+
+import com.arabicpoetry.model.linguistics.FrequencyEntry;
+import com.arabicpoetry.model.linguistics.FrequencyScope;
+import com.arabicpoetry.model.linguistics.LinguisticSearchMode;
+import com.arabicpoetry.model.linguistics.PoemTermCount;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Data Access Object interface for the materialized term counts: the term
+ * dictionary of an analyzed corpus and the token, lemma and root counts of
+ * each poem, added up per scope by the database.
+ */
+public interface TermCountDAO {
+    /**
+     * Replace every stored term and count; term ids are positions in
+     * {@code terms}.
+     */
+    void replaceAll(List<String> terms, Iterable<PoemTermCount> counts) throws SQLException;
+
+    /**
+     * Store the terms of {@code terms} from position {@code fromId} on,
+     * with their positions as ids.
+     */
+    void insertTerms(List<String> terms, int fromId) throws SQLException;
+
+    /**
+     * Replace the counts of {@code poemIds} with {@code counts}; poems
+     * without counts are left with none.
+     */
+    void replacePoems(Collection<Integer> poemIds, Iterable<PoemTermCount> counts) throws SQLException;
+
+    /**
+     * Total counts of the terms of {@code scope}, most frequent first with
+     * ties by term, skipping {@code offset} terms and returning at most
+     * {@code limit}.
+     */
+    List<FrequencyEntry> findFrequencies(LinguisticSearchMode mode, FrequencyScope scope, int limit, int offset)
+            throws SQLException;
+
+    int countTerms(LinguisticSearchMode mode, FrequencyScope scope) throws SQLException;
+
+    long countOccurrences(LinguisticSearchMode mode, FrequencyScope scope) throws SQLException;
+
+    /**
+     * Release the connection of a DAO from
+     * {@code DAOFactory.openTermCountDAO()}.
+     */
+    void close() throws SQLException;
+}
@@ -0,0 +1,281 @@
+package com.arabicpoetry.dal.dao.impl;
+
+import com.arabicpoetry.dal.dao.TermCountDAO;
+import com.arabicpoetry.model.linguistics.FrequencyEntry;
+import com.arabicpoetry.model.linguistics.FrequencyScope;
+import com.arabicpoetry.model.linguistics.LinguisticSearchMode;
+import com.arabicpoetry.model.linguistics.PoemTermCount;
+import com.arabicpoetry.util.DatabaseConnection;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Implementation of TermCountDAO interface. Terms and counts are written
+ * with batched inserts, and every write runs in one transaction, so readers
+ * see either the old or the new counts.
+ */
+public class TermCountDAOImpl implements TermCountDAO {
+    private static final int BATCH_SIZE = 1000;
+    // Characters term_dictionary.term holds.
+    static final int MAX_TERM_LENGTH = 255;
+    // term_type column values.
+    private static final int TOKEN_TYPE = 1;
+    private static final int LEMMA_TYPE = 2;
+    private static final int ROOT_TYPE = 3;
+
+    private Connection connection;
+    private static final Logger LOGGER = LogManager.getLogger(TermCountDAOImpl.class);
+
+    public TermCountDAOImpl(Connection connection) {
+        this.connection = connection;
+    }
+
+    public TermCountDAOImpl() throws SQLException {
+        this(DatabaseConnection.getInstance().getConnection());
+    }
+
+    @Override
+    public void replaceAll(List<String> terms, Iterable<PoemTermCount> counts) throws SQLException {
+        int[] written = new int[1];
+        inTransaction(() -> {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.executeUpdate("DELETE FROM poem_term_counts");
+                stmt.executeUpdate("DELETE FROM term_dictionary");
+            }
+            insertTermRows(terms, 0);
+            written[0] = insertCountRows(counts);
+        });
+        LOGGER.info("Stored {} terms and {} poem term counts", terms.size(), written[0]);
+    }
+
+    @Override
+    public void insertTerms(List<String> terms, int fromId) throws SQLException {
+        if (fromId >= terms.size()) {
+            return;
+        }
+        inTransaction(() -> insertTermRows(terms, fromId));
+        LOGGER.info("Stored {} new terms", terms.size() - fromId);
+    }
+
+    @Override
+    public void replacePoems(Collection<Integer> poemIds, Iterable<PoemTermCount> counts) throws SQLException {
+        int[] written = new int[1];
+        inTransaction(() -> {
+            String sql = "DELETE FROM poem_term_counts WHERE poem_id = ?";
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                int batched = 0;
+                for (Integer poemId : poemIds) {
+                    stmt.setInt(1, poemId);
+                    stmt.addBatch();
+                    if (++batched % BATCH_SIZE == 0) {
+                        stmt.executeBatch();
+                    }
+                }
+                stmt.executeBatch();
+            }
+            written[0] = insertCountRows(counts);
+        });
+        LOGGER.info("Replaced term counts of {} poems with {} rows", poemIds.size(), written[0]);
+    }
+
+    @Override
+    public List<FrequencyEntry> findFrequencies(LinguisticSearchMode mode, FrequencyScope scope, int limit,
+                                                int offset) throws SQLException {
+        int termType = termType(mode);
+        if (termType == 0 || limit <= 0) {
+            return Collections.emptyList();
+        }
+        List<FrequencyEntry> entries = new ArrayList<>();
+        String sql = "SELECT d.term, SUM(c.term_count) AS total " +
+                     "FROM poem_term_counts c " +
+                     "JOIN term_dictionary d ON d.term_id = c.term_id " +
+                     scopeJoins(scope) +
+                     "WHERE c.term_type = ?" + scopeCondition(scope) + " " +
+                     "GROUP BY c.term_id, d.term " +
+                     "ORDER BY total DESC, d.term " +
+                     "LIMIT ? OFFSET ?";
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            int parameter = bindScope(stmt, termType, scope);
+            stmt.setInt(parameter++, limit);
+            stmt.setInt(parameter, Math.max(0, offset));
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                entries.add(new FrequencyEntry(rs.getString("term"), rs.getInt("total")));
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public int countTerms(LinguisticSearchMode mode, FrequencyScope scope) throws SQLException {
+        return (int) aggregate("COUNT(DISTINCT c.term_id)", mode, scope);
+    }
+
+    @Override
+    public long countOccurrences(LinguisticSearchMode mode, FrequencyScope scope) throws SQLException {
+        return aggregate("COALESCE(SUM(c.term_count), 0)", mode, scope);
+    }
+
+    @Override
+    public void close() throws SQLException {
+        connection.close();
+    }
+
+    private long aggregate(String expression, LinguisticSearchMode mode, FrequencyScope scope)
+            throws SQLException {
+        int termType = termType(mode);
+        if (termType == 0) {
+            return 0;
+        }
+        String sql = "SELECT " + expression + " FROM poem_term_counts c " +
+                     scopeJoins(scope) +
+                     "WHERE c.term_type = ?" + scopeCondition(scope);
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            bindScope(stmt, termType, scope);
+            ResultSet rs = stmt.executeQuery();
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    private static String scopeJoins(FrequencyScope scope) {
+        switch (scope.getKind()) {
+            case BOOK:
+            case POET:
+                return "JOIN poems p ON p.poem_id = c.poem_id ";
+            case ERA:
+                return "JOIN poems p ON p.poem_id = c.poem_id JOIN books b ON b.book_id = p.book_id ";
+            default:
+                return "";
+        }
+    }
+
+    // Eras compare in the books table's collation, so case does not matter.
+    private static String scopeCondition(FrequencyScope scope) {
+        switch (scope.getKind()) {
+            case POEM:
+                return " AND c.poem_id = ?";
+            case BOOK:
+                return " AND p.book_id = ?";
+            case POET:
+                return " AND p.poet_id = ?";
+            case ERA:
+                return " AND TRIM(b.era) = ?";
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Bind the term type and the scope's parameter; returns the index of
+     * the next parameter.
+     */
+    private static int bindScope(PreparedStatement stmt, int termType, FrequencyScope scope) throws SQLException {
+        stmt.setInt(1, termType);
+        switch (scope.getKind()) {
+            case POEM:
+            case BOOK:
+            case POET:
+                stmt.setInt(2, scope.getId());
+                return 3;
+            case ERA:
+                stmt.setString(2, scope.getEra());
+                return 3;
+            default:
+                return 2;
+        }
+    }
+
+    private void insertTermRows(List<String> terms, int fromId) throws SQLException {
+        String sql = "INSERT INTO term_dictionary (term_id, term) VALUES (?, ?)";
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            for (int id = fromId; id < terms.size(); id++) {
+                stmt.setInt(1, id);
+                stmt.setString(2, fitTerm(terms.get(id)));
+                stmt.addBatch();
+                if ((id - fromId + 1) % BATCH_SIZE == 0) {
+                    stmt.executeBatch();
+                }
+            }
+            stmt.executeBatch();
+        }
+    }
+
+    /**
+     * {@code term} cut to the characters the term column holds. Terms are
+     * never left out, since their counts refer to them by id; two long terms
+     * sharing a prefix keep their own ids and counts.
+     */
+    static String fitTerm(String term) {
+        if (term.codePointCount(0, term.length()) <= MAX_TERM_LENGTH) {
+            return term;
+        }
+        return term.substring(0, term.offsetByCodePoints(0, MAX_TERM_LENGTH));
+    }
+
+    private int insertCountRows(Iterable<PoemTermCount> counts) throws SQLException {
+        String sql = "INSERT INTO poem_term_counts (poem_id, term_type, term_id, term_count) VALUES (?, ?, ?, ?)";
+        int written = 0;
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            for (PoemTermCount count : counts) {
+                int termType = termType(count.getMode());
+                if (termType == 0) {
+                    continue;
+                }
+                stmt.setInt(1, count.getPoemId());
+                stmt.setInt(2, termType);
+                stmt.setInt(3, count.getTermId());
+                stmt.setInt(4, count.getCount());
+                stmt.addBatch();
+                if (++written % BATCH_SIZE == 0) {
+                    stmt.executeBatch();
+                }
+            }
+            stmt.executeBatch();
+        }
+        return written;
+    }
+
+    /**
+     * Run {@code work} in one transaction, rolling it back if it fails.
+     */
+    private void inTransaction(SqlWork work) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            work.run();
+            connection.commit();
+        } catch (SQLException | RuntimeException ex) {
+            connection.rollback();
+            throw ex;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static int termType(LinguisticSearchMode mode) {
+        if (mode == null) {
+            return 0;
+        }
+        switch (mode) {
+            case TOKEN:
+                return TOKEN_TYPE;
+            case LEMMA:
+                return LEMMA_TYPE;
+            case ROOT:
+                return ROOT_TYPE;
+            default:
+                return 0;
+        }
+    }
+
+    @FunctionalInterface
+    private interface SqlWork {
+        void run() throws SQLException;
+    }
+}
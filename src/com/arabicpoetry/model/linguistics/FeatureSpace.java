@@ -0,0 +1,101 @@
+package com.arabicpoetry.model.linguistics;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The features verse similarity is measured on: n-grams of characters, of
+ * normalized words or of their lemmas.
+ */
+public final class FeatureSpace {
+    /**
+     * The feature spaces offered by the similarity search UI.
+     */
+    public static final List<FeatureSpace> PRESETS = List.of(
+            characters(2), characters(3), characters(4), tokens(1), tokens(2), lemmas(1), lemmas(2));
+
+    public enum Unit {
+        CHARACTER("Character"),
+        TOKEN("Word"),
+        LEMMA("Lemma");
+
+        private final String displayLabel;
+
+        Unit(String displayLabel) {
+            this.displayLabel = displayLabel;
+        }
+
+        public String getDisplayLabel() {
+            return displayLabel;
+        }
+
+        @Override
+        public String toString() {
+            return displayLabel;
+        }
+    }
+
+    private final Unit unit;
+    private final int n;
+
+    private FeatureSpace(Unit unit, int n) {
+        if (unit == null) {
+            throw new IllegalArgumentException("Feature unit is required");
+        }
+        if (n <= 0) {
+            throw new IllegalArgumentException("n must be positive: " + n);
+        }
+        this.unit = unit;
+        this.n = n;
+    }
+
+    public static FeatureSpace of(Unit unit, int n) {
+        return new FeatureSpace(unit, n);
+    }
+
+    public static FeatureSpace characters(int n) {
+        return new FeatureSpace(Unit.CHARACTER, n);
+    }
+
+    public static FeatureSpace tokens(int n) {
+        return new FeatureSpace(Unit.TOKEN, n);
+    }
+
+    public static FeatureSpace lemmas(int n) {
+        return new FeatureSpace(Unit.LEMMA, n);
+    }
+
+    public Unit getUnit() {
+        return unit;
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    public String getDisplayLabel() {
+        return unit.getDisplayLabel() + " " + n + "-grams";
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof FeatureSpace)) {
+            return false;
+        }
+        FeatureSpace that = (FeatureSpace) other;
+        return unit == that.unit && n == that.n;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(unit, n);
+    }
+
+    @Override
+    public String toString() {
+        return getDisplayLabel();
+    }
+}
@@ -0,0 +1,44 @@
+package com.arabicpoetry.model.linguistics;
+
+/**
+ * A term's estimated frequency: {@code minCount <= true count <= count}.
+ * Exact frequencies have both bounds equal.
+ */
+public class FrequencyEstimate implements Comparable<FrequencyEstimate> {
+    private final String term;
+    private final long count;
+    private final long minCount;
+
+    public FrequencyEstimate(String term, long count, long minCount) {
+        this.term = term;
+        this.count = count;
+        this.minCount = minCount;
+    }
+
+    public String getTerm() {
+        return term;
+    }
+
+    /**
+     * Upper bound on the term's occurrences.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Lower bound on the term's occurrences.
+     */
+    public long getMinCount() {
+        return minCount;
+    }
+
+    @Override
+    public int compareTo(FrequencyEstimate other) {
+        int countCompare = Long.compare(other.count, this.count);
+        if (countCompare != 0) {
+            return countCompare;
+        }
+        return this.term.compareTo(other.term);
+    }
+}
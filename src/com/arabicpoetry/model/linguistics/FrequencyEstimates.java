@@ -0,0 +1,43 @@
+package com.arabicpoetry.model.linguistics;
+
+import java.util.List;
+
+/**
+ * Corpus-wide top terms from the frequency sketches. Each estimate's count
+ * never undercounts and overcounts by at most {@code errorBound}; its
+ * minimum count is a sure lower bound. Exact results have an error bound
+ * of 0.
+ */
+public class FrequencyEstimates {
+    private final List<FrequencyEstimate> estimates;
+    private final long totalOccurrences;
+    private final long errorBound;
+
+    public FrequencyEstimates(List<FrequencyEstimate> estimates, long totalOccurrences, long errorBound) {
+        this.estimates = estimates;
+        this.totalOccurrences = totalOccurrences;
+        this.errorBound = errorBound;
+    }
+
+    /**
+     * Most frequent first.
+     */
+    public List<FrequencyEstimate> getEstimates() {
+        return estimates;
+    }
+
+    /**
+     * Occurrences of all terms counted.
+     */
+    public long getTotalOccurrences() {
+        return totalOccurrences;
+    }
+
+    public long getErrorBound() {
+        return errorBound;
+    }
+
+    public boolean isExact() {
+        return errorBound == 0;
+    }
+}
@@ -0,0 +1,39 @@
+package com.arabicpoetry.model.linguistics;
+
+import java.util.List;
+
+/**
+ * One page of a frequency list, most frequent first: the entries ranked
+ * {@code offset + 1} onwards and how many distinct terms the whole list
+ * has.
+ */
+public class FrequencyPage {
+    private final List<FrequencyEntry> entries;
+    private final int offset;
+    private final int totalTerms;
+
+    public FrequencyPage(List<FrequencyEntry> entries, int offset, int totalTerms) {
+        this.entries = entries;
+        this.offset = offset;
+        this.totalTerms = totalTerms;
+    }
+
+    public List<FrequencyEntry> getEntries() {
+        return entries;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getTotalTerms() {
+        return totalTerms;
+    }
+
+    /**
+     * Whether entries are ranked after this page.
+     */
+    public boolean hasMore() {
+        return offset + entries.size() < totalTerms;
+    }
+}
@@ -0,0 +1,115 @@
+package com.arabicpoetry.model.linguistics;
+
+import java.util.Objects;
+
+/**
+ * The poems a frequency list counts: one poem, the poems of a book, of a
+ * poet or of the books of an era, or the whole corpus.
+ */
+public final class FrequencyScope {
+    private static final FrequencyScope CORPUS = new FrequencyScope(Kind.CORPUS, 0, null);
+
+    public enum Kind {
+        POEM("Poem"),
+        BOOK("Book"),
+        POET("Poet"),
+        ERA("Era"),
+        CORPUS("Corpus");
+
+        private final String displayLabel;
+
+        Kind(String displayLabel) {
+            this.displayLabel = displayLabel;
+        }
+
+        public String getDisplayLabel() {
+            return displayLabel;
+        }
+
+        @Override
+        public String toString() {
+            return displayLabel;
+        }
+    }
+
+    private final Kind kind;
+    private final int id;
+    private final String era;
+
+    private FrequencyScope(Kind kind, int id, String era) {
+        this.kind = kind;
+        this.id = id;
+        this.era = era;
+    }
+
+    public static FrequencyScope poem(int poemId) {
+        return new FrequencyScope(Kind.POEM, poemId, null);
+    }
+
+    public static FrequencyScope book(int bookId) {
+        return new FrequencyScope(Kind.BOOK, bookId, null);
+    }
+
+    public static FrequencyScope poet(int poetId) {
+        return new FrequencyScope(Kind.POET, poetId, null);
+    }
+
+    /**
+     * The poems of every book whose era is {@code era}, ignoring case and
+     * surrounding spaces.
+     */
+    public static FrequencyScope era(String era) {
+        return new FrequencyScope(Kind.ERA, 0, Objects.requireNonNull(era, "era").trim());
+    }
+
+    public static FrequencyScope corpus() {
+        return CORPUS;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Poem, book or poet id; 0 for an era or the corpus.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * The era of an era scope, otherwise {@code null}.
+     */
+    public String getEra() {
+        return era;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof FrequencyScope)) {
+            return false;
+        }
+        FrequencyScope that = (FrequencyScope) other;
+        return kind == that.kind && id == that.id && Objects.equals(era, that.era);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(kind, id, era);
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+            case CORPUS:
+                return kind.getDisplayLabel();
+            case ERA:
+                return kind.getDisplayLabel() + " " + era;
+            default:
+                return kind.getDisplayLabel() + " " + id;
+        }
+    }
+}
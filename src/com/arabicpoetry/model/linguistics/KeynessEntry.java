@@ -0,0 +1,61 @@
+package com.arabicpoetry.model.linguistics;
+
+/**
+ * A term's counts in a target and a reference scope with its keyness: the
+ * log-likelihood (G2) and chi-square statistics of the 2x2 table of the
+ * term's count against the rest of each scope. Both have one degree of
+ * freedom, so 3.84 is significant at p &lt; 0.05 and 6.63 at p &lt; 0.01.
+ */
+public class KeynessEntry {
+    public static final double CRITICAL_VALUE_P05 = 3.84;
+    public static final double CRITICAL_VALUE_P01 = 6.63;
+
+    private final String term;
+    private final int targetCount;
+    private final int referenceCount;
+    private final double logLikelihood;
+    private final double chiSquare;
+    private final boolean overused;
+
+    public KeynessEntry(String term, int targetCount, int referenceCount, double logLikelihood, double chiSquare,
+                        boolean overused) {
+        this.term = term;
+        this.targetCount = targetCount;
+        this.referenceCount = referenceCount;
+        this.logLikelihood = logLikelihood;
+        this.chiSquare = chiSquare;
+        this.overused = overused;
+    }
+
+    public String getTerm() {
+        return term;
+    }
+
+    public int getTargetCount() {
+        return targetCount;
+    }
+
+    public int getReferenceCount() {
+        return referenceCount;
+    }
+
+    public double getLogLikelihood() {
+        return logLikelihood;
+    }
+
+    public double getChiSquare() {
+        return chiSquare;
+    }
+
+    /**
+     * Whether the term is relatively more frequent in the target than in
+     * the reference.
+     */
+    public boolean isOverused() {
+        return overused;
+    }
+
+    public boolean isSignificant() {
+        return logLikelihood >= CRITICAL_VALUE_P05;
+    }
+}
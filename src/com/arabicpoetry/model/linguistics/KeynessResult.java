@@ -0,0 +1,54 @@
+package com.arabicpoetry.model.linguistics;
+
+import java.util.List;
+
+/**
+ * Keyness of a target scope against a reference scope: the terms most
+ * overused and most underused in the target, each by descending
+ * log-likelihood, and the token counts both scopes were compared on.
+ */
+public class KeynessResult {
+    private final List<KeynessEntry> overused;
+    private final List<KeynessEntry> underused;
+    private final long targetTotal;
+    private final long referenceTotal;
+    private final int comparedTerms;
+
+    public KeynessResult(List<KeynessEntry> overused, List<KeynessEntry> underused, long targetTotal,
+                         long referenceTotal, int comparedTerms) {
+        this.overused = overused;
+        this.underused = underused;
+        this.targetTotal = targetTotal;
+        this.referenceTotal = referenceTotal;
+        this.comparedTerms = comparedTerms;
+    }
+
+    public List<KeynessEntry> getOverused() {
+        return overused;
+    }
+
+    public List<KeynessEntry> getUnderused() {
+        return underused;
+    }
+
+    /**
+     * Term occurrences counted in the target.
+     */
+    public long getTargetTotal() {
+        return targetTotal;
+    }
+
+    /**
+     * Term occurrences counted in the reference.
+     */
+    public long getReferenceTotal() {
+        return referenceTotal;
+    }
+
+    /**
+     * Distinct terms occurring in either scope.
+     */
+    public int getComparedTerms() {
+        return comparedTerms;
+    }
+}
@@ -5,19 +5,27 @@ import com.arabicpoetry.model.Verse;
 /**
  * Represents a single hit returned by the linguistic search. The match may
  * correspond to a token analysis (token/lemma/root/segment modes) or an ad-hoc
- * text/regex snippet.
+ * text/regex snippet. Term list hits also record which of the listed terms
+ * matched.
  */
 public class LinguisticMatch {
     private final Verse verse;
     private final TokenAnalysis tokenAnalysis;
     private final LinguisticSearchMode mode;
     private final String matchDetail;
+    private final String matchedTerm;
 
     public LinguisticMatch(Verse verse, TokenAnalysis tokenAnalysis, LinguisticSearchMode mode, String matchDetail) {
+        this(verse, tokenAnalysis, mode, matchDetail, null);
+    }
+
+    public LinguisticMatch(Verse verse, TokenAnalysis tokenAnalysis, LinguisticSearchMode mode, String matchDetail,
+                           String matchedTerm) {
         this.verse = verse;
         this.tokenAnalysis = tokenAnalysis;
         this.mode = mode;
         this.matchDetail = matchDetail;
+        this.matchedTerm = matchedTerm;
     }
 
     public Verse getVerse() {
@@ -35,4 +43,12 @@ public class LinguisticMatch {
     public String getMatchDetail() {
         return matchDetail;
     }
+
+    /**
+     * The listed term this hit matched, as the user entered it; {@code null}
+     * outside {@link LinguisticSearchMode#TERM_LIST} searches.
+     */
+    public String getMatchedTerm() {
+        return matchedTerm;
+    }
 }
@@ -9,7 +9,9 @@ public enum LinguisticSearchMode {
     ROOT("Roots"),
     SEGMENT("Segments"),
     STRING("Exact Text"),
-    REGEX("Regular Expression");
+    REGEX("Regular Expression"),
+    TERM_LIST("Term List"),
+    QUERY("Phrase / Proximity Query");
 
     private final String displayLabel;
 
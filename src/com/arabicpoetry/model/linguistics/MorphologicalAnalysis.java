@@ -0,0 +1,67 @@
+package com.arabicpoetry.model.linguistics;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Distilled AlKhalil output for a single normalized token: the distinct
+ * lemma/root/segment candidates plus the first non-empty POS, stem and
+ * clitics. Instances are immutable so they can be shared by every occurrence
+ * of the token.
+ */
+public final class MorphologicalAnalysis {
+    public static final MorphologicalAnalysis EMPTY =
+            new MorphologicalAnalysis(null, null, null, null, null, null, null);
+
+    private final List<String> lemmas;
+    private final List<String> roots;
+    private final List<String> segments;
+    private final String partOfSpeech;
+    private final String stem;
+    private final String proclitic;
+    private final String enclitic;
+
+    public MorphologicalAnalysis(List<String> lemmas,
+                                 List<String> roots,
+                                 List<String> segments,
+                                 String partOfSpeech,
+                                 String stem,
+                                 String proclitic,
+                                 String enclitic) {
+        this.lemmas = lemmas == null ? Collections.emptyList() : Collections.unmodifiableList(lemmas);
+        this.roots = roots == null ? Collections.emptyList() : Collections.unmodifiableList(roots);
+        this.segments = segments == null ? Collections.emptyList() : Collections.unmodifiableList(segments);
+        this.partOfSpeech = partOfSpeech;
+        this.stem = stem;
+        this.proclitic = proclitic;
+        this.enclitic = enclitic;
+    }
+
+    public List<String> getLemmas() {
+        return lemmas;
+    }
+
+    public List<String> getRoots() {
+        return roots;
+    }
+
+    public List<String> getSegments() {
+        return segments;
+    }
+
+    public String getPartOfSpeech() {
+        return partOfSpeech;
+    }
+
+    public String getStem() {
+        return stem;
+    }
+
+    public String getProclitic() {
+        return proclitic;
+    }
+
+    public String getEnclitic() {
+        return enclitic;
+    }
+}
@@ -0,0 +1,38 @@
+package com.arabicpoetry.model.linguistics;
+
+/**
+ * How many of a poem's tokens are indexed under one token, lemma or root
+ * term; the term is identified by its id in the stored term dictionary.
+ */
+public class PoemTermCount {
+    private final int poemId;
+    private final LinguisticSearchMode mode;
+    private final int termId;
+    private final int count;
+
+    public PoemTermCount(int poemId, LinguisticSearchMode mode, int termId, int count) {
+        this.poemId = poemId;
+        this.mode = mode;
+        this.termId = termId;
+        this.count = count;
+    }
+
+    public int getPoemId() {
+        return poemId;
+    }
+
+    /**
+     * TOKEN, LEMMA or ROOT.
+     */
+    public LinguisticSearchMode getMode() {
+        return mode;
+    }
+
+    public int getTermId() {
+        return termId;
+    }
+
+    public int getCount() {
+        return count;
+    }
+}
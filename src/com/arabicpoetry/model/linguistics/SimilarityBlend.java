@@ -0,0 +1,77 @@
+package com.arabicpoetry.model.linguistics;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+
+/**
+ * Weighted feature spaces a similarity search scores verses on. A verse's
+ * score is the weighted mean of its Jaccard similarities to the query in
+ * each space, so it stays between 0 and 1 whatever the weights add up to.
+ * Instances are immutable.
+ */
+public final class SimilarityBlend {
+    private final Map<FeatureSpace, Double> weights;
+
+    private SimilarityBlend(Map<FeatureSpace, Double> weights) {
+        this.weights = Collections.unmodifiableMap(weights);
+    }
+
+    /**
+     * Score on a single feature space.
+     */
+    public static SimilarityBlend of(FeatureSpace space) {
+        return of(Map.of(space, 1.0));
+    }
+
+    /**
+     * Score on several feature spaces; spaces weighted zero are left out.
+     *
+     * @throws IllegalArgumentException if a weight is negative or not finite,
+     *         or no space has a positive weight
+     */
+    public static SimilarityBlend of(Map<FeatureSpace, Double> weights) {
+        Map<FeatureSpace, Double> kept = new LinkedHashMap<>();
+        for (Map.Entry<FeatureSpace, Double> entry : weights.entrySet()) {
+            Double weight = entry.getValue();
+            if (entry.getKey() == null || weight == null || !Double.isFinite(weight) || weight < 0) {
+                throw new IllegalArgumentException("Invalid weight " + weight + " for " + entry.getKey());
+            }
+            if (weight > 0) {
+                kept.put(entry.getKey(), weight);
+            }
+        }
+        if (kept.isEmpty()) {
+            throw new IllegalArgumentException("A similarity blend needs a feature space with a positive weight");
+        }
+        return new SimilarityBlend(kept);
+    }
+
+    /**
+     * Positive weights per feature space, in the order given.
+     */
+    public Map<FeatureSpace, Double> getWeights() {
+        return weights;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof SimilarityBlend && weights.equals(((SimilarityBlend) other).weights);
+    }
+
+    @Override
+    public int hashCode() {
+        return weights.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        if (weights.size() == 1) {
+            return weights.keySet().iterator().next().getDisplayLabel();
+        }
+        StringJoiner joiner = new StringJoiner(" + ");
+        weights.forEach((space, weight) -> joiner.add(weight + " × " + space.getDisplayLabel()));
+        return joiner.toString();
+    }
+}
@@ -0,0 +1,24 @@
+package com.arabicpoetry.model.linguistics;
+
+/**
+ * How the verse similarity search finds its matches.
+ */
+public enum SimilarityMode {
+    EXACT("Exact"),
+    APPROXIMATE("Approximate (MinHash/LSH)");
+
+    private final String displayLabel;
+
+    SimilarityMode(String displayLabel) {
+        this.displayLabel = displayLabel;
+    }
+
+    public String getDisplayLabel() {
+        return displayLabel;
+    }
+
+    @Override
+    public String toString() {
+        return displayLabel;
+    }
+}
@@ -0,0 +1,41 @@
+package com.arabicpoetry.model.linguistics;
+
+import java.util.List;
+
+/**
+ * Matches of a similarity search together with how much of the corpus was
+ * indexed when it ran. A partial result only covers the verses indexed so
+ * far; searching again once the index is ready may find more.
+ */
+public class SimilaritySearchResult {
+    private final List<VerseSimilarity> matches;
+    private final boolean partial;
+    private final int indexedVerses;
+    private final int totalVerses;
+
+    public SimilaritySearchResult(List<VerseSimilarity> matches, boolean partial, int indexedVerses, int totalVerses) {
+        this.matches = matches;
+        this.partial = partial;
+        this.indexedVerses = indexedVerses;
+        this.totalVerses = totalVerses;
+    }
+
+    public List<VerseSimilarity> getMatches() {
+        return matches;
+    }
+
+    public boolean isPartial() {
+        return partial;
+    }
+
+    public int getIndexedVerses() {
+        return indexedVerses;
+    }
+
+    /**
+     * Verses being indexed, or 0 if they are still being loaded.
+     */
+    public int getTotalVerses() {
+        return totalVerses;
+    }
+}
@@ -1,5 +1,6 @@
 package com.arabicpoetry.presentation.fx;
 
+import com.arabicpoetry.bll.service.VerseSimilarityService;
 import com.arabicpoetry.util.DatabaseConnection;
 import javafx.application.Application;
 import javafx.application.Platform;
@@ -12,6 +13,8 @@ import javafx.stage.Stage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.sql.SQLException;
+
 /**
  * JavaFX entry point for the application.
  */
@@ -25,6 +28,7 @@ public class ArabicPoetryApp extends Application {
                 showErrorAndExit("Database connection failed! Please check your MySQL server and configuration in config.properties.");
                 return;
             }
+            startBackgroundIndexing();
 
             FXMLLoader loader = new FXMLLoader(getClass().getResource("/com/arabicpoetry/presentation/fx/LoginView.fxml"));
             Parent root = loader.load();
@@ -39,6 +43,18 @@ public class ArabicPoetryApp extends Application {
         }
     }
 
+    /**
+     * Build the similarity index while the user logs in, so the similarity
+     * window does not have to wait for it.
+     */
+    private void startBackgroundIndexing() {
+        try {
+            VerseSimilarityService.getInstance();
+        } catch (SQLException ex) {
+            LOGGER.warn("Could not start building the verse similarity index", ex);
+        }
+    }
+
     private void showErrorAndExit(String message) {
         Alert alert = new Alert(AlertType.ERROR);
         alert.setTitle("Error");
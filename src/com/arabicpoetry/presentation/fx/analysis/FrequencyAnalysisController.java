@@ -3,9 +3,16 @@ package com.arabicpoetry.presentation.fx.analysis;
 import com.arabicpoetry.bll.service.BookService;
 import com.arabicpoetry.bll.service.FrequencyService;
 import com.arabicpoetry.bll.service.PoemService;
+import com.arabicpoetry.bll.service.PoetService;
 import com.arabicpoetry.model.Book;
 import com.arabicpoetry.model.Poem;
+import com.arabicpoetry.model.Poet;
 import com.arabicpoetry.model.linguistics.FrequencyEntry;
+import com.arabicpoetry.model.linguistics.FrequencyPage;
+import com.arabicpoetry.model.linguistics.FrequencyScope;
+import com.arabicpoetry.model.linguistics.KeynessEntry;
+import com.arabicpoetry.model.linguistics.KeynessResult;
+import com.arabicpoetry.model.linguistics.LinguisticSearchMode;
 import javafx.beans.property.ReadOnlyObjectWrapper;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.collections.FXCollections;
@@ -19,12 +26,18 @@ import org.apache.logging.log4j.Logger;
 
 import java.sql.SQLException;
 import java.util.List;
+import java.util.TreeSet;
 
 /**
- * JavaFX controller for frequency analysis (poem/book scope).
+ * JavaFX controller for frequency analysis (poem/book/poet/era/corpus scope).
+ * Results are fetched a page at a time; scrolling to the last row loads the
+ * next. A second scope can be chosen to compare against: the keyness tab
+ * then lists the terms most over- and underused in the first.
  */
 public class FrequencyAnalysisController {
     private static final Logger LOGGER = LogManager.getLogger(FrequencyAnalysisController.class);
+    static final int PAGE_SIZE = 200;
+    static final int KEYNESS_SIZE = 100;
 
     @FXML
     private ComboBox<String> scopeCombo;
@@ -33,10 +46,20 @@ public class FrequencyAnalysisController {
     @FXML
     private ComboBox<String> typeCombo;
     @FXML
+    private ComboBox<String> referenceScopeCombo;
+    @FXML
+    private ComboBox<Object> referenceItemCombo;
+    @FXML
     private Button analyzeButton;
     @FXML
+    private Button compareButton;
+    @FXML
     private Button clearButton;
     @FXML
+    private TabPane resultTabs;
+    @FXML
+    private Tab keynessTab;
+    @FXML
     private TableView<FrequencyRow> resultTable;
     @FXML
     private TableColumn<FrequencyRow, Number> rankColumn;
@@ -45,6 +68,20 @@ public class FrequencyAnalysisController {
     @FXML
     private TableColumn<FrequencyRow, Number> freqColumn;
     @FXML
+    private TableView<KeynessRow> keynessTable;
+    @FXML
+    private TableColumn<KeynessRow, String> keynessUseColumn;
+    @FXML
+    private TableColumn<KeynessRow, String> keynessTermColumn;
+    @FXML
+    private TableColumn<KeynessRow, Number> keynessTargetColumn;
+    @FXML
+    private TableColumn<KeynessRow, Number> keynessReferenceColumn;
+    @FXML
+    private TableColumn<KeynessRow, String> keynessLogLikelihoodColumn;
+    @FXML
+    private TableColumn<KeynessRow, String> keynessChiSquareColumn;
+    @FXML
     private Label statusLabel;
     @FXML
     private ProgressIndicator progressIndicator;
@@ -52,18 +89,28 @@ public class FrequencyAnalysisController {
     private final FrequencyService frequencyService;
     private final PoemService poemService;
     private final BookService bookService;
+    private final PoetService poetService;
+    // The list being paged through.
+    private FrequencyScope currentScope;
+    private LinguisticSearchMode currentType;
+    private String currentTypeLabel;
+    private boolean hasMore;
+    // The page or comparison being loaded, if any; a new analysis replaces it.
+    private Task<?> currentTask;
 
     public FrequencyAnalysisController() {
-        this(createFrequencyService(), createPoemService(), createBookService());
+        this(createFrequencyService(), createPoemService(), createBookService(), createPoetService());
     }
 
     // Visible for tests
     public FrequencyAnalysisController(FrequencyService frequencyService,
                                        PoemService poemService,
-                                       BookService bookService) {
+                                       BookService bookService,
+                                       PoetService poetService) {
         this.frequencyService = frequencyService;
         this.poemService = poemService;
         this.bookService = bookService;
+        this.poetService = poetService;
     }
 
     private static FrequencyService createFrequencyService() {
@@ -90,38 +137,79 @@ public class FrequencyAnalysisController {
         }
     }
 
+    private static PoetService createPoetService() {
+        try {
+            return PoetService.getInstance();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Unable to initialize PoetService", e);
+        }
+    }
+
     @FXML
     private void initialize() {
-        scopeCombo.setItems(FXCollections.observableArrayList("Poem", "Book"));
+        scopeCombo.setItems(FXCollections.observableArrayList("Poem", "Book", "Poet", "Era", "Corpus"));
         scopeCombo.getSelectionModel().selectFirst();
+        referenceScopeCombo.setItems(FXCollections.observableArrayList("Corpus", "Poem", "Book", "Poet", "Era"));
+        referenceScopeCombo.getSelectionModel().selectFirst();
         typeCombo.setItems(FXCollections.observableArrayList("Tokens", "Lemmas", "Roots"));
         typeCombo.getSelectionModel().selectFirst();
 
         rankColumn.setCellValueFactory(cell -> new ReadOnlyObjectWrapper<>(cell.getValue().rank()));
         termColumn.setCellValueFactory(cell -> new SimpleStringProperty(cell.getValue().term()));
         freqColumn.setCellValueFactory(cell -> new ReadOnlyObjectWrapper<>(cell.getValue().frequency()));
+        resultTable.setRowFactory(table -> new TableRow<>() {
+            @Override
+            protected void updateItem(FrequencyRow row, boolean empty) {
+                super.updateItem(row, empty);
+                if (!empty && getIndex() == getTableView().getItems().size() - 1) {
+                    loadNextPage();
+                }
+            }
+        });
+        keynessUseColumn.setCellValueFactory(cell -> new SimpleStringProperty(cell.getValue().use()));
+        keynessTermColumn.setCellValueFactory(cell -> new SimpleStringProperty(cell.getValue().term()));
+        keynessTargetColumn.setCellValueFactory(cell -> new ReadOnlyObjectWrapper<>(cell.getValue().targetCount()));
+        keynessReferenceColumn.setCellValueFactory(
+                cell -> new ReadOnlyObjectWrapper<>(cell.getValue().referenceCount()));
+        keynessLogLikelihoodColumn.setCellValueFactory(
+                cell -> new SimpleStringProperty(String.format("%.2f", cell.getValue().logLikelihood())));
+        keynessChiSquareColumn.setCellValueFactory(
+                cell -> new SimpleStringProperty(String.format("%.2f", cell.getValue().chiSquare())));
 
         scopeCombo.setOnAction(e -> updateItems());
+        referenceScopeCombo.setOnAction(e -> updateReferenceItems());
         clearButton.setOnAction(e -> clearResults());
 
         progressIndicator.setVisible(false);
+        updateReferenceItems();
         updateItems();
     }
 
     private void updateItems() {
-        itemCombo.getItems().clear();
-        String scope = scopeCombo.getSelectionModel().getSelectedItem();
+        loadItems(scopeCombo.getSelectionModel().getSelectedItem(), itemCombo);
+    }
+
+    private void updateReferenceItems() {
+        loadItems(referenceScopeCombo.getSelectionModel().getSelectedItem(), referenceItemCombo);
+    }
+
+    private void loadItems(String scope, ComboBox<Object> combo) {
+        combo.getItems().clear();
+        combo.setDisable("Corpus".equals(scope));
+        if ("Corpus".equals(scope)) {
+            statusLabel.setText("Ready");
+            return;
+        }
         try {
-            if ("Poem".equals(scope)) {
-                var poems = poemService.getAllPoems();
-                itemCombo.getItems().addAll(poems);
-                statusLabel.setText("Loaded " + poems.size() + " poems");
-            } else {
-                var books = bookService.getAllBooks();
-                itemCombo.getItems().addAll(books);
-                statusLabel.setText("Loaded " + books.size() + " books");
-            }
-            itemCombo.getSelectionModel().selectFirst();
+            List<?> items = switch (scope) {
+                case "Poem" -> poemService.getAllPoems();
+                case "Book" -> bookService.getAllBooks();
+                case "Poet" -> poetService.getAllPoets();
+                default -> eras();
+            };
+            combo.getItems().addAll(items);
+            statusLabel.setText("Loaded " + items.size() + " " + scope.toLowerCase() + "s");
+            combo.getSelectionModel().selectFirst();
         } catch (Exception ex) {
             LOGGER.error("Error loading items for scope {}", scope, ex);
             showError("Error loading items: " + ex.getMessage());
@@ -129,78 +217,229 @@ public class FrequencyAnalysisController {
         }
     }
 
+    /**
+     * The distinct eras of the books, sorted.
+     */
+    private List<String> eras() throws SQLException {
+        TreeSet<String> eras = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        for (Book book : bookService.getAllBooks()) {
+            if (book.getEra() != null && !book.getEra().isBlank()) {
+                eras.add(book.getEra().trim());
+            }
+        }
+        return List.copyOf(eras);
+    }
+
     @FXML
     private void handleAnalyze(ActionEvent event) {
-        Object selected = itemCombo.getSelectionModel().getSelectedItem();
-        if (selected == null) {
-            showInfo("Please select a poem or book.");
-            statusLabel.setText("Select a " + scopeCombo.getSelectionModel().getSelectedItem().toLowerCase());
+        FrequencyScope scope = selectedScope(scopeCombo, itemCombo);
+        if (scope == null) {
             return;
         }
-
-        String scope = scopeCombo.getSelectionModel().getSelectedItem();
         String type = typeCombo.getSelectionModel().getSelectedItem();
-        runAnalysis(selected, scope, type);
+        runAnalysis(scope, type);
     }
 
-    private void runAnalysis(Object selected, String scope, String type) {
-        Task<ObservableList<FrequencyRow>> task = new Task<>() {
-            @Override
-            protected ObservableList<FrequencyRow> call() throws Exception {
-                updateMessage("Analyzing " + scope.toLowerCase() + "...");
-                List<FrequencyEntry> results;
-                if ("Poem".equals(scope)) {
-                    int poemId = ((Poem) selected).getPoemId();
-                    results = switch (type) {
-                        case "Tokens" -> frequencyService.getTokenFrequenciesByPoem(poemId);
-                        case "Lemmas" -> frequencyService.getLemmaFrequenciesByPoem(poemId);
-                        default -> frequencyService.getRootFrequenciesByPoem(poemId);
-                    };
-                } else {
-                    int bookId = ((Book) selected).getBookId();
-                    results = switch (type) {
-                        case "Tokens" -> frequencyService.getTokenFrequenciesByBook(bookId);
-                        case "Lemmas" -> frequencyService.getLemmaFrequenciesByBook(bookId);
-                        default -> frequencyService.getRootFrequenciesByBook(bookId);
-                    };
-                }
+    @FXML
+    private void handleCompare(ActionEvent event) {
+        FrequencyScope target = selectedScope(scopeCombo, itemCombo);
+        FrequencyScope reference = target != null ? selectedScope(referenceScopeCombo, referenceItemCombo) : null;
+        if (reference == null) {
+            return;
+        }
+        if (target.equals(reference)) {
+            showInfo("Please compare two different selections.");
+            return;
+        }
+        runComparison(target, reference, typeCombo.getSelectionModel().getSelectedItem());
+    }
 
-                ObservableList<FrequencyRow> rows = FXCollections.observableArrayList();
-                int rank = 1;
-                for (FrequencyEntry entry : results) {
-                    rows.add(new FrequencyRow(rank++, entry.getTerm(), entry.getCount()));
-                }
-                return rows;
+    /**
+     * The scope chosen in a scope and item combo pair, or {@code null}
+     * (after telling the user) if no item is selected.
+     */
+    private FrequencyScope selectedScope(ComboBox<String> scopes, ComboBox<Object> items) {
+        String scope = scopes.getSelectionModel().getSelectedItem();
+        Object selected = items.getSelectionModel().getSelectedItem();
+        if (selected == null && !"Corpus".equals(scope)) {
+            showInfo("Please select a " + scope.toLowerCase() + ".");
+            statusLabel.setText("Select a " + scope.toLowerCase());
+            return null;
+        }
+        return toScope(scope, selected);
+    }
+
+    private static FrequencyScope toScope(String scope, Object selected) {
+        return switch (scope) {
+            case "Poem" -> FrequencyScope.poem(((Poem) selected).getPoemId());
+            case "Book" -> FrequencyScope.book(((Book) selected).getBookId());
+            case "Poet" -> FrequencyScope.poet(((Poet) selected).getPoetId());
+            case "Era" -> FrequencyScope.era((String) selected);
+            default -> FrequencyScope.corpus();
+        };
+    }
+
+    private static LinguisticSearchMode toMode(String type) {
+        return switch (type) {
+            case "Tokens" -> LinguisticSearchMode.TOKEN;
+            case "Lemmas" -> LinguisticSearchMode.LEMMA;
+            default -> LinguisticSearchMode.ROOT;
+        };
+    }
+
+    private void runAnalysis(FrequencyScope scope, String type) {
+        cancelLoad();
+        currentScope = scope;
+        currentType = toMode(type);
+        currentTypeLabel = type;
+        hasMore = false;
+        resultTable.setItems(FXCollections.observableArrayList());
+        resultTabs.getSelectionModel().selectFirst();
+        loadPage(0);
+    }
+
+    /**
+     * Load the next page once the last loaded row is shown.
+     */
+    private void loadNextPage() {
+        if (hasMore && currentTask == null) {
+            loadPage(resultTable.getItems().size());
+        }
+    }
+
+    private void loadPage(int offset) {
+        FrequencyScope scope = currentScope;
+        LinguisticSearchMode type = currentType;
+        Task<FrequencyPage> task = new Task<>() {
+            @Override
+            protected FrequencyPage call() throws Exception {
+                updateMessage("Analyzing " + scope.getKind().getDisplayLabel().toLowerCase() + "...");
+                return frequencyService.topFrequencies(scope, type, PAGE_SIZE, offset);
             }
         };
 
         task.setOnSucceeded(e -> {
+            if (task != currentTask) {
+                // Finished just as a new analysis replaced it.
+                return;
+            }
+            currentTask = null;
             statusLabel.textProperty().unbind();
-            resultTable.setItems(task.getValue());
-            statusLabel.setText("Found " + task.getValue().size() + " unique " + type.toLowerCase());
+            FrequencyPage page = task.getValue();
+            ObservableList<FrequencyRow> rows = resultTable.getItems();
+            int rank = page.getOffset() + 1;
+            for (FrequencyEntry entry : page.getEntries()) {
+                rows.add(new FrequencyRow(rank++, entry.getTerm(), entry.getCount()));
+            }
+            hasMore = page.hasMore();
+            statusLabel.setText(resultText(page.getTotalTerms(), rows.size()));
             setBusy(false);
         });
 
         task.setOnFailed(e -> {
+            if (task != currentTask) {
+                return;
+            }
+            hasMore = false;
+            failed(task, "Frequency analysis failed");
+        });
+
+        currentTask = task;
+        if (offset == 0) {
+            statusLabel.textProperty().bind(task.messageProperty());
+            setBusy(true);
+        } else {
+            progressIndicator.setVisible(true);
+        }
+
+        start(task);
+    }
+
+    private void runComparison(FrequencyScope target, FrequencyScope reference, String type) {
+        cancelLoad();
+        hasMore = false;
+        LinguisticSearchMode mode = toMode(type);
+        Task<KeynessResult> task = new Task<>() {
+            @Override
+            protected KeynessResult call() throws Exception {
+                updateMessage("Comparing " + target + " with " + reference + "...");
+                return frequencyService.compareFrequencies(target, reference, mode, KEYNESS_SIZE);
+            }
+        };
+
+        task.setOnSucceeded(e -> {
+            if (task != currentTask) {
+                return;
+            }
+            currentTask = null;
             statusLabel.textProperty().unbind();
-            statusLabel.setText("Error occurred");
-            LOGGER.error("Frequency analysis failed", task.getException());
-            showError("Error: " + (task.getException() != null ? task.getException().getMessage() : "Unknown error"));
+            KeynessResult result = task.getValue();
+            ObservableList<KeynessRow> rows = FXCollections.observableArrayList();
+            addKeynessRows(rows, result.getOverused());
+            addKeynessRows(rows, result.getUnderused());
+            keynessTable.setItems(rows);
+            resultTabs.getSelectionModel().select(keynessTab);
+            statusLabel.setText("Compared " + result.getComparedTerms() + " " + type.toLowerCase()
+                    + ": " + result.getOverused().size() + " overused, " + result.getUnderused().size()
+                    + " underused");
             setBusy(false);
         });
 
+        task.setOnFailed(e -> {
+            if (task != currentTask) {
+                return;
+            }
+            failed(task, "Frequency comparison failed");
+        });
+
+        currentTask = task;
         statusLabel.textProperty().bind(task.messageProperty());
         setBusy(true);
-        resultTable.getItems().clear();
+        start(task);
+    }
+
+    private static void addKeynessRows(ObservableList<KeynessRow> rows, List<KeynessEntry> entries) {
+        for (KeynessEntry entry : entries) {
+            rows.add(new KeynessRow(entry.isOverused() ? "Over" : "Under", entry.getTerm(),
+                    entry.getTargetCount(), entry.getReferenceCount(), entry.getLogLikelihood(),
+                    entry.getChiSquare()));
+        }
+    }
 
+    private void failed(Task<?> task, String logMessage) {
+        currentTask = null;
+        statusLabel.textProperty().unbind();
+        statusLabel.setText("Error occurred");
+        LOGGER.error(logMessage, task.getException());
+        showError("Error: " + (task.getException() != null ? task.getException().getMessage() : "Unknown error"));
+        setBusy(false);
+    }
+
+    private static void start(Task<?> task) {
         Thread worker = new Thread(task, "frequency-analysis");
         worker.setDaemon(true);
         worker.start();
     }
 
+    private String resultText(int totalTerms, int shown) {
+        String text = "Found " + totalTerms + " unique " + currentTypeLabel.toLowerCase();
+        return shown < totalTerms ? text + ", showing the top " + shown : text;
+    }
+
+    private void cancelLoad() {
+        if (currentTask != null) {
+            currentTask.cancel(true);
+            currentTask = null;
+            statusLabel.textProperty().unbind();
+        }
+    }
+
     private void clearResults() {
+        cancelLoad();
+        hasMore = false;
         statusLabel.textProperty().unbind();
         resultTable.getItems().clear();
+        keynessTable.getItems().clear();
         statusLabel.setText("Ready");
         setBusy(false);
     }
@@ -223,12 +462,19 @@ public class FrequencyAnalysisController {
 
     private void setBusy(boolean busy) {
         analyzeButton.setDisable(busy);
+        compareButton.setDisable(busy);
         clearButton.setDisable(busy);
         scopeCombo.setDisable(busy);
-        itemCombo.setDisable(busy);
+        itemCombo.setDisable(busy || "Corpus".equals(scopeCombo.getSelectionModel().getSelectedItem()));
+        referenceScopeCombo.setDisable(busy);
+        referenceItemCombo.setDisable(
+                busy || "Corpus".equals(referenceScopeCombo.getSelectionModel().getSelectedItem()));
         typeCombo.setDisable(busy);
         progressIndicator.setVisible(busy);
     }
 
     public record FrequencyRow(int rank, String term, int frequency) {}
+
+    public record KeynessRow(String use, String term, int targetCount, int referenceCount, double logLikelihood,
+                             double chiSquare) {}
 }
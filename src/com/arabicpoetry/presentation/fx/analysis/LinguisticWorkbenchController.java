@@ -184,7 +184,7 @@ public class LinguisticWorkbenchController {
             rows.add(new ResultRow(
                     verse != null ? verse.getPoemTitle() : "",
                     verse != null ? String.valueOf(verse.getVerseNumber()) : "",
-                    analysis != null ? analysis.getToken() : match.getMatchDetail(),
+                    analysis != null ? analysis.getToken() : matchText(match),
                     analysis != null ? analysis.getLemmaSummary() : "",
                     analysis != null ? analysis.getRootSummary() : "",
                     analysis != null ? analysis.getSegmentSummary() : "",
@@ -195,6 +195,13 @@ public class LinguisticWorkbenchController {
         resultTable.setItems(rows);
     }
 
+    private String matchText(LinguisticMatch match) {
+        if (match.getMatchedTerm() != null) {
+            return match.getMatchedTerm() + ": " + match.getMatchDetail();
+        }
+        return match.getMatchDetail();
+    }
+
     private void clearResults() {
         queryField.clear();
         resultTable.getItems().clear();
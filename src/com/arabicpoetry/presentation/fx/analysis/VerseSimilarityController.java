@@ -2,6 +2,10 @@ package com.arabicpoetry.presentation.fx.analysis;
 
 import com.arabicpoetry.bll.service.VerseSimilarityService;
 import com.arabicpoetry.model.Verse;
+import com.arabicpoetry.model.linguistics.FeatureSpace;
+import com.arabicpoetry.model.linguistics.SimilarityBlend;
+import com.arabicpoetry.model.linguistics.SimilarityMode;
+import com.arabicpoetry.model.linguistics.SimilaritySearchResult;
 import com.arabicpoetry.model.linguistics.VerseSimilarity;
 import javafx.beans.property.ReadOnlyObjectWrapper;
 import javafx.beans.property.SimpleDoubleProperty;
@@ -17,12 +21,16 @@ import org.apache.logging.log4j.Logger;
 
 import java.sql.SQLException;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * JavaFX controller for verse similarity search.
  */
 public class VerseSimilarityController {
     private static final Logger LOGGER = LogManager.getLogger(VerseSimilarityController.class);
+    static final int PAGE_SIZE = 50;
+    // How long a search waits for the index before using the part built so far.
+    private static final long INDEX_WAIT_SECONDS = 2;
 
     @FXML
     private TextArea queryArea;
@@ -31,6 +39,10 @@ public class VerseSimilarityController {
     @FXML
     private Label thresholdValueLabel;
     @FXML
+    private ComboBox<FeatureSpace> featureCombo;
+    @FXML
+    private ComboBox<SimilarityMode> modeCombo;
+    @FXML
     private Button searchButton;
     @FXML
     private Button clearButton;
@@ -45,11 +57,28 @@ public class VerseSimilarityController {
     @FXML
     private TableColumn<SimilarityRow, String> textColumn;
     @FXML
+    private Button previousPageButton;
+    @FXML
+    private Button nextPageButton;
+    @FXML
+    private Label pageLabel;
+    @FXML
     private Label statusLabel;
     @FXML
     private ProgressIndicator progressIndicator;
+    @FXML
+    private Label indexStatusLabel;
 
     private final VerseSimilarityService similarityService;
+    // The search being paged through; page numbers start at 0.
+    private String currentQuery;
+    private double currentThreshold;
+    private SimilarityBlend currentBlend;
+    private SimilarityMode currentMode;
+    private int currentPage;
+    private boolean hasNextPage;
+    // The search in progress, if any; a newer search cancels it.
+    private Task<SimilaritySearchResult> currentTask;
 
     public VerseSimilarityController() {
         this(createSimilarityService());
@@ -73,6 +102,13 @@ public class VerseSimilarityController {
         thresholdSlider.valueProperty().addListener((obs, oldVal, newVal) ->
                 thresholdValueLabel.setText(String.format("%.2f", newVal.doubleValue())));
         thresholdSlider.setValue(0.3);
+        featureCombo.setItems(FXCollections.observableArrayList(FeatureSpace.PRESETS));
+        if (!FeatureSpace.PRESETS.contains(similarityService.getDefaultFeatureSpace())) {
+            featureCombo.getItems().add(0, similarityService.getDefaultFeatureSpace());
+        }
+        featureCombo.getSelectionModel().select(similarityService.getDefaultFeatureSpace());
+        modeCombo.setItems(FXCollections.observableArrayList(SimilarityMode.values()));
+        modeCombo.getSelectionModel().select(SimilarityMode.EXACT);
 
         scoreColumn.setCellValueFactory(cell -> new SimpleDoubleProperty(cell.getValue().score()));
         verseIdColumn.setCellValueFactory(cell -> new ReadOnlyObjectWrapper<>(cell.getValue().verseId()));
@@ -80,8 +116,48 @@ public class VerseSimilarityController {
         textColumn.setCellValueFactory(cell -> new SimpleStringProperty(cell.getValue().text()));
 
         clearButton.setOnAction(e -> clearResults());
+        previousPageButton.setOnAction(e ->
+                runSearch(currentQuery, currentBlend, currentThreshold, currentMode, currentPage - 1));
+        nextPageButton.setOnAction(e ->
+                runSearch(currentQuery, currentBlend, currentThreshold, currentMode, currentPage + 1));
+        updatePaging();
         progressIndicator.setVisible(false);
         statusLabel.setText(readyText());
+        watchIndexing();
+    }
+
+    /**
+     * Show the index build progress until the index is complete.
+     */
+    private void watchIndexing() {
+        if (similarityService.isReady()) {
+            return;
+        }
+        Task<Void> watcher = new Task<>() {
+            @Override
+            protected Void call() throws Exception {
+                while (!similarityService.awaitReady(250, TimeUnit.MILLISECONDS)) {
+                    updateMessage(String.format("Indexing verses: %.0f%%",
+                            100 * similarityService.getInitializationProgress()));
+                }
+                return null;
+            }
+        };
+        watcher.setOnSucceeded(e -> {
+            indexStatusLabel.textProperty().unbind();
+            indexStatusLabel.setVisible(false);
+        });
+        watcher.setOnFailed(e -> {
+            indexStatusLabel.textProperty().unbind();
+            indexStatusLabel.setText("Similarity index unavailable");
+            LOGGER.error("Similarity index could not be built", watcher.getException());
+        });
+        indexStatusLabel.textProperty().bind(watcher.messageProperty());
+        indexStatusLabel.setVisible(true);
+
+        Thread thread = new Thread(watcher, "verse-similarity-index-watch");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     @FXML
@@ -94,37 +170,75 @@ public class VerseSimilarityController {
         }
 
         double threshold = thresholdSlider.getValue();
-        runSearch(queryText, threshold);
+        FeatureSpace space = featureCombo.getSelectionModel().getSelectedItem();
+        SimilarityMode mode = modeCombo.getSelectionModel().getSelectedItem();
+        runSearch(queryText, SimilarityBlend.of(space != null ? space : similarityService.getDefaultFeatureSpace()),
+                threshold, mode != null ? mode : SimilarityMode.EXACT, 0);
     }
 
-    private void runSearch(String queryText, double threshold) {
-        Task<ObservableList<SimilarityRow>> task = new Task<>() {
+    /**
+     * Show one page of results. Only the matches up to the end of the page
+     * are ranked, plus one more to tell whether a next page exists. While the
+     * index is still being built, the search waits briefly and then covers
+     * the verses indexed so far. The first search on a feature space also
+     * indexes the verses by it.
+     */
+    private void runSearch(String queryText, SimilarityBlend blend, double threshold, SimilarityMode mode, int page) {
+        cancelSearch();
+        int first = page * PAGE_SIZE;
+        Task<SimilaritySearchResult> task = new Task<>() {
             @Override
-            protected ObservableList<SimilarityRow> call() {
-                updateMessage("Searching...");
-                List<VerseSimilarity> results = similarityService.findSimilar(queryText, threshold);
-                ObservableList<SimilarityRow> rows = FXCollections.observableArrayList();
-                for (VerseSimilarity sim : results) {
-                    Verse verse = sim.getVerse();
-                    rows.add(new SimilarityRow(
-                            sim.getSimilarityScore(),
-                            verse.getVerseId(),
-                            verse.getPoemId(),
-                            verse.getText()
-                    ));
+            protected SimilaritySearchResult call() {
+                if (!similarityService.isReady()) {
+                    updateMessage("Waiting for the similarity index...");
+                } else if (!similarityService.getIndexedFeatureSpaces().containsAll(blend.getWeights().keySet())) {
+                    updateMessage("Indexing verses by " + blend + "...");
+                } else {
+                    updateMessage("Searching...");
                 }
-                return rows;
+                return similarityService.searchTopK(queryText, blend, first + PAGE_SIZE + 1, threshold, mode,
+                        INDEX_WAIT_SECONDS, TimeUnit.SECONDS);
             }
         };
 
         task.setOnSucceeded(e -> {
+            if (task != currentTask) {
+                // Finished just as a newer search replaced it.
+                return;
+            }
+            currentTask = null;
             statusLabel.textProperty().unbind();
-            resultTable.setItems(task.getValue());
-            statusLabel.setText("Found " + task.getValue().size() + " similar verses (threshold " + String.format("%.2f", threshold) + ")");
+            SimilaritySearchResult result = task.getValue();
+            List<VerseSimilarity> matches = result.getMatches();
+            ObservableList<SimilarityRow> rows = FXCollections.observableArrayList();
+            for (VerseSimilarity sim : matches.subList(Math.min(first, matches.size()), matches.size())) {
+                Verse verse = sim.getVerse();
+                rows.add(new SimilarityRow(
+                        sim.getSimilarityScore(),
+                        verse.getVerseId(),
+                        verse.getPoemId(),
+                        verse.getText()
+                ));
+            }
+            hasNextPage = rows.size() > PAGE_SIZE;
+            if (hasNextPage) {
+                rows.remove(PAGE_SIZE, rows.size());
+            }
+            currentQuery = queryText;
+            currentBlend = blend;
+            currentThreshold = threshold;
+            currentMode = mode;
+            currentPage = page;
+            resultTable.setItems(rows);
+            statusLabel.setText(resultText(first, rows.size(), blend, threshold, mode, result));
             setBusy(false);
         });
 
         task.setOnFailed(e -> {
+            if (task != currentTask) {
+                return;
+            }
+            currentTask = null;
             statusLabel.textProperty().unbind();
             statusLabel.setText("Error occurred");
             LOGGER.error("Similarity search failed", task.getException());
@@ -132,6 +246,7 @@ public class VerseSimilarityController {
             setBusy(false);
         });
 
+        currentTask = task;
         statusLabel.textProperty().bind(task.messageProperty());
         setBusy(true);
         resultTable.getItems().clear();
@@ -141,9 +256,24 @@ public class VerseSimilarityController {
         worker.start();
     }
 
+    /**
+     * Stop the search in progress; interrupting its worker makes the
+     * service stop scoring it.
+     */
+    private void cancelSearch() {
+        if (currentTask != null) {
+            currentTask.cancel(true);
+            currentTask = null;
+            statusLabel.textProperty().unbind();
+        }
+    }
+
     private void clearResults() {
+        cancelSearch();
         queryArea.clear();
         resultTable.getItems().clear();
+        currentQuery = null;
+        hasNextPage = false;
         statusLabel.textProperty().unbind();
         statusLabel.setText(readyText());
         setBusy(false);
@@ -165,12 +295,41 @@ public class VerseSimilarityController {
         alert.showAndWait();
     }
 
+    // Search inputs stay enabled: searching again replaces the running search.
     private void setBusy(boolean busy) {
-        searchButton.setDisable(busy);
-        clearButton.setDisable(busy);
-        queryArea.setDisable(busy);
-        thresholdSlider.setDisable(busy);
         progressIndicator.setVisible(busy);
+        if (busy) {
+            previousPageButton.setDisable(true);
+            nextPageButton.setDisable(true);
+        } else {
+            updatePaging();
+        }
+    }
+
+    private void updatePaging() {
+        previousPageButton.setDisable(currentQuery == null || currentPage == 0);
+        nextPageButton.setDisable(currentQuery == null || !hasNextPage);
+        pageLabel.setText(currentQuery == null ? "" : "Page " + (currentPage + 1));
+    }
+
+    private String resultText(int first, int count, SimilarityBlend blend, double threshold, SimilarityMode mode,
+                              SimilaritySearchResult result) {
+        String found = hasNextPage ? "more than " + (first + count) : String.valueOf(first + count);
+        String text = "Found " + found + " similar verses";
+        if (count > 0) {
+            text += ", showing " + (first + 1) + "-" + (first + count);
+        }
+        text += " (" + blend + ", threshold " + String.format("%.2f", threshold);
+        if (mode == SimilarityMode.APPROXIMATE) {
+            text += String.format(", approximate: finds ~%.0f%% of exact matches scoring %.2f",
+                    100 * similarityService.expectedRecall(threshold), threshold);
+        }
+        if (result.isPartial()) {
+            int total = result.getTotalVerses();
+            text += String.format("; partial results, %.0f%% of verses indexed",
+                    total == 0 ? 0.0 : 100.0 * result.getIndexedVerses() / total);
+        }
+        return text + ")";
     }
 
     private String readyText() {
@@ -8,6 +8,34 @@ import java.text.Normalizer;
  * consistent.
  */
 public final class ArabicTextUtils {
+    /**
+     * Version of the {@link #normalizeToken(String)} rules. Bump it whenever the
+     * output of the normalizer changes so persisted indices keyed on normalized
+     * tokens are rebuilt.
+     */
+    public static final int NORMALIZATION_VERSION = 1;
+
+    // Per-UTF-16-unit action for normalizeToken; see buildTables().
+    private static final byte DROP = 0;
+    private static final byte KEEP = 1;
+    private static final byte MAP = 2;
+    private static final byte LAM_ALEF = 3;
+    private static final byte SURROGATE = 4;
+    // Retained combining marks: NFC may reorder them, so take the slow path.
+    private static final byte SLOW = 5;
+    // Hamza above and the bases NFC composes it with into letters the
+    // replacement table does not fold (U+06C0, U+06C2, U+06D3).
+    private static final byte HAMZA_ABOVE = 6;
+    private static final byte HAMZA_BASE = 7;
+
+    private static final byte[] ACTIONS = new byte[Character.MAX_VALUE + 1];
+    private static final char[] REPLACEMENTS = new char[Character.MAX_VALUE + 1];
+    private static final ThreadLocal<char[]> BUFFER = ThreadLocal.withInitial(() -> new char[64]);
+
+    static {
+        buildTables();
+    }
+
     private ArabicTextUtils() {
     }
 
@@ -27,11 +55,88 @@ public final class ArabicTextUtils {
      * Normalize Arabic token by removing diacritics, tatweel, punctuation, and
      * collapsing Alef variations into the bare Alef character. This keeps the
      * indexing keys deterministic.
+     *
+     * <p>Runs as a single pass over a per-character lookup table into a
+     * reused per-thread buffer, and returns {@code token} itself when nothing
+     * changes. Tokens whose NFC form could differ in a way that matters
+     * (retained combining marks, or hamza above next to a letter it composes
+     * with) go through the original NFC-and-regex pipeline, so the output is
+     * always identical to it.</p>
      */
     public static String normalizeToken(String token) {
         if (token == null) {
             return "";
         }
+        int length = token.length();
+        char[] out = BUFFER.get();
+        if (out.length < 2 * length) {
+            out = new char[2 * length];
+            BUFFER.set(out);
+        }
+        int size = 0;
+        boolean changed = false;
+        boolean hamzaAbove = false;
+        boolean hamzaBase = false;
+        for (int i = 0; i < length; i++) {
+            char c = token.charAt(i);
+            switch (ACTIONS[c]) {
+                case KEEP:
+                    out[size++] = c;
+                    break;
+                case MAP:
+                    out[size++] = REPLACEMENTS[c];
+                    changed = true;
+                    break;
+                case LAM_ALEF:
+                    out[size++] = 'ل';
+                    out[size++] = 'ا';
+                    changed = true;
+                    break;
+                case HAMZA_BASE:
+                    hamzaBase = true;
+                    out[size++] = c;
+                    break;
+                case HAMZA_ABOVE:
+                    hamzaAbove = true;
+                    changed = true;
+                    break;
+                case SURROGATE: {
+                    int codePoint = token.codePointAt(i);
+                    // A lone surrogate can pair up once the characters between
+                    // it and its partner are removed, so leave it to the regex.
+                    if (!Character.isSupplementaryCodePoint(codePoint)) {
+                        return normalizeTokenWithNfc(token);
+                    }
+                    if (Character.UnicodeScript.of(codePoint) == Character.UnicodeScript.ARABIC) {
+                        if (isMark(codePoint)) {
+                            return normalizeTokenWithNfc(token);
+                        }
+                        out[size++] = c;
+                        out[size++] = token.charAt(i + 1);
+                    } else {
+                        changed = true;
+                    }
+                    i++;
+                    break;
+                }
+                case SLOW:
+                    return normalizeTokenWithNfc(token);
+                default:
+                    changed = true;
+                    break;
+            }
+        }
+        if (hamzaAbove && hamzaBase) {
+            return normalizeTokenWithNfc(token);
+        }
+        return changed ? new String(out, 0, size) : token;
+    }
+
+    /**
+     * The original normalization pipeline; {@link #normalizeToken(String)}
+     * falls back to it for the few tokens the lookup table cannot handle.
+     */
+    private static String normalizeTokenWithNfc(String token) {
         String normalized = removeDiacritics(token);
         normalized = normalized.replace("أ", "ا")
                 .replace("إ", "ا")
@@ -46,4 +151,60 @@ public final class ArabicTextUtils {
         normalized = normalized.replaceAll("[^\\p{IsArabic}\\d]", "");
         return normalized.trim();
     }
+
+    /**
+     * Derive the per-character actions from the same rules as the original
+     * pipeline: drop diacritics and tatweel, apply the letter replacements,
+     * then keep only Arabic-script characters and ASCII digits.
+     */
+    private static void buildTables() {
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            char ch = (char) c;
+            byte action;
+            if (Character.isSurrogate(ch)) {
+                action = SURROGATE;
+            } else if (ch == 'ٔ') {
+                action = HAMZA_ABOVE;
+            } else if ((c >= 0x064B && c <= 0x065F) || c == 0x0670 || (c >= 0x06D6 && c <= 0x06ED) || c == 0x0640) {
+                action = DROP;
+            } else if (ch == 'ﻻ') {
+                action = LAM_ALEF;
+            } else if (replacement(ch) != 0) {
+                action = MAP;
+                REPLACEMENTS[c] = replacement(ch);
+            } else if (c == 0x06C1 || c == 0x06D2 || c == 0x06D5) {
+                action = HAMZA_BASE;
+            } else if (Character.UnicodeScript.of(c) == Character.UnicodeScript.ARABIC || (c >= '0' && c <= '9')) {
+                action = isMark(c) ? SLOW : KEEP;
+            } else {
+                action = DROP;
+            }
+            ACTIONS[c] = action;
+        }
+    }
+
+    private static char replacement(char c) {
+        switch (c) {
+            case 'أ':
+            case 'إ':
+            case 'آ':
+            case 'ٱ':
+                return 'ا';
+            case 'ؤ':
+                return 'و';
+            case 'ئ':
+            case 'ى':
+                return 'ي';
+            case 'ة':
+                return 'ه';
+            default:
+                return 0;
+        }
+    }
+
+    private static boolean isMark(int codePoint) {
+        int type = Character.getType(codePoint);
+        return type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK
+                || type == Character.ENCLOSING_MARK;
+    }
 }
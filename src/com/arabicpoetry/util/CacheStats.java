@@ -0,0 +1,18 @@
+package com.arabicpoetry.util;
+
+/**
+ * Point-in-time counters for a {@link BoundedCache}.
+ */
+public record CacheStats(long hits, long misses, long evictions, int size) {
+
+    public double hitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 0.0 : (double) hits / requests;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d, misses=%d, evictions=%d, size=%d, hitRate=%.1f%%",
+                hits, misses, evictions, size, hitRate() * 100);
+    }
+}
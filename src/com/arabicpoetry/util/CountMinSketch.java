@@ -0,0 +1,115 @@
+package com.arabicpoetry.util;
+
+import java.util.Arrays;
+
+/**
+ * Count-Min sketch of string counts in a fixed {@code depth × width} table.
+ * An estimate never undercounts, and for any one item with probability at least
+ * {@code 1 - e^-depth} it overcounts by at most {@code e / width} of the
+ * total count (see {@link #errorBound()}). Counts may be subtracted again as
+ * long as no item's count goes negative; the bounds then refer to the
+ * remaining total. Not thread-safe.
+ */
+public final class CountMinSketch {
+    // One seed per row; each row hashes the characters from its own seed.
+    private static final long[] SEEDS = {
+            0x9E3779B97F4A7C15L, 0xBF58476D1CE4E5B9L, 0x94D049BB133111EBL, 0xC2B2AE3D27D4EB4FL,
+            0x165667B19E3779F9L, 0x85EBCA77C2B2AE63L, 0x27D4EB2F165667C5L, 0xCBF29CE484222325L
+    };
+
+    private final int width;
+    private final int mask;
+    private final int[][] table;
+    private long total;
+
+    /**
+     * @param width counters per row, rounded up to a power of two
+     * @param depth rows, each with its own hash function (1 to 8)
+     */
+    public CountMinSketch(int width, int depth) {
+        if (width <= 0 || depth <= 0 || depth > SEEDS.length) {
+            throw new IllegalArgumentException("Invalid Count-Min sketch size " + width + " x " + depth);
+        }
+        this.width = Integer.highestOneBit(width) == width ? width : Integer.highestOneBit(width) << 1;
+        this.mask = this.width - 1;
+        this.table = new int[depth][this.width];
+    }
+
+    private CountMinSketch(CountMinSketch other) {
+        this.width = other.width;
+        this.mask = other.mask;
+        this.table = new int[other.table.length][];
+        for (int row = 0; row < table.length; row++) {
+            table[row] = Arrays.copyOf(other.table[row], width);
+        }
+        this.total = other.total;
+    }
+
+    /**
+     * Add {@code count} occurrences of {@code item}; a negative count
+     * removes occurrences added before.
+     */
+    public void add(String item, int count) {
+        for (int row = 0; row < table.length; row++) {
+            table[row][bucket(item, row)] += count;
+        }
+        total += count;
+    }
+
+    /**
+     * Upper bound on the occurrences of {@code item}.
+     */
+    public int estimate(String item) {
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < table.length; row++) {
+            estimate = Math.min(estimate, table[row][bucket(item, row)]);
+        }
+        return estimate;
+    }
+
+    public CountMinSketch copy() {
+        return new CountMinSketch(this);
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getDepth() {
+        return table.length;
+    }
+
+    /**
+     * Overcount that an estimate stays within with probability
+     * {@link #confidence()}: {@code e / width} of the total.
+     */
+    public long errorBound() {
+        return (long) Math.ceil(Math.E * total / width);
+    }
+
+    public double confidence() {
+        return 1 - Math.exp(-table.length);
+    }
+
+    /**
+     * 64-bit FNV-1a over the characters of {@code item}, started from the
+     * row's seed and finished with the MurmurHash3 mix, so strings with equal
+     * {@code hashCode()} still land apart in most rows.
+     */
+    private int bucket(String item, int row) {
+        long h = SEEDS[row];
+        for (int i = 0; i < item.length(); i++) {
+            h = (h ^ item.charAt(i)) * 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+}
@@ -72,17 +72,26 @@ public class DatabaseConnection {
      */
     public Connection getConnection() throws SQLException {
         if (connection == null || connection.isClosed()) {
-            connection = DriverManager.getConnection(
-                config.getDbUrl(),
-                config.getDbUsername(),
-                config.getDbPassword()
-            );
-            // Set character encoding for Arabic support
-            connection.createStatement().execute("SET NAMES 'utf8mb4'");
+            connection = openConnection();
         }
         return connection;
     }
 
+    /**
+     * Open a new connection, separate from the shared one, for work that
+     * runs its own transactions on another thread. The caller closes it.
+     */
+    public Connection openConnection() throws SQLException {
+        Connection opened = DriverManager.getConnection(
+            config.getDbUrl(),
+            config.getDbUsername(),
+            config.getDbPassword()
+        );
+        // Set character encoding for Arabic support
+        opened.createStatement().execute("SET NAMES 'utf8mb4'");
+        return opened;
+    }
+
     /**
      * Close the database connection
      */
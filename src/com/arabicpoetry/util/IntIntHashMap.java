@@ -0,0 +1,175 @@
+package com.arabicpoetry.util;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from {@code int} to {@code int} that avoids boxing
+ * keys and values. Intended for dense lookup tables such as id-to-ordinal
+ * maps. Not thread-safe; callers publish fully built instances.
+ */
+public final class IntIntHashMap {
+    private static final int EMPTY = Integer.MIN_VALUE;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private final int missingValue;
+    private int[] keys;
+    private int[] values;
+    private int size;
+    private boolean hasEmptyKey;
+    private int emptyKeyValue;
+
+    /**
+     * @param expectedSize number of entries to size the table for
+     * @param missingValue value returned by {@link #get(int)} for absent keys
+     */
+    public IntIntHashMap(int expectedSize, int missingValue) {
+        this.missingValue = missingValue;
+        allocate(capacityFor(expectedSize));
+    }
+
+    private IntIntHashMap(IntIntHashMap other) {
+        this.missingValue = other.missingValue;
+        this.keys = other.keys.clone();
+        this.values = other.values.clone();
+        this.size = other.size;
+        this.hasEmptyKey = other.hasEmptyKey;
+        this.emptyKeyValue = other.emptyKeyValue;
+    }
+
+    /**
+     * An independent copy of this map.
+     */
+    public IntIntHashMap copy() {
+        return new IntIntHashMap(this);
+    }
+
+    public int get(int key) {
+        if (key == EMPTY) {
+            return hasEmptyKey ? emptyKeyValue : missingValue;
+        }
+        int mask = keys.length - 1;
+        for (int slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+            int candidate = keys[slot];
+            if (candidate == key) {
+                return values[slot];
+            }
+            if (candidate == EMPTY) {
+                return missingValue;
+            }
+        }
+    }
+
+    public boolean containsKey(int key) {
+        if (key == EMPTY) {
+            return hasEmptyKey;
+        }
+        int mask = keys.length - 1;
+        for (int slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+            int candidate = keys[slot];
+            if (candidate == key) {
+                return true;
+            }
+            if (candidate == EMPTY) {
+                return false;
+            }
+        }
+    }
+
+    public void put(int key, int value) {
+        if (key == EMPTY) {
+            if (!hasEmptyKey) {
+                size++;
+            }
+            hasEmptyKey = true;
+            emptyKeyValue = value;
+            return;
+        }
+        if ((size + 1) > keys.length * LOAD_FACTOR) {
+            rehash(keys.length << 1);
+        }
+        int mask = keys.length - 1;
+        for (int slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+            int candidate = keys[slot];
+            if (candidate == key) {
+                values[slot] = value;
+                return;
+            }
+            if (candidate == EMPTY) {
+                keys[slot] = key;
+                values[slot] = value;
+                size++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Remove {@code key}; returns its value, or the missing value if it was
+     * absent.
+     */
+    public int remove(int key) {
+        if (key == EMPTY) {
+            if (!hasEmptyKey) {
+                return missingValue;
+            }
+            hasEmptyKey = false;
+            size--;
+            return emptyKeyValue;
+        }
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (keys[slot] != key) {
+            if (keys[slot] == EMPTY) {
+                return missingValue;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int removed = values[slot];
+        // Move later entries of the probe run into the gap when the gap lies
+        // between their home slot and where they sit, so lookups still find them.
+        int gap = slot;
+        for (int next = (gap + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask) {
+            int home = mix(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+        }
+        keys[gap] = EMPTY;
+        size--;
+        return removed;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        size = hasEmptyKey ? 1 : 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int needed = (int) Math.ceil(Math.max(4, expectedSize) / LOAD_FACTOR);
+        return Integer.highestOneBit(needed - 1) << 1;
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
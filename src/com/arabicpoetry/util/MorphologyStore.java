@@ -0,0 +1,409 @@
+package com.arabicpoetry.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.arabicpoetry.model.linguistics.MorphologicalAnalysis;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Persistent map from normalized token to its distilled
+ * {@link MorphologicalAnalysis}, so analyzer work survives restarts.
+ *
+ * <p>The file holds a header (magic, format version, analyzer fingerprint),
+ * an offset table and the entries sorted by the UTF-8 bytes of their key.
+ * It is read into a single byte array and searched in place; entries are
+ * only decoded when looked up. A file whose fingerprint does not match the
+ * running analyzer and normalization rules is ignored and rewritten on the
+ * next {@link #save()}.</p>
+ */
+public final class MorphologyStore {
+    private static final Logger LOGGER = LogManager.getLogger(MorphologyStore.class);
+    private static final int MAGIC = 0x41504D53; // "APMS"
+    private static final int FORMAT_VERSION = 1;
+    private static final int NULL_LENGTH = 0xFFFF;
+
+    private final Path file;
+    private final byte[] fingerprint;
+    private final Map<String, MorphologicalAnalysis> pending = new ConcurrentHashMap<>();
+
+    private volatile Snapshot snapshot;
+
+    public MorphologyStore(Path file, byte[] fingerprint) {
+        this.file = file;
+        this.fingerprint = fingerprint.clone();
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Number of analyses available (persisted plus not yet saved).
+     */
+    public int size() {
+        return loadedSnapshot().count + pending.size();
+    }
+
+    /**
+     * Look up a stored analysis by normalized token, or {@code null} if the
+     * token has never been analyzed with the current analyzer.
+     */
+    public MorphologicalAnalysis get(String normalizedToken) {
+        MorphologicalAnalysis recent = pending.get(normalizedToken);
+        if (recent != null) {
+            return recent;
+        }
+        Snapshot current = loadedSnapshot();
+        int entry = current.find(normalizedToken.getBytes(StandardCharsets.UTF_8));
+        return entry < 0 ? null : current.decode(entry);
+    }
+
+    /**
+     * Remember a fresh analysis; it is written on the next {@link #save()}.
+     */
+    public void put(String normalizedToken, MorphologicalAnalysis analysis) {
+        pending.put(normalizedToken, analysis);
+    }
+
+    /**
+     * Merge the analyses recorded since the last save into the file. The new
+     * file is written next to the old one and moved into place, so a crash
+     * never leaves a truncated store behind.
+     */
+    public synchronized void save() throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        Snapshot current = loadedSnapshot();
+        List<byte[]> newKeys = new ArrayList<>();
+        List<MorphologicalAnalysis> newValues = new ArrayList<>();
+        List<String> drained = new ArrayList<>(pending.keySet());
+        drained.sort((a, b) -> Arrays.compareUnsigned(
+                a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8)));
+        for (String key : drained) {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            if (current.find(keyBytes) < 0) {
+                newKeys.add(keyBytes);
+                newValues.add(pending.get(key));
+            }
+        }
+
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream entryOut = new DataOutputStream(entries);
+        int total = current.count + newKeys.size();
+        int[] offsets = new int[total];
+        int existing = 0;
+        int added = 0;
+        for (int i = 0; i < total; i++) {
+            offsets[i] = entryOut.size();
+            boolean takeExisting = added >= newKeys.size()
+                    || (existing < current.count && current.compareKey(existing, newKeys.get(added)) < 0);
+            if (takeExisting) {
+                current.copyEntry(existing++, entryOut);
+            } else {
+                writeEntry(entryOut, newKeys.get(added), newValues.get(added));
+                added++;
+            }
+        }
+        entryOut.flush();
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(entries.size() + total * 4 + 64);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeShort(fingerprint.length);
+        out.write(fingerprint);
+        out.writeInt(total);
+        for (int offset : offsets) {
+            out.writeInt(offset);
+        }
+        entries.writeTo(out);
+        out.flush();
+        byte[] bytes = buffer.toByteArray();
+
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temp, bytes);
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        snapshot = Snapshot.parse(bytes, fingerprint);
+        for (String key : drained) {
+            pending.remove(key);
+        }
+        LOGGER.info("Saved {} morphology entries ({} new) to {}", total, newKeys.size(), file);
+    }
+
+    private Snapshot loadedSnapshot() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                current = snapshot;
+                if (current == null) {
+                    current = load();
+                    snapshot = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private Snapshot load() {
+        if (!Files.isRegularFile(file)) {
+            LOGGER.info("No morphology store at {}; analyses will be persisted on first save", file);
+            return Snapshot.EMPTY;
+        }
+        try {
+            Snapshot loaded = Snapshot.parse(Files.readAllBytes(file), fingerprint);
+            if (loaded == null) {
+                LOGGER.info("Morphology store {} was built by another analyzer version; ignoring it", file);
+                return Snapshot.EMPTY;
+            }
+            LOGGER.info("Loaded {} morphology entries from {}", loaded.count, file);
+            return loaded;
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.warn("Unable to read morphology store {}; starting empty", file, ex);
+            return Snapshot.EMPTY;
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, byte[] key, MorphologicalAnalysis analysis) throws IOException {
+        out.writeShort(key.length);
+        out.write(key);
+        writeList(out, analysis.getLemmas());
+        writeList(out, analysis.getRoots());
+        writeList(out, analysis.getSegments());
+        writeString(out, analysis.getPartOfSpeech());
+        writeString(out, analysis.getStem());
+        writeString(out, analysis.getProclitic());
+        writeString(out, analysis.getEnclitic());
+    }
+
+    private static void writeList(DataOutputStream out, List<String> values) throws IOException {
+        out.writeShort(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeShort(NULL_LENGTH);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length >= NULL_LENGTH) {
+            throw new IOException("Morphology value too long to store: " + bytes.length + " bytes");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Immutable view over one version of the store file.
+     */
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(new byte[0], 0, 0, 0);
+
+        final byte[] data;
+        final int count;
+        final int offsetTable;
+        final int entriesStart;
+
+        private Snapshot(byte[] data, int count, int offsetTable, int entriesStart) {
+            this.data = data;
+            this.count = count;
+            this.offsetTable = offsetTable;
+            this.entriesStart = entriesStart;
+        }
+
+        /**
+         * Parse a store image, returning {@code null} when it was written for a
+         * different analyzer fingerprint or format version. Every offset and
+         * entry is checked against the image, so a truncated or corrupt file
+         * is rejected here rather than failing on a later lookup.
+         */
+        static Snapshot parse(byte[] data, byte[] expectedFingerprint) throws IOException {
+            if (data.length < 10 || readInt(data, 0) != MAGIC || readInt(data, 4) != FORMAT_VERSION) {
+                return null;
+            }
+            int fingerprintLength = readShort(data, 8);
+            int countPosition = 10 + fingerprintLength;
+            if (countPosition + 4 > data.length) {
+                throw new IOException("Morphology store header is truncated");
+            }
+            byte[] stored = Arrays.copyOfRange(data, 10, countPosition);
+            if (!Arrays.equals(stored, expectedFingerprint)) {
+                return null;
+            }
+            int count = readInt(data, countPosition);
+            int offsetTable = countPosition + 4;
+            if (count < 0 || count > (data.length - offsetTable) / 4) {
+                throw new IOException("Morphology store offset table is truncated: " + count + " entries");
+            }
+            Snapshot snapshot = new Snapshot(data, count, offsetTable, offsetTable + count * 4);
+            snapshot.validate();
+            return snapshot;
+        }
+
+        /**
+         * Check that the offsets ascend within the image and that every entry
+         * spans exactly its slot, with keys in ascending order.
+         */
+        private void validate() throws IOException {
+            int previousOffset = 0;
+            for (int i = 0; i < count; i++) {
+                int offset = readInt(data, offsetTable + i * 4);
+                if (offset < previousOffset || offset > data.length - entriesStart) {
+                    throw new IOException("Morphology store offset " + i + " is out of range");
+                }
+                previousOffset = offset;
+            }
+            for (int i = 0; i < count; i++) {
+                int start = entryStart(i);
+                int end = entryEnd(i);
+                int cursor = skipString(i, start, end, false);
+                for (int list = 0; list < 3; list++) {
+                    if (cursor + 2 > end) {
+                        throw corruptEntry(i);
+                    }
+                    int size = readShort(data, cursor);
+                    cursor += 2;
+                    for (int value = 0; value < size; value++) {
+                        cursor = skipString(i, cursor, end, false);
+                    }
+                }
+                for (int field = 0; field < 4; field++) {
+                    cursor = skipString(i, cursor, end, true);
+                }
+                if (cursor != end) {
+                    throw corruptEntry(i);
+                }
+                if (i > 0) {
+                    int length = readShort(data, start);
+                    if (compareKey(i - 1, Arrays.copyOfRange(data, start + 2, start + 2 + length)) >= 0) {
+                        throw new IOException("Morphology store keys are out of order at entry " + i);
+                    }
+                }
+            }
+        }
+
+        private int skipString(int index, int cursor, int end, boolean nullable) throws IOException {
+            if (cursor + 2 > end) {
+                throw corruptEntry(index);
+            }
+            int length = readShort(data, cursor);
+            if (length == NULL_LENGTH && nullable) {
+                return cursor + 2;
+            }
+            if (length == NULL_LENGTH || cursor + 2 + length > end) {
+                throw corruptEntry(index);
+            }
+            return cursor + 2 + length;
+        }
+
+        private static IOException corruptEntry(int index) {
+            return new IOException("Morphology store entry " + index + " is corrupt");
+        }
+
+        int entryStart(int index) {
+            return entriesStart + readInt(data, offsetTable + index * 4);
+        }
+
+        int entryEnd(int index) {
+            return index + 1 < count ? entryStart(index + 1) : data.length;
+        }
+
+        int compareKey(int index, byte[] key) {
+            int start = entryStart(index);
+            int length = readShort(data, start);
+            return Arrays.compareUnsigned(data, start + 2, start + 2 + length, key, 0, key.length);
+        }
+
+        int find(byte[] key) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compareKey(mid, key);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        void copyEntry(int index, DataOutputStream out) throws IOException {
+            int start = entryStart(index);
+            out.write(data, start, entryEnd(index) - start);
+        }
+
+        MorphologicalAnalysis decode(int index) {
+            int[] cursor = {entryStart(index)};
+            readString(cursor);
+            List<String> lemmas = readList(cursor);
+            List<String> roots = readList(cursor);
+            List<String> segments = readList(cursor);
+            return new MorphologicalAnalysis(
+                    lemmas,
+                    roots,
+                    segments,
+                    readString(cursor),
+                    readString(cursor),
+                    readString(cursor),
+                    readString(cursor));
+        }
+
+        private List<String> readList(int[] cursor) {
+            int size = readShort(data, cursor[0]);
+            cursor[0] += 2;
+            List<String> values = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                values.add(readString(cursor));
+            }
+            return values;
+        }
+
+        private String readString(int[] cursor) {
+            int length = readShort(data, cursor[0]);
+            cursor[0] += 2;
+            if (length == NULL_LENGTH) {
+                return null;
+            }
+            String value = new String(data, cursor[0], length, StandardCharsets.UTF_8);
+            cursor[0] += length;
+            return value;
+        }
+
+        private static int readInt(byte[] data, int position) {
+            return ((data[position] & 0xFF) << 24)
+                    | ((data[position + 1] & 0xFF) << 16)
+                    | ((data[position + 2] & 0xFF) << 8)
+                    | (data[position + 3] & 0xFF);
+        }
+
+        private static int readShort(byte[] data, int position) {
+            return ((data[position] & 0xFF) << 8) | (data[position + 1] & 0xFF);
+        }
+    }
+}
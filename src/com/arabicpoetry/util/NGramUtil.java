@@ -1,6 +1,7 @@
 package com.arabicpoetry.util;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -10,6 +11,43 @@ import java.util.Set;
  */
 public class NGramUtil {
 
+    // Dense codes for the characters normalizeToken can emit (Arabic script
+    // and ASCII digits), so several fit in one long. Code 0 is unused.
+    private static final char[] BMP_CODES = new char[Character.MAX_VALUE + 1];
+    private static final int[] SUPPLEMENTARY_CODE_POINTS;
+    private static final int FIRST_SUPPLEMENTARY_CODE;
+    private static final int BITS_PER_CODE;
+
+    /**
+     * Longest n-gram {@link #packedCharNGrams(String, int)} can pack.
+     */
+    public static final int MAX_PACKED_N;
+
+    static {
+        int code = 0;
+        int[] supplementary = new int[64];
+        int supplementaryCount = 0;
+        for (int codePoint = 0; codePoint <= Character.MAX_CODE_POINT; codePoint++) {
+            boolean kept = Character.UnicodeScript.of(codePoint) == Character.UnicodeScript.ARABIC
+                    || (codePoint >= '0' && codePoint <= '9');
+            if (!kept) {
+                continue;
+            }
+            if (codePoint <= Character.MAX_VALUE) {
+                BMP_CODES[codePoint] = (char) ++code;
+            } else {
+                if (supplementaryCount == supplementary.length) {
+                    supplementary = Arrays.copyOf(supplementary, 2 * supplementaryCount);
+                }
+                supplementary[supplementaryCount++] = codePoint;
+            }
+        }
+        FIRST_SUPPLEMENTARY_CODE = code + 1;
+        SUPPLEMENTARY_CODE_POINTS = Arrays.copyOf(supplementary, supplementaryCount);
+        BITS_PER_CODE = 32 - Integer.numberOfLeadingZeros(code + supplementaryCount);
+        MAX_PACKED_N = 63 / BITS_PER_CODE;
+    }
+
     /**
      * Generate character-level n-grams from text using code points
      * to properly handle Arabic text.
@@ -43,6 +81,59 @@ public class NGramUtil {
         return grams;
     }
 
+    /**
+     * The distinct character n-grams of {@link #charNGrams(String, int)},
+     * each packed into a long, as a sorted array. Two texts share a packed
+     * n-gram exactly when they share the n-gram string, so
+     * {@link #jaccardSimilarity(long[], long[])} over these arrays equals
+     * the string-set similarity.
+     *
+     * @throws IllegalArgumentException if {@code n} exceeds {@link #MAX_PACKED_N}
+     */
+    public static long[] packedCharNGrams(String text, int n) {
+        if (n > MAX_PACKED_N) {
+            throw new IllegalArgumentException("n-grams longer than " + MAX_PACKED_N + " cannot be packed: " + n);
+        }
+        if (text == null || text.isEmpty() || n <= 0) {
+            return new long[0];
+        }
+        // The normalized token has no whitespace, so it is already clean.
+        String clean = ArabicTextUtils.normalizeToken(text);
+        int count = clean.codePointCount(0, clean.length()) - n + 1;
+        if (count <= 0) {
+            return new long[0];
+        }
+
+        long mask = (1L << (BITS_PER_CODE * n)) - 1;
+        long[] grams = new long[count];
+        long window = 0;
+        int seen = 0;
+        int size = 0;
+        for (int i = 0; i < clean.length(); ) {
+            int codePoint = clean.codePointAt(i);
+            i += Character.charCount(codePoint);
+            window = ((window << BITS_PER_CODE) | code(codePoint)) & mask;
+            if (++seen >= n) {
+                grams[size++] = window;
+            }
+        }
+        Arrays.sort(grams);
+        int distinct = 0;
+        for (int i = 0; i < size; i++) {
+            if (distinct == 0 || grams[distinct - 1] != grams[i]) {
+                grams[distinct++] = grams[i];
+            }
+        }
+        return distinct == size ? grams : Arrays.copyOf(grams, distinct);
+    }
+
+    private static long code(int codePoint) {
+        if (codePoint <= Character.MAX_VALUE) {
+            return BMP_CODES[codePoint];
+        }
+        return FIRST_SUPPLEMENTARY_CODE + Arrays.binarySearch(SUPPLEMENTARY_CODE_POINTS, codePoint);
+    }
+
     /**
      * Generate token-level n-grams from a list of tokens.
      */
@@ -89,4 +180,30 @@ public class NGramUtil {
         int union = a.size() + b.size() - intersection;
         return union == 0 ? 0.0 : (double) intersection / union;
     }
+
+    /**
+     * Jaccard similarity of two sorted, distinct packed n-gram arrays, by a
+     * linear merge. Returns 0.0 if either array is empty, like the set
+     * version.
+     */
+    public static double jaccardSimilarity(long[] a, long[] b) {
+        if (a.length == 0 || b.length == 0) {
+            return 0.0;
+        }
+        int intersection = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                intersection++;
+                i++;
+                j++;
+            }
+        }
+        return (double) intersection / (a.length + b.length - intersection);
+    }
 }
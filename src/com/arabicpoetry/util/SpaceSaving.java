@@ -0,0 +1,202 @@
+package com.arabicpoetry.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Space-Saving heavy hitters: at most {@code capacity} monitored strings with
+ * counts that never undercount. An item seen once the summary is full takes
+ * over the smallest counter and records its count as the item's error, so
+ * {@code count - error <= true count <= count}. Every item occurring more
+ * than {@link #errorBound()} times is monitored; without removals the bound
+ * is at most {@code total / capacity}.
+ *
+ * <p>Removals keep these guarantees, but the smallest counter may then drop
+ * below what an unmonitored item already has, so an item taking a counter
+ * starts from the largest counter evicted so far rather than the smallest
+ * one. The bound then no longer shrinks with the total; summaries that see
+ * many removals ({@link #getRemoved()}) should be rebuilt. Not
+ * thread-safe.</p>
+ */
+public final class SpaceSaving {
+    private final int capacity;
+    // Min-heap on counts; positions maps an item to its heap slot.
+    private final String[] items;
+    private final long[] counts;
+    private final long[] errors;
+    private final Map<String, Integer> positions;
+    private int size;
+    private long total;
+    private long removed;
+    // Largest counter evicted so far, bounding the count of any unmonitored
+    // item; an item taking a counter starts from at least this.
+    private long floor;
+
+    public SpaceSaving(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.items = new String[capacity];
+        this.counts = new long[capacity];
+        this.errors = new long[capacity];
+        this.positions = new HashMap<>();
+    }
+
+    private SpaceSaving(SpaceSaving other) {
+        this.capacity = other.capacity;
+        this.items = Arrays.copyOf(other.items, capacity);
+        this.counts = Arrays.copyOf(other.counts, capacity);
+        this.errors = Arrays.copyOf(other.errors, capacity);
+        this.positions = new HashMap<>(other.positions);
+        this.size = other.size;
+        this.total = other.total;
+        this.removed = other.removed;
+        this.floor = other.floor;
+    }
+
+    /**
+     * Count {@code count} more occurrences of {@code item}. Weighted counts
+     * keep the same bounds as adding the occurrences one at a time.
+     */
+    public void add(String item, long count) {
+        total += count;
+        Integer position = positions.get(item);
+        if (position != null) {
+            counts[position] += count;
+            siftDown(position);
+        } else if (size < capacity) {
+            place(size, item, floor + count, floor);
+            siftUp(size++);
+        } else {
+            positions.remove(items[0]);
+            floor = Math.max(floor, counts[0]);
+            place(0, item, floor + count, floor);
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Uncount {@code count} occurrences of {@code item} added before.
+     */
+    public void remove(String item, long count) {
+        total -= count;
+        removed += count;
+        Integer position = positions.get(item);
+        if (position == null) {
+            return;
+        }
+        counts[position] -= count;
+        errors[position] = Math.min(errors[position], counts[position]);
+        if (counts[position] > 0) {
+            siftUp(position);
+            return;
+        }
+        positions.remove(item);
+        size--;
+        if (position < size) {
+            place(position, items[size], counts[size], errors[size]);
+            siftDown(position);
+            siftUp(position);
+        }
+        items[size] = null;
+    }
+
+    public SpaceSaving copy() {
+        return new SpaceSaving(this);
+    }
+
+    /**
+     * Monitored items, in no particular order.
+     */
+    public List<String> items() {
+        return new ArrayList<>(Arrays.asList(items).subList(0, size));
+    }
+
+    /**
+     * Upper bound on the occurrences of a monitored item, or 0.
+     */
+    public long count(String item) {
+        Integer position = positions.get(item);
+        return position != null ? counts[position] : 0;
+    }
+
+    /**
+     * How much {@link #count} may overcount a monitored item, or 0.
+     */
+    public long error(String item) {
+        Integer position = positions.get(item);
+        return position != null ? errors[position] : 0;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Occurrences removed since the summary was created.
+     */
+    public long getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Most any count overcounts its item by, and most occurrences an
+     * unmonitored item can have: the largest counter evicted so far, which
+     * no item's error exceeds.
+     */
+    public long errorBound() {
+        return floor;
+    }
+
+    private void place(int position, String item, long count, long error) {
+        items[position] = item;
+        counts[position] = count;
+        errors[position] = error;
+        positions.put(item, position);
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (counts[parent] <= counts[position]) {
+                return;
+            }
+            swap(parent, position);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        while (true) {
+            int smallest = position;
+            int left = 2 * position + 1;
+            if (left < size && counts[left] < counts[smallest]) {
+                smallest = left;
+            }
+            if (left + 1 < size && counts[left + 1] < counts[smallest]) {
+                smallest = left + 1;
+            }
+            if (smallest == position) {
+                return;
+            }
+            swap(position, smallest);
+            position = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        String item = items[a];
+        long count = counts[a];
+        long error = errors[a];
+        place(a, items[b], counts[b], errors[b]);
+        place(b, item, count, error);
+    }
+}
@@ -1,12 +1,25 @@
 package com.arabicpoetry.util;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
+
+import com.arabicpoetry.model.linguistics.MorphologicalAnalysis;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import net.oujda_nlp_team.AlKhalil2Analyzer;
+import net.oujda_nlp_team.entity.Result;
 import net.oujda_nlp_team.entity.ResultList;
 
 /**
@@ -17,14 +30,33 @@ import net.oujda_nlp_team.entity.ResultList;
  */
 public final class WordAnalyzer {
     private static final Logger LOGGER = LogManager.getLogger(WordAnalyzer.class);
+    private static final String CACHE_SIZE_PROPERTY = "arabicpoetry.morphology.cache.size";
+    private static final int DEFAULT_CACHE_SIZE = 200_000;
+    private static final String STORE_PATH_PROPERTY = "arabicpoetry.morphology.store";
+    private static final String STORE_ENABLED_PROPERTY = "arabicpoetry.morphology.store.enabled";
     private static volatile WordAnalyzer instance;
 
     private final AlKhalil2Analyzer analyzer;
+    private final FormAnalyzer formAnalyzer;
     private final Set<String> tokensWithAnalyzerBug;
+    private final BoundedCache<String, MorphologicalAnalysis> analysisCache;
+    private volatile MorphologyStore store;
+    private volatile boolean storeResolved;
 
     private WordAnalyzer() {
         this.analyzer = AlKhalil2Analyzer.getInstance();
+        this.formAnalyzer = this::analyzeWithAlKhalil;
+        this.tokensWithAnalyzerBug = Collections.synchronizedSet(new HashSet<>());
+        this.analysisCache = new BoundedCache<>(resolveCacheSize());
+    }
+
+    WordAnalyzer(FormAnalyzer formAnalyzer, int cacheSize, MorphologyStore store) {
+        this.analyzer = null;
+        this.formAnalyzer = formAnalyzer;
         this.tokensWithAnalyzerBug = Collections.synchronizedSet(new HashSet<>());
+        this.analysisCache = new BoundedCache<>(cacheSize);
+        this.store = store;
+        this.storeResolved = true;
     }
 
     public static WordAnalyzer getInstance() {
@@ -40,35 +72,275 @@ public final class WordAnalyzer {
         return localInstance;
     }
 
+    /**
+     * An analyzer that distills forms with {@code formAnalyzer} instead of
+     * AlKhalil and persists nothing, for callers that supply their own
+     * morphology (e.g. tests).
+     */
+    public static WordAnalyzer withAnalyzer(FormAnalyzer formAnalyzer, int cacheSize) {
+        return new WordAnalyzer(formAnalyzer, cacheSize, null);
+    }
+
     /**
      * Analyze the provided token using AlKhalil and return the full result list.
      * Returns an empty {@link ResultList} if the analyzer fails rather than
      * bubbling the exception to callers that primarily operate in the UI.
      */
     public ResultList analyzeToken(String token) {
-        ResultList emptyResult = new ResultList();
         if (token == null || token.trim().isEmpty()) {
-            return emptyResult;
+            return new ResultList();
+        }
+        ResultList results = processToken(token);
+        return results != null ? results : new ResultList();
+    }
+
+    /**
+     * Analyze the provided token and distill the AlKhalil results into a
+     * {@link MorphologicalAnalysis}. The analyzer always sees the normalized
+     * token, so every spelling of a word gets the same analysis whichever is
+     * met first. Results are memoized per normalized token, so repeated
+     * occurrences of a word only pay for the analyzer once, and are persisted
+     * in the {@link MorphologyStore} so later runs skip AlKhalil for every
+     * token seen before.
+     */
+    public MorphologicalAnalysis analyze(String token) {
+        String normalized = ArabicTextUtils.normalizeToken(token);
+        if (normalized.isEmpty()) {
+            return MorphologicalAnalysis.EMPTY;
+        }
+        MorphologicalAnalysis analysis = analysisCache.computeIfAbsent(normalized, this::loadOrAnalyze);
+        return analysis != null ? analysis : MorphologicalAnalysis.EMPTY;
+    }
+
+    /**
+     * Hit/miss/eviction counters for the memoized analyses.
+     */
+    public CacheStats getCacheStats() {
+        return analysisCache.stats();
+    }
+
+    /**
+     * Drop every memoized analysis (e.g. after swapping analyzer resources).
+     */
+    public void clearCache() {
+        analysisCache.clear();
+    }
+
+    /**
+     * Write analyses produced since the last save to the on-disk store. Failures
+     * are logged and otherwise ignored; the store is only an accelerator.
+     */
+    public void saveStore() {
+        MorphologyStore current = store();
+        if (current == null) {
+            return;
+        }
+        try {
+            current.save();
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to save morphology store {}", current.getFile(), ex);
         }
+    }
 
+    /**
+     * Stored or fresh analysis of {@code normalized}, or {@code null} when the
+     * analyzer failed; failures are neither cached nor stored, so the token is
+     * analyzed again next time.
+     */
+    private MorphologicalAnalysis loadOrAnalyze(String normalized) {
+        MorphologyStore current = store();
+        if (current != null) {
+            MorphologicalAnalysis stored = current.get(normalized);
+            if (stored != null) {
+                return stored;
+            }
+        }
+        MorphologicalAnalysis analysis = formAnalyzer.analyze(normalized);
+        if (current != null && analysis != null) {
+            current.put(normalized, analysis);
+        }
+        return analysis;
+    }
+
+    private MorphologicalAnalysis analyzeWithAlKhalil(String normalized) {
+        ResultList results = processToken(normalized);
+        return results != null ? distill(results) : null;
+    }
+
+    /**
+     * Run AlKhalil on {@code token}. Tokens the analyzer cannot handle, and
+     * every token when it is missing, get an empty result list; {@code null}
+     * means it failed for another reason.
+     */
+    private ResultList processToken(String token) {
         String normalized = ArabicTextUtils.normalizeToken(token);
         if (normalized.isEmpty() || tokensWithAnalyzerBug.contains(normalized)) {
-            return emptyResult;
+            return new ResultList();
         }
 
         try {
             if (analyzer == null) {
                 LOGGER.warn("AlKhalil2Analyzer instance is null. Ensure the jar is on the classpath.");
-                return emptyResult;
+                return new ResultList();
             }
             return analyzer.processToken(token);
         } catch (StringIndexOutOfBoundsException ex) {
             tokensWithAnalyzerBug.add(normalized);
             LOGGER.info(() -> "Skipping token due to analyzer limitation: " + token);
-            return emptyResult;
+            return new ResultList();
         } catch (Exception ex) {
             LOGGER.warn("Failed to analyze token: {}", token, ex);
-            return emptyResult;
+            return null;
+        }
+    }
+
+    private MorphologyStore store() {
+        if (!storeResolved) {
+            synchronized (this) {
+                if (!storeResolved) {
+                    store = createStore();
+                    storeResolved = true;
+                }
+            }
+        }
+        return store;
+    }
+
+    private MorphologyStore createStore() {
+        // Without AlKhalil every analysis is empty; never persist those.
+        if (analyzer == null || "false".equalsIgnoreCase(System.getProperty(STORE_ENABLED_PROPERTY))) {
+            return null;
+        }
+        try {
+            return new MorphologyStore(resolveStorePath(), analyzerFingerprint());
+        } catch (IOException | NoSuchAlgorithmException ex) {
+            LOGGER.warn("Morphology store disabled: unable to fingerprint the analyzer", ex);
+            return null;
+        }
+    }
+
+    private static Path resolveStorePath() {
+        String configured = System.getProperty(STORE_PATH_PROPERTY);
+        if (configured != null && !configured.trim().isEmpty()) {
+            return Path.of(configured.trim());
+        }
+        String localAppData = System.getenv("LOCALAPPDATA");
+        Path baseDir = (localAppData != null && !localAppData.trim().isEmpty())
+                ? Path.of(localAppData.trim())
+                : Path.of(System.getProperty("user.home"));
+        return baseDir.resolve("ArabicPoetry").resolve("cache").resolve("morphology.bin");
+    }
+
+    /**
+     * SHA-256 over the analyzer jar and the normalization rules version, so a
+     * store written by another AlKhalil build or normalizer is never reused.
+     */
+    private static byte[] analyzerFingerprint() throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(ByteBuffer.allocate(4).putInt(ArabicTextUtils.NORMALIZATION_VERSION).array());
+        CodeSource source = AlKhalil2Analyzer.class.getProtectionDomain().getCodeSource();
+        URL location = source != null ? source.getLocation() : null;
+        if (location == null) {
+            throw new IOException("AlKhalil2Analyzer code source is unknown");
+        }
+        try (InputStream in = location.openStream()) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+
+    private MorphologicalAnalysis distill(ResultList resultList) {
+        if (resultList == null || resultList.getAllResults() == null || resultList.getAllResults().isEmpty()) {
+            return MorphologicalAnalysis.EMPTY;
+        }
+        Set<String> lemmaSet = new LinkedHashSet<>();
+        Set<String> rootSet = new LinkedHashSet<>();
+        Set<String> segments = new LinkedHashSet<>();
+        String partOfSpeech = null;
+        String stem = null;
+        String proclitic = null;
+        String enclitic = null;
+
+        for (Result result : resultList.getAllResults()) {
+            addIfNotBlank(lemmaSet, result.getLemma());
+            addIfNotBlank(rootSet, result.getRoot());
+
+            String cleanedStem = clean(result.getStem());
+            stem = pickFirstNonEmpty(stem, cleanedStem);
+
+            String posCandidate = clean(result.getPartOfSpeech());
+            partOfSpeech = pickFirstNonEmpty(partOfSpeech, posCandidate);
+
+            proclitic = pickFirstNonEmpty(proclitic, clean(result.getProclitic()));
+            enclitic = pickFirstNonEmpty(enclitic, clean(result.getEnclitic()));
+
+            if (proclitic != null && !proclitic.isEmpty()) {
+                segments.add(proclitic);
+            }
+            if (enclitic != null && !enclitic.isEmpty()) {
+                segments.add(enclitic);
+            }
+            if (cleanedStem != null && !cleanedStem.isEmpty()) {
+                segments.add(cleanedStem);
+            }
+        }
+
+        return new MorphologicalAnalysis(
+                new ArrayList<>(lemmaSet),
+                new ArrayList<>(rootSet),
+                new ArrayList<>(segments),
+                partOfSpeech,
+                stem,
+                proclitic,
+                enclitic);
+    }
+
+    private String pickFirstNonEmpty(String current, String candidate) {
+        if (current != null && !current.isEmpty()) {
+            return current;
+        }
+        if (candidate == null || candidate.isEmpty()) {
+            return current;
+        }
+        return candidate;
+    }
+
+    private String clean(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.trim();
+    }
+
+    private void addIfNotBlank(Set<String> target, String value) {
+        String cleaned = clean(value);
+        if (!cleaned.isEmpty()) {
+            target.add(cleaned);
+        }
+    }
+
+    /**
+     * Turns a normalized token into its analysis, returning {@code null} when
+     * the analysis failed and should be retried later.
+     */
+    @FunctionalInterface
+    public interface FormAnalyzer {
+        MorphologicalAnalysis analyze(String normalizedToken);
+    }
+
+    private static int resolveCacheSize() {
+        String configured = System.getProperty(CACHE_SIZE_PROPERTY);
+        if (configured != null && !configured.trim().isEmpty()) {
+            try {
+                return Math.max(1, Integer.parseInt(configured.trim()));
+            } catch (NumberFormatException ex) {
+                LOGGER.warn("Ignoring invalid {} value '{}'", CACHE_SIZE_PROPERTY, configured);
+            }
         }
+        return DEFAULT_CACHE_SIZE;
     }
 }
@@ -1,22 +1,48 @@
 package com.arabicpoetry.bll.service;
 
+import com.arabicpoetry.dal.dao.TermCountDAO;
+import com.arabicpoetry.model.Book;
 import com.arabicpoetry.model.Poem;
 import com.arabicpoetry.model.Verse;
 import com.arabicpoetry.model.linguistics.FrequencyEntry;
+import com.arabicpoetry.model.linguistics.FrequencyEstimate;
+import com.arabicpoetry.model.linguistics.FrequencyEstimates;
+import com.arabicpoetry.model.linguistics.FrequencyPage;
+import com.arabicpoetry.model.linguistics.FrequencyScope;
 import com.arabicpoetry.model.linguistics.IndexEntry;
+import com.arabicpoetry.model.linguistics.KeynessEntry;
+import com.arabicpoetry.model.linguistics.KeynessResult;
+import com.arabicpoetry.model.linguistics.LinguisticSearchMode;
+import com.arabicpoetry.model.linguistics.MorphologicalAnalysis;
+import com.arabicpoetry.model.linguistics.PoemTermCount;
 import com.arabicpoetry.model.linguistics.TokenAnalysis;
 import com.arabicpoetry.model.linguistics.VerseAnalysis;
 import com.arabicpoetry.testing.TestSupport;
+import com.arabicpoetry.util.ArabicTextUtils;
+import com.arabicpoetry.util.WordAnalyzer;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 class FrequencyServiceTest {
@@ -24,6 +50,7 @@ class FrequencyServiceTest {
     private FrequencyService service;
     private LinguisticAnalysisService linguisticService;
     private PoemService poemService;
+    private BookService bookService;
 
     @BeforeEach
     void setUp() throws SQLException {
@@ -31,30 +58,217 @@ class FrequencyServiceTest {
         service = FrequencyService.getInstance();
         linguisticService = Mockito.mock(LinguisticAnalysisService.class);
         poemService = Mockito.mock(PoemService.class);
+        bookService = Mockito.mock(BookService.class);
         service.setLinguisticService(linguisticService);
         service.setPoemService(poemService);
+        service.setBookService(bookService);
     }
 
     @Test
     void tokenFrequenciesByBookAggregatesTokens() throws Exception {
-        Poem poem = new Poem();
-        poem.setPoemId(1);
-        when(poemService.getPoemsByBook(10)).thenReturn(List.of(poem));
-
-        Verse verse = new Verse();
-        verse.setVerseId(5);
-        verse.setPoemId(1);
-        VerseAnalysis va = new VerseAnalysis(verse, tokenList("kitab", "kitab", "bait"));
-        when(linguisticService.getVerseAnalysesByPoem(1)).thenReturn(List.of(va));
+        analyze(Mockito.mock(VerseService.class), List.of(
+                new Verse(1, 1, 1, "كتاب كتاب بيت"),
+                new Verse(2, 2, 1, "بيت كتاب"),
+                new Verse(3, 3, 1, "كتاب قلم")));
+        when(poemService.getPoemsByBook(10)).thenReturn(List.of(poem(1), poem(2)));
 
         List<FrequencyEntry> entries = service.getTokenFrequenciesByBook(10);
 
-        assertEquals(2, entries.size());
+        // Frequencies are sorted by descending count, then term; poem 3 is in another book.
+        assertFrequencies(List.of("كتاب=3", "بيت=2"), entries);
+    }
+
+    @Test
+    void lemmaAndRootFrequenciesCountEveryCandidate() throws Exception {
+        analyze(Mockito.mock(VerseService.class), List.of(new Verse(1, 1, 1, "وحبيب حبيب")));
+
+        // Each token has its lemma twice, and an empty root besides its own.
+        assertFrequencies(List.of("حبيب=4"), service.getLemmaFrequenciesByPoem(1));
+        assertFrequencies(List.of("=2", "حبي=2"), service.getRootFrequenciesByPoem(1));
+    }
+
+    @Test
+    void frequenciesMergePerPoemCountsAndFollowEdits() throws Exception {
+        VerseService verseService = Mockito.mock(VerseService.class);
+        LinguisticAnalysisService analysisService = analyze(verseService);
+        when(poemService.getPoemsByBook(10)).thenReturn(List.of(poem(1), poem(2)));
+        when(poemService.getPoemsByPoet(5)).thenReturn(List.of(poem(2), poem(3)));
+
+        List<FrequencyEntry> tokens = service.getTokenFrequenciesByBook(10);
         // Frequencies are sorted by descending count, then term.
-        assertEquals("kitab", entries.get(0).getTerm());
-        assertEquals(2, entries.get(0).getCount());
-        assertEquals("bait", entries.get(1).getTerm());
-        assertEquals(1, entries.get(1).getCount());
+        assertEquals("حبيب", tokens.get(0).getTerm());
+        assertEquals(3, tokens.get(0).getCount());
+        assertFrequenciesMatchScan(analysisService);
+
+        ArgumentCaptor<VerseChangeListener> listener = ArgumentCaptor.forClass(VerseChangeListener.class);
+        verify(verseService, atLeastOnce()).addVerseChangeListener(listener.capture());
+        listener.getValue().verseChanged(VerseChangeEvent.created(new Verse(5, 2, 2, "منزل وحبيب")));
+        listener.getValue().verseChanged(VerseChangeEvent.updated(new Verse(1, 1, 1, "ومنزل")));
+        listener.getValue().verseChanged(VerseChangeEvent.deleted(4));
+
+        assertFrequenciesMatchScan(analysisService);
+        assertTrue(service.getRootFrequenciesByPoem(3).isEmpty());
+    }
+
+    @Test
+    void topFrequenciesPageTheScannedList() throws Exception {
+        LinguisticAnalysisService analysisService = analyze(Mockito.mock(VerseService.class));
+        when(poemService.getPoemsByBook(10)).thenReturn(List.of(poem(1), poem(2)));
+        List<String> lemmas = scan(analysisService, LinguisticSearchMode.LEMMA, 1, 2);
+
+        for (int n : new int[]{0, 1, 3, 50}) {
+            for (int offset : new int[]{0, 1, 4, lemmas.size() - 1, lemmas.size() + 2}) {
+                FrequencyPage page = service.topFrequencies(FrequencyScope.book(10), LinguisticSearchMode.LEMMA,
+                        n, offset);
+                int from = Math.min(offset, lemmas.size());
+                assertFrequencies(lemmas.subList(from, Math.min(lemmas.size(), from + n)), page.getEntries());
+                assertEquals(offset, page.getOffset());
+                assertEquals(lemmas.size(), page.getTotalTerms());
+                assertEquals(offset + n < lemmas.size(), page.hasMore());
+            }
+        }
+        assertFrequencies(scan(analysisService, LinguisticSearchMode.TOKEN, 1, 2, 3).subList(0, 2),
+                service.topFrequencies(FrequencyScope.corpus(), LinguisticSearchMode.TOKEN, 2, 0).getEntries());
+        assertFrequencies(scan(analysisService, LinguisticSearchMode.ROOT, 3),
+                service.topFrequencies(FrequencyScope.poem(3), LinguisticSearchMode.ROOT, 20, 0).getEntries());
+    }
+
+    @Test
+    void sketchedTopFrequenciesBoundTheExactCounts() throws Exception {
+        String[] words = {"قفا", "نبك", "من", "ذكرى", "حبيب", "منزل", "بسقط", "اللوى", "بين", "الدخول",
+                "حومل", "توضح", "المقراة", "لم", "يعف", "رسمها", "لما", "نسجتها", "جنوب", "شمال"};
+        String letters = "بتثجحخدذرزسشصضطظعغفقكلمنهي";
+        List<Verse> verses = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            // Word j occurs in every (j + 1)-th verse, and each verse has a word of its own.
+            StringBuilder text = new StringBuilder("ك").append(letters.charAt(i % letters.length()))
+                    .append(letters.charAt(i / letters.length()));
+            for (int j = 0; j < words.length; j++) {
+                if (i % (j + 1) == 0) {
+                    text.append(' ').append(words[j]);
+                }
+            }
+            verses.add(new Verse(i + 1, i / 20 + 1, i % 20 + 1, text.toString()));
+        }
+        VerseService verseService = Mockito.mock(VerseService.class);
+        LinguisticAnalysisService analysisService = analyze(verseService, verses);
+        analysisService.setSketchSettings(new TermSketches.Settings(16, 4, 8));
+
+        assertEstimatesBoundScan(analysisService, true);
+
+        ArgumentCaptor<VerseChangeListener> listener = ArgumentCaptor.forClass(VerseChangeListener.class);
+        verify(verseService, atLeastOnce()).addVerseChangeListener(listener.capture());
+        listener.getValue().verseChanged(VerseChangeEvent.created(new Verse(201, 11, 1, "حبيب حبيب منزل")));
+        listener.getValue().verseChanged(VerseChangeEvent.deleted(1));
+        assertEstimatesBoundScan(analysisService, false);
+        // Removing over a tenth of the occurrences recounts the sketches.
+        for (int poemId = 1; poemId <= 4; poemId++) {
+            listener.getValue().verseChanged(VerseChangeEvent.poemDeleted(poemId));
+        }
+        assertEstimatesBoundScan(analysisService, true);
+
+        analysisService.setSketchSettings(null);
+        analysisService.refresh();
+        FrequencyEstimates exact = service.estimateTopFrequencies(LinguisticSearchMode.TOKEN, 8);
+        assertTrue(exact.isExact());
+        List<String> top = new ArrayList<>();
+        for (FrequencyEstimate estimate : exact.getEstimates()) {
+            assertEquals(estimate.getCount(), estimate.getMinCount());
+            top.add(estimate.getTerm() + "=" + estimate.getCount());
+        }
+        assertEquals(scan(analysisService, LinguisticSearchMode.TOKEN, poemIds(1, 11)).subList(0, 8), top);
+    }
+
+    @Test
+    void keynessRanksTermsLikeAScanOfBothScopes() throws Exception {
+        LinguisticAnalysisService analysisService = analyze(Mockito.mock(VerseService.class));
+        when(poemService.getPoemsByBook(10)).thenReturn(List.of(poem(1), poem(2)));
+        when(poemService.getPoemsByBook(11)).thenReturn(List.of(poem(3)));
+        when(poemService.getPoemsByPoet(5)).thenReturn(List.of(poem(2), poem(3)));
+        when(bookService.getAllBooks()).thenReturn(List.of(
+                new Book(10, "A", null, " Jahili ", null), new Book(11, "B", null, "Abbasid", null)));
+
+        for (LinguisticSearchMode mode : new LinguisticSearchMode[]{
+                LinguisticSearchMode.TOKEN, LinguisticSearchMode.LEMMA, LinguisticSearchMode.ROOT}) {
+            for (int k : new int[]{0, 1, 3, 50}) {
+                assertKeyness(scan(analysisService, mode, 1, 2), scan(analysisService, mode, 2, 3), k,
+                        service.compareFrequencies(FrequencyScope.book(10), FrequencyScope.poet(5), mode, k));
+            }
+        }
+        assertKeyness(scan(analysisService, LinguisticSearchMode.LEMMA, 1, 2),
+                scan(analysisService, LinguisticSearchMode.LEMMA, 1, 2, 3), 50,
+                service.compareFrequencies(FrequencyScope.era("jahili"), FrequencyScope.corpus(),
+                        LinguisticSearchMode.LEMMA, 50));
+        assertKeyness(scan(analysisService, LinguisticSearchMode.ROOT, 1),
+                scan(analysisService, LinguisticSearchMode.ROOT, 3), 50,
+                service.compareFrequencies(FrequencyScope.poem(1), FrequencyScope.era("ABBASID"),
+                        LinguisticSearchMode.ROOT, 50));
+    }
+
+    @Test
+    void keynessBlocksOnAPoolRankLikeOneThread() {
+        // 10 in 100 target tokens against none in 100 reference tokens.
+        assertEquals(20 * Math.log(2), Keyness.logLikelihood(10, 0, 100, 100), 1e-9);
+        assertEquals(200.0 * 1000 * 1000 / (10.0 * 190 * 100 * 100), Keyness.chiSquare(10, 0, 100, 100), 1e-9);
+
+        List<String> names = new ArrayList<>();
+        int[] target = new int[3 * Keyness.TERMS_PER_TASK + 17];
+        int[] reference = new int[target.length];
+        Random random = new Random(7);
+        for (int term = 0; term < target.length; term++) {
+            names.add("t" + term);
+            // Mostly few distinct count pairs, so many scores tie across blocks.
+            target[term] = random.nextInt(term % 10 == 0 ? 200 : 4);
+            reference[term] = random.nextInt(term % 7 == 0 ? 300 : 6);
+        }
+        TermDictionary terms = TermDictionary.of(names);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int k : new int[]{1, 25, 1000}) {
+                KeynessResult parallel = Keyness.compare(target, reference, terms, k, pool);
+                KeynessResult sequential = Keyness.compare(target, reference, terms, k, null);
+                assertEquals(asStrings(sequential.getOverused(), true), asStrings(parallel.getOverused(), true));
+                assertEquals(asStrings(sequential.getUnderused(), true), asStrings(parallel.getUnderused(), true));
+                assertEquals(k, parallel.getOverused().size());
+                assertRankedByLogLikelihood(parallel.getOverused());
+                assertRankedByLogLikelihood(parallel.getUnderused());
+                assertEquals(sequential.getComparedTerms(), parallel.getComparedTerms());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void storedCountsAnswerLikeTheIndexWithoutLoadingIt() throws Exception {
+        VerseService verseService = Mockito.mock(VerseService.class);
+        LinguisticAnalysisService analysisService = analyze(verseService);
+        StoredTermCounts stored = new StoredTermCounts(
+                Map.of(1, new int[]{10, 4}, 2, new int[]{10, 5}, 3, new int[]{11, 5}),
+                Map.of(10, " Jahili ", 11, "Abbasid"));
+        analysisService.setTermCountWriter(new TermCountWriter(() -> stored, Runnable::run));
+        when(poemService.getPoemsByBook(10)).thenReturn(List.of(poem(1), poem(2)));
+        when(poemService.getPoemsByPoet(5)).thenReturn(List.of(poem(2), poem(3)));
+        when(bookService.getAllBooks()).thenReturn(List.of(
+                new Book(10, "A", null, " Jahili ", null), new Book(11, "B", null, "Abbasid", null)));
+
+        assertStoredReportsMatchIndex(analysisService, stored);
+        assertEquals(1, stored.fullWrites);
+
+        ArgumentCaptor<VerseChangeListener> listener = ArgumentCaptor.forClass(VerseChangeListener.class);
+        verify(verseService, atLeastOnce()).addVerseChangeListener(listener.capture());
+        listener.getValue().verseChanged(VerseChangeEvent.created(new Verse(5, 2, 2, "منزل وحبيب ونبك")));
+        listener.getValue().verseChanged(VerseChangeEvent.updated(new Verse(1, 1, 1, "ومنزل")));
+        listener.getValue().verseChanged(VerseChangeEvent.deleted(4));
+        assertStoredReportsMatchIndex(analysisService, stored);
+        assertEquals(1, stored.fullWrites);
+
+        // After a failed write the next one stores everything again.
+        stored.failNextWrite = true;
+        listener.getValue().verseChanged(VerseChangeEvent.deleted(2));
+        listener.getValue().verseChanged(VerseChangeEvent.created(new Verse(6, 3, 2, "نبك على منزل")));
+        assertEquals(2, stored.fullWrites);
+        assertStoredReportsMatchIndex(analysisService, stored);
     }
 
     @Test
@@ -79,14 +293,387 @@ class FrequencyServiceTest {
         assertEquals(3, anaEntries.get(1).getPosition());
     }
 
-    private List<TokenAnalysis> tokenList(String... tokens) {
-        List<TokenAnalysis> list = new ArrayList<>();
-        int pos = 0;
-        for (String t : tokens) {
-            pos++;
-            list.add(new TokenAnalysis(new Verse(), t, t, pos, List.of(), List.of(), List.of(), null, null, null, null));
+    /**
+     * Wire a real LinguisticAnalysisService over four verses of three poems
+     * into the service under test.
+     */
+    private LinguisticAnalysisService analyze(VerseService verseService) throws SQLException {
+        return analyze(verseService, List.of(
+                new Verse(1, 1, 1, "قفا نبك من ذكرى حبيب ومنزل"),
+                new Verse(2, 1, 2, "بسقط اللوى بين الدخول فحومل"),
+                new Verse(3, 2, 1, "حبيب حبيب ومنزل"),
+                new Verse(4, 3, 1, "فتوضح فالمقراة لم يعف رسمها")));
+    }
+
+    private LinguisticAnalysisService analyze(VerseService verseService, List<Verse> verses) throws SQLException {
+        LinguisticAnalysisService analysisService = LinguisticAnalysisService.getInstance();
+        WordAnalyzer wordAnalyzer = Mockito.mock(WordAnalyzer.class);
+        when(wordAnalyzer.analyze(anyString())).thenAnswer(invocation -> morphology(invocation.getArgument(0)));
+        analysisService.setVerseService(verseService);
+        analysisService.setWordAnalyzer(wordAnalyzer);
+        analysisService.setPoemService(poemService);
+        service.setLinguisticService(analysisService);
+        when(verseService.getAllVerses()).thenReturn(verses);
+        return analysisService;
+    }
+
+    /**
+     * Reports answered from the index and from {@code stored} are the
+     * same, and the stored answers never touch a linguistic service.
+     */
+    private void assertStoredReportsMatchIndex(LinguisticAnalysisService analysisService, StoredTermCounts stored)
+            throws Exception {
+        service.setTermCountDAO(null);
+        service.setLinguisticService(analysisService);
+        List<String> expected = reports();
+
+        LinguisticAnalysisService unused = Mockito.mock(LinguisticAnalysisService.class);
+        service.setTermCountDAO(stored);
+        service.setLinguisticService(unused);
+        try {
+            assertEquals(expected, reports());
+            verifyNoInteractions(unused);
+        } finally {
+            service.setTermCountDAO(null);
+            service.setLinguisticService(analysisService);
+        }
+    }
+
+    private List<String> reports() throws Exception {
+        List<String> reports = new ArrayList<>();
+        reports.addAll(asStrings(service.getTokenFrequenciesByPoem(1)));
+        reports.addAll(asStrings(service.getLemmaFrequenciesByBook(10)));
+        reports.addAll(asStrings(service.getRootFrequenciesByBook(10)));
+        reports.addAll(asStrings(service.getFrequenciesByPoet(LinguisticSearchMode.LEMMA, 5)));
+        reports.addAll(asStrings(service.getCorpusFrequencies(LinguisticSearchMode.TOKEN)));
+        for (FrequencyPage page : List.of(
+                service.topFrequencies(FrequencyScope.era("jahili"), LinguisticSearchMode.ROOT, 3, 1),
+                service.topFrequencies(FrequencyScope.corpus(), LinguisticSearchMode.LEMMA, 0, 2))) {
+            reports.addAll(asStrings(page.getEntries()));
+            reports.add(page.getOffset() + "/" + page.getTotalTerms());
+        }
+        FrequencyEstimates estimates = service.estimateTopFrequencies(LinguisticSearchMode.TOKEN, 3);
+        for (FrequencyEstimate estimate : estimates.getEstimates()) {
+            reports.add(estimate.getTerm() + "=" + estimate.getCount() + "/" + estimate.getMinCount());
+        }
+        reports.add(estimates.getTotalOccurrences() + " exact=" + estimates.isExact());
+        KeynessResult keyness = service.compareFrequencies(FrequencyScope.book(10), FrequencyScope.poet(5),
+                LinguisticSearchMode.LEMMA, 3);
+        reports.addAll(asStrings(keyness.getOverused(), true));
+        reports.addAll(asStrings(keyness.getUnderused(), true));
+        reports.add(keyness.getTargetTotal() + "/" + keyness.getReferenceTotal() + "/" + keyness.getComparedTerms());
+        return reports;
+    }
+
+    private void assertFrequenciesMatchScan(LinguisticAnalysisService analysisService) throws Exception {
+        assertFrequencies(scan(analysisService, LinguisticSearchMode.TOKEN, 1), service.getTokenFrequenciesByPoem(1));
+        assertFrequencies(scan(analysisService, LinguisticSearchMode.LEMMA, 1, 2), service.getLemmaFrequenciesByBook(10));
+        assertFrequencies(scan(analysisService, LinguisticSearchMode.ROOT, 1, 2), service.getRootFrequenciesByBook(10));
+        assertFrequencies(scan(analysisService, LinguisticSearchMode.LEMMA, 2, 3),
+                service.getFrequenciesByPoet(LinguisticSearchMode.LEMMA, 5));
+        assertFrequencies(scan(analysisService, LinguisticSearchMode.TOKEN, 1, 2, 3),
+                service.getCorpusFrequencies(LinguisticSearchMode.TOKEN));
+    }
+
+    /**
+     * Frequencies counted from the analyses of the given poems, each token
+     * counting once per normalized candidate, repeated and empty ones
+     * included, as "term=count" strings.
+     */
+    private List<String> scan(LinguisticAnalysisService analysisService, LinguisticSearchMode mode,
+                              int... poemIds) throws Exception {
+        Map<String, Integer> counts = new HashMap<>();
+        for (int poemId : poemIds) {
+            for (VerseAnalysis analysis : analysisService.getVerseAnalysesByPoem(poemId)) {
+                for (TokenAnalysis token : analysis.getTokens()) {
+                    if (mode == LinguisticSearchMode.TOKEN) {
+                        counts.merge(token.getNormalizedToken(), 1, Integer::sum);
+                    }
+                    List<String> values = mode == LinguisticSearchMode.LEMMA ? token.getLemmas()
+                            : mode == LinguisticSearchMode.ROOT ? token.getRoots() : List.of();
+                    for (String value : values) {
+                        counts.merge(ArabicTextUtils.normalizeToken(value), 1, Integer::sum);
+                    }
+                }
+            }
+        }
+        List<FrequencyEntry> entries = new ArrayList<>();
+        counts.forEach((term, count) -> entries.add(new FrequencyEntry(term, count)));
+        Collections.sort(entries);
+        return asStrings(entries);
+    }
+
+    /**
+     * Check every sketched estimate against the scanned counts: it lies
+     * within its bounds and overcounts by at most the error bound, and every
+     * term above the error bound is listed. Without removals since the
+     * sketches were counted, the bound is at most total / capacity.
+     */
+    private void assertEstimatesBoundScan(LinguisticAnalysisService analysisService, boolean countedAfresh)
+            throws Exception {
+        Map<String, Integer> exact = new HashMap<>();
+        long total = 0;
+        for (String entry : scan(analysisService, LinguisticSearchMode.TOKEN, poemIds(1, 11))) {
+            int count = Integer.parseInt(entry.substring(entry.indexOf('=') + 1));
+            exact.put(entry.substring(0, entry.indexOf('=')), count);
+            total += count;
+        }
+        FrequencyEstimates estimates = service.estimateTopFrequencies(LinguisticSearchMode.TOKEN, 20);
+        assertFalse(estimates.isExact());
+        assertEquals(total, estimates.getTotalOccurrences());
+        assertTrue(estimates.getEstimates().size() <= 8);
+        Set<String> listed = new HashSet<>();
+        long previous = Long.MAX_VALUE;
+        for (FrequencyEstimate estimate : estimates.getEstimates()) {
+            int count = exact.getOrDefault(estimate.getTerm(), 0);
+            assertTrue(estimate.getMinCount() <= count && count <= estimate.getCount(), estimate.getTerm());
+            assertTrue(estimate.getCount() - count <= estimates.getErrorBound(), estimate.getTerm());
+            assertTrue(estimate.getCount() <= previous);
+            previous = estimate.getCount();
+            listed.add(estimate.getTerm());
+        }
+        for (Map.Entry<String, Integer> entry : exact.entrySet()) {
+            assertTrue(entry.getValue() <= estimates.getErrorBound() || listed.contains(entry.getKey()),
+                    entry.getKey());
+        }
+        if (countedAfresh) {
+            assertTrue(estimates.getErrorBound() <= (total + 7) / 8);
+        }
+    }
+
+    private static int[] poemIds(int first, int last) {
+        int[] poemIds = new int[last - first + 1];
+        for (int i = 0; i < poemIds.length; i++) {
+            poemIds[i] = first + i;
+        }
+        return poemIds;
+    }
+
+    /**
+     * Check keyness against the scanned counts of both scopes: totals, G2
+     * and chi-square per term, and the k best terms per direction by G2,
+     * then term.
+     */
+    private static void assertKeyness(List<String> target, List<String> reference, int k, KeynessResult result) {
+        Map<String, Integer> targetCounts = counts(target);
+        Map<String, Integer> referenceCounts = counts(reference);
+        long c = 0;
+        long d = 0;
+        for (int count : targetCounts.values()) {
+            c += count;
+        }
+        for (int count : referenceCounts.values()) {
+            d += count;
+        }
+        assertEquals(c, result.getTargetTotal());
+        assertEquals(d, result.getReferenceTotal());
+        Set<String> compared = new HashSet<>(targetCounts.keySet());
+        compared.addAll(referenceCounts.keySet());
+        assertEquals(compared.size(), result.getComparedTerms());
+
+        List<KeynessEntry> overused = new ArrayList<>();
+        List<KeynessEntry> underused = new ArrayList<>();
+        for (String term : compared) {
+            int a = targetCounts.getOrDefault(term, 0);
+            int b = referenceCounts.getOrDefault(term, 0);
+            double g2 = 0;
+            if (a > 0) {
+                g2 += 2 * a * Math.log(a * (c + d) / ((double) c * (a + b)));
+            }
+            if (b > 0) {
+                g2 += 2 * b * Math.log(b * (c + d) / ((double) d * (a + b)));
+            }
+            if ((double) a / c != (double) b / d) {
+                boolean over = (double) a / c > (double) b / d;
+                (over ? overused : underused).add(new KeynessEntry(term, a, b, g2, 0, over));
+            }
+        }
+        Comparator<KeynessEntry> ranking = Comparator.comparingDouble(KeynessEntry::getLogLikelihood).reversed()
+                .thenComparing(KeynessEntry::getTerm);
+        overused.sort(ranking);
+        underused.sort(ranking);
+        assertEquals(asStrings(overused.subList(0, Math.min(k, overused.size())), false),
+                asStrings(result.getOverused(), false));
+        assertEquals(asStrings(underused.subList(0, Math.min(k, underused.size())), false),
+                asStrings(result.getUnderused(), false));
+        for (KeynessEntry entry : result.getOverused()) {
+            assertTrue(entry.isOverused());
+            assertEquals(Keyness.chiSquare(entry.getTargetCount(), entry.getReferenceCount(), c, d),
+                    entry.getChiSquare(), 1e-9);
+        }
+        for (KeynessEntry entry : result.getUnderused()) {
+            assertFalse(entry.isOverused());
+        }
+    }
+
+    private static void assertRankedByLogLikelihood(List<KeynessEntry> entries) {
+        for (int i = 1; i < entries.size(); i++) {
+            assertTrue(entries.get(i - 1).getLogLikelihood() >= entries.get(i).getLogLikelihood());
+        }
+    }
+
+    private static Map<String, Integer> counts(List<String> scanned) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String entry : scanned) {
+            int separator = entry.lastIndexOf('=');
+            counts.put(entry.substring(0, separator), Integer.parseInt(entry.substring(separator + 1)));
+        }
+        return counts;
+    }
+
+    // Term, counts and G2 to nine places, so that the scan's rounding does not matter.
+    private static List<String> asStrings(List<KeynessEntry> entries, boolean withChiSquare) {
+        List<String> strings = new ArrayList<>();
+        for (KeynessEntry entry : entries) {
+            strings.add(String.format("%s %d/%d %.9f", entry.getTerm(), entry.getTargetCount(),
+                    entry.getReferenceCount(), entry.getLogLikelihood())
+                    + (withChiSquare ? String.format(" %.9f", entry.getChiSquare()) : ""));
+        }
+        return strings;
+    }
+
+    private static void assertFrequencies(List<String> expected, List<FrequencyEntry> actual) {
+        assertEquals(expected, asStrings(actual));
+    }
+
+    private static List<String> asStrings(List<FrequencyEntry> entries) {
+        List<String> strings = new ArrayList<>();
+        for (FrequencyEntry entry : entries) {
+            strings.add(entry.getTerm() + "=" + entry.getCount());
+        }
+        return strings;
+    }
+
+    /**
+     * Lemmas drop a leading waw, twice over so duplicate candidates show;
+     * roots are the lemma's first three letters plus a bare fatha, which
+     * normalizes to an empty root.
+     */
+    private static MorphologicalAnalysis morphology(String token) {
+        String lemma = token.startsWith("و") && token.length() > 2 ? token.substring(1) : token;
+        String root = lemma.substring(0, Math.min(3, lemma.length()));
+        return new MorphologicalAnalysis(List.of(lemma, lemma), List.of(root, "\u064E"), null, null, null, null,
+                null);
+    }
+
+    private static Poem poem(int poemId) {
+        Poem poem = new Poem();
+        poem.setPoemId(poemId);
+        return poem;
+    }
+
+    /**
+     * Stored term counts kept in memory and added up like the queries of
+     * TermCountDAOImpl: poems resolve to their book and poet, books to
+     * their era.
+     */
+    private static final class StoredTermCounts implements TermCountDAO {
+        // Poem id -> {book id, poet id}.
+        private final Map<Integer, int[]> poems;
+        private final Map<Integer, String> eras;
+        private final List<String> terms = new ArrayList<>();
+        private final Map<Integer, List<PoemTermCount>> counts = new HashMap<>();
+        int fullWrites;
+        boolean failNextWrite;
+
+        StoredTermCounts(Map<Integer, int[]> poems, Map<Integer, String> eras) {
+            this.poems = poems;
+            this.eras = eras;
+        }
+
+        @Override
+        public void replaceAll(List<String> allTerms, Iterable<PoemTermCount> rows) throws SQLException {
+            checkWrite();
+            terms.clear();
+            terms.addAll(allTerms);
+            counts.clear();
+            store(rows);
+            fullWrites++;
+        }
+
+        @Override
+        public void insertTerms(List<String> allTerms, int fromId) throws SQLException {
+            checkWrite();
+            assertEquals(terms, allTerms.subList(0, fromId));
+            terms.addAll(allTerms.subList(fromId, allTerms.size()));
+        }
+
+        @Override
+        public void replacePoems(Collection<Integer> poemIds, Iterable<PoemTermCount> rows) throws SQLException {
+            checkWrite();
+            for (Integer poemId : poemIds) {
+                counts.remove(poemId);
+            }
+            store(rows);
+        }
+
+        @Override
+        public List<FrequencyEntry> findFrequencies(LinguisticSearchMode mode, FrequencyScope scope, int limit,
+                                                    int offset) {
+            Map<String, Integer> totals = new HashMap<>();
+            for (Map.Entry<Integer, List<PoemTermCount>> poem : counts.entrySet()) {
+                if (!inScope(poem.getKey(), scope)) {
+                    continue;
+                }
+                for (PoemTermCount row : poem.getValue()) {
+                    if (row.getMode() == mode) {
+                        totals.merge(terms.get(row.getTermId()), row.getCount(), Integer::sum);
+                    }
+                }
+            }
+            List<FrequencyEntry> entries = new ArrayList<>();
+            totals.forEach((term, count) -> entries.add(new FrequencyEntry(term, count)));
+            Collections.sort(entries);
+            int from = Math.min(offset, entries.size());
+            return new ArrayList<>(entries.subList(from, (int) Math.min(entries.size(), (long) from + limit)));
+        }
+
+        @Override
+        public int countTerms(LinguisticSearchMode mode, FrequencyScope scope) {
+            return findFrequencies(mode, scope, Integer.MAX_VALUE, 0).size();
+        }
+
+        @Override
+        public long countOccurrences(LinguisticSearchMode mode, FrequencyScope scope) {
+            long total = 0;
+            for (FrequencyEntry entry : findFrequencies(mode, scope, Integer.MAX_VALUE, 0)) {
+                total += entry.getCount();
+            }
+            return total;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private void store(Iterable<PoemTermCount> rows) {
+            for (PoemTermCount row : rows) {
+                assertTrue(row.getTermId() < terms.size());
+                counts.computeIfAbsent(row.getPoemId(), key -> new ArrayList<>()).add(row);
+            }
+        }
+
+        private boolean inScope(int poemId, FrequencyScope scope) {
+            switch (scope.getKind()) {
+                case POEM:
+                    return poemId == scope.getId();
+                case BOOK:
+                    return poems.get(poemId)[0] == scope.getId();
+                case POET:
+                    return poems.get(poemId)[1] == scope.getId();
+                case ERA:
+                    return eras.get(poems.get(poemId)[0]).trim().equalsIgnoreCase(scope.getEra());
+                default:
+                    return true;
+            }
+        }
+
+        private void checkWrite() throws SQLException {
+            if (failNextWrite) {
+                failNextWrite = false;
+                throw new SQLException("write failed");
+            }
         }
-        return list;
     }
 
     private List<TokenAnalysis> tokenListAtPositions(String[] tokens, int[] positions) {
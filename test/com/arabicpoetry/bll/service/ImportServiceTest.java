@@ -61,6 +61,8 @@ class ImportServiceTest {
             p.setPoemId(300);
             return null;
         }).when(poemService).createPoem(any(Poem.class));
+        when(verseService.runBatch(any())).thenAnswer(
+                invocation -> invocation.<VerseService.Batch<?>>getArgument(0).run());
     }
 
     @AfterEach
@@ -88,6 +90,7 @@ class ImportServiceTest {
         Mockito.verify(poetService, times(1)).createPoet(any(Poet.class));
         Mockito.verify(poemService, times(1)).createPoem(any(Poem.class));
         ArgumentCaptor<Verse> verseCaptor = ArgumentCaptor.forClass(Verse.class);
+        Mockito.verify(verseService, times(1)).runBatch(any());
         Mockito.verify(verseService, times(1)).createVerse(verseCaptor.capture());
         Verse captured = verseCaptor.getValue();
         assertTrue(captured.getText().contains("first"));
@@ -1,13 +1,33 @@
 package com.arabicpoetry.bll.service;
 
+import com.arabicpoetry.dal.dao.TermCountDAO;
+import com.arabicpoetry.model.Poem;
+import com.arabicpoetry.model.Verse;
+import com.arabicpoetry.model.linguistics.LinguisticMatch;
+import com.arabicpoetry.model.linguistics.LinguisticSearchMode;
+import com.arabicpoetry.model.linguistics.MorphologicalAnalysis;
+import com.arabicpoetry.model.linguistics.VerseAnalysis;
 import com.arabicpoetry.util.WordAnalyzer;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -41,4 +61,376 @@ class LinguisticAnalysisServiceTest {
         service.getAllTokens(); // after refresh, should rebuild
         verify(verseService, times(2)).getAllVerses();
     }
+
+    @Test
+    void parallelBuildMatchesSequentialBuild() throws Exception {
+        String[] lines = {
+                "قفا نبك من ذكرى حبيب ومنزل",
+                "بسقط اللوى بين الدخول فحومل",
+                "فتوضح فالمقراة لم يعف رسمها",
+                "لما نسجتها من جنوب وشمأل"
+        };
+        List<Verse> verses = new ArrayList<>();
+        for (int i = 0; i < 1500; i++) {
+            verses.add(new Verse(i + 1, i / 20 + 1, i % 20 + 1, lines[i % lines.length]));
+        }
+        when(verseService.getAllVerses()).thenReturn(verses);
+
+        service.setParallelism(1);
+        service.refresh();
+        List<String> sequentialTokens = service.getAllTokens();
+        List<Integer> sequentialHits = matchVerseIds(service.search("حبيب", LinguisticSearchMode.TOKEN));
+        List<Integer> sequentialOrder = analysisVerseIds(service.getAllVerseAnalyses());
+
+        service.setParallelism(4);
+        service.refresh();
+
+        assertEquals(sequentialTokens, service.getAllTokens());
+        assertEquals(sequentialHits, matchVerseIds(service.search("حبيب", LinguisticSearchMode.TOKEN)));
+        assertEquals(sequentialOrder, analysisVerseIds(service.getAllVerseAnalyses()));
+    }
+
+    @Test
+    void spellingsOfOneWordGetOneAnalysisInSerialAndParallelBuilds() throws Exception {
+        Set<String> analyzedForms = ConcurrentHashMap.newKeySet();
+        service.setWordAnalyzer(WordAnalyzer.withAnalyzer(form -> {
+            analyzedForms.add(form);
+            return new MorphologicalAnalysis(List.of("م" + form), List.of(), List.of(), null, null, null, null);
+        }, 1000));
+        // Alef spellings of one word, which normalize alike.
+        String[] lines = {"أمر الشاعر", "إمر الديوان", "امر"};
+        List<Verse> verses = new ArrayList<>();
+        for (int i = 0; i < 900; i++) {
+            verses.add(new Verse(i + 1, i / 20 + 1, i % 20 + 1, lines[i % lines.length]));
+        }
+        when(verseService.getAllVerses()).thenReturn(verses);
+
+        for (int parallelism : new int[] {1, 4}) {
+            service.setParallelism(parallelism);
+            service.refresh();
+            for (VerseAnalysis analysis : service.getAllVerseAnalyses()) {
+                assertEquals(List.of("مامر"), analysis.getTokens().get(0).getLemmas());
+            }
+            assertEquals(900, service.search("مامر", LinguisticSearchMode.LEMMA).size());
+        }
+        assertEquals(Set.of("امر", "الشاعر", "الديوان"), analyzedForms);
+    }
+
+    @Test
+    void refreshServesPreviousSnapshotUntilPublished() throws Exception {
+        List<Verse> before = List.of(new Verse(1, 1, 1, "قفا نبك"));
+        List<Verse> after = List.of(new Verse(1, 1, 1, "قفا نبك"), new Verse(2, 1, 2, "حبيب ومنزل"));
+        List<List<String>> seenDuringRefresh = new ArrayList<>();
+        when(verseService.getAllVerses())
+                .thenReturn(before)
+                .thenAnswer(invocation -> {
+                    seenDuringRefresh.add(service.getAllTokens());
+                    return after;
+                });
+
+        List<String> initial = service.getAllTokens();
+        service.refresh();
+
+        assertEquals(List.of(initial), seenDuringRefresh);
+        assertEquals(4, service.getAllTokens().size());
+        assertEquals(2, service.getAllVerseAnalyses().size());
+    }
+
+    @Test
+    void verseAndPoemLookupsFollowIndexedOrder() throws Exception {
+        when(verseService.getAllVerses()).thenReturn(List.of(
+                new Verse(11, 1, 1, "قفا نبك"),
+                new Verse(12, 1, 2, "من ذكرى"),
+                new Verse(21, 2, 1, "حبيب"),
+                new Verse(31, 3, 1, "ومنزل")));
+        PoemService poemService = Mockito.mock(PoemService.class);
+        service.setPoemService(poemService);
+        Poem third = new Poem();
+        third.setPoemId(3);
+        Poem first = new Poem();
+        first.setPoemId(1);
+        when(poemService.getPoemsByBook(7)).thenReturn(List.of(third, first));
+
+        assertEquals(21, service.getVerseAnalysis(21).getVerse().getVerseId());
+        assertNull(service.getVerseAnalysis(99));
+        assertEquals(List.of(11, 12), analysisVerseIds(service.getVerseAnalysesByPoem(1)));
+        assertTrue(service.getVerseAnalysesByPoem(99).isEmpty());
+        assertEquals(List.of(31, 11, 12), analysisVerseIds(service.getVerseAnalysesByBook(7)));
+    }
+
+    @Test
+    void editedPostingsStayInVerseOrder() throws Exception {
+        when(verseService.getAllVerses()).thenReturn(List.of(
+                new Verse(1, 1, 1, "حبيب ومنزل"),
+                new Verse(3, 1, 3, "حبيب حبيب")));
+        ArgumentCaptor<VerseChangeListener> listener = ArgumentCaptor.forClass(VerseChangeListener.class);
+        verify(verseService, atLeastOnce()).addVerseChangeListener(listener.capture());
+        assertEquals(List.of(1, 3, 3), matchVerseIds(service.search("حبيب", LinguisticSearchMode.TOKEN)));
+
+        listener.getValue().verseChanged(VerseChangeEvent.created(new Verse(2, 1, 2, "حبيب")));
+        listener.getValue().verseChanged(VerseChangeEvent.updated(new Verse(1, 1, 1, "ومنزل")));
+
+        assertEquals(List.of(2, 3, 3), matchVerseIds(service.search("حبيب", LinguisticSearchMode.TOKEN)));
+        assertEquals(List.of(1, 2, 3), analysisVerseIds(service.getAllVerseAnalyses()));
+        assertEquals(List.of(1), matchVerseIds(service.search("ومنزل", LinguisticSearchMode.TOKEN)));
+    }
+
+    @Test
+    void changingReturnedVersesLeavesTheIndexAlone() throws Exception {
+        Verse loaded = new Verse(1, 1, 1, "حبيب ومنزل");
+        when(verseService.getAllVerses()).thenReturn(List.of(loaded, new Verse(3, 1, 3, "حبيب")));
+        ArgumentCaptor<VerseChangeListener> listener = ArgumentCaptor.forClass(VerseChangeListener.class);
+        verify(verseService, atLeastOnce()).addVerseChangeListener(listener.capture());
+        service.getAllTokens();
+        // Out of verse order, so lookups sort their hits.
+        listener.getValue().verseChanged(VerseChangeEvent.created(new Verse(2, 1, 2, "ومنزل حبيب")));
+
+        loaded.setText("");
+        service.getVerseAnalysis(2).getVerse().setText("");
+        service.search("حبيب", LinguisticSearchMode.TOKEN).get(2).getVerse().setText("");
+        service.search("منزل", LinguisticSearchMode.STRING).get(0).getVerse().setVerseNumber(9);
+
+        assertEquals(List.of("1.1", "2.2", "3.1"), matchPositions(service.search("حبيب", LinguisticSearchMode.TOKEN)));
+        assertEquals(List.of(1, 2), matchVerseIds(service.search("منزل", LinguisticSearchMode.STRING)));
+        assertEquals("ومنزل حبيب", service.getVerseAnalysis(2).getVerse().getText());
+    }
+
+    @Test
+    void verseEventsGiveTheIndexOfAFullRebuild() throws Exception {
+        service.setWordAnalyzer(WordAnalyzer.withAnalyzer(LinguisticAnalysisServiceTest::prefixMorphology, 1000));
+        String[] lines = {
+                "قفا نبك من ذكرى حبيب ومنزل",
+                "بسقط اللوى بين الدخول فحومل",
+                "فتوضح فالمقراة لم يعف رسمها",
+                "لما نسجتها من جنوب وشمأل"
+        };
+        List<Verse> verses = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            verses.add(new Verse(i + 1, i / 10 + 1, i % 10 + 1, lines[i % lines.length]));
+        }
+        when(verseService.getAllVerses()).thenReturn(new ArrayList<>(verses));
+        ArgumentCaptor<VerseChangeListener> listener = ArgumentCaptor.forClass(VerseChangeListener.class);
+        verify(verseService, atLeastOnce()).addVerseChangeListener(listener.capture());
+        service.getAllTokens();
+
+        Verse created = new Verse(100, 2, 11, "حبيب جديد في القصيدة");
+        Verse inserted = new Verse(101, 3, 5, "بين الدخول وحومل");
+        Verse updated = new Verse(7, 1, 7, "ذكرى حبيب لم يعف");
+        listener.getValue().verseChanged(VerseChangeEvent.created(created));
+        listener.getValue().verseChanged(VerseChangeEvent.created(inserted));
+        listener.getValue().verseChanged(VerseChangeEvent.updated(updated));
+        listener.getValue().verseChanged(VerseChangeEvent.deleted(3));
+        listener.getValue().verseChanged(VerseChangeEvent.poemDeleted(4));
+        List<String> edited = describeIndex();
+
+        verses.add(created);
+        verses.add(inserted);
+        verses.set(6, updated);
+        verses.removeIf(verse -> verse.getVerseId() == 3 || verse.getPoemId() == 4);
+        verses.sort(Comparator.comparingInt(Verse::getPoemId).thenComparingInt(Verse::getVerseNumber));
+        when(verseService.getAllVerses()).thenReturn(verses);
+        service.refresh();
+
+        assertEquals(describeIndex(), edited);
+    }
+
+    @Test
+    void batchedVerseEventsGiveTheIndexOfAFullRebuild() throws Exception {
+        service.setWordAnalyzer(WordAnalyzer.withAnalyzer(LinguisticAnalysisServiceTest::prefixMorphology, 1000));
+        TermCountDAO termCounts = Mockito.mock(TermCountDAO.class);
+        service.setTermCountWriter(new TermCountWriter(() -> termCounts, Runnable::run));
+        String[] lines = {
+                "قفا نبك من ذكرى حبيب ومنزل",
+                "بسقط اللوى بين الدخول فحومل",
+                "فتوضح فالمقراة لم يعف رسمها"
+        };
+        List<Verse> verses = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            verses.add(new Verse(i + 1, i / 10 + 1, i % 10 + 1, lines[i % lines.length]));
+        }
+        when(verseService.getAllVerses()).thenReturn(new ArrayList<>(verses));
+        ArgumentCaptor<VerseChangeListener> listener = ArgumentCaptor.forClass(VerseChangeListener.class);
+        verify(verseService, atLeastOnce()).addVerseChangeListener(listener.capture());
+        service.getAllTokens();
+
+        Verse inserted = new Verse(101, 3, 5, "بين الدخول وحومل");
+        Verse updated = new Verse(7, 1, 7, "ذكرى حبيب لم يعف");
+        Verse reupdated = new Verse(100, 2, 11, "حبيب القصيدة الأخير");
+        // Updating a verse created in the batch, and deleting the poem of
+        // another, each start a further delta.
+        listener.getValue().versesChanged(List.of(
+                VerseChangeEvent.created(new Verse(100, 2, 11, "حبيب جديد في القصيدة")),
+                VerseChangeEvent.created(inserted),
+                VerseChangeEvent.updated(updated),
+                VerseChangeEvent.deleted(10),
+                VerseChangeEvent.updated(reupdated),
+                VerseChangeEvent.created(new Verse(102, 4, 11, "حبيب")),
+                VerseChangeEvent.poemDeleted(4)));
+        List<String> edited = describeIndex();
+
+        verify(termCounts, times(3)).replacePoems(any(), any());
+        assertNull(service.getVerseAnalysis(10));
+        assertNull(service.getVerseAnalysis(102));
+        verses.add(reupdated);
+        verses.add(inserted);
+        verses.set(6, updated);
+        verses.removeIf(verse -> verse.getVerseId() == 10 || verse.getPoemId() == 4);
+        verses.sort(Comparator.comparingInt(Verse::getPoemId).thenComparingInt(Verse::getVerseNumber));
+        when(verseService.getAllVerses()).thenReturn(verses);
+        service.refresh();
+
+        assertEquals(describeIndex(), edited);
+    }
+
+    @Test
+    void verseEventsDuringARebuildAreReplayed() throws Exception {
+        Verse original = new Verse(2, 1, 2, "بسقط اللوى");
+        List<Verse> verses = List.of(new Verse(1, 1, 1, "قفا نبك"), original);
+        ArgumentCaptor<VerseChangeListener> listener = ArgumentCaptor.forClass(VerseChangeListener.class);
+        verify(verseService, atLeastOnce()).addVerseChangeListener(listener.capture());
+        when(verseService.getAllVerses())
+                .thenReturn(verses)
+                .thenAnswer(invocation -> {
+                    // Edits committed by another thread while the rebuild reads
+                    // the verses it no longer sees.
+                    Thread editor = new Thread(() -> {
+                        listener.getValue().verseChanged(VerseChangeEvent.updated(new Verse(2, 1, 2, "حبيب ومنزل")));
+                        listener.getValue().verseChanged(VerseChangeEvent.created(new Verse(3, 1, 3, "حبيب")));
+                    });
+                    editor.start();
+                    editor.join();
+                    return verses;
+                });
+        service.getAllTokens();
+
+        service.refresh();
+
+        assertEquals(List.of("2.1", "3.1"), matchPositions(service.search("حبيب", LinguisticSearchMode.TOKEN)));
+        assertTrue(service.search("اللوى", LinguisticSearchMode.TOKEN).isEmpty());
+        assertEquals(List.of(1, 2, 3), analysisVerseIds(service.getAllVerseAnalyses()));
+    }
+
+    @Test
+    void literalAndRegexSearchMatchFullScan() throws Exception {
+        when(verseService.getAllVerses()).thenReturn(List.of(
+                new Verse(1, 1, 1, "قِفَا نَبْكِ مِنْ ذِكْرَى حَبِيبٍ"),
+                new Verse(2, 1, 2, "بسقط اللوى بين الدخول فحومل"),
+                new Verse(3, 2, 1, "حبيب ومنزل")));
+
+        assertEquals(List.of(1), matchVerseIds(service.search("نَبْكِ مِنْ", LinguisticSearchMode.STRING)));
+        assertEquals(List.of(3), matchVerseIds(service.search("حبيب", LinguisticSearchMode.STRING)));
+        assertTrue(service.search("حبيبة", LinguisticSearchMode.STRING).isEmpty());
+        assertEquals(List.of(2, 3), matchVerseIds(service.search("منزل|الدخول", LinguisticSearchMode.REGEX)));
+        assertEquals(List.of(2), matchVerseIds(service.search("ال(لوى)? بين", LinguisticSearchMode.REGEX)));
+        assertEquals(List.of(3), matchVerseIds(service.search("حب.ب و", LinguisticSearchMode.REGEX)));
+    }
+
+    @Test
+    void termListFindsEveryListedTermInOnePass() throws Exception {
+        when(verseService.getAllVerses()).thenReturn(List.of(
+                new Verse(1, 1, 1, "قِفَا نَبْكِ مِنْ ذِكْرَى حَبِيبٍ وَمَنْزِلِ"),
+                new Verse(2, 1, 2, "بسقط اللوى بين الدخول فحومل"),
+                new Verse(3, 2, 1, "حبيب حبيب")));
+
+        List<LinguisticMatch> matches = service.search("حبيب، منزل حبيب", LinguisticSearchMode.TERM_LIST);
+
+        assertEquals(List.of(1, 1, 3, 3), matchVerseIds(matches));
+        List<String> terms = new ArrayList<>();
+        for (LinguisticMatch match : matches) {
+            terms.add(match.getMatchedTerm());
+        }
+        assertEquals(List.of("حبيب", "منزل", "حبيب", "حبيب"), terms);
+        assertTrue(service.search(" ، ", LinguisticSearchMode.TERM_LIST).isEmpty());
+    }
+
+    @Test
+    void positionalQueriesMergePostings() throws Exception {
+        when(verseService.getAllVerses()).thenReturn(List.of(
+                new Verse(1, 1, 1, "قفا نبك من ذكرى حبيب ومنزل"),
+                new Verse(2, 1, 2, "حبيب قفا نبك"),
+                new Verse(3, 2, 1, "نبك وحده")));
+
+        assertEquals(List.of("1.1", "2.2"), matchPositions(service.search("\"قفا نبك\"", LinguisticSearchMode.QUERY)));
+        assertTrue(service.search("قفا NEAR/2 ذكرى", LinguisticSearchMode.QUERY).isEmpty());
+        assertEquals(List.of("1.1", "1.4"), matchPositions(service.search("قفا NEAR/3 ذكرى", LinguisticSearchMode.QUERY)));
+        assertEquals(List.of("3.1"), matchPositions(service.search("token:نبك NOT حبيب", LinguisticSearchMode.QUERY)));
+        assertEquals(List.of("1.5", "2.1", "3.2"), matchPositions(service.search("حبيب OR وحده", LinguisticSearchMode.QUERY)));
+        assertThrows(IllegalArgumentException.class, () -> service.search("NOT حبيب", LinguisticSearchMode.QUERY));
+    }
+
+    @Test
+    void termLookupsUseSortedDictionary() throws Exception {
+        when(verseService.getAllVerses()).thenReturn(List.of(
+                new Verse(1, 1, 1, "كتب الكاتبون كتابا"),
+                new Verse(2, 1, 2, "كتبوا يكتبون")));
+
+        assertEquals(List.of("الكاتبون", "كتابا", "كتب", "كتبوا", "يكتبون"), service.getAllTokens());
+        assertEquals(List.of("كتابا", "كتب", "كتبوا"), service.findTerms(LinguisticSearchMode.TOKEN, "كت*", 0, 10));
+        assertEquals(List.of("الكاتبون", "يكتبون"), service.findTerms(LinguisticSearchMode.TOKEN, "*ون", 0, 10));
+        assertEquals(List.of("كتب", "كتبوا"), service.findTerms(LinguisticSearchMode.TOKEN, "ك?ب*", 0, 10));
+        assertEquals(List.of("كتابا", "كتب"), service.findTerms(LinguisticSearchMode.TOKEN, "", 1, 2));
+        assertEquals(5, service.countTerms(LinguisticSearchMode.TOKEN, null));
+        assertEquals(List.of("1.2", "2.2"), matchPositions(service.search("*ون", LinguisticSearchMode.TOKEN)));
+    }
+
+    /**
+     * Every term of every mode with the positions it is found at, the verse
+     * order, and what the verse and poem lookups return.
+     */
+    private List<String> describeIndex() throws SQLException {
+        List<String> described = new ArrayList<>();
+        for (LinguisticSearchMode mode : List.of(LinguisticSearchMode.TOKEN, LinguisticSearchMode.LEMMA,
+                LinguisticSearchMode.ROOT, LinguisticSearchMode.SEGMENT)) {
+            for (String term : service.findTerms(mode, "", 0, Integer.MAX_VALUE)) {
+                List<String> positions = matchPositions(service.search(term, mode));
+                if (!positions.isEmpty()) {
+                    described.add(mode + " " + term + " " + positions);
+                }
+            }
+        }
+        List<Integer> verseIds = analysisVerseIds(service.getAllVerseAnalyses());
+        described.add("verses " + verseIds);
+        for (int verseId : verseIds) {
+            described.add("verse " + verseId + " " + service.getVerseAnalysis(verseId).getVerse().getText());
+        }
+        for (int poemId = 1; poemId <= 5; poemId++) {
+            described.add("poem " + poemId + " " + analysisVerseIds(service.getVerseAnalysesByPoem(poemId)));
+        }
+        return described;
+    }
+
+    // Lemma: the first three letters; root: the first two; segments: both halves.
+    private static MorphologicalAnalysis prefixMorphology(String form) {
+        String lemma = form.substring(0, Math.min(3, form.length()));
+        String root = form.substring(0, Math.min(2, form.length()));
+        int half = Math.max(1, form.length() / 2);
+        List<String> segments = half < form.length()
+                ? List.of(form.substring(0, half), form.substring(half))
+                : List.of(form);
+        return new MorphologicalAnalysis(List.of(lemma), List.of(root), segments, null, null, null, null);
+    }
+
+    private List<String> matchPositions(List<LinguisticMatch> matches) {
+        List<String> positions = new ArrayList<>();
+        for (LinguisticMatch match : matches) {
+            positions.add(match.getVerse().getVerseId() + "." + match.getTokenAnalysis().getPosition());
+        }
+        return positions;
+    }
+
+    private List<Integer> matchVerseIds(List<LinguisticMatch> matches) {
+        List<Integer> ids = new ArrayList<>();
+        for (LinguisticMatch match : matches) {
+            ids.add(match.getVerse().getVerseId());
+        }
+        return ids;
+    }
+
+    private List<Integer> analysisVerseIds(List<VerseAnalysis> analyses) {
+        List<Integer> ids = new ArrayList<>();
+        for (VerseAnalysis analysis : analyses) {
+            ids.add(analysis.getVerse().getVerseId());
+        }
+        return ids;
+    }
 }
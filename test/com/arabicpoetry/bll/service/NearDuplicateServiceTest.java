@@ -0,0 +1,116 @@
+package com.arabicpoetry.bll.service;
+
+import com.arabicpoetry.model.Verse;
+import com.arabicpoetry.util.NGramUtil;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+class NearDuplicateServiceTest {
+
+    private static final String[] LINES = {
+            "قفا نبك من ذكرى حبيب ومنزل",
+            "بسقط اللوى بين الدخول فحومل",
+            "فتوضح فالمقراة لم يعف رسمها",
+            "لما نسجتها من جنوب وشمأل",
+            "قفا نبك من ذكرى حبيب وعرفان",
+            "وقوفا بها صحبي علي مطيهم"
+    };
+
+    @TempDir
+    Path tempDir;
+
+    private NearDuplicateService service;
+    private List<Verse> verses;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        NearDuplicateService.resetInstance();
+        VerseService verseService = Mockito.mock(VerseService.class);
+        verses = new ArrayList<>();
+        for (int i = 0; i < 90; i++) {
+            // Every line recurs, some with a different ending.
+            String line = LINES[i % LINES.length];
+            String text = i % 4 == 0 ? line.substring(0, line.length() - 2) + "ها" : line;
+            verses.add(new Verse(i + 1, i / 10 + 1, i % 10 + 1, text));
+        }
+        when(verseService.getAllVerses()).thenReturn(verses);
+        service = NearDuplicateService.getInstance();
+        service.setVerseService(verseService);
+        service.setChunkSize(7);
+    }
+
+    @Test
+    void writesEveryPairAboveThresholdOnce() throws Exception {
+        Path output = tempDir.resolve("pairs.tsv");
+        service.setParallelism(4);
+
+        long pairs = service.findNearDuplicates(output, 0.7);
+
+        List<String> lines = Files.readAllLines(output);
+        assertEquals("verse_id_a\tverse_id_b\tscore", lines.get(0));
+        assertEquals(allPairs(0.7), lines.subList(1, lines.size()));
+        assertEquals(lines.size() - 1, pairs);
+        assertFalse(Files.exists(NearDuplicateService.checkpointFile(output)));
+    }
+
+    @Test
+    void interruptedRunResumesFromCheckpoint() throws Exception {
+        Path complete = tempDir.resolve("complete.tsv");
+        Path resumed = tempDir.resolve("resumed.tsv");
+        service.setParallelism(1);
+        service.findNearDuplicates(complete, 0.7);
+
+        service.setParallelism(3);
+        service.setChunkListener(chunk -> {
+            if (chunk == 4) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertThrows(InterruptedException.class, () -> service.findNearDuplicates(resumed, 0.7));
+        assertTrue(Files.exists(NearDuplicateService.checkpointFile(resumed)));
+        // A write that did not make it into the checkpoint is discarded.
+        Files.writeString(resumed, "partial", StandardOpenOption.APPEND);
+
+        List<Integer> chunks = new ArrayList<>();
+        service.setChunkListener(chunks::add);
+        long pairs = service.findNearDuplicates(resumed, 0.7);
+
+        assertEquals(5, (int) chunks.get(0));
+        assertEquals(Files.readString(complete), Files.readString(resumed));
+        assertEquals(allPairs(0.7).size(), pairs);
+    }
+
+    @Test
+    void rejectsThresholdsThatWouldListEveryPair() {
+        assertThrows(IllegalArgumentException.class,
+                () -> service.findNearDuplicates(tempDir.resolve("all.tsv"), 0.0));
+    }
+
+    private List<String> allPairs(double threshold) {
+        List<String> pairs = new ArrayList<>();
+        for (int b = 0; b < verses.size(); b++) {
+            long[] later = NGramUtil.packedCharNGrams(verses.get(b).getText(), 3);
+            for (int a = 0; a < b; a++) {
+                double score = NGramUtil.jaccardSimilarity(NGramUtil.packedCharNGrams(verses.get(a).getText(), 3), later);
+                if (score >= threshold) {
+                    pairs.add(verses.get(a).getVerseId() + "\t" + verses.get(b).getVerseId() + "\t" + score);
+                }
+            }
+        }
+        return pairs;
+    }
+}
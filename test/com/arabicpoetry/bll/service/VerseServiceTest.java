@@ -0,0 +1,100 @@
+package com.arabicpoetry.bll.service;
+
+import com.arabicpoetry.dal.dao.VerseDAO;
+import com.arabicpoetry.model.Verse;
+import com.arabicpoetry.testing.TestSupport;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.verify;
+
+class VerseServiceTest {
+
+    private VerseService service;
+    private VerseDAO verseDAO;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        TestSupport.resetSingletons();
+        service = VerseService.getInstance();
+        verseDAO = Mockito.mock(VerseDAO.class);
+        service.setVerseDAO(verseDAO);
+    }
+
+    @Test
+    void failingListenerDoesNotFailTheEdit() throws SQLException {
+        List<String> events = new ArrayList<>();
+        service.addVerseChangeListener(event -> {
+            throw new IllegalStateException("listener failed");
+        });
+        service.addVerseChangeListener(event -> events.add(event.getType().name()));
+        Verse verse = new Verse(1, 2, 1, "قفا نبك من ذكرى حبيب ومنزل");
+
+        service.createVerse(verse);
+        service.updateVerse(verse);
+        service.deleteVerse(1);
+        service.deleteVersesByPoem(2);
+
+        verify(verseDAO).create(verse);
+        verify(verseDAO).update(verse);
+        verify(verseDAO).delete(1);
+        verify(verseDAO).deleteByPoem(2);
+        assertEquals(List.of("CREATED", "UPDATED", "DELETED", "POEM_DELETED"), events);
+    }
+
+    @Test
+    void batchedEditsReachListenersOnceTheBatchEnds() throws Exception {
+        List<String> delivered = new ArrayList<>();
+        service.addVerseChangeListener(new VerseChangeListener() {
+            @Override
+            public void verseChanged(VerseChangeEvent event) {
+                delivered.add(event.getType().name());
+            }
+
+            @Override
+            public void versesChanged(List<VerseChangeEvent> events) {
+                List<String> types = new ArrayList<>();
+                for (VerseChangeEvent event : events) {
+                    types.add(event.getType().name());
+                }
+                delivered.add(types.toString());
+            }
+        });
+        List<String> oneAtATime = new ArrayList<>();
+        service.addVerseChangeListener(event -> oneAtATime.add(event.getType().name()));
+        Verse verse = new Verse(1, 2, 1, "قفا نبك من ذكرى حبيب ومنزل");
+
+        String result = service.runBatch(() -> {
+            service.createVerse(verse);
+            service.runBatch(() -> {
+                service.updateVerse(verse);
+                return null;
+            });
+            assertTrue(delivered.isEmpty());
+            return "done";
+        });
+        assertEquals("done", result);
+        assertEquals(List.of("[CREATED, UPDATED]"), delivered);
+        assertEquals(List.of("CREATED", "UPDATED"), oneAtATime);
+
+        // Edits committed before a failure are still delivered.
+        Mockito.doThrow(new SQLException("lost")).when(verseDAO).delete(2);
+        assertThrows(SQLException.class, () -> service.runBatch(() -> {
+            service.deleteVerse(1);
+            service.deleteVerse(2);
+            return null;
+        }));
+        assertEquals(List.of("[CREATED, UPDATED]", "[DELETED]"), delivered);
+
+        service.deleteVersesByPoem(2);
+        assertEquals("POEM_DELETED", delivered.get(2));
+    }
+}
@@ -0,0 +1,431 @@
+package com.arabicpoetry.bll.service;
+
+import com.arabicpoetry.model.Verse;
+import com.arabicpoetry.model.linguistics.FeatureSpace;
+import com.arabicpoetry.model.linguistics.SimilarityBlend;
+import com.arabicpoetry.model.linguistics.SimilarityMode;
+import com.arabicpoetry.model.linguistics.SimilaritySearchResult;
+import com.arabicpoetry.model.linguistics.VerseSimilarity;
+import com.arabicpoetry.util.ArabicTextUtils;
+import com.arabicpoetry.util.NGramUtil;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class VerseSimilarityServiceTest {
+
+    private static final String[] LINES = {
+            "قفا نبك من ذكرى حبيب ومنزل",
+            "بسقط اللوى بين الدخول فحومل",
+            "فتوضح فالمقراة لم يعف رسمها",
+            "لما نسجتها من جنوب وشمأل",
+            "قفا نبك من ذكرى حبيب وعرفان",
+            "وقوفا بها صحبي علي مطيهم"
+    };
+    private static final double[] THRESHOLDS = {0.0, 0.1, 0.3, 0.5, 0.6, 0.9, 1.0};
+
+    private VerseService verseService;
+    private List<Verse> verses;
+
+    @BeforeEach
+    void setUp() {
+        verseService = Mockito.mock(VerseService.class);
+        verses = new ArrayList<>();
+        for (int i = 0; i < 120; i++) {
+            // Mix halves of different lines so scores spread over the range.
+            String first = LINES[i % LINES.length];
+            String second = LINES[(i / LINES.length) % LINES.length];
+            verses.add(new Verse(i + 1, i / 10 + 1, i % 10 + 1,
+                    first.substring(0, first.length() / 2) + second.substring(second.length() / 2)));
+        }
+    }
+
+    @Test
+    void indexedSearchMatchesFullScan() throws Exception {
+        when(verseService.getAllVerses()).thenReturn(verses);
+        VerseSimilarityService service = new VerseSimilarityService(verseService, 3);
+
+        for (String query : LINES) {
+            for (double threshold : THRESHOLDS) {
+                assertEquals(fullScan(verses, query, threshold), describe(service.findSimilar(query, threshold)));
+            }
+        }
+        assertTrue(service.findSimilar("abc", 0.3).isEmpty());
+    }
+
+    @Test
+    void editsKeepIndexInStepWithFullScan() throws Exception {
+        when(verseService.getAllVerses()).thenReturn(verses);
+        VerseSimilarityService service = new VerseSimilarityService(verseService, 3);
+        ArgumentCaptor<VerseChangeListener> listener = ArgumentCaptor.forClass(VerseChangeListener.class);
+        verify(verseService).addVerseChangeListener(listener.capture());
+
+        List<Verse> expected = new ArrayList<>(verses);
+        Verse updated = new Verse(5, 1, 5, LINES[0]);
+        listener.getValue().verseChanged(VerseChangeEvent.updated(updated));
+        expected.replaceAll(verse -> verse.getVerseId() == 5 ? updated : verse);
+        // Deleting most verses also compacts the index.
+        for (int id = 10; id <= 100; id++) {
+            listener.getValue().verseChanged(VerseChangeEvent.deleted(id));
+            int deleted = id;
+            expected.removeIf(verse -> verse.getVerseId() == deleted);
+        }
+        Verse created = new Verse(500, 20, 1, LINES[4]);
+        listener.getValue().verseChanged(VerseChangeEvent.created(created));
+        expected.add(created);
+
+        for (String query : LINES) {
+            for (double threshold : THRESHOLDS) {
+                assertEquals(fullScan(expected, query, threshold), describe(service.findSimilar(query, threshold)));
+            }
+        }
+    }
+
+    @Test
+    void editsGiveTheResultsOfARebuiltIndex() throws Exception {
+        when(verseService.getAllVerses()).thenReturn(verses);
+        VerseSimilarityService service = new VerseSimilarityService(verseService, 3);
+        ArgumentCaptor<VerseChangeListener> listener = ArgumentCaptor.forClass(VerseChangeListener.class);
+        verify(verseService).addVerseChangeListener(listener.capture());
+        assertTrue(service.awaitReady(5, TimeUnit.SECONDS));
+
+        listener.getValue().verseChanged(VerseChangeEvent.updated(new Verse(5, 1, 5, LINES[0])));
+        listener.getValue().verseChanged(VerseChangeEvent.deleted(6));
+        listener.getValue().verseChanged(VerseChangeEvent.created(new Verse(500, 20, 1, LINES[4])));
+        listener.getValue().verseChanged(VerseChangeEvent.poemDeleted(3));
+
+        assertSameResults(rebuiltWith(editedVerses()), service);
+    }
+
+    @Test
+    void batchedEditsGiveTheResultsOfARebuiltIndex() throws Exception {
+        when(verseService.getAllVerses()).thenReturn(verses);
+        VerseSimilarityService service = new VerseSimilarityService(verseService, 3);
+        ArgumentCaptor<VerseChangeListener> listener = ArgumentCaptor.forClass(VerseChangeListener.class);
+        verify(verseService).addVerseChangeListener(listener.capture());
+        assertTrue(service.awaitReady(5, TimeUnit.SECONDS));
+
+        // Replacing a verse created earlier in the batch, and deleting the
+        // poem of another, each apply the edits before them first.
+        listener.getValue().versesChanged(List.of(
+                VerseChangeEvent.updated(new Verse(5, 1, 5, LINES[0])),
+                VerseChangeEvent.deleted(6),
+                VerseChangeEvent.created(new Verse(500, 20, 1, LINES[4])),
+                VerseChangeEvent.created(new Verse(501, 21, 1, LINES[1])),
+                VerseChangeEvent.updated(new Verse(501, 21, 1, LINES[3])),
+                VerseChangeEvent.created(new Verse(502, 22, 1, LINES[2])),
+                VerseChangeEvent.poemDeleted(22),
+                VerseChangeEvent.poemDeleted(3)));
+
+        List<Verse> expected = editedVerses();
+        expected.add(new Verse(501, 21, 1, LINES[3]));
+        assertSameResults(rebuiltWith(expected), service);
+    }
+
+    @Test
+    void editsDuringInitializationAreReplayed() throws Exception {
+        VerseSimilarityService service = new VerseSimilarityService(verseService, 3);
+        ArgumentCaptor<VerseChangeListener> listener = ArgumentCaptor.forClass(VerseChangeListener.class);
+        verify(verseService).addVerseChangeListener(listener.capture());
+        when(verseService.getAllVerses()).thenAnswer(invocation -> {
+            // Committed after the verses were read, before they are indexed.
+            listener.getValue().verseChanged(VerseChangeEvent.updated(new Verse(5, 1, 5, LINES[0])));
+            listener.getValue().verseChanged(VerseChangeEvent.deleted(6));
+            listener.getValue().verseChanged(VerseChangeEvent.created(new Verse(500, 20, 1, LINES[4])));
+            listener.getValue().verseChanged(VerseChangeEvent.poemDeleted(3));
+            return verses;
+        });
+        assertTrue(service.awaitReady(5, TimeUnit.SECONDS));
+
+        assertSameResults(rebuiltWith(editedVerses()), service);
+    }
+
+    @Test
+    void approximateSearchReturnsExactlyScoredSubset() throws Exception {
+        when(verseService.getAllVerses()).thenReturn(verses);
+        VerseSimilarityService service = new VerseSimilarityService(verseService, 3);
+
+        for (String query : LINES) {
+            List<String> exact = describe(service.findSimilar(query, 0.3));
+            List<String> approximate = describe(service.findSimilar(query, 0.3, SimilarityMode.APPROXIMATE));
+            assertTrue(exact.containsAll(approximate));
+            // Identical verses always share every bucket.
+            for (String match : exact) {
+                if (match.endsWith("=1.0")) {
+                    assertTrue(approximate.contains(match));
+                }
+            }
+        }
+        assertEquals(0.0, service.expectedRecall(0.0));
+        assertEquals(1.0, service.expectedRecall(1.0));
+    }
+
+    @Test
+    void lshParametersTradeCostForRecall() throws Exception {
+        when(verseService.getAllVerses()).thenReturn(verses);
+        VerseSimilarityService service = new VerseSimilarityService(verseService, 3);
+
+        service.setLshParameters(200, 1);
+        assertEquals(200, service.getLshBands());
+        assertEquals(1, service.getLshRows());
+        assertTrue(service.expectedRecall(0.3) > 0.99);
+        assertEquals(1.0, service.measureRecall(List.of(LINES), 0.3));
+        assertThrows(IllegalArgumentException.class, () -> service.setLshParameters(0, 3));
+    }
+
+    @Test
+    void topKIsPrefixOfFullRanking() throws Exception {
+        when(verseService.getAllVerses()).thenReturn(verses);
+        VerseSimilarityService service = new VerseSimilarityService(verseService, 3);
+
+        for (String query : LINES) {
+            for (double threshold : THRESHOLDS) {
+                List<String> all = fullScan(verses, query, threshold);
+                // k = 1 and 3 stop at the first levels; 200 exceeds every result set.
+                for (int k : new int[] {1, 3, 10, 200}) {
+                    assertEquals(all.subList(0, Math.min(k, all.size())), describe(service.findTopK(query, k, threshold)));
+                }
+            }
+        }
+        assertThrows(IllegalArgumentException.class, () -> service.findTopK(LINES[0], 0, 0.3));
+    }
+
+    @Test
+    void partitionedScoringMatchesSingleThreadAndCancels() throws Exception {
+        // Large enough to be split into several partitions.
+        List<Verse> many = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            String first = LINES[i % LINES.length];
+            String second = LINES[(i / 7) % LINES.length];
+            many.add(new Verse(i + 1, i / 10 + 1, i % 10 + 1,
+                    first.substring(0, first.length() / 2 + i % 3) + second.substring(second.length() / 2)));
+        }
+        when(verseService.getAllVerses()).thenReturn(many);
+        VerseSimilarityService service = new VerseSimilarityService(verseService, 3);
+
+        for (String query : LINES) {
+            for (double threshold : new double[] {0.0, 0.3}) {
+                service.setParallelism(1);
+                List<String> single = describe(service.findSimilar(query, threshold));
+                List<String> singleTop = describe(service.findTopK(query, 25, threshold));
+                service.setParallelism(4);
+                assertEquals(single, describe(service.findSimilar(query, threshold)));
+                assertEquals(singleTop, describe(service.findTopK(query, 25, threshold)));
+            }
+        }
+
+        for (int parallelism : new int[] {1, 4}) {
+            service.setParallelism(parallelism);
+            Thread.currentThread().interrupt();
+            assertThrows(CancellationException.class, () -> service.findSimilar(LINES[0], 0.0));
+            assertTrue(Thread.interrupted());
+        }
+    }
+
+    @Test
+    void searchesBeforeIndexIsBuiltArePartial() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        when(verseService.getAllVerses()).thenAnswer(invocation -> {
+            loading.await();
+            return verses;
+        });
+        VerseSimilarityService service = new VerseSimilarityService(verseService, 3);
+
+        SimilaritySearchResult early = service.searchTopK(LINES[0], 10, 0.3, SimilarityMode.EXACT, 50, TimeUnit.MILLISECONDS);
+        assertTrue(early.isPartial());
+        assertTrue(early.getMatches().isEmpty());
+        assertFalse(service.isReady());
+        assertEquals(0.0, service.getInitializationProgress());
+
+        loading.countDown();
+        assertTrue(service.awaitReady(5, TimeUnit.SECONDS));
+        SimilaritySearchResult complete = service.searchTopK(LINES[0], 10, 0.3, SimilarityMode.EXACT, 0, TimeUnit.SECONDS);
+        assertFalse(complete.isPartial());
+        assertEquals(verses.size(), complete.getIndexedVerses());
+        assertEquals(fullScan(verses, LINES[0], 0.3).subList(0, 10), describe(complete.getMatches()));
+        assertEquals(1.0, service.getInitializationProgress());
+    }
+
+    @Test
+    void failedIndexBuildIsReported() throws Exception {
+        when(verseService.getAllVerses()).thenThrow(new SQLException("connection refused"));
+        VerseSimilarityService service = new VerseSimilarityService(verseService, 3);
+
+        assertThrows(SQLException.class, () -> service.awaitReady(5, TimeUnit.SECONDS));
+        assertFalse(service.isReady());
+        assertThrows(IllegalStateException.class, () -> service.findSimilar(LINES[0], 0.3));
+    }
+
+    @Test
+    void featureSpacesAndBlendsMatchFullScan() throws Exception {
+        when(verseService.getAllVerses()).thenReturn(verses);
+        VerseSimilarityService service = new VerseSimilarityService(verseService, 3);
+        service.setLemmatizer(VerseSimilarityServiceTest::stemLemma);
+        ArgumentCaptor<VerseChangeListener> listener = ArgumentCaptor.forClass(VerseChangeListener.class);
+        verify(verseService).addVerseChangeListener(listener.capture());
+        assertTrue(service.awaitReady(5, TimeUnit.SECONDS));
+
+        // Edits made before a space is first used must reach it too.
+        List<Verse> expected = new ArrayList<>(verses);
+        Verse updated = new Verse(7, 1, 7, LINES[3]);
+        listener.getValue().verseChanged(VerseChangeEvent.updated(updated));
+        expected.replaceAll(verse -> verse.getVerseId() == 7 ? updated : verse);
+        listener.getValue().verseChanged(VerseChangeEvent.deleted(8));
+        expected.removeIf(verse -> verse.getVerseId() == 8);
+
+        Map<FeatureSpace, Double> weights = new LinkedHashMap<>();
+        // Word bigrams come first, but most matches only qualify on the others.
+        weights.put(FeatureSpace.tokens(2), 1.0);
+        weights.put(FeatureSpace.characters(2), 2.0);
+        weights.put(FeatureSpace.lemmas(1), 1.0);
+        List<SimilarityBlend> blends = new ArrayList<>();
+        for (FeatureSpace space : FeatureSpace.PRESETS) {
+            blends.add(SimilarityBlend.of(space));
+        }
+        blends.add(SimilarityBlend.of(weights));
+
+        for (int round = 0; round < 2; round++) {
+            for (SimilarityBlend blend : blends) {
+                for (String query : LINES) {
+                    for (double threshold : new double[] {0.0, 0.3, 0.6}) {
+                        List<String> all = fullScan(expected, query, threshold, blend);
+                        assertEquals(all, describe(service.findSimilar(query, blend, threshold, SimilarityMode.EXACT)));
+                        assertEquals(all.subList(0, Math.min(5, all.size())),
+                                describe(service.findTopK(query, blend, 5, threshold, SimilarityMode.EXACT)));
+                    }
+                }
+            }
+            // Every space is now indexed and kept up to date incrementally.
+            Verse created = new Verse(501, 20, 2, LINES[1] + " " + LINES[4]);
+            listener.getValue().verseChanged(VerseChangeEvent.created(created));
+            expected.add(created);
+        }
+
+        verify(verseService, times(1)).getAllVerses();
+        assertEquals(FeatureSpace.characters(3), service.getIndexedFeatureSpaces().get(0));
+        assertTrue(service.getIndexedFeatureSpaces().containsAll(FeatureSpace.PRESETS));
+        SimilarityBlend tooLong = SimilarityBlend.of(FeatureSpace.characters(6));
+        assertThrows(IllegalArgumentException.class, () -> service.findSimilar(LINES[0], tooLong, 0.3, SimilarityMode.EXACT));
+        assertThrows(IllegalArgumentException.class, () -> SimilarityBlend.of(Map.of(FeatureSpace.tokens(1), 0.0)));
+    }
+
+    // The verses after the edits of the two edit tests, in table order.
+    private List<Verse> editedVerses() {
+        List<Verse> edited = new ArrayList<>();
+        for (Verse verse : verses) {
+            if (verse.getVerseId() == 5) {
+                edited.add(new Verse(5, 1, 5, LINES[0]));
+            } else if (verse.getVerseId() != 6 && verse.getPoemId() != 3) {
+                edited.add(verse);
+            }
+        }
+        edited.add(new Verse(500, 20, 1, LINES[4]));
+        return edited;
+    }
+
+    private static VerseSimilarityService rebuiltWith(List<Verse> verses) throws Exception {
+        VerseService rebuiltSource = Mockito.mock(VerseService.class);
+        when(rebuiltSource.getAllVerses()).thenReturn(verses);
+        VerseSimilarityService rebuilt = new VerseSimilarityService(rebuiltSource, 3);
+        assertTrue(rebuilt.awaitReady(5, TimeUnit.SECONDS));
+        return rebuilt;
+    }
+
+    private static void assertSameResults(VerseSimilarityService expected, VerseSimilarityService actual) {
+        for (String query : LINES) {
+            for (double threshold : THRESHOLDS) {
+                assertEquals(describe(expected.findSimilar(query, threshold)),
+                        describe(actual.findSimilar(query, threshold)));
+                assertEquals(describe(expected.findTopK(query, 5, threshold)),
+                        describe(actual.findTopK(query, 5, threshold)));
+            }
+        }
+    }
+
+    private static List<String> fullScan(List<Verse> verses, String query, double threshold) {
+        long[] queryNGrams = NGramUtil.packedCharNGrams(query, 3);
+        List<VerseSimilarity> results = new ArrayList<>();
+        for (Verse verse : verses) {
+            double score = NGramUtil.jaccardSimilarity(queryNGrams, NGramUtil.packedCharNGrams(verse.getText(), 3));
+            if (score >= threshold) {
+                results.add(new VerseSimilarity(verse, score));
+            }
+        }
+        Collections.sort(results);
+        return describe(results);
+    }
+
+    private static List<String> fullScan(List<Verse> verses, String query, double threshold, SimilarityBlend blend) {
+        double total = 0;
+        for (double weight : blend.getWeights().values()) {
+            total += weight;
+        }
+        List<VerseSimilarity> results = new ArrayList<>();
+        for (Verse verse : verses) {
+            double score = 0;
+            for (Map.Entry<FeatureSpace, Double> entry : blend.getWeights().entrySet()) {
+                score += entry.getValue() / total * jaccard(entry.getKey(), query, verse.getText());
+            }
+            if (score >= threshold) {
+                results.add(new VerseSimilarity(verse, score));
+            }
+        }
+        Collections.sort(results);
+        return describe(results);
+    }
+
+    private static double jaccard(FeatureSpace space, String a, String b) {
+        if (space.getUnit() == FeatureSpace.Unit.CHARACTER) {
+            return NGramUtil.jaccardSimilarity(NGramUtil.packedCharNGrams(a, space.getN()),
+                    NGramUtil.packedCharNGrams(b, space.getN()));
+        }
+        return NGramUtil.jaccardSimilarity(units(space, a), units(space, b));
+    }
+
+    private static Set<String> units(FeatureSpace space, String text) {
+        List<String> units = new ArrayList<>();
+        for (String token : text.split("[^\\p{IsArabic}]+")) {
+            String unit = space.getUnit() == FeatureSpace.Unit.LEMMA
+                    ? stemLemma(token)
+                    : ArabicTextUtils.normalizeToken(token);
+            if (!unit.isEmpty()) {
+                units.add(unit);
+            }
+        }
+        return NGramUtil.toSet(NGramUtil.tokenNGrams(units, space.getN()));
+    }
+
+    // Stands in for the morphological analyzer: drops the definite article.
+    private static String stemLemma(String token) {
+        String normalized = ArabicTextUtils.normalizeToken(token);
+        return normalized.length() > 3 && normalized.startsWith("ال") ? normalized.substring(2) : normalized;
+    }
+
+    private static List<String> describe(List<VerseSimilarity> results) {
+        List<String> described = new ArrayList<>();
+        for (VerseSimilarity result : results) {
+            described.add(result.getVerse().getVerseId() + "=" + result.getSimilarityScore());
+        }
+        return described;
+    }
+}
@@ -0,0 +1,145 @@
+package com.arabicpoetry.dal.dao;
+
+import com.arabicpoetry.dal.dao.impl.BookDAOImpl;
+import com.arabicpoetry.dal.dao.impl.PoemDAOImpl;
+import com.arabicpoetry.dal.dao.impl.PoetDAOImpl;
+import com.arabicpoetry.dal.dao.impl.TermCountDAOImpl;
+import com.arabicpoetry.model.Book;
+import com.arabicpoetry.model.Poem;
+import com.arabicpoetry.model.Poet;
+import com.arabicpoetry.model.linguistics.FrequencyEntry;
+import com.arabicpoetry.model.linguistics.FrequencyScope;
+import com.arabicpoetry.model.linguistics.LinguisticSearchMode;
+import com.arabicpoetry.model.linguistics.PoemTermCount;
+import com.arabicpoetry.testing.TestSupport;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TermCountDAOImplIntegrationTest {
+
+    private TermCountDAOImpl termCountDao;
+    private PoemDAOImpl poemDao;
+    private BookDAOImpl bookDao;
+    private PoetDAOImpl poetDao;
+
+    private final List<Integer> poemIds = new ArrayList<>();
+    private Integer bookId;
+    private Integer poetId;
+    private String era;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        TestSupport.useTestDatabaseConfig();
+        bookDao = new BookDAOImpl();
+        poetDao = new PoetDAOImpl();
+        poemDao = new PoemDAOImpl();
+        termCountDao = new TermCountDAOImpl();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        termCountDao.replaceAll(List.of(), List.of());
+        for (Integer poemId : poemIds) {
+            poemDao.delete(poemId);
+        }
+        if (bookId != null) {
+            bookDao.delete(bookId);
+        }
+        if (poetId != null) {
+            poetDao.delete(poetId);
+        }
+    }
+
+    @Test
+    void storedCountsAddUpPerScope() throws SQLException {
+        era = "Era-" + UUID.randomUUID();
+        Book book = new Book();
+        book.setTitle("Book-" + UUID.randomUUID());
+        book.setEra(" " + era + " ");
+        bookDao.create(book);
+        bookId = book.getBookId();
+
+        Poet poet = new Poet();
+        poet.setName("Poet-" + UUID.randomUUID());
+        poetDao.create(poet);
+        poetId = poet.getPoetId();
+
+        int first = createPoem(bookId, poetId);
+        int second = createPoem(bookId, null);
+
+        termCountDao.replaceAll(List.of("قلب", "حب", "ليل"), List.of(
+                new PoemTermCount(first, LinguisticSearchMode.TOKEN, 0, 2),
+                new PoemTermCount(first, LinguisticSearchMode.TOKEN, 1, 1),
+                new PoemTermCount(first, LinguisticSearchMode.ROOT, 0, 2),
+                new PoemTermCount(second, LinguisticSearchMode.TOKEN, 1, 3),
+                new PoemTermCount(second, LinguisticSearchMode.TOKEN, 2, 1)));
+
+        assertEntries(List.of("قلب=2", "حب=1"), termCountDao.findFrequencies(LinguisticSearchMode.TOKEN,
+                FrequencyScope.poem(first), Integer.MAX_VALUE, 0));
+        assertEntries(List.of("حب=4", "قلب=2", "ليل=1"), termCountDao.findFrequencies(LinguisticSearchMode.TOKEN,
+                FrequencyScope.book(bookId), Integer.MAX_VALUE, 0));
+        assertEntries(List.of("قلب=2"), termCountDao.findFrequencies(LinguisticSearchMode.TOKEN,
+                FrequencyScope.poet(poetId), 1, 0));
+        assertEntries(List.of("قلب=2", "ليل=1"), termCountDao.findFrequencies(LinguisticSearchMode.TOKEN,
+                FrequencyScope.era(era.toUpperCase()), 5, 1));
+        assertEntries(List.of("قلب=2"), termCountDao.findFrequencies(LinguisticSearchMode.ROOT,
+                FrequencyScope.corpus(), Integer.MAX_VALUE, 0));
+        assertTrue(termCountDao.findFrequencies(LinguisticSearchMode.LEMMA, FrequencyScope.corpus(),
+                Integer.MAX_VALUE, 0).isEmpty());
+        assertEquals(3, termCountDao.countTerms(LinguisticSearchMode.TOKEN, FrequencyScope.era(era)));
+        assertEquals(7, termCountDao.countOccurrences(LinguisticSearchMode.TOKEN, FrequencyScope.corpus()));
+
+        termCountDao.insertTerms(List.of("قلب", "حب", "ليل", "نجم"), 3);
+        termCountDao.replacePoems(List.of(second), List.of(
+                new PoemTermCount(second, LinguisticSearchMode.TOKEN, 3, 5)));
+
+        assertEntries(List.of("نجم=5", "قلب=2", "حب=1"), termCountDao.findFrequencies(LinguisticSearchMode.TOKEN,
+                FrequencyScope.book(bookId), Integer.MAX_VALUE, 0));
+
+        poemDao.delete(second);
+        poemIds.remove(Integer.valueOf(second));
+        assertEquals(3, termCountDao.countOccurrences(LinguisticSearchMode.TOKEN, FrequencyScope.corpus()));
+    }
+
+    @Test
+    void termsLongerThanTheColumnAreStoredCut() throws SQLException {
+        int poem = createPoem(null, null);
+        String longTerm = "ب".repeat(300);
+        String otherLongTerm = longTerm + "ت";
+
+        termCountDao.replaceAll(List.of("قلب", longTerm, otherLongTerm), List.of(
+                new PoemTermCount(poem, LinguisticSearchMode.TOKEN, 1, 2),
+                new PoemTermCount(poem, LinguisticSearchMode.TOKEN, 2, 1)));
+
+        String cut = "ب".repeat(255);
+        assertEntries(List.of(cut + "=2", cut + "=1"), termCountDao.findFrequencies(LinguisticSearchMode.TOKEN,
+                FrequencyScope.poem(poem), Integer.MAX_VALUE, 0));
+        assertEquals(2, termCountDao.countTerms(LinguisticSearchMode.TOKEN, FrequencyScope.poem(poem)));
+    }
+
+    private int createPoem(Integer bookId, Integer poetId) throws SQLException {
+        Poem poem = new Poem();
+        poem.setTitle("Poem-" + UUID.randomUUID());
+        poem.setBookId(bookId);
+        poem.setPoetId(poetId);
+        poemDao.create(poem);
+        poemIds.add(poem.getPoemId());
+        return poem.getPoemId();
+    }
+
+    private static void assertEntries(List<String> expected, List<FrequencyEntry> actual) {
+        List<String> strings = new ArrayList<>();
+        for (FrequencyEntry entry : actual) {
+            strings.add(entry.getTerm() + "=" + entry.getCount());
+        }
+        assertEquals(expected, strings);
+    }
+}
@@ -3,10 +3,17 @@ package com.arabicpoetry.presentation.fx.analysis;
 import com.arabicpoetry.bll.service.BookService;
 import com.arabicpoetry.bll.service.FrequencyService;
 import com.arabicpoetry.bll.service.PoemService;
+import com.arabicpoetry.bll.service.PoetService;
 import com.arabicpoetry.model.Poem;
 import com.arabicpoetry.model.linguistics.FrequencyEntry;
+import com.arabicpoetry.model.linguistics.FrequencyPage;
+import com.arabicpoetry.model.linguistics.FrequencyScope;
+import com.arabicpoetry.model.linguistics.KeynessEntry;
+import com.arabicpoetry.model.linguistics.KeynessResult;
+import com.arabicpoetry.model.linguistics.LinguisticSearchMode;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
+import javafx.scene.control.ComboBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.TableView;
 import javafx.stage.Stage;
@@ -15,9 +22,14 @@ import org.mockito.Mockito;
 import org.testfx.framework.junit5.ApplicationTest;
 import org.testfx.util.WaitForAsyncUtils;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testfx.assertions.api.Assertions.assertThat;
 
@@ -25,23 +37,39 @@ class FrequencyAnalysisControllerTest extends ApplicationTest {
     private FrequencyService frequencyService;
     private PoemService poemService;
     private BookService bookService;
+    private PoetService poetService;
 
     @Override
     public void start(Stage stage) throws Exception {
         frequencyService = Mockito.mock(FrequencyService.class);
         poemService = Mockito.mock(PoemService.class);
         bookService = Mockito.mock(BookService.class);
+        poetService = Mockito.mock(PoetService.class);
 
         Poem poem = new Poem();
         poem.setPoemId(1);
         poem.setTitle("Mock Poem");
 
-        when(poemService.getAllPoems()).thenReturn(List.of(poem));
-        when(frequencyService.getTokenFrequenciesByPoem(1))
-                .thenReturn(List.of(new FrequencyEntry("word", 2)));
+        Poem longPoem = new Poem();
+        longPoem.setPoemId(2);
+        longPoem.setTitle("Long Poem");
+
+        when(poemService.getAllPoems()).thenReturn(List.of(poem, longPoem));
+        when(frequencyService.topFrequencies(FrequencyScope.poem(1), LinguisticSearchMode.TOKEN,
+                FrequencyAnalysisController.PAGE_SIZE, 0))
+                .thenReturn(new FrequencyPage(List.of(new FrequencyEntry("word", 2)), 0, 1));
+        when(frequencyService.topFrequencies(eq(FrequencyScope.poem(2)), eq(LinguisticSearchMode.TOKEN),
+                anyInt(), anyInt()))
+                .thenAnswer(invocation -> page(invocation.getArgument(2), invocation.getArgument(3), 450));
+        when(frequencyService.compareFrequencies(FrequencyScope.poem(1), FrequencyScope.corpus(),
+                LinguisticSearchMode.TOKEN, FrequencyAnalysisController.KEYNESS_SIZE))
+                .thenReturn(new KeynessResult(
+                        List.of(new KeynessEntry("word", 2, 3, 7.5, 6.25, true)),
+                        List.of(new KeynessEntry("other", 0, 40, 4.1, 3.9, false)), 10, 500, 2));
 
         FXMLLoader loader = new FXMLLoader(getClass().getResource("/com/arabicpoetry/presentation/fx/analysis/FrequencyAnalysisView.fxml"));
-        loader.setControllerFactory(cls -> new FrequencyAnalysisController(frequencyService, poemService, bookService));
+        loader.setControllerFactory(cls -> new FrequencyAnalysisController(frequencyService, poemService, bookService,
+                poetService));
         stage.setScene(new Scene(loader.load()));
         stage.show();
     }
@@ -58,4 +86,55 @@ class FrequencyAnalysisControllerTest extends ApplicationTest {
         assertThat(table.getItems()).hasSize(1);
         assertThat(status.getText()).contains("Found 1");
     }
+
+    @Test
+    void scrollingToTheLastRowLoadsTheNextPage() throws Exception {
+        ComboBox<Object> items = lookup("#itemCombo").query();
+        interact(() -> items.getSelectionModel().select(1));
+        clickOn("#analyzeButton");
+        WaitForAsyncUtils.waitForFxEvents();
+        WaitForAsyncUtils.sleep(150, TimeUnit.MILLISECONDS);
+
+        TableView<FrequencyAnalysisController.FrequencyRow> table = lookup("#resultTable").queryTableView();
+        Label status = lookup("#statusLabel").query();
+        assertThat(table.getItems()).hasSize(200);
+        assertThat(status.getText()).contains("Found 450").contains("top 200");
+
+        for (int loaded : new int[]{400, 450}) {
+            interact(() -> table.scrollTo(table.getItems().size() - 1));
+            WaitForAsyncUtils.waitForFxEvents();
+            WaitForAsyncUtils.sleep(150, TimeUnit.MILLISECONDS);
+            assertThat(table.getItems()).hasSize(loaded);
+        }
+        assertThat(table.getItems().get(449).rank()).isEqualTo(450);
+        assertThat(status.getText()).isEqualTo("Found 450 unique tokens");
+        verify(frequencyService, never()).topFrequencies(eq(FrequencyScope.poem(2)), eq(LinguisticSearchMode.TOKEN),
+                anyInt(), eq(450));
+    }
+
+    @Test
+    void comparePoemWithCorpusListsOverAndUnderusedTerms() {
+        clickOn("#compareButton");
+        WaitForAsyncUtils.waitForFxEvents();
+        WaitForAsyncUtils.sleep(150, TimeUnit.MILLISECONDS);
+
+        TableView<FrequencyAnalysisController.KeynessRow> table = lookup("#keynessTable").queryTableView();
+        Label status = lookup("#statusLabel").query();
+        assertThat(table.getItems()).hasSize(2);
+        assertThat(table.getItems().get(0).use()).isEqualTo("Over");
+        assertThat(table.getItems().get(0).term()).isEqualTo("word");
+        assertThat(table.getItems().get(1).use()).isEqualTo("Under");
+        assertThat(status.getText()).isEqualTo("Compared 2 tokens: 1 overused, 1 underused");
+    }
+
+    /**
+     * Page of a list of {@code total} terms counted total, total - 1, ...
+     */
+    private static FrequencyPage page(int n, int offset, int total) {
+        List<FrequencyEntry> entries = new ArrayList<>();
+        for (int rank = offset; rank < Math.min(total, offset + n); rank++) {
+            entries.add(new FrequencyEntry("term" + rank, total - rank));
+        }
+        return new FrequencyPage(entries, offset, total);
+    }
 }
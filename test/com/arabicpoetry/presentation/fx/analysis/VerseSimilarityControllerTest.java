@@ -2,18 +2,28 @@ package com.arabicpoetry.presentation.fx.analysis;
 
 import com.arabicpoetry.bll.service.VerseSimilarityService;
 import com.arabicpoetry.model.Verse;
+import com.arabicpoetry.model.linguistics.FeatureSpace;
+import com.arabicpoetry.model.linguistics.SimilarityBlend;
+import com.arabicpoetry.model.linguistics.SimilarityMode;
+import com.arabicpoetry.model.linguistics.SimilaritySearchResult;
 import com.arabicpoetry.model.linguistics.VerseSimilarity;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
+import javafx.scene.control.Button;
+import javafx.scene.control.ComboBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.TableView;
+import javafx.scene.control.TextArea;
 import javafx.stage.Stage;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 import org.testfx.framework.junit5.ApplicationTest;
 import org.testfx.util.WaitForAsyncUtils;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 import static org.mockito.Mockito.when;
@@ -21,19 +31,20 @@ import static org.testfx.assertions.api.Assertions.assertThat;
 
 class VerseSimilarityControllerTest extends ApplicationTest {
     private VerseSimilarityService similarityService;
+    private int matchCount = 1;
 
     @Override
     public void start(Stage stage) throws Exception {
         similarityService = Mockito.mock(VerseSimilarityService.class);
 
-        Verse verse = new Verse();
-        verse.setVerseId(5);
-        verse.setPoemId(2);
-        verse.setText("sample verse text");
-
         when(similarityService.getNGramSize()).thenReturn(3);
-        when(similarityService.findSimilar(Mockito.anyString(), Mockito.anyDouble()))
-                .thenReturn(List.of(new VerseSimilarity(verse, 0.74)));
+        when(similarityService.getDefaultFeatureSpace()).thenReturn(FeatureSpace.characters(3));
+        when(similarityService.getIndexedFeatureSpaces()).thenReturn(List.of(FeatureSpace.characters(3)));
+        when(similarityService.isReady()).thenReturn(true);
+        when(similarityService.expectedRecall(Mockito.anyDouble())).thenReturn(0.58);
+        when(similarityService.searchTopK(Mockito.anyString(), Mockito.any(SimilarityBlend.class), Mockito.anyInt(),
+                Mockito.anyDouble(), Mockito.any(SimilarityMode.class), Mockito.anyLong(), Mockito.any(TimeUnit.class)))
+                .thenAnswer(invocation -> new SimilaritySearchResult(matches(invocation.getArgument(2)), false, 100, 100));
 
         FXMLLoader loader = new FXMLLoader(getClass().getResource("/com/arabicpoetry/presentation/fx/analysis/VerseSimilarityView.fxml"));
         loader.setControllerFactory(cls -> new VerseSimilarityController(similarityService));
@@ -55,4 +66,133 @@ class VerseSimilarityControllerTest extends ApplicationTest {
         assertThat(table.getItems()).hasSize(1);
         assertThat(status.getText()).contains("Found 1");
     }
+
+    @Test
+    void approximateSearchReportsExpectedRecall() {
+        ComboBox<SimilarityMode> modeCombo = lookup("#modeCombo").query();
+        interact(() -> modeCombo.getSelectionModel().select(SimilarityMode.APPROXIMATE));
+        clickOn("#queryArea").write("query text");
+        clickOn("#searchButton");
+
+        WaitForAsyncUtils.waitForFxEvents();
+        WaitForAsyncUtils.sleep(150, TimeUnit.MILLISECONDS);
+
+        Label status = lookup("#statusLabel").query();
+        assertThat(status.getText()).contains("Found 1").contains("58%");
+        Mockito.verify(similarityService).searchTopK(Mockito.eq("query text"), Mockito.any(SimilarityBlend.class),
+                Mockito.anyInt(), Mockito.anyDouble(), Mockito.eq(SimilarityMode.APPROXIMATE), Mockito.anyLong(),
+                Mockito.any(TimeUnit.class));
+    }
+
+    @Test
+    void searchesTheSelectedFeatureSpace() {
+        ComboBox<FeatureSpace> featureCombo = lookup("#featureCombo").query();
+        assertThat(featureCombo.getSelectionModel().getSelectedItem()).isEqualTo(FeatureSpace.characters(3));
+        interact(() -> featureCombo.getSelectionModel().select(FeatureSpace.tokens(2)));
+        clickOn("#queryArea").write("query text");
+        clickOn("#searchButton");
+
+        WaitForAsyncUtils.waitForFxEvents();
+        WaitForAsyncUtils.sleep(150, TimeUnit.MILLISECONDS);
+
+        Label status = lookup("#statusLabel").query();
+        assertThat(status.getText()).contains("Found 1").contains("Word 2-grams");
+        Mockito.verify(similarityService).searchTopK(Mockito.eq("query text"),
+                Mockito.eq(SimilarityBlend.of(FeatureSpace.tokens(2))), Mockito.anyInt(), Mockito.anyDouble(),
+                Mockito.any(SimilarityMode.class), Mockito.anyLong(), Mockito.any(TimeUnit.class));
+    }
+
+    @Test
+    void pagesThroughResultsWithoutRankingThemAll() {
+        matchCount = 60;
+        clickOn("#queryArea").write("query text");
+        clickOn("#searchButton");
+
+        WaitForAsyncUtils.waitForFxEvents();
+        WaitForAsyncUtils.sleep(150, TimeUnit.MILLISECONDS);
+
+        TableView<?> table = lookup("#resultTable").queryTableView();
+        Label status = lookup("#statusLabel").query();
+        assertThat(table.getItems()).hasSize(VerseSimilarityController.PAGE_SIZE);
+        assertThat(status.getText()).contains("more than 50").contains("1-50");
+        Mockito.verify(similarityService).searchTopK(Mockito.eq("query text"), Mockito.any(SimilarityBlend.class),
+                Mockito.eq(51), Mockito.anyDouble(), Mockito.any(SimilarityMode.class), Mockito.anyLong(),
+                Mockito.any(TimeUnit.class));
+
+        clickOn("#nextPageButton");
+
+        WaitForAsyncUtils.waitForFxEvents();
+        WaitForAsyncUtils.sleep(150, TimeUnit.MILLISECONDS);
+
+        assertThat(table.getItems()).hasSize(10);
+        assertThat(status.getText()).contains("Found 60").contains("51-60");
+        Button next = lookup("#nextPageButton").query();
+        Button previous = lookup("#previousPageButton").query();
+        assertThat(next.isDisabled()).isTrue();
+        assertThat(previous.isDisabled()).isFalse();
+    }
+
+    @Test
+    void newSearchCancelsTheRunningOne() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        when(similarityService.searchTopK(Mockito.eq("slow query"), Mockito.any(SimilarityBlend.class),
+                Mockito.anyInt(), Mockito.anyDouble(), Mockito.any(SimilarityMode.class), Mockito.anyLong(),
+                Mockito.any(TimeUnit.class))).thenAnswer(invocation -> {
+                    started.countDown();
+                    try {
+                        Thread.sleep(10_000);
+                    } catch (InterruptedException ex) {
+                        interrupted.countDown();
+                    }
+                    throw new CancellationException("Similarity search cancelled");
+                });
+
+        clickOn("#queryArea").write("slow query");
+        clickOn("#searchButton");
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+        TextArea queryArea = lookup("#queryArea").query();
+        interact(queryArea::clear);
+        clickOn("#queryArea").write("query text");
+        clickOn("#searchButton");
+
+        assertThat(interrupted.await(5, TimeUnit.SECONDS)).isTrue();
+        WaitForAsyncUtils.waitForFxEvents();
+        WaitForAsyncUtils.sleep(150, TimeUnit.MILLISECONDS);
+
+        TableView<?> table = lookup("#resultTable").queryTableView();
+        Label status = lookup("#statusLabel").query();
+        assertThat(table.getItems()).hasSize(1);
+        assertThat(status.getText()).contains("Found 1");
+    }
+
+    @Test
+    void partialResultsAreFlagged() {
+        when(similarityService.searchTopK(Mockito.eq("early query"), Mockito.any(SimilarityBlend.class),
+                Mockito.anyInt(), Mockito.anyDouble(), Mockito.any(SimilarityMode.class), Mockito.anyLong(),
+                Mockito.any(TimeUnit.class)))
+                .thenReturn(new SimilaritySearchResult(matches(1), true, 450, 1000));
+
+        clickOn("#queryArea").write("early query");
+        clickOn("#searchButton");
+
+        WaitForAsyncUtils.waitForFxEvents();
+        WaitForAsyncUtils.sleep(150, TimeUnit.MILLISECONDS);
+
+        Label status = lookup("#statusLabel").query();
+        assertThat(status.getText()).contains("Found 1").contains("partial results, 45% of verses indexed");
+    }
+
+    private List<VerseSimilarity> matches(int k) {
+        List<VerseSimilarity> matches = new ArrayList<>();
+        for (int i = 0; i < Math.min(k, matchCount); i++) {
+            Verse verse = new Verse();
+            verse.setVerseId(5 + i);
+            verse.setPoemId(2);
+            verse.setText("sample verse text " + i);
+            matches.add(new VerseSimilarity(verse, 0.74 - i * 0.001));
+        }
+        return matches;
+    }
 }
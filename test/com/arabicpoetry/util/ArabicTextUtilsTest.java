@@ -0,0 +1,103 @@
+package com.arabicpoetry.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.text.Normalizer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class ArabicTextUtilsTest {
+
+    // Characters that exercise every branch of the lookup table: plain and
+    // replaced letters, lam-alef, hamza above with the bases NFC composes it
+    // with, dropped and retained marks, tatweel, digits, Latin, whitespace
+    // and a supplementary Arabic letter.
+    private static final String[] ALPHABET = {
+            "ا", "ل", "ب", "أ", "إ", "آ", "ٱ", "ؤ", "ئ", "ى", "ة", "ﻻ",
+            "\u0654", "\u0653", "\u0655", "\u06C1", "\u06D2", "\u06D5",
+            "\u064E", "\u0651", "\u0670", "\u06E1", "\u0610", "\u08F0", "\u0640",
+            "1", "\u0660", "\u06F0", "a", "\u0301", " ", "\uD83B\uDE00", "\uD83B"
+    };
+
+    @Test
+    void normalizesLettersDiacriticsAndNoise() {
+        assertEquals("الشعر", ArabicTextUtils.normalizeToken("ٱلشِّعْرُ"));
+        assertEquals("اسد", ArabicTextUtils.normalizeToken("أسـد"));
+        assertEquals("ايمان", ArabicTextUtils.normalizeToken("إيمان"));
+        assertEquals("لا", ArabicTextUtils.normalizeToken("ﻻ"));
+        assertEquals("سوال", ArabicTextUtils.normalizeToken("سؤال"));
+        assertEquals("مدرسه", ArabicTextUtils.normalizeToken("مدرسة،"));
+        assertEquals("علي12", ArabicTextUtils.normalizeToken("(على12)abc"));
+        assertEquals("", ArabicTextUtils.normalizeToken(null));
+        assertEquals("", ArabicTextUtils.normalizeToken("  ...  "));
+    }
+
+    @Test
+    void returnsTokenItselfWhenAlreadyNormalized() {
+        String token = "قصيده";
+        assertSame(token, ArabicTextUtils.normalizeToken(token));
+    }
+
+    @Test
+    void composesHamzaAboveLikeNfc() {
+        // Hamza above composes with these bases into letters that are not
+        // folded back, unlike alef, waw and yeh.
+        assertEquals("\u06C0", ArabicTextUtils.normalizeToken("\u06D5\u0654"));
+        assertEquals("\u06C2", ArabicTextUtils.normalizeToken("\u06C1\u064E\u0654"));
+        assertEquals("و", ArabicTextUtils.normalizeToken("\u0648\u0654"));
+    }
+
+    @Test
+    void matchesOriginalPipelineOnAllShortCombinations() {
+        for (String a : ALPHABET) {
+            assertGolden(a);
+            for (String b : ALPHABET) {
+                assertGolden(a + b);
+                for (String c : ALPHABET) {
+                    assertGolden(a + b + c);
+                }
+            }
+        }
+    }
+
+    @Test
+    void matchesOriginalPipelineOnEveryCodePoint() {
+        for (int codePoint = 0; codePoint <= Character.MAX_CODE_POINT; codePoint++) {
+            assertGolden(new String(Character.toChars(codePoint)));
+        }
+    }
+
+    private static void assertGolden(String token) {
+        assertEquals(original(token), ArabicTextUtils.normalizeToken(token), () -> codeUnits(token));
+    }
+
+    /**
+     * The normalizer as it was before the table-driven rewrite; its output is
+     * the contract persisted indices rely on.
+     */
+    private static String original(String token) {
+        String normalized = Normalizer.normalize(token, Normalizer.Form.NFC)
+                .replaceAll("[\\u064B-\\u065F\\u0670\\u06D6-\\u06ED]", "");
+        normalized = normalized.replace("أ", "ا")
+                .replace("إ", "ا")
+                .replace("آ", "ا")
+                .replace("ؤ", "و")
+                .replace("ئ", "ي")
+                .replace("ة", "ه")
+                .replace("ى", "ي")
+                .replace("ٱ", "ا")
+                .replace("ﻻ", "لا")
+                .replaceAll("\\u0640", "");
+        normalized = normalized.replaceAll("[^\\p{IsArabic}\\d]", "");
+        return normalized.trim();
+    }
+
+    private static String codeUnits(String token) {
+        StringBuilder units = new StringBuilder();
+        for (int i = 0; i < token.length(); i++) {
+            units.append(String.format("U+%04X ", (int) token.charAt(i)));
+        }
+        return units.toString().trim();
+    }
+}
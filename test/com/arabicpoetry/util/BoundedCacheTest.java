@@ -0,0 +1,84 @@
+package com.arabicpoetry.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BoundedCacheTest {
+
+    @Test
+    void neverHoldsMoreThanMaximumSize() {
+        for (int maximumSize : new int[] {1, 3, 16, 20, 100}) {
+            BoundedCache<Integer, String> cache = new BoundedCache<>(maximumSize);
+            for (int key = 0; key < 10 * maximumSize; key++) {
+                cache.put(key, "v" + key);
+                assertTrue(cache.size() <= maximumSize);
+            }
+            CacheStats stats = cache.stats();
+            assertEquals(10 * maximumSize - cache.size(), stats.evictions());
+        }
+        assertThrows(IllegalArgumentException.class, () -> new BoundedCache<>(0));
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedEntry() {
+        // 16 segments of two entries; 0, 16 and 32 share the first one.
+        BoundedCache<Integer, String> cache = new BoundedCache<>(32);
+        cache.put(0, "a");
+        cache.put(16, "b");
+        assertEquals("a", cache.get(0));
+        cache.put(32, "c");
+
+        assertEquals("a", cache.get(0));
+        assertNull(cache.get(16));
+        assertEquals("c", cache.get(32));
+        assertEquals(1, cache.stats().evictions());
+    }
+
+    @Test
+    void computeIfAbsentKeepsFirstValueAndSkipsNull() {
+        BoundedCache<String, String> cache = new BoundedCache<>(8);
+        AtomicInteger loads = new AtomicInteger();
+
+        assertEquals("x1", cache.computeIfAbsent("x", key -> key + loads.incrementAndGet()));
+        assertEquals("x1", cache.computeIfAbsent("x", key -> key + loads.incrementAndGet()));
+        assertEquals(1, loads.get());
+
+        // A loader that loses the race gets the value cached while it ran.
+        assertEquals("y-first", cache.computeIfAbsent("y", key -> {
+            cache.put(key, "y-first");
+            return "y-second";
+        }));
+        assertEquals("y-first", cache.get("y"));
+
+        assertNull(cache.computeIfAbsent("z", key -> null));
+        assertNull(cache.get("z"));
+    }
+
+    @Test
+    void countsHitsMissesAndClears() {
+        BoundedCache<String, String> cache = new BoundedCache<>(4);
+        cache.get("a");
+        cache.put("a", "1");
+        cache.get("a");
+        cache.get("a");
+        cache.computeIfAbsent("b", key -> "2");
+
+        CacheStats stats = cache.stats();
+        assertEquals(2, stats.hits());
+        assertEquals(2, stats.misses());
+        assertEquals(0, stats.evictions());
+        assertEquals(2, stats.size());
+        assertEquals(0.5, stats.hitRate());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNull(cache.get("a"));
+        assertEquals(3, cache.stats().misses());
+    }
+}
@@ -0,0 +1,63 @@
+package com.arabicpoetry.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CountMinSketchTest {
+
+    @Test
+    void stringsWithEqualHashCodesAreCountedApart() {
+        // "Aa" and "BB" have the same hashCode, and so do all 64 strings
+        // made of six such blocks.
+        List<String> colliding = new ArrayList<>();
+        for (int bits = 0; bits < 64; bits++) {
+            StringBuilder item = new StringBuilder();
+            for (int block = 0; block < 6; block++) {
+                item.append((bits >>> block & 1) == 0 ? "Aa" : "BB");
+            }
+            colliding.add(item.toString());
+        }
+        assertEquals(colliding.get(0).hashCode(), colliding.get(63).hashCode());
+
+        CountMinSketch sketch = new CountMinSketch(1024, 4);
+        sketch.add(colliding.get(0), 1000);
+        int overcounted = 0;
+        for (String item : colliding.subList(1, colliding.size())) {
+            if (sketch.estimate(item) > 0) {
+                overcounted++;
+            }
+        }
+        assertEquals(0, overcounted);
+        assertEquals(1000, sketch.estimate(colliding.get(0)));
+    }
+
+    @Test
+    void estimatesNeverUndercountAndFollowRemovals() {
+        CountMinSketch sketch = new CountMinSketch(60, 3);
+        assertEquals(64, sketch.getWidth());
+        for (int i = 0; i < 500; i++) {
+            sketch.add("term" + i, i % 7 + 1);
+        }
+        for (int i = 0; i < 500; i += 2) {
+            sketch.add("term" + i, -(i % 7 + 1));
+        }
+        CountMinSketch copy = sketch.copy();
+        for (int i = 0; i < 500; i++) {
+            int count = i % 2 == 0 ? 0 : i % 7 + 1;
+            assertTrue(sketch.estimate("term" + i) >= count);
+            assertEquals(sketch.estimate("term" + i), copy.estimate("term" + i));
+        }
+        long total = 0;
+        for (int i = 1; i < 500; i += 2) {
+            total += i % 7 + 1;
+        }
+        assertEquals(total, sketch.getTotal());
+        assertThrows(IllegalArgumentException.class, () -> new CountMinSketch(16, 9));
+    }
+}
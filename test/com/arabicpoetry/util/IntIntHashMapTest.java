@@ -0,0 +1,52 @@
+package com.arabicpoetry.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class IntIntHashMapTest {
+
+    @Test
+    void putsAndRemovesMatchAHashMap() {
+        Random random = new Random(7);
+        IntIntHashMap map = new IntIntHashMap(4, -1);
+        Map<Integer, Integer> expected = new HashMap<>();
+        IntIntHashMap copy = null;
+        Map<Integer, Integer> copied = null;
+        for (int step = 0; step < 20000; step++) {
+            // Few distinct keys, so probe runs collide and wrap around.
+            int key = random.nextInt(200) - 100;
+            if (step % 7 == 0) {
+                key = Integer.MIN_VALUE;
+            }
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.containsKey(key) ? (int) expected.remove(key) : -1, map.remove(key));
+            } else {
+                map.put(key, step);
+                expected.put(key, step);
+            }
+            if (step == 10000) {
+                copy = map.copy();
+                copied = new HashMap<>(expected);
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        assertMatches(expected, map);
+        assertMatches(copied, copy);
+    }
+
+    private static void assertMatches(Map<Integer, Integer> expected, IntIntHashMap map) {
+        assertEquals(expected.size(), map.size());
+        for (int key = -100; key < 100; key++) {
+            assertEquals(expected.getOrDefault(key, -1), map.get(key));
+            assertEquals(expected.containsKey(key), map.containsKey(key));
+        }
+        assertEquals(expected.getOrDefault(Integer.MIN_VALUE, -1), map.get(Integer.MIN_VALUE));
+        assertFalse(map.containsKey(100));
+    }
+}
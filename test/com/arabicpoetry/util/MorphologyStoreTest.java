@@ -0,0 +1,124 @@
+package com.arabicpoetry.util;
+
+import com.arabicpoetry.model.linguistics.MorphologicalAnalysis;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MorphologyStoreTest {
+
+    private static final byte[] FINGERPRINT = {1, 2, 3, 4};
+    private static final List<String> KEYS = List.of("قلب", "حب", "ليل", "كتب", "ا");
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void savedAnalysesSurviveReloadAndMerge() throws Exception {
+        Path file = tempDir.resolve("morphology.bin");
+        MorphologyStore store = new MorphologyStore(file, FINGERPRINT);
+        for (String key : KEYS.subList(0, 3)) {
+            store.put(key, analysisOf(key));
+        }
+        store.save();
+
+        MorphologyStore reloaded = new MorphologyStore(file, FINGERPRINT);
+        assertEquals(3, reloaded.size());
+        reloaded.put("كتب", analysisOf("كتب"));
+        reloaded.put("ا", MorphologicalAnalysis.EMPTY);
+        reloaded.save();
+
+        MorphologyStore merged = new MorphologyStore(file, FINGERPRINT);
+        assertEquals(5, merged.size());
+        for (String key : KEYS) {
+            assertSameAnalysis(key.equals("ا") ? MorphologicalAnalysis.EMPTY : analysisOf(key), merged.get(key));
+        }
+        assertNull(merged.get("نجم"));
+    }
+
+    @Test
+    void storeOfAnotherAnalyzerIsIgnoredAndRewritten() throws Exception {
+        Path file = tempDir.resolve("morphology.bin");
+        MorphologyStore store = new MorphologyStore(file, FINGERPRINT);
+        store.put("قلب", analysisOf("قلب"));
+        store.save();
+
+        byte[] otherFingerprint = {1, 2, 3, 5};
+        MorphologyStore other = new MorphologyStore(file, otherFingerprint);
+        assertEquals(0, other.size());
+        assertNull(other.get("قلب"));
+        other.put("حب", analysisOf("حب"));
+        other.save();
+
+        assertEquals(0, new MorphologyStore(file, FINGERPRINT).size());
+        MorphologyStore rewritten = new MorphologyStore(file, otherFingerprint);
+        assertEquals(1, rewritten.size());
+        assertSameAnalysis(analysisOf("حب"), rewritten.get("حب"));
+    }
+
+    @Test
+    void truncatedStoreLoadsEmpty() throws Exception {
+        Path file = tempDir.resolve("morphology.bin");
+        byte[] image = savedImage(file);
+
+        for (int length = 0; length < image.length; length++) {
+            Files.write(file, Arrays.copyOf(image, length));
+            MorphologyStore store = new MorphologyStore(file, FINGERPRINT);
+            assertEquals(0, store.size(), "truncated to " + length);
+            assertNull(store.get("قلب"));
+        }
+    }
+
+    @Test
+    void corruptStoreNeverFailsALookup() throws Exception {
+        Path file = tempDir.resolve("morphology.bin");
+        byte[] image = savedImage(file);
+
+        for (int position = 0; position < image.length; position++) {
+            for (int bits : new int[] {0x01, 0x80, 0xFF}) {
+                byte[] corrupt = image.clone();
+                corrupt[position] ^= (byte) bits;
+                Files.write(file, corrupt);
+                MorphologyStore store = new MorphologyStore(file, FINGERPRINT);
+                // A flip inside a value still loads; anything else loads empty.
+                int size = store.size();
+                assertTrue(size == 0 || size == KEYS.size(), "flipped byte " + position);
+                for (String key : KEYS) {
+                    store.get(key);
+                }
+            }
+        }
+    }
+
+    private byte[] savedImage(Path file) throws Exception {
+        MorphologyStore store = new MorphologyStore(file, FINGERPRINT);
+        for (String key : KEYS) {
+            store.put(key, analysisOf(key));
+        }
+        store.save();
+        return Files.readAllBytes(file);
+    }
+
+    private static MorphologicalAnalysis analysisOf(String key) {
+        return new MorphologicalAnalysis(List.of(key, key + "ة"), List.of("ج" + key), List.of("و", key),
+                "اسم", key, "و", null);
+    }
+
+    private static void assertSameAnalysis(MorphologicalAnalysis expected, MorphologicalAnalysis actual) {
+        assertEquals(expected.getLemmas(), actual.getLemmas());
+        assertEquals(expected.getRoots(), actual.getRoots());
+        assertEquals(expected.getSegments(), actual.getSegments());
+        assertEquals(expected.getPartOfSpeech(), actual.getPartOfSpeech());
+        assertEquals(expected.getStem(), actual.getStem());
+        assertEquals(expected.getProclitic(), actual.getProclitic());
+        assertEquals(expected.getEnclitic(), actual.getEnclitic());
+    }
+}
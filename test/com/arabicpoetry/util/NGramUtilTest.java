@@ -0,0 +1,49 @@
+package com.arabicpoetry.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NGramUtilTest {
+
+    private static final List<String> VERSES = List.of(
+            "قِفا نَبكِ مِن ذِكرى حَبيبٍ وَمَنزِلِ",
+            "بِسِقطِ اللِوى بَينَ الدَخولِ فَحَومَلِ",
+            "قفا نبك من ذكرى حبيب وعرفان",
+            "ﻻ تَسقِني ماءَ المَلامِ فَإِنَّني",
+            "𞸀𞸁ب𞸀𞸁ب 123",
+            "abc",
+            "");
+
+    @Test
+    void packedNGramsMatchStringNGrams() {
+        for (int n = 1; n <= NGramUtil.MAX_PACKED_N; n++) {
+            for (String a : VERSES) {
+                long[] packedA = NGramUtil.packedCharNGrams(a, n);
+                assertEquals(NGramUtil.toSet(NGramUtil.charNGrams(a, n)).size(), packedA.length);
+                for (int i = 1; i < packedA.length; i++) {
+                    assertTrue(packedA[i - 1] < packedA[i]);
+                }
+                for (String b : VERSES) {
+                    assertEquals(
+                            NGramUtil.jaccardSimilarity(NGramUtil.toSet(NGramUtil.charNGrams(a, n)),
+                                    NGramUtil.toSet(NGramUtil.charNGrams(b, n))),
+                            NGramUtil.jaccardSimilarity(packedA, NGramUtil.packedCharNGrams(b, n)));
+                }
+            }
+        }
+    }
+
+    @Test
+    void packsAtLeastFourCodePoints() {
+        assertTrue(NGramUtil.MAX_PACKED_N >= 4);
+        assertThrows(IllegalArgumentException.class,
+                () -> NGramUtil.packedCharNGrams("قفا", NGramUtil.MAX_PACKED_N + 1));
+        assertEquals(0, NGramUtil.packedCharNGrams(null, 3).length);
+        assertEquals(0, NGramUtil.packedCharNGrams("قف", 3).length);
+    }
+}
@@ -0,0 +1,78 @@
+package com.arabicpoetry.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SpaceSavingTest {
+
+    @Test
+    void itemReturningToAFreedCounterKeepsAnUpperBound() {
+        SpaceSaving summary = new SpaceSaving(2);
+        summary.add("a", 5);
+        summary.add("b", 1);
+        summary.add("c", 1);
+        // b was evicted with a count of 1; removing a frees its counter.
+        summary.remove("a", 5);
+        summary.add("b", 1);
+
+        assertEquals(2, summary.count("b"));
+        assertEquals(1, summary.error("b"));
+        assertEquals(1, summary.errorBound());
+        assertEquals(5, summary.getRemoved());
+    }
+
+    @Test
+    void boundsHoldThroughAddsAndRemovals() {
+        Random random = new Random(42);
+        SpaceSaving summary = new SpaceSaving(10);
+        Map<String, Long> exact = new HashMap<>();
+        for (int step = 0; step < 5000; step++) {
+            // Skewed items, so a few are heavy hitters and most are not.
+            String item = "w" + (int) (Math.pow(random.nextDouble(), 3) * 60);
+            long present = exact.getOrDefault(item, 0L);
+            if (step >= 2000 && present > 0 && random.nextInt(3) == 0) {
+                long count = 1 + random.nextInt((int) present);
+                summary.remove(item, count);
+                exact.put(item, present - count);
+            } else {
+                long count = 1 + random.nextInt(3);
+                summary.add(item, count);
+                exact.put(item, present + count);
+            }
+            if (step < 2000) {
+                assertTrue(summary.errorBound() <= (summary.getTotal() + 9) / 10);
+            }
+            if (step % 50 == 0) {
+                assertBounds(summary, exact);
+            }
+        }
+        assertBounds(summary, exact);
+    }
+
+    private static void assertBounds(SpaceSaving summary, Map<String, Long> exact) {
+        long total = 0;
+        for (long count : exact.values()) {
+            total += count;
+        }
+        assertEquals(total, summary.getTotal());
+        HashSet<String> monitored = new HashSet<>(summary.items());
+        for (Map.Entry<String, Long> entry : exact.entrySet()) {
+            String item = entry.getKey();
+            long count = entry.getValue();
+            if (monitored.contains(item)) {
+                assertTrue(summary.count(item) - summary.error(item) <= count, item);
+                assertTrue(count <= summary.count(item), item);
+                assertTrue(summary.count(item) - count <= summary.errorBound(), item);
+            } else {
+                assertTrue(count <= summary.errorBound(), item);
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.arabicpoetry.util;
+
+import com.arabicpoetry.model.linguistics.MorphologicalAnalysis;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class WordAnalyzerTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final Set<String> analyzedForms = ConcurrentHashMap.newKeySet();
+
+    private MorphologicalAnalysis lemmaOfForm(String form) {
+        analyzedForms.add(form);
+        return new MorphologicalAnalysis(List.of("lemma:" + form), List.of(), List.of(), null, null, null, null);
+    }
+
+    @Test
+    void diacritizedFormsShareTheAnalysisOfTheNormalizedForm() {
+        WordAnalyzer analyzer = new WordAnalyzer(this::lemmaOfForm, 100, null);
+
+        MorphologicalAnalysis active = analyzer.analyze("كَتَبَ");
+        MorphologicalAnalysis passive = analyzer.analyze("كُتِبَ");
+
+        assertEquals(List.of("lemma:كتب"), active.getLemmas());
+        assertSame(active, passive);
+        assertSame(active, analyzer.analyze("كتب"));
+        assertEquals(Set.of("كتب"), analyzedForms);
+        assertSame(MorphologicalAnalysis.EMPTY, analyzer.analyze("ـَ"));
+    }
+
+    @Test
+    void concurrentCallersAllGetTheFirstCachedAnalysis() throws Exception {
+        WordAnalyzer analyzer = new WordAnalyzer(this::lemmaOfForm, 100, null);
+        String[] forms = {"كَتَبَ", "كُتِبَ", "كتب", "كَتْبُ"};
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<MorphologicalAnalysis>> results = new ArrayList<>();
+            for (int i = 0; i < 400; i++) {
+                String form = forms[i % forms.length];
+                results.add(pool.submit(() -> analyzer.analyze(form)));
+            }
+            MorphologicalAnalysis first = analyzer.analyze("كتب");
+            for (Future<MorphologicalAnalysis> result : results) {
+                assertSame(first, result.get());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(Set.of("كتب"), analyzedForms);
+    }
+
+    @Test
+    void onlyRealAnalysesAreStored() throws Exception {
+        MorphologyStore store = new MorphologyStore(tempDir.resolve("morphology.bin"), new byte[] {7});
+        WordAnalyzer analyzer = new WordAnalyzer(form -> form.equals("قلب") ? null : lemmaOfForm(form), 100, store);
+
+        assertSame(MorphologicalAnalysis.EMPTY, analyzer.analyze("قلب"));
+        assertEquals(List.of("lemma:كتب"), analyzer.analyze("كَتَبَ").getLemmas());
+        analyzer.saveStore();
+
+        MorphologyStore reloaded = new MorphologyStore(store.getFile(), new byte[] {7});
+        assertEquals(1, reloaded.size());
+        assertNull(reloaded.get("قلب"));
+        assertEquals(List.of("lemma:كتب"), reloaded.get("كتب").getLemmas());
+
+        WordAnalyzer restarted = new WordAnalyzer(this::lemmaOfForm, 100, reloaded);
+        analyzedForms.clear();
+        assertEquals(List.of("lemma:كتب"), restarted.analyze("كتب").getLemmas());
+        assertEquals(List.of("lemma:قلب"), restarted.analyze("قلب").getLemmas());
+        assertEquals(Set.of("قلب"), analyzedForms);
+    }
+
+    @Test
+    void nullAnalysisIsAnsweredAsEmptyAndNotCached() {
+        List<String> calls = new ArrayList<>();
+        WordAnalyzer analyzer = new WordAnalyzer(form -> {
+            calls.add(form);
+            return null;
+        }, 100, null);
+
+        assertSame(MorphologicalAnalysis.EMPTY, analyzer.analyze("قلب"));
+        assertSame(MorphologicalAnalysis.EMPTY, analyzer.analyze("قلب"));
+        assertEquals(List.of("قلب", "قلب"), calls);
+        assertEquals(0, analyzer.getCacheStats().size());
+    }
+}